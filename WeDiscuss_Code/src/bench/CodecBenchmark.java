@@ -0,0 +1,111 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.TreeMap;
+
+import shared.*;
+
+/* Bytes per message and encode/decode cost of the wire formats:
+ *   object stream - the original single long-lived ObjectOutputStream per socket
+ *   serialized    - WireCodec.SERIALIZED, one serialization stream per frame
+ *   binary        - WireCodec.BINARY
+ * The project has no build tool to pull in JMH, so this is a plain warm-up-then-measure loop; numbers
+ * are indicative only. Usage: CodecBenchmark [messagesPerRun] [runs] */
+public class CodecBenchmark {
+	private static volatile Object sink; // keeps the JIT from dropping decoded results
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		System.out.println("scenario     format         bytes/msg   encode ns/msg   decode ns/msg");
+		benchmark("chat UTC", chatMessages(count), runs);
+		benchmark("LOGIN reply", loginReplies(count / 20), runs);
+	}
+
+	private static Message[] chatMessages(int count) {
+		Message[] messages = new Message[count];
+		for(int i = 0; i < count; i++) {
+			MessageCreator create = new MessageCreator(MessageType.UTC);
+			create.setContents("Are we still meeting at 3pm to go over the design doc? #" + i);
+			create.setFromUserName("user" + (i % 50));
+			create.setFromUserID(i % 50);
+			create.setToChatroom(i % 7);
+			messages[i] = create.createMessage();
+		}
+		return messages;
+	}
+
+	private static Message[] loginReplies(int count) {
+		TreeMap<Integer, String> userMap = new TreeMap<Integer, String>();
+		for(int i = 0; i < 100; i++) {
+			userMap.put(i, "user" + i);
+		}
+		Message[] messages = new Message[count];
+		for(int i = 0; i < count; i++) {
+			MessageCreator create = new MessageCreator(MessageType.LOGIN);
+			create.setContents("Success");
+			create.setDirectory(new DirectoryPage(new TreeMap<Integer, String>(userMap), DirectoryPage.NO_MORE)); // one login per connection, so no shared back-references
+			messages[i] = create.createMessage();
+		}
+		return messages;
+	}
+
+	private static void benchmark(String scenario, Message[] messages, int runs) throws Exception {
+		for(int run = 0; run < runs; run++) { // warm up
+			objectStream(messages);
+			framed(WireCodec.SERIALIZED, messages);
+			framed(WireCodec.BINARY, messages);
+		}
+		print(scenario, "object stream", messages.length, objectStream(messages));
+		print(scenario, "serialized", messages.length, framed(WireCodec.SERIALIZED, messages));
+		print(scenario, "binary", messages.length, framed(WireCodec.BINARY, messages));
+	}
+
+	// Returns {total bytes, encode ns, decode ns}
+	private static long[] objectStream(Message[] messages) throws IOException, ClassNotFoundException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		long start = System.nanoTime();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		for(Message message : messages) {
+			out.writeObject(message);
+		}
+		out.flush();
+		long encode = System.nanoTime() - start;
+
+		byte[] data = bytes.toByteArray();
+		start = System.nanoTime();
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+		for(int i = 0; i < messages.length; i++) {
+			sink = in.readObject();
+		}
+		long decode = System.nanoTime() - start;
+		return new long[] {data.length, encode, decode};
+	}
+
+	private static long[] framed(WireCodec codec, Message[] messages) throws IOException, ClassNotFoundException {
+		byte[][] frames = new byte[messages.length][];
+		long total = 0;
+		long start = System.nanoTime();
+		for(int i = 0; i < messages.length; i++) {
+			frames[i] = codec.toFrame(messages[i]);
+		}
+		long encode = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for(byte[] frame : frames) {
+			sink = codec.fromPayload(frame, MessageFraming.HEADER_LENGTH, frame.length - MessageFraming.HEADER_LENGTH);
+			total += frame.length;
+		}
+		long decode = System.nanoTime() - start;
+		return new long[] {total, encode, decode};
+	}
+
+	private static void print(String scenario, String format, int count, long[] result) {
+		System.out.printf("%-12s %-14s %9d %15d %15d%n", scenario, format, result[0] / count, result[1] / count, result[2] / count);
+	}
+}
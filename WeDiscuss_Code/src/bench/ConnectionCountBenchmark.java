@@ -0,0 +1,79 @@
+package bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import server.Server;
+import server.ServerMode;
+import shared.*;
+
+/* Opens N connections that all stay open, sends one request on each and counts how many get an
+ * answer. With the blocking server only MAX_THREADS connections are ever serviced; the NIO server
+ * should answer all of them with a handful of threads.
+ * Usage: ConnectionCountBenchmark [connections] [basePort] */
+public class ConnectionCountBenchmark {
+	private static final int REPLY_WINDOW_MS = 3000;
+
+	public static void main(String[] args) throws Exception {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int basePort = args.length > 1 ? Integer.parseInt(args[1]) : 18080;
+
+		System.out.println("mode      connections  served  elapsed(ms)  server threads");
+		run(ServerMode.BLOCKING, connections, basePort);
+		run(ServerMode.NIO, connections, basePort + 1);
+		System.exit(0);
+	}
+
+	private static void run(ServerMode mode, int connections, int port) throws Exception {
+		int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+		Server server = new Server(port, mode);
+		server.startListening();
+		Thread.sleep(500); // let the listener bind
+
+		List<Socket> sockets = new ArrayList<Socket>();
+		List<FrameOutputStream> outputs = new ArrayList<FrameOutputStream>();
+		long start = System.nanoTime();
+		for(int i = 0; i < connections; i++) {
+			Socket socket = new Socket("localhost", port);
+			sockets.add(socket);
+			outputs.add(new FrameOutputStream(socket.getOutputStream()));
+		}
+
+		// A login with a malformed body is answered without touching any state
+		MessageCreator create = new MessageCreator(MessageType.LOGIN);
+		create.setContents("benchmark");
+		Message request = create.createMessage();
+		for(FrameOutputStream output : outputs) {
+			output.writeObject(request);
+		}
+
+		// Poll every connection until all have a reply waiting or the window closes
+		int served = 0;
+		long deadline = System.currentTimeMillis() + REPLY_WINDOW_MS;
+		while(served < connections && System.currentTimeMillis() < deadline) {
+			served = 0;
+			for(Socket socket : sockets) {
+				if(socket.getInputStream().available() >= MessageFraming.HEADER_LENGTH) served++;
+			}
+			Thread.sleep(50);
+		}
+		long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+		int serverThreads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+
+		System.out.printf("%-9s %11d %7d %12d %15d%n", mode, connections, served, elapsedMs, serverThreads);
+
+		for(Socket socket : sockets) {
+			try {
+				socket.close();
+			}
+			catch(IOException e) {
+				// ignore
+			}
+		}
+		server.stop();
+		Thread.sleep(1000); // let the finished connection threads exit before the next run
+	}
+}
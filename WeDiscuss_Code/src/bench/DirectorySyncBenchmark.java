@@ -0,0 +1,104 @@
+package bench;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import server.DirectoryHistory;
+import shared.*;
+
+/* Bytes a login wave moves for the user directory, and the time to build and encode each reply:
+ *   snapshot - every login gets the whole directory, as before versions
+ *   delta    - every login sends the version it cached the day before and gets the changes since,
+ *              as UserManager.authUser replies when DirectoryHistory still holds them
+ * Also the UPDATEUM frames one connected client receives for the day's changes, one per change as
+ * before or one per burst when the server batches them.
+ * Usage: DirectorySyncBenchmark [users] [changes] [logins] [changesPerBurst] */
+public class DirectorySyncBenchmark {
+	private static volatile Object sink;
+
+	public static void main(String[] args) throws Exception {
+		int users = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int changes = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		int logins = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		int perBurst = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+		System.out.println(users + " users, " + changes + " changes since the cached version, " + logins + " logins");
+
+		Map<Integer, String> directory = new TreeMap<Integer, String>();
+		for(int i = 1; i <= users; i++) {
+			directory.put(i, "user" + i);
+		}
+		DirectoryHistory history = new DirectoryHistory(DirectoryHistory.DEFAULT_CAPACITY);
+		long cached = history.getVersion();
+		int perChangeFrames = 0;
+		long perChangeBytes = 0;
+		for(int i = 0; i < changes; i++) {
+			int userID = users + i + 1;
+			if(i % 5 == 4) { // Some accounts are deleted, the rest are new
+				userID = i + 1;
+				directory.remove(userID);
+				history.record(userID, null);
+			}
+			else {
+				directory.put(userID, "newcomer" + i);
+				history.record(userID, "newcomer" + i);
+			}
+			MessageCreator update = new MessageCreator(MessageType.UPDATEUM);
+			update.setFromUserID(userID);
+			update.setFromUserName(directory.get(userID));
+			update.setContents(directory.containsKey(userID) ? "Add" : "Remove");
+			perChangeBytes += BinaryMessageCodec.toFrame(update.createMessage()).length;
+			perChangeFrames++;
+		}
+
+		// Batched bursts, each one delta from the previous burst's version
+		DirectoryHistory bursts = new DirectoryHistory(DirectoryHistory.DEFAULT_CAPACITY);
+		long sent = bursts.getVersion();
+		int batchedFrames = 0;
+		long batchedBytes = 0;
+		for(int i = 0; i < changes; i++) {
+			bursts.record(users + i + 1, "newcomer" + i);
+			if((i + 1) % perBurst == 0 || i == changes - 1) {
+				DirectoryDelta delta = bursts.since(sent);
+				MessageCreator update = new MessageCreator(MessageType.UPDATEUM);
+				update.setContents("Delta");
+				update.setDirectoryDelta(delta);
+				batchedBytes += BinaryMessageCodec.toFrame(update.createMessage()).length;
+				batchedFrames++;
+				sent = delta.getToVersion();
+			}
+		}
+
+		for(int run = 0; run < 3; run++) { // The first two warm up
+			long start = System.nanoTime();
+			long snapshotBytes = 0;
+			for(int i = 0; i < logins; i++) {
+				MessageCreator create = new MessageCreator(MessageType.LOGIN);
+				create.setContents("Success");
+				create.setDirectory(new DirectoryPage(new TreeMap<Integer, String>(directory), DirectoryPage.NO_MORE, history.getVersion()));
+				byte[] frame = BinaryMessageCodec.toFrame(create.createMessage());
+				snapshotBytes += frame.length;
+				sink = frame;
+			}
+			long snapshot = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			long deltaBytes = 0;
+			for(int i = 0; i < logins; i++) {
+				MessageCreator create = new MessageCreator(MessageType.LOGIN);
+				create.setContents("Success");
+				create.setDirectoryDelta(history.since(cached));
+				byte[] frame = BinaryMessageCodec.toFrame(create.createMessage());
+				deltaBytes += frame.length;
+				sink = frame;
+			}
+			long delta = System.nanoTime() - start;
+
+			if(run == 2) {
+				System.out.printf("snapshot %12.1f KB %10.1f ms%n", snapshotBytes / 1024.0, snapshot / 1e6);
+				System.out.printf("delta    %12.1f KB %10.1f ms%n", deltaBytes / 1024.0, delta / 1e6);
+			}
+		}
+		System.out.printf("updates per change %6d frames %10.1f KB%n", perChangeFrames, perChangeBytes / 1024.0);
+		System.out.printf("updates batched    %6d frames %10.1f KB%n", batchedFrames, batchedBytes / 1024.0);
+	}
+}
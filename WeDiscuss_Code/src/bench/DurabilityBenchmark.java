@@ -0,0 +1,86 @@
+package bench;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import server.DurabilityMode;
+import server.MessageLog;
+import shared.*;
+
+/* Throughput and append latency of the MessageLog in each DurabilityMode, with several handler threads
+ * appending chat messages at once the way the server's sessions do. With SYNC the interesting column
+ * is appends per fsync: how many senders each group commit released.
+ * Usage: DurabilityBenchmark [threads] [messagesPerThread] */
+public class DurabilityBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+
+		run(DurabilityMode.NONE, threads, perThread, false); // warm up
+		System.out.println(threads + " threads x " + perThread + " messages");
+		System.out.println("mode          msg/s     p50 us     p99 us   fsyncs   appends/fsync");
+		for(DurabilityMode mode : DurabilityMode.values()) {
+			run(mode, threads, perThread, true);
+		}
+	}
+
+	private static void run(DurabilityMode mode, int threads, int perThread, boolean print) throws Exception {
+		File directory = Files.createTempDirectory("wediscuss_durability_bench").toFile();
+		MessageLog log = new MessageLog(directory, MessageLog.DEFAULT_SEGMENT_BYTES, mode, MessageLog.DEFAULT_SYNC_INTERVAL_MS);
+		long[][] latencies = new long[threads][perThread];
+		Thread[] workers = new Thread[threads];
+
+		long start = System.nanoTime();
+		for(int t = 0; t < threads; t++) {
+			int thread = t;
+			workers[t] = new Thread(() -> {
+				try {
+					for(int i = 0; i < perThread; i++) {
+						MessageCreator create = new MessageCreator(MessageType.UTC);
+						create.setContents("Are we still meeting at 3pm to go over the design doc? #" + i);
+						create.setFromUserID(thread);
+						create.setToChatroom(i % 10);
+						Message message = create.createMessage();
+
+						long sent = System.nanoTime();
+						log.append(message);
+						latencies[thread][i] = System.nanoTime() - sent;
+					}
+				}
+				catch(Exception e) {
+					e.printStackTrace();
+				}
+			});
+			workers[t].start();
+		}
+		for(Thread worker : workers) {
+			worker.join();
+		}
+		long elapsed = System.nanoTime() - start;
+		long syncs = log.getSyncCount();
+		log.close();
+		delete(directory);
+
+		long[] all = new long[threads * perThread];
+		for(int t = 0; t < threads; t++) {
+			System.arraycopy(latencies[t], 0, all, t * perThread, perThread);
+		}
+		Arrays.sort(all);
+		if(!print) return;
+		System.out.printf("%-9s %9.0f %10.1f %10.1f %8d %15s%n", mode, all.length / (elapsed / 1e9),
+				all[all.length / 2] / 1000.0, all[(int) (all.length * 0.99)] / 1000.0, syncs,
+				syncs == 0 ? "-" : String.format("%.1f", (double) all.length / syncs));
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
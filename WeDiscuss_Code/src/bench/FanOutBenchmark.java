@@ -0,0 +1,107 @@
+package bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+import server.ClientSession;
+import server.OutboundQueue;
+import server.SlowConsumerPolicy;
+import shared.*;
+
+/* Cost of delivering one chatroom message to N recipients, the way the server does it: enqueue on every
+ * recipient's session, then each connection's writer writes the frame to its socket. Compares
+ *   per recipient   - output.writeObject(message), encoded again by every writer
+ *   serialize once  - EncodedMessage.writeTo(output), every writer sends the same frame
+ * Sockets are replaced by streams that discard the bytes, so what is measured is encoding, queueing and
+ * the buffered write. Usage: FanOutBenchmark [recipientWritesPerRun] */
+public class FanOutBenchmark {
+	private static final int[] RECIPIENTS = {10, 100, 1000, 10000};
+
+	public static void main(String[] args) throws Exception {
+		int writesPerRun = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+		MessageCreator create = new MessageCreator(MessageType.UTC);
+		create.setContents("Are we still meeting at 3pm to go over the design doc?");
+		create.setFromUserName("user7");
+		create.setFromUserID(7);
+		create.setToChatroom(3);
+		Message message = create.createMessage();
+
+		System.out.println("recipients  codec        per recipient us   serialize once us   speedup");
+		for(WireCodec codec : WireCodec.values()) {
+			for(int recipients : RECIPIENTS) {
+				Recipient[] room = newRoom(recipients, codec);
+				int broadcasts = Math.max(5, writesPerRun / recipients);
+				run(room, message, broadcasts, false); // warm up
+				run(room, message, broadcasts, true);
+				long perRecipient = run(room, message, broadcasts, false);
+				long once = run(room, message, broadcasts, true);
+				System.out.printf("%10d  %-10s %18.1f %19.1f %8.1fx%n", recipients, codec,
+						perRecipient / 1000.0 / broadcasts, once / 1000.0 / broadcasts, (double) perRecipient / once);
+			}
+		}
+	}
+
+	// Returns the total nanoseconds for all broadcasts
+	private static long run(Recipient[] room, Message message, int broadcasts, boolean encodeOnce) throws IOException {
+		long start = System.nanoTime();
+		for(int i = 0; i < broadcasts; i++) {
+			if(encodeOnce) {
+				EncodedMessage encoded = new EncodedMessage(message);
+				for(Recipient recipient : room) {
+					encoded.writeTo(recipient.session.getOutput());
+				}
+			}
+			else {
+				for(Recipient recipient : room) {
+					recipient.session.getOutput().writeObject(message);
+				}
+			}
+			for(Recipient recipient : room) {
+				recipient.drain();
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static Recipient[] newRoom(int recipients, WireCodec codec) throws IOException {
+		Recipient[] room = new Recipient[recipients];
+		for(int i = 0; i < recipients; i++) {
+			room[i] = new Recipient(codec);
+		}
+		return room;
+	}
+
+	// One connected client: its session and the writer's view of its socket
+	private static class Recipient {
+		private final ClientSession session;
+		private final ObjectOutputStream socket;
+		private final OutputStream bytes = new DiscardStream();
+
+		Recipient(WireCodec codec) throws IOException {
+			Closeable transport = () -> {};
+			session = new ClientSession(transport, new OutboundQueue(1024, SlowConsumerPolicy.DISCONNECT, null));
+			socket = new FrameOutputStream(bytes, codec);
+		}
+
+		// What the connection's writer does
+		void drain() throws IOException {
+			EncodedMessage next;
+			while((next = session.getOutbound().poll()) != null) {
+				next.writeTo(socket);
+			}
+		}
+	}
+
+	private static class DiscardStream extends OutputStream {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+}
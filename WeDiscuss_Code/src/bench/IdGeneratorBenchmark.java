@@ -0,0 +1,72 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import shared.IdGenerator;
+
+/* Many threads taking message ids at once from:
+ *   static    - a plain static int counter, as Message used to have (not thread safe)
+ *   locked    - the same counter behind a lock
+ *   atomic    - an AtomicLong counter
+ *   generator - IdGenerator, time-ordered with a node id
+ * Reports the ids made per second and how many of them were duplicates.
+ * Usage: IdGeneratorBenchmark [threads] [idsPerThread] */
+public class IdGeneratorBenchmark {
+	private static int staticCounter;
+	private static int lockedCounter;
+	private static final Object lock = new Object();
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		System.out.println(threads + " threads, " + perThread + " ids each");
+
+		AtomicLong atomic = new AtomicLong();
+		IdGenerator generator = new IdGenerator(1);
+		for(int round = 0; round < 2; round++) { // The first round warms up
+			run("static", () -> ++staticCounter, threads, perThread);
+			run("locked", () -> {
+				synchronized(lock) {
+					return ++lockedCounter;
+				}
+			}, threads, perThread);
+			run("atomic", atomic::incrementAndGet, threads, perThread);
+			run("generator", generator::nextId, threads, perThread);
+		}
+	}
+
+	private static void run(String name, LongSupplier ids, int threads, int perThread) throws InterruptedException {
+		long[][] made = new long[threads][perThread];
+		List<Thread> running = new ArrayList<Thread>();
+		for(int t = 0; t < threads; t++) {
+			long[] mine = made[t];
+			running.add(new Thread(() -> {
+				for(int i = 0; i < perThread; i++) {
+					mine[i] = ids.getAsLong();
+				}
+			}));
+		}
+		long start = System.nanoTime();
+		for(Thread thread : running) {
+			thread.start();
+		}
+		for(Thread thread : running) {
+			thread.join();
+		}
+		long elapsed = System.nanoTime() - start;
+
+		Set<Long> unique = new HashSet<Long>();
+		for(long[] mine : made) {
+			for(long id : mine) {
+				unique.add(id);
+			}
+		}
+		long total = (long) threads * perThread;
+		System.out.printf("%-9s %6.1f M ids/s, %d duplicates%n", name, total / (elapsed / 1e9) / 1e6, total - unique.size());
+	}
+}
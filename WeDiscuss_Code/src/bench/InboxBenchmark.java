@@ -0,0 +1,113 @@
+package bench;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import server.MessageLog;
+import server.User;
+import shared.*;
+
+/* Server startup with many accounts whose direct messages are in the MessageLog:
+ *   eager - every User built with all of its messages in memory, what startup used to do
+ *   lazy  - Users built without their inbox, which is loaded (only the newest window) at login
+ * Reports the startup time and the heap still in use after a GC for both, then what a login costs:
+ * the time to load one inbox window and the heap held by a set of online users. The log is written
+ * under a temporary directory, the users' files go to the working directory under ids from FIRST_USER
+ * up and are deleted afterwards.
+ * Usage: InboxBenchmark [users] [messagesPerUser] [onlineUsers] */
+public class InboxBenchmark {
+	private static final int FIRST_USER = 700000;
+
+	public static void main(String[] args) throws Exception {
+		int users = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int perUser = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int online = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+		File directory = Files.createTempDirectory("wediscuss_inbox_bench").toFile();
+
+		// Each message is in two inboxes, so perUser / 2 sent by every user
+		MessageLog log = new MessageLog(directory);
+		for(int i = 0; i < perUser / 2; i++) {
+			for(int user = 0; user < users; user++) {
+				MessageCreator create = new MessageCreator(MessageType.UTU);
+				create.setContents("Are we still meeting at 3pm to go over the design doc? #" + i);
+				create.setFromUserID(FIRST_USER + user);
+				create.setFromUserName("user" + user);
+				create.setToUserID(FIRST_USER + (user + 1 + i) % users);
+				create.setToUserName("user" + (user + 1 + i) % users);
+				log.append(create.createMessage());
+			}
+		}
+		for(int user = 0; user < users; user++) {
+			new User("user" + user, "password", false, FIRST_USER + user); // Creates the user's files, as on a running server
+		}
+		System.out.println(users + " users x " + perUser + " messages");
+
+		long before = heap();
+		long start = System.nanoTime();
+		List<User> lazy = new ArrayList<User>(users);
+		for(int user = 0; user < users; user++) {
+			lazy.add(new User("user" + user, "password", false, FIRST_USER + user));
+		}
+		long elapsed = System.nanoTime() - start;
+		long started = heap();
+		System.out.printf("lazy:   %8.0f ms, %6.1f MB heap%n", elapsed / 1e6, (started - before) / 1e6);
+
+		start = System.nanoTime();
+		for(int user = 0; user < online; user++) {
+			lazy.get(user * (users / online)).loadMessageInbox(log, User.DEFAULT_INBOX_WINDOW);
+		}
+		elapsed = System.nanoTime() - start;
+		long loggedIn = heap();
+		System.out.printf("login:  %8.2f ms per inbox, %d online users hold %.1f MB%n", elapsed / 1e6 / online, online,
+				(loggedIn - started) / 1e6);
+		System.out.println(lazy.size() + " lazy users");
+		lazy = null;
+
+		before = heap();
+		start = System.nanoTime();
+		List<User> eager = new ArrayList<User>(users);
+		try {
+			for(int user = 0; user < users; user++) {
+				User make = new User("user" + user, "password", false, FIRST_USER + user);
+				make.loadMessageInbox(log, Integer.MAX_VALUE);
+				eager.add(make);
+			}
+			elapsed = System.nanoTime() - start;
+			long loaded = heap();
+			System.out.printf("eager:  %8.0f ms, %6.1f MB heap, %d users%n", elapsed / 1e6, (loaded - before) / 1e6, eager.size());
+		}
+		catch(OutOfMemoryError e) {
+			eager = null;
+			System.out.printf("eager:  out of memory after %.0f ms%n", (System.nanoTime() - start) / 1e6);
+		}
+		eager = null;
+
+		log.close();
+		delete(directory);
+		for(int user = 0; user < users; user++) {
+			new File((FIRST_USER + user) + "Inbox.txt").delete();
+			new File((FIRST_USER + user) + "Chats.txt").delete();
+		}
+	}
+
+	private static long heap() throws InterruptedException {
+		for(int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
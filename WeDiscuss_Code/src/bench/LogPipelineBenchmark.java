@@ -0,0 +1,84 @@
+package bench;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import server.LogManager;
+import shared.*;
+
+/* The LogManager's writer thread:
+ *   idle CPU  - CPU time the writer burns in a second with nothing to do, against the old
+ *               poll()/continue loop on a ConcurrentLinkedQueue
+ *   ingest    - several handler threads queueing chat messages at once, then drain(), with the
+ *               batch and queue depth metrics that left behind
+ * Runs without a MessageLog, the only setup where the writer has files to append to. The chatlog files
+ * go to the working directory under chatroom ids from FIRST_ROOM up, and are deleted afterwards.
+ * Usage: LogPipelineBenchmark [threads] [messagesPerThread] */
+public class LogPipelineBenchmark {
+	private static final int FIRST_ROOM = 900000;
+	private static final int ROOMS = 100;
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+		ThreadMXBean cpu = ManagementFactory.getThreadMXBean();
+
+		LogManager logManager = new LogManager(new ArrayList<Integer>(), new ArrayList<Integer>());
+
+		// Idle
+		long before = logManager.getWriterCpuNanos();
+		Thread.sleep(1000);
+		System.out.printf("idle CPU, blocking writer: %8.1f ms/s%n", (logManager.getWriterCpuNanos() - before) / 1e6);
+
+		ConcurrentLinkedQueue<Message> spinQueue = new ConcurrentLinkedQueue<Message>();
+		Thread spinner = new Thread(() -> {
+			while(!Thread.currentThread().isInterrupted()) {
+				Message message = spinQueue.poll();
+				if(message == null) continue;
+			}
+		});
+		spinner.start();
+		Thread.sleep(100);
+		before = cpu.getThreadCpuTime(spinner.getId());
+		Thread.sleep(1000);
+		System.out.printf("idle CPU, spinning reader: %8.1f ms/s%n", (cpu.getThreadCpuTime(spinner.getId()) - before) / 1e6);
+		spinner.interrupt();
+		spinner.join();
+
+		// Ingest
+		Thread[] senders = new Thread[threads];
+		long start = System.nanoTime();
+		for(int t = 0; t < threads; t++) {
+			int thread = t;
+			senders[t] = new Thread(() -> {
+				for(int i = 0; i < perThread; i++) {
+					MessageCreator create = new MessageCreator(MessageType.UTC);
+					create.setContents("Are we still meeting at 3pm to go over the design doc? #" + i);
+					create.setFromUserID(thread);
+					create.setToChatroom(FIRST_ROOM + i % ROOMS);
+					logManager.addToLogQueue(create.createMessage());
+				}
+			});
+			senders[t].start();
+		}
+		for(Thread sender : senders) {
+			sender.join();
+		}
+		logManager.drain(1, TimeUnit.MINUTES);
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println(threads + " threads x " + perThread + " messages");
+		System.out.printf("ingest: %.0f msg/s, %d batches, avg batch %.1f, largest batch %d, largest queue depth %d%n",
+				threads * perThread / (elapsed / 1e9), logManager.getBatchCount(), logManager.getAverageBatchSize(),
+				logManager.getLargestBatch(), logManager.getLargestQueueDepth());
+
+		logManager.close();
+		for(int room = FIRST_ROOM; room < FIRST_ROOM + ROOMS; room++) {
+			new File(room + "chatlog.txt").delete();
+		}
+	}
+}
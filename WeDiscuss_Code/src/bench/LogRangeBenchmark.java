@@ -0,0 +1,87 @@
+package bench;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import server.LogManager;
+import server.MessageLog;
+import shared.*;
+
+/* Latency of "messages in room X between t and t + 1 minute" against the size of the room's log, with
+ * one message a second so a window holds 60:
+ *   time index - MessageLog.readRoom with a time range, seeking via the sparse time index and reading
+ *                only the window's records from disk
+ *   memory scan - LogManager.page over every message of the room held in memory, the only way to
+ *                answer it before, which also needs the whole log parsed and resident
+ * Windows are picked at random positions. The log is written under a temporary directory.
+ * Usage: LogRangeBenchmark [largestLog] */
+public class LogRangeBenchmark {
+	private static final int ROOM = 1;
+	private static final long BASE_TIME = 1700000000000L;
+	private static final long WINDOW = 60 * 1000L;
+
+	public static void main(String[] args) throws Exception {
+		int largest = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+		System.out.println("messages    time index us   memory scan us");
+		for(int size = 10000; size <= largest; size *= 10) {
+			File directory = Files.createTempDirectory("wediscuss_log_range_bench").toFile();
+			MessageLog log = new MessageLog(directory);
+			List<Message> inMemory = new ArrayList<Message>(size);
+			for(int i = 0; i < size; i++) {
+				MessageCreator create = new MessageCreator(MessageType.UTC);
+				create.setContents("Are we still meeting at 3pm to go over the design doc? #" + i);
+				create.setFromUserID(i % 50);
+				create.setToChatroom(ROOM);
+				create.setDate(BASE_TIME + i * 1000L);
+				Message message = create.createMessage();
+				log.append(message);
+				inMemory.add(message);
+			}
+
+			int queries = 200;
+			Random random = new Random(size);
+			long[] starts = new long[queries];
+			for(int q = 0; q < queries; q++) {
+				starts[q] = BASE_TIME + (long) random.nextInt(size - 60) * 1000L;
+			}
+
+			int found = 0;
+			long indexed = 0;
+			long scanned = 0;
+			for(int round = 0; round < 2; round++) { // First round warms up
+				indexed = System.nanoTime();
+				for(long start : starts) {
+					List<Message> records = new ArrayList<Message>();
+					log.readRoom(ROOM, 0, start, start + WINDOW - 1, LogQuery.MAX_PAGE_SIZE, records);
+					found += records.size();
+				}
+				indexed = System.nanoTime() - indexed;
+
+				scanned = System.nanoTime();
+				for(long start : starts) {
+					found += LogManager.page(inMemory, new LogQuery(0, LogQuery.MAX_PAGE_SIZE, start, start + WINDOW - 1)).getRecords().size();
+				}
+				scanned = System.nanoTime() - scanned;
+			}
+			if(found != 4 * queries * 60) throw new IllegalStateException("Wrong window sizes: " + found);
+			System.out.printf("%8d %16.1f %16.1f%n", size, indexed / 1e3 / queries, scanned / 1e3 / queries);
+
+			log.close();
+			delete(directory);
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,99 @@
+package bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import server.LogManager;
+import shared.*;
+
+/* GCL latency against one chatroom holding a large log (1M messages by default):
+ *   whole log  - the old reply, every record in one contents string. Built with += as it was, which is
+ *                quadratic so it only runs on small logs, and with a StringBuilder on the full log as the
+ *                best case of putting everything in one message
+ *   pages      - LogManager.getChatroomMessages for one page at the start, middle and end of the log and
+ *                for a time window near the end, serialized to a byte array like a session would
+ * Usage: LogRetrievalBenchmark [messages] */
+public class LogRetrievalBenchmark {
+	private static final int ROOM = 1;
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		long baseTime = 1700000000000L;
+
+		LogManager logManager = new LogManager(new ArrayList<Integer>(), new ArrayList<Integer>());
+		for(int i = 0; i < count; i++) {
+			MessageCreator create = new MessageCreator(MessageType.UTC);
+			create.setContents("Are we still meeting at 3pm to go over the design doc? #" + i);
+			create.setFromUserID(i % 50);
+			create.setToChatroom(ROOM);
+			create.setDate(baseTime + i * 10L);
+			logManager.storeMessage(create.createMessage());
+		}
+		List<Message> log = LogManager.getChatroomMessageLogs().get(ROOM);
+		System.out.println("chatroom log: " + log.size() + " messages");
+
+		for(int n : new int[] {5000, 10000, 20000}) {
+			long start = System.nanoTime();
+			String result = "";
+			for(int i = 0; i < n; i++) {
+				result += log.get(i).buildChatLog();
+				result += "|";
+			}
+			System.out.printf("whole log with +=, first %6d: %10.1f ms%n", n, (System.nanoTime() - start) / 1e6);
+		}
+		for(int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			StringBuilder result = new StringBuilder();
+			for(Message message : log) {
+				result.append(message.buildChatLog()).append('|');
+			}
+			int bytes = reply(result.toString());
+			if(round == 2) {
+				System.out.printf("whole log with StringBuilder:  %10.1f ms, reply %d bytes%n", (System.nanoTime() - start) / 1e6, bytes);
+			}
+		}
+
+		long middle = count / 2;
+		long end = Math.max(0, count - LogQuery.DEFAULT_PAGE_SIZE);
+		long windowStart = baseTime + (count - 500) * 10L;
+		String[] names = {"first page", "middle page", "last page", "window near end"};
+		String[] queries = {
+				new LogQuery(0, LogQuery.DEFAULT_PAGE_SIZE).toContents(),
+				new LogQuery(middle, LogQuery.DEFAULT_PAGE_SIZE).toContents(),
+				new LogQuery(end, LogQuery.DEFAULT_PAGE_SIZE).toContents(),
+				new LogQuery(0, LogQuery.DEFAULT_PAGE_SIZE, windowStart, windowStart + 999).toContents()};
+		for(int q = 0; q < queries.length; q++) {
+			MessageCreator request = new MessageCreator(MessageType.GCL);
+			request.setToChatroom(ROOM);
+			request.setContents(queries[q]);
+			Message message = request.createMessage();
+
+			int rounds = 200;
+			int bytes = 0;
+			long start = 0;
+			for(int i = -rounds; i < rounds; i++) { // First half warms up
+				if(i == 0) start = System.nanoTime();
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				try(ObjectOutputStream output = new ObjectOutputStream(buffer)) {
+					logManager.getChatroomMessages(output, message);
+				}
+				bytes = buffer.size();
+			}
+			System.out.printf("%-16s %10.1f us, reply %d bytes%n", names[q], (System.nanoTime() - start) / 1e3 / rounds, bytes);
+		}
+		logManager.close();
+	}
+
+	private static int reply(String contents) throws IOException {
+		MessageCreator create = new MessageCreator(MessageType.GCL);
+		create.setContents(contents);
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		try(ObjectOutputStream output = new ObjectOutputStream(buffer)) {
+			output.writeObject(create.createMessage());
+		}
+		return buffer.size();
+	}
+}
@@ -0,0 +1,107 @@
+package bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import server.User;
+import shared.*;
+
+/* Size and encoding time of a LOGIN reply for a user in a few busy rooms:
+ *   objects  - the server's User, its Chatrooms with their whole history and the user map, Java serialized
+ *              the way the reply used to carry them
+ *   payloads - UserProfile, RoomSummary (newest RoomSummary.DEFAULT_RECENT_MESSAGES per room) and
+ *              DirectoryPage, as BinaryMessageCodec writes them
+ * The rooms and inbox are stored under a temporary directory, deleted afterwards.
+ * Usage: LoginPayloadBenchmark [rooms] [messagesPerRoom] [users] */
+public class LoginPayloadBenchmark {
+	private static volatile Object sink;
+
+	public static void main(String[] args) throws Exception {
+		int rooms = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		int perRoom = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		int users = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+		System.out.println(rooms + " rooms of " + perRoom + " messages, " + users + " users");
+
+		File directory = Files.createTempDirectory("wediscuss_login_bench").toFile();
+		FileStorage storage = new FileStorage(directory);
+
+		ConcurrentHashMap<Integer, String> userMap = new ConcurrentHashMap<Integer, String>();
+		for(int i = 1; i <= users; i++) {
+			userMap.put(i, "user" + i);
+		}
+		User user = new User("user1", "pw", false, 1, storage);
+		for(int i = 0; i < User.DEFAULT_INBOX_WINDOW; i++) {
+			MessageCreator create = new MessageCreator(MessageType.UTU);
+			create.setContents("See you at the review? #" + i);
+			create.setFromUserID(2);
+			create.setFromUserName("user2");
+			create.setToUserID(1);
+			create.setToUserName("user1");
+			storage.appendMessage(create.createMessage());
+		}
+		user.loadMessageInbox(null, User.DEFAULT_INBOX_WINDOW);
+
+		ConcurrentHashMap<Integer, Chatroom> chatrooms = new ConcurrentHashMap<Integer, Chatroom>();
+		List<RoomSummary> summaries = new ArrayList<RoomSummary>();
+		for(int room = 1; room <= rooms; room++) {
+			List<Message> history = new ArrayList<Message>(perRoom);
+			for(int i = 0; i < perRoom; i++) {
+				MessageCreator create = new MessageCreator(MessageType.UTC);
+				create.setContents("Are we still meeting at 3pm to go over the design doc? #" + i);
+				create.setFromUserID(i % users + 1);
+				create.setFromUserName("user" + (i % users + 1));
+				create.setToChatroom(room);
+				history.add(create.createMessage());
+			}
+			Chatroom chatroom = new Chatroom(room, false, storage);
+			for(int member = 1; member <= 200; member++) {
+				chatroom.getMembers().add(member);
+			}
+			chatroom.loadMessages(id -> history);
+			chatrooms.put(room, chatroom);
+			summaries.add(new RoomSummary(room, new ArrayList<Integer>(chatroom.getMembers()),
+					new ArrayList<Message>(history.subList(perRoom - RoomSummary.DEFAULT_RECENT_MESSAGES, perRoom)), perRoom));
+		}
+
+		for(int run = 0; run < 3; run++) { // The first two warm up
+			long start = System.nanoTime();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+				out.writeObject(new Object[] {user, chatrooms, userMap});
+			}
+			long objects = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			MessageCreator create = new MessageCreator(MessageType.LOGIN);
+			create.setContents("Success");
+			create.setProfile(user.getProfile());
+			create.setRooms(summaries);
+			create.setDirectory(new DirectoryPage(new TreeMap<Integer, String>(userMap), DirectoryPage.NO_MORE));
+			byte[] frame = BinaryMessageCodec.toFrame(create.createMessage());
+			long payloads = System.nanoTime() - start;
+			sink = frame;
+
+			if(run == 2) {
+				System.out.printf("objects  %10.1f KB %8.2f ms%n", bytes.size() / 1024.0, objects / 1e6);
+				System.out.printf("payloads %10.1f KB %8.2f ms%n", frame.length / 1024.0, payloads / 1e6);
+			}
+		}
+		delete(directory);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,67 @@
+package bench;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import server.KeyValueStorage;
+import server.KeyValueStore;
+import shared.*;
+
+/* Joins and leaves in one big room, the way a membership change used to be saved and the way it is now:
+ *   rewrite - the whole member list written again on every change
+ *   journal - the one change appended (compacted now and then), see Storage.addMember/removeMember
+ * for the legacy files and the KeyValueStore. Reports the average time per change and checks the list
+ * read back. Each run writes under its own temporary directory, deleted afterwards.
+ * Usage: MembershipBenchmark [members] [changes] */
+public class MembershipBenchmark {
+	public static void main(String[] args) throws Exception {
+		int members = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int changes = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		System.out.println(members + " members, " + changes + " joins and leaves");
+
+		File files = Files.createTempDirectory("wediscuss_members_bench").toFile();
+		run("files", new FileStorage(files), members, changes);
+		delete(files);
+
+		File store = Files.createTempDirectory("wediscuss_members_bench").toFile();
+		run("store", new KeyValueStorage(new KeyValueStore(store)), members, changes);
+		delete(store);
+	}
+
+	private static void run(String name, Storage storage, int members, int changes) throws Exception {
+		for(String how : new String[] {"rewrite", "journal"}) {
+			List<Integer> list = Collections.synchronizedList(new ArrayList<Integer>());
+			for(int user = 1; user <= members; user++) {
+				list.add(user);
+			}
+			storage.writeMembers(1, list);
+
+			long start = System.nanoTime();
+			for(int i = 0; i < changes; i++) {
+				int user = members + 1 + i / 2;
+				if(i % 2 == 0) list.add(user);
+				else list.remove((Integer) user);
+				if(how.equals("rewrite")) storage.writeMembers(1, list);
+				else if(i % 2 == 0) storage.addMember(1, user);
+				else storage.removeMember(1, user);
+			}
+			long elapsed = System.nanoTime() - start;
+			boolean same = storage.readMembers(1).equals(list);
+			System.out.printf("%-6s %-8s %9.1f us per change%s%n", name, how, elapsed / 1e3 / changes, same ? "" : ", list differs");
+		}
+		storage.close();
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
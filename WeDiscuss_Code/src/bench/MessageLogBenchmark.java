@@ -0,0 +1,103 @@
+package bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import server.MessageLog;
+import shared.*;
+
+/* Sustained messages per second written to disk, half chatroom (UTC) and half direct (UTU) messages:
+ *   text files  - the old path, open/append/close of NMessages.txt + Nchatlog.txt for a UTC and of
+ *                 both users' NInbox.txt + Nuserlog.txt for a UTU
+ *   message log - one MessageLog.append per message
+ * Neither forces data to the device, so this compares syscall and file churn, not fsync cost.
+ * Everything is written under a temporary directory. Usage: MessageLogBenchmark [messages] */
+public class MessageLogBenchmark {
+	private static final int ROOMS = 100;
+	private static final int USERS = 100;
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		Message[] messages = messages(count);
+
+		File directory = Files.createTempDirectory("wediscuss_log_bench").toFile();
+		try {
+			textFiles(new File(directory, "warmup-text"), messages);
+			messageLog(new File(directory, "warmup-log"), messages);
+
+			long textNanos = textFiles(new File(directory, "text"), messages);
+			long logNanos = messageLog(new File(directory, "log"), messages);
+			System.out.println("messages: " + count);
+			System.out.printf("text files:  %10.0f msg/s%n", count / (textNanos / 1e9));
+			System.out.printf("message log: %10.0f msg/s%n", count / (logNanos / 1e9));
+		}
+		finally {
+			delete(directory);
+		}
+	}
+
+	private static Message[] messages(int count) {
+		Message[] messages = new Message[count];
+		for(int i = 0; i < count; i++) {
+			MessageCreator create = new MessageCreator(i % 2 == 0 ? MessageType.UTC : MessageType.UTU);
+			create.setContents("Are we still meeting at 3pm to go over the design doc? #" + i);
+			create.setFromUserID(i % USERS);
+			create.setFromUserName("user" + (i % USERS));
+			if(i % 2 == 0) {
+				create.setToChatroom(i % ROOMS);
+			}
+			else {
+				create.setToUserID((i + 1) % USERS);
+				create.setToUserName("user" + ((i + 1) % USERS));
+			}
+			messages[i] = create.createMessage();
+		}
+		return messages;
+	}
+
+	private static long textFiles(File directory, Message[] messages) throws IOException {
+		directory.mkdirs();
+		long start = System.nanoTime();
+		for(Message message : messages) {
+			if(message.getMessageType() == MessageType.UTC) {
+				append(new File(directory, message.getToChatroomID() + "Messages.txt"), message.storeChatroomMessage());
+				append(new File(directory, message.getToChatroomID() + "chatlog.txt"), message.storeChatLogMessage());
+			}
+			else {
+				append(new File(directory, message.getToUserID() + "Inbox.txt"), message.storeInboxMessage());
+				append(new File(directory, message.getFromUserID() + "Inbox.txt"), message.storeInboxMessage());
+				append(new File(directory, message.getFromUserID() + "userlog.txt"), message.storeUserLogMessage());
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static void append(File file, String line) throws IOException {
+		try(FileWriter writer = new FileWriter(file, true)) {
+			writer.write(line + "\n");
+		}
+	}
+
+	private static long messageLog(File directory, Message[] messages) throws IOException {
+		MessageLog log = new MessageLog(directory);
+		long start = System.nanoTime();
+		for(Message message : messages) {
+			log.append(message);
+		}
+		long elapsed = System.nanoTime() - start;
+		log.close();
+		return elapsed;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,141 @@
+package bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Scanner;
+
+import shared.*;
+
+/* Parse throughput of the text record files, the same file read both ways:
+ *   scanner - a Scanner over the file's lines, a regex Scanner and a token list per line, then parsing
+ *             the numbers from the tokens, what the loaders did before
+ *   parser  - RecordParser, splitting a buffered chunk in place and decoding numbers from its bytes
+ * Two files: a chatlog (from|contents|date|type|room, building a Message per line as LogManager does)
+ * and a members file (one id per line). The files are written under a temporary directory.
+ * Usage: RecordParserBenchmark [chatlogLines] */
+public class RecordParserBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int lines = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+		File chatlog = File.createTempFile("wediscuss_parse_bench", "chatlog.txt");
+		File members = File.createTempFile("wediscuss_parse_bench", "Members.txt");
+		chatlog.deleteOnExit();
+		members.deleteOnExit();
+		try(FileWriter writer = new FileWriter(chatlog)) {
+			for(int i = 0; i < lines; i++) {
+				MessageCreator create = new MessageCreator(MessageType.UTC);
+				create.setContents("Are we still meeting at 3pm to go over the design doc? #" + i);
+				create.setFromUserID(i % 50);
+				create.setToChatroom(7);
+				writer.write(create.createMessage().storeChatLogMessage() + "\n");
+			}
+		}
+		try(FileWriter writer = new FileWriter(members)) {
+			for(int i = 0; i < lines * 4; i++) {
+				writer.write(i + "\n");
+			}
+		}
+
+		System.out.println("file           bytes   scanner MB/s   parser MB/s");
+		for(int round = 0; round < 3; round++) { // First rounds warm up
+			long scanner = time(() -> scanChatlog(chatlog, lines));
+			long parser = time(() -> parseChatlog(chatlog, lines));
+			if(round == 2) print("chatlog", chatlog, scanner, parser);
+			scanner = time(() -> scanMembers(members, lines * 4));
+			parser = time(() -> parseMembers(members, lines * 4));
+			if(round == 2) print("members", members, scanner, parser);
+		}
+	}
+
+	private interface Run {
+		void run() throws Exception;
+	}
+
+	private static long time(Run run) throws Exception {
+		long start = System.nanoTime();
+		run.run();
+		return System.nanoTime() - start;
+	}
+
+	private static void print(String name, File file, long scanner, long parser) {
+		System.out.printf("%-8s %12d %14.1f %13.1f%n", name, file.length(), file.length() / 1e6 / (scanner / 1e9),
+				file.length() / 1e6 / (parser / 1e9));
+	}
+
+	private static void scanChatlog(File file, int expected) throws Exception {
+		int count = 0;
+		try(Scanner reader = new Scanner(file)) {
+			while(reader.hasNextLine()) {
+				Scanner line = new Scanner(reader.nextLine()).useDelimiter("\\|");
+				ArrayList<String> token = new ArrayList<String>();
+				while(line.hasNext()) {
+					token.add(line.next());
+				}
+				line.close();
+				if(token.size() != 5) continue;
+				MessageCreator create = new MessageCreator(MessageType.UTC);
+				create.setFromUserID(Integer.parseInt(token.get(0)));
+				create.setContents(token.get(1));
+				create.setDate(Long.parseLong(token.get(2)));
+				create.setToChatroom(Integer.parseInt(token.get(4)));
+				if(new Message(create) != null) count++;
+			}
+		}
+		check(count, expected);
+	}
+
+	private static void parseChatlog(File file, int expected) throws Exception {
+		int count = 0;
+		try(RecordParser reader = new RecordParser(file, RecordParser.Separator.PIPE)) {
+			while(reader.next()) {
+				if(reader.fieldCount() != 5) continue;
+				MessageCreator create = new MessageCreator(MessageType.UTC);
+				create.setFromUserID(reader.intField(0));
+				create.setContents(reader.field(1));
+				create.setDate(reader.longField(2));
+				create.setToChatroom(reader.intField(4));
+				if(new Message(create) != null) count++;
+			}
+		}
+		check(count, expected);
+	}
+
+	private static void scanMembers(File file, int expected) throws Exception {
+		long sum = 0;
+		int count = 0;
+		try(Scanner reader = new Scanner(file)) {
+			while(reader.hasNextLine()) {
+				Scanner line = new Scanner(reader.nextLine()).useDelimiter("\\s+");
+				ArrayList<String> token = new ArrayList<String>();
+				while(line.hasNext()) {
+					token.add(line.next());
+				}
+				line.close();
+				if(token.size() != 1) continue;
+				sum += Integer.valueOf(token.get(0));
+				count++;
+			}
+		}
+		check(count, expected);
+		if(sum < 0) System.out.println(sum);
+	}
+
+	private static void parseMembers(File file, int expected) throws Exception {
+		long sum = 0;
+		int count = 0;
+		try(RecordParser reader = new RecordParser(file, RecordParser.Separator.WHITESPACE)) {
+			while(reader.next()) {
+				if(reader.fieldCount() != 1) continue;
+				sum += reader.intField(0);
+				count++;
+			}
+		}
+		check(count, expected);
+		if(sum < 0) System.out.println(sum);
+	}
+
+	private static void check(int count, int expected) {
+		if(count != expected) throw new IllegalStateException("Read " + count + " records, expected " + expected);
+	}
+}
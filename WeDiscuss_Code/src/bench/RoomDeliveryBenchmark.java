@@ -0,0 +1,81 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import server.RoomSubscribers;
+
+/* Finding the recipients of one chatroom message with many users online and many small rooms:
+ *   scan        - the old way, every connected client checked against the room's member list
+ *   subscribers - RoomSubscribers, only the online members of that room
+ * Member lists are built like Chatroom's (synchronized ArrayList) without creating the chatroom files.
+ * Usage: RoomDeliveryBenchmark [onlineUsers] [roomSize] [messages] */
+public class RoomDeliveryBenchmark {
+	private static volatile long sink;
+
+	public static void main(String[] args) {
+		int users = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		int roomSize = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int messages = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+		int rooms = users / roomSize;
+
+		ConcurrentHashMap<Integer, Object> clients = new ConcurrentHashMap<Integer, Object>();
+		List<List<Integer>> members = new ArrayList<List<Integer>>();
+		RoomSubscribers subscribers = new RoomSubscribers();
+		for(int userID = 0; userID < users; userID++) {
+			clients.put(userID, Boolean.TRUE);
+		}
+		for(int room = 0; room < rooms; room++) {
+			List<Integer> list = Collections.synchronizedList(new ArrayList<Integer>());
+			for(int i = 0; i < roomSize; i++) {
+				int userID = room * roomSize + i;
+				list.add(userID);
+				subscribers.subscribe(room, userID);
+			}
+			members.add(list);
+		}
+
+		int[] targets = new Random(42).ints(messages, 0, rooms).toArray();
+		for(int run = 0; run < 3; run++) { // warm up
+			scan(clients, members, targets);
+			indexed(subscribers, targets);
+		}
+		long start = System.nanoTime();
+		long scanned = scan(clients, members, targets);
+		long scanNanos = System.nanoTime() - start;
+		start = System.nanoTime();
+		long indexed = indexed(subscribers, targets);
+		long indexNanos = System.nanoTime() - start;
+
+		System.out.println("online users: " + users + ", rooms: " + rooms + ", room size: " + roomSize + ", messages: " + messages);
+		System.out.printf("scan:        %10.2f us/message (%d recipients)%n", scanNanos / 1000.0 / messages, scanned);
+		System.out.printf("subscribers: %10.2f us/message (%d recipients)%n", indexNanos / 1000.0 / messages, indexed);
+		System.out.printf("speedup:     %10.0fx%n", (double) scanNanos / indexNanos);
+	}
+
+	private static long scan(ConcurrentHashMap<Integer, Object> clients, List<List<Integer>> members, int[] targets) {
+		long recipients = 0;
+		for(int room : targets) {
+			List<Integer> list = members.get(room);
+			for(Integer client : clients.keySet()) {
+				if(list.contains(client)) recipients++;
+			}
+		}
+		sink = recipients;
+		return recipients;
+	}
+
+	private static long indexed(RoomSubscribers subscribers, int[] targets) {
+		long recipients = 0;
+		for(int room : targets) {
+			for(Integer client : subscribers.get(room)) {
+				recipients += client >= 0 ? 1 : 0;
+			}
+		}
+		sink = recipients;
+		return recipients;
+	}
+}
@@ -0,0 +1,119 @@
+package bench;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import server.MessageLog;
+import server.RoomHistoryCache;
+import shared.*;
+
+/* Server startup with many chatrooms whose history is in the MessageLog:
+ *   eager - every room built with its whole history read into memory, what startup used to do
+ *   lazy  - rooms built with only their members, history loaded through a RoomHistoryCache when used
+ * Reports the startup time and the heap still in use after a GC for both, then the time to use a cold
+ * room and the heap once a working set of rooms has been used with the default budget. The log is
+ * written under a temporary directory, the rooms' member/message files go to the working directory
+ * under ids from FIRST_ROOM up and are deleted afterwards.
+ * Usage: RoomHistoryBenchmark [rooms] [messagesPerRoom] */
+public class RoomHistoryBenchmark {
+	private static final int FIRST_ROOM = 800000;
+
+	public static void main(String[] args) throws Exception {
+		int rooms = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int perRoom = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		File directory = Files.createTempDirectory("wediscuss_room_history_bench").toFile();
+
+		MessageLog log = new MessageLog(directory);
+		for(int i = 0; i < perRoom; i++) {
+			for(int room = 0; room < rooms; room++) {
+				MessageCreator create = new MessageCreator(MessageType.UTC);
+				create.setContents("Are we still meeting at 3pm to go over the design doc? #" + i);
+				create.setFromUserID(i % 50);
+				create.setFromUserName("user" + (i % 50));
+				create.setToChatroom(FIRST_ROOM + room);
+				log.append(create.createMessage());
+			}
+		}
+		log.close();
+		for(int room = 0; room < rooms; room++) {
+			new Chatroom(FIRST_ROOM + room, false); // Creates the room's files, as they'd be on a running server
+		}
+		System.out.println(rooms + " rooms x " + perRoom + " messages");
+
+		long before = heap();
+		long start = System.nanoTime();
+		log = new MessageLog(directory);
+		System.out.printf("log open:  %8.0f ms, %6.1f MB heap (the same either way)%n", (System.nanoTime() - start) / 1e6, (heap() - before) / 1e6);
+
+		before = heap();
+		start = System.nanoTime();
+		List<Chatroom> lazy = new ArrayList<Chatroom>(rooms);
+		for(int room = 0; room < rooms; room++) {
+			lazy.add(new Chatroom(FIRST_ROOM + room, false));
+		}
+		long elapsed = System.nanoTime() - start;
+		long started = heap(); // The rooms are used below, so still reachable here
+		System.out.printf("lazy:      %8.0f ms, %6.1f MB heap%n", elapsed / 1e6, (started - before) / 1e6);
+
+		RoomHistoryCache cache = new RoomHistoryCache(log::readRoom, RoomHistoryCache.DEFAULT_BUDGET);
+		int used = Math.min(rooms, 200);
+		start = System.nanoTime();
+		for(int room = 0; room < used; room++) {
+			cache.get(lazy.get(room * (rooms / used)));
+		}
+		System.out.printf("first use: %8.2f ms per room%n", (System.nanoTime() - start) / 1e6 / used);
+		long working = heap();
+		System.out.printf("%d rooms used: %d loaded, %d messages resident, %.1f MB heap over lazy startup%n", used,
+				cache.getLoadedRooms(), cache.getResidentMessages(), (working - started) / 1e6);
+		System.out.println(lazy.size() + " lazy rooms");
+		lazy = null;
+		cache = null;
+
+		before = heap();
+		start = System.nanoTime();
+		List<Chatroom> eager = new ArrayList<Chatroom>(rooms);
+		try {
+			for(int room = 0; room < rooms; room++) {
+				Chatroom chatroom = new Chatroom(FIRST_ROOM + room, false);
+				chatroom.loadMessages(log::readRoom);
+				eager.add(chatroom);
+			}
+			long took = System.nanoTime() - start;
+			long loaded = heap();
+			System.out.printf("eager:     %8.0f ms, %6.1f MB heap, %d rooms%n", took / 1e6, (loaded - before) / 1e6, eager.size());
+		}
+		catch(OutOfMemoryError e) {
+			eager = null;
+			System.out.printf("eager:     out of memory after %.0f ms%n", (System.nanoTime() - start) / 1e6);
+		}
+		eager = null;
+
+		log.close();
+		delete(directory);
+		for(int room = 0; room < rooms; room++) {
+			new File((FIRST_ROOM + room) + "Messages.txt").delete();
+			new File((FIRST_ROOM + room) + "Members.txt").delete();
+		}
+	}
+
+	private static long heap() throws InterruptedException {
+		for(int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
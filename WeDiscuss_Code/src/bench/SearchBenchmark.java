@@ -0,0 +1,105 @@
+package bench;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import server.MessageLog;
+import server.SearchIndex;
+import shared.*;
+
+/* Admin message search over a log of generated chat messages, words drawn from a skewed vocabulary so
+ * some are common and some rare:
+ *   index  - SearchIndex.search for the first page of a two word query, across the flushed and merged
+ *            segments plus the in-memory one
+ *   scan   - reading every message back from the MessageLog and checking its words, the only way to
+ *            answer the same question without the index
+ * Also reports indexing throughput and the segments left once merging settles. Everything is written
+ * under a temporary directory.
+ * Usage: SearchBenchmark [messages] [queries] */
+public class SearchBenchmark {
+	private static final int VOCABULARY = 20000;
+
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		int queries = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		File directory = Files.createTempDirectory("wediscuss_search_bench").toFile();
+		MessageLog log = new MessageLog(new File(directory, "log"));
+		SearchIndex index = new SearchIndex(new File(directory, "index"), log);
+
+		Random random = new Random(42);
+		long start = System.nanoTime();
+		for(int i = 0; i < messages; i++) {
+			StringBuilder contents = new StringBuilder();
+			for(int w = 0; w < 8; w++) {
+				contents.append(word(random)).append(' ');
+			}
+			MessageCreator create = new MessageCreator(MessageType.UTC);
+			create.setContents(contents.toString());
+			create.setFromUserID(i % 500);
+			create.setToChatroom(i % 200);
+			Message message = create.createMessage();
+			index.add(log.append(message), message);
+		}
+		long indexing = System.nanoTime() - start;
+		index.merge();
+		System.out.printf("%d messages indexed at %.0f msg/s, %d segments after %d merges%n", messages,
+				messages / (indexing / 1e9), index.getSegmentCount(), index.getMergeCount());
+
+		List<String> texts = new ArrayList<String>();
+		for(int q = 0; q < queries; q++) {
+			texts.add(word(random) + " " + word(random));
+		}
+
+		long found = 0;
+		long searched = 0;
+		for(int round = 0; round < 2; round++) { // First round warms up
+			searched = System.nanoTime();
+			for(String text : texts) {
+				List<Message> page = new ArrayList<Message>();
+				index.search(new SearchQuery(text), page);
+				found += page.size();
+			}
+			searched = System.nanoTime() - searched;
+		}
+		System.out.printf("index: %8.3f ms per query, %.1f hits per page%n", searched / 1e6 / queries, found / 2.0 / queries);
+
+		// A full scan per query takes seconds, a few are enough
+		int scans = Math.min(queries, 3);
+		long scanned = System.nanoTime();
+		for(int q = 0; q < scans; q++) {
+			List<String> wanted = SearchIndex.terms(texts.get(q));
+			long[] hits = {0};
+			log.replay(-1, (position, message) -> {
+				Set<String> words = new HashSet<String>(SearchIndex.terms(message.getContents()));
+				if(words.containsAll(wanted)) hits[0]++;
+			});
+		}
+		scanned = System.nanoTime() - scanned;
+		System.out.printf("scan:  %8.3f ms per query%n", scanned / 1e6 / scans);
+
+		index.close();
+		log.close();
+		delete(directory);
+	}
+
+	// Zipf-like: low numbered words are far more common
+	private static String word(Random random) {
+		double u = random.nextDouble();
+		return "w" + (int) Math.pow(VOCABULARY, u);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
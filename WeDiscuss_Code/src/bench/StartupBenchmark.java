@@ -0,0 +1,83 @@
+package bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import server.LogManager;
+import server.StartupLoader;
+import shared.*;
+
+/* Cold start of the per-room member and chatlog loads through a StartupLoader at growing parallelism,
+ * 1 being the old one-file-after-another startup:
+ *   rooms - every room built from its members file, as ChatroomManager does
+ *   logs  - every room's chatlog file parsed into memory, as LogManager does
+ * Prints each phase's wall time and files/bytes read. The files go to the working directory under ids
+ * from FIRST_ROOM up and are deleted afterwards. They're read from the page cache after the first
+ * pass, so this shows the CPU side of the fan-out; on a cold disk the overlapping reads gain more.
+ * Usage: StartupBenchmark [rooms] [messagesPerRoom] */
+public class StartupBenchmark {
+	private static final int FIRST_ROOM = 700000;
+
+	public static void main(String[] args) throws Exception {
+		int rooms = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int perRoom = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		List<Integer> ids = new ArrayList<Integer>(rooms);
+		for(int room = 0; room < rooms; room++) {
+			ids.add(FIRST_ROOM + room);
+			write(FIRST_ROOM + room, perRoom);
+		}
+		System.out.println(rooms + " rooms x " + perRoom + " logged messages, " + Runtime.getRuntime().availableProcessors() + " cpus");
+
+		System.out.println("threads   rooms ms    logs ms   files        bytes");
+		try {
+			for(int round = 0; round < 2; round++) { // First round warms up
+				for(int threads = 1; threads <= 16; threads *= 2) {
+					StartupLoader startup = new StartupLoader(threads);
+					List<Chatroom> loaded = startup.load(StartupLoader.ROOMS, ids, id -> {
+						Chatroom chatroom = new Chatroom(id, false);
+						startup.countFile(StartupLoader.ROOMS, new File(id + "Members.txt"));
+						return chatroom;
+					});
+					LogManager logs = new LogManager(new ArrayList<Integer>(), ids, null, LogManager.DEFAULT_QUEUE_CAPACITY, startup);
+					logs.close();
+					startup.shutdown();
+					if(round == 0) continue;
+
+					StartupLoader.Phase roomPhase = startup.phase(StartupLoader.ROOMS);
+					StartupLoader.Phase logPhase = startup.phase(StartupLoader.LOGS);
+					System.out.printf("%7d %10d %10d %7d %12d%n", threads, roomPhase.getMillis(), logPhase.getMillis(),
+							roomPhase.getFiles() + logPhase.getFiles(), roomPhase.getBytes() + logPhase.getBytes());
+					if(loaded.size() != rooms) throw new IllegalStateException("Loaded " + loaded.size() + " rooms");
+				}
+			}
+		}
+		finally {
+			for(int id : ids) {
+				new File(id + "Members.txt").delete();
+				new File(id + "Messages.txt").delete();
+				new File(id + "chatlog.txt").delete();
+			}
+		}
+	}
+
+	private static void write(int chatroomID, int messages) throws IOException {
+		try(FileWriter members = new FileWriter(chatroomID + "Members.txt")) {
+			for(int member = 1; member <= 5; member++) {
+				members.write(member + "\n");
+			}
+		}
+		new File(chatroomID + "Messages.txt").createNewFile();
+		try(FileWriter log = new FileWriter(chatroomID + "chatlog.txt")) {
+			for(int i = 0; i < messages; i++) {
+				MessageCreator create = new MessageCreator(MessageType.UTC);
+				create.setContents("Are we still meeting at 3pm to go over the design doc? #" + i);
+				create.setFromUserID(i % 5 + 1);
+				create.setToChatroom(chatroomID);
+				log.write(create.createMessage().storeChatLogMessage() + "\n");
+			}
+		}
+	}
+}
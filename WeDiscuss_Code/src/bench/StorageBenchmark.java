@@ -0,0 +1,99 @@
+package bench;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import server.KeyValueStorage;
+import server.KeyValueStore;
+import shared.*;
+
+/* The same workload against the legacy text files and the KeyValueStore:
+ *   create  - every user's inbox and chats made, then their chats list written
+ *   append  - direct messages between random users, stored one at a time as the server does
+ *   read    - every user's chats list and inbox read back, as their login does
+ * Reports the time of each phase and the number and total size of the files left in the directory. Both write under their
+ * own temporary directory, deleted afterwards.
+ * Usage: StorageBenchmark [users] [messages] */
+public class StorageBenchmark {
+	public static void main(String[] args) throws Exception {
+		int users = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		System.out.println(users + " users, " + messages + " messages");
+
+		File files = Files.createTempDirectory("wediscuss_files_bench").toFile();
+		run("files", new FileStorage(files), users, messages, files);
+		delete(files);
+
+		File store = Files.createTempDirectory("wediscuss_store_bench").toFile();
+		run("store", new KeyValueStorage(new KeyValueStore(store)), users, messages, store);
+		delete(store);
+	}
+
+	private static void run(String name, Storage storage, int users, int messages, File directory) throws Exception {
+		long start = System.nanoTime();
+		for(int user = 0; user < users; user++) {
+			storage.createUser(user);
+			List<Integer> chats = new ArrayList<Integer>();
+			chats.add(user % 50);
+			chats.add(user % 70 + 50);
+			storage.writeUserChatrooms(user, chats);
+		}
+		long created = System.nanoTime();
+
+		MessageCreator create = new MessageCreator(MessageType.UTU);
+		for(int i = 0; i < messages; i++) {
+			int to = (int)((i * 2654435761L) % users);
+			create.setContents("Are we still meeting at 3pm to go over the design doc? #" + i);
+			create.setDate(System.currentTimeMillis());
+			create.setFromUserID((to + 1) % users);
+			create.setFromUserName("user" + (to + 1) % users);
+			create.setToUserID(to);
+			create.setToUserName("user" + to);
+			storage.appendMessage(create.createMessage());
+		}
+		long appended = System.nanoTime();
+
+		long read = 0;
+		for(int user = 0; user < users; user++) {
+			read += storage.readUserChatrooms(user).size();
+			read += storage.readInbox(user).size();
+		}
+		long done = System.nanoTime();
+		storage.close();
+
+		System.out.printf("%-6s create %7.0f ms, append %7.0f ms, read %7.0f ms (%d records), %d files, %.1f MB%n", name,
+				(created - start) / 1e6, (appended - created) / 1e6, (done - appended) / 1e6, read, count(directory), size(directory) / 1e6);
+	}
+
+	private static int count(File file) {
+		File[] children = file.listFiles();
+		if(children == null) return 1;
+		int count = 0;
+		for(File child : children) {
+			count += count(child);
+		}
+		return count;
+	}
+
+	private static long size(File file) {
+		File[] children = file.listFiles();
+		if(children == null) return file.length();
+		long size = 0;
+		for(File child : children) {
+			size += size(child);
+		}
+		return size;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
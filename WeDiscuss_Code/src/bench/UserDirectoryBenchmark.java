@@ -0,0 +1,117 @@
+package bench;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import server.DirectoryHistory;
+import server.User;
+import server.UserDirectory;
+import shared.DirectoryPage;
+import shared.FileStorage;
+import shared.UserQuery;
+
+/* What a login or UTU pays to look a user up and check they're online, and what a user picker search
+ * costs, with many accounts:
+ *   lists     - the name maps plus a synchronized list of online names, contains() on every check
+ *   directory - UserDirectory lookups and the User's own online flag
+ *   find      - a page of users by a name prefix from the sorted index, against scanning every name
+ * Accounts are created under a temporary directory, deleted afterwards.
+ * Usage: UserDirectoryBenchmark [users] [online] [lookups] */
+public class UserDirectoryBenchmark {
+	private static volatile Object sink;
+
+	public static void main(String[] args) throws Exception {
+		int users = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int online = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int lookups = args.length > 2 ? Integer.parseInt(args[2]) : 200000;
+		System.out.println(users + " users, " + online + " online, " + lookups + " lookups");
+
+		File directory = Files.createTempDirectory("wediscuss_directory_bench").toFile();
+		FileStorage storage = new FileStorage(directory);
+		List<User> accounts = new ArrayList<User>(users);
+		ConcurrentHashMap<String, User> allUsers = new ConcurrentHashMap<String, User>();
+		List<String> activeUsers = Collections.synchronizedList(new ArrayList<String>());
+		for(int i = 1; i <= users; i++) {
+			User user = new User("user" + i, "pw", false, i, storage);
+			accounts.add(user);
+			allUsers.put(user.getUsername(), user);
+			if(i <= online) {
+				user.markOnline();
+				activeUsers.add(user.getUsername());
+			}
+		}
+		UserDirectory userDirectory = new UserDirectory(accounts, storage, new DirectoryHistory(DirectoryHistory.DEFAULT_CAPACITY));
+
+		for(int run = 0; run < 3; run++) { // The first two warm up
+			long start = System.nanoTime();
+			int found = 0;
+			for(int i = 0; i < lookups; i++) {
+				String name = "user" + (i % users + 1);
+				if(allUsers.get(name) != null && activeUsers.contains(name)) found++;
+			}
+			long lists = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			int foundToo = 0;
+			for(int i = 0; i < lookups; i++) {
+				User user = userDirectory.get("user" + (i % users + 1));
+				if(user != null && user.getStatus()) foundToo++;
+			}
+			long indexed = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			DirectoryPage page = null;
+			for(int i = 0; i < 1000; i++) {
+				page = userDirectory.find(new UserQuery("user" + (i % 9 + 1) + "23", "", 50));
+			}
+			long find = System.nanoTime() - start;
+			sink = page;
+
+			start = System.nanoTime();
+			Map<Integer, String> scanned = null;
+			for(int i = 0; i < 1000; i++) {
+				scanned = scan(accounts, "user" + (i % 9 + 1) + "23", 50);
+			}
+			long scan = System.nanoTime() - start;
+			sink = scanned;
+
+			if(run == 2) {
+				System.out.printf("lists     %10.1f ms (%d online)%n", lists / 1e6, found);
+				System.out.printf("directory %10.1f ms (%d online)%n", indexed / 1e6, foundToo);
+				System.out.printf("find      %10.3f ms per page%n", find / 1e6 / 1000);
+				System.out.printf("scan      %10.3f ms per page%n", scan / 1e6 / 1000);
+			}
+		}
+		delete(directory);
+	}
+
+	// Every name checked, then the matches sorted, as a picker would without an index
+	private static Map<Integer, String> scan(List<User> accounts, String prefix, int pageSize) {
+		List<User> matches = new ArrayList<User>();
+		for(User user : accounts) {
+			if(user.getUsername().toLowerCase().startsWith(prefix)) matches.add(user);
+		}
+		matches.sort((a, b) -> a.getUsername().compareToIgnoreCase(b.getUsername()));
+		Map<Integer, String> page = new LinkedHashMap<Integer, String>();
+		for(User user : matches.subList(0, Math.min(pageSize, matches.size()))) {
+			page.put(user.getID(), user.getUsername());
+		}
+		return page;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
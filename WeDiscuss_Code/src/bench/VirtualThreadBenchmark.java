@@ -0,0 +1,106 @@
+package bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import server.Server;
+import server.ServerMode;
+import shared.*;
+
+/* Runs the server in VIRTUAL mode, connects N simulated clients that all stay connected and has each
+ * of them do a few request/reply rounds. Reports how many sessions were served and how busy the threads
+ * running them were: the ForkJoinPool carrier threads on Java 21+. Before Java 21 the server runs VIRTUAL
+ * as NIO, so the figures are for its nio-* I/O and handler threads and are labelled that way.
+ * Usage: VirtualThreadBenchmark [clients] [rounds] [port] */
+public class VirtualThreadBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int port = args.length > 2 ? Integer.parseInt(args[2]) : 18090;
+
+		Server server = new Server(port, ServerMode.VIRTUAL);
+		server.startListening();
+		Thread.sleep(500); // let the listener bind
+
+		List<Socket> sockets = new ArrayList<Socket>();
+		List<FrameOutputStream> outputs = new ArrayList<FrameOutputStream>();
+		List<FrameInputStream> inputs = new ArrayList<FrameInputStream>();
+		for(int i = 0; i < clients; i++) {
+			Socket socket = new Socket("localhost", port);
+			socket.setSoTimeout(10000);
+			sockets.add(socket);
+			outputs.add(new FrameOutputStream(socket.getOutputStream()));
+			inputs.add(new FrameInputStream(socket.getInputStream()));
+		}
+
+		// A login with a malformed body is answered without touching any state
+		MessageCreator create = new MessageCreator(MessageType.LOGIN);
+		create.setContents("benchmark");
+		Message request = create.createMessage();
+
+		String prefix = server.getMode() == ServerMode.VIRTUAL ? "ForkJoinPool" : "nio-";
+		long cpuBefore = threadCpuNanos(prefix);
+		long start = System.nanoTime();
+		long replies = 0;
+		for(int round = 0; round < rounds; round++) {
+			for(FrameOutputStream output : outputs) {
+				output.writeObject(request);
+			}
+			for(FrameInputStream input : inputs) {
+				input.readObject();
+				replies++;
+			}
+		}
+		long wallNanos = System.nanoTime() - start;
+		long cpuNanos = threadCpuNanos(prefix) - cpuBefore;
+		int threads = countThreads(prefix);
+
+		System.out.println("virtual threads:     " + Server.virtualThreadsSupported());
+		System.out.println("server mode:         " + server.getMode() + (server.getMode() == ServerMode.VIRTUAL ? "" : " (VIRTUAL needs Java 21+)"));
+		System.out.println("clients:             " + clients);
+		System.out.println("replies:             " + replies + " / " + ((long) clients * rounds));
+		System.out.printf("wall time:           %d ms%n", wallNanos / 1_000_000);
+		System.out.printf("throughput:          %.0f req/s%n", replies / (wallNanos / 1e9));
+		System.out.printf("%-21s%d%n", (server.getMode() == ServerMode.VIRTUAL ? "carrier" : "NIO") + " threads:", threads);
+		System.out.printf("thread CPU time:     %d ms%n", cpuNanos / 1_000_000);
+		System.out.printf("utilization:         %.2f%% of %d thread(s)%n",
+				threads == 0 ? 0.0 : 100.0 * cpuNanos / ((double) wallNanos * threads), threads);
+
+		for(Socket socket : sockets) {
+			try {
+				socket.close();
+			}
+			catch(IOException e) {
+				// ignore
+			}
+		}
+		server.stop();
+		System.exit(0);
+	}
+
+	private static long threadCpuNanos(String prefix) {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		long total = 0;
+		for(ThreadInfo info : threadBean.getThreadInfo(threadBean.getAllThreadIds())) {
+			if(info != null && info.getThreadName().startsWith(prefix)) {
+				total += Math.max(0, threadBean.getThreadCpuTime(info.getThreadId()));
+			}
+		}
+		return total;
+	}
+
+	private static int countThreads(String prefix) {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		int count = 0;
+		for(ThreadInfo info : threadBean.getThreadInfo(threadBean.getAllThreadIds())) {
+			if(info != null && info.getThreadName().startsWith(prefix)) count++;
+		}
+		return count;
+	}
+}
@@ -7,7 +7,6 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 
 //import demo.ConsoleClient.listenForMessages;
 //import demo.ConsoleClient.readMessages;
-import server.User;
 import shared.*;
 
 public class Client {
@@ -19,7 +18,7 @@ public class Client {
 	private ObjectOutputStream toServer;
 	private ObjectInputStream fromServer;
 	private volatile Boolean connected = false;
-	private User user = null;
+	private UserProfile user = null;
 
 	private ConcurrentLinkedQueue<Message> messageQueue = new ConcurrentLinkedQueue<Message>();
 	
@@ -38,8 +37,7 @@ public class Client {
 			this.serverIP = serverIP;
 			this.serverPort = serverPort;
 			serverSocket = new Socket(serverIP, serverPort);
-			toServer = new ObjectOutputStream(serverSocket.getOutputStream());
-			fromServer = new ObjectInputStream(serverSocket.getInputStream());
+			openStreams();
 			
 			System.out.println("Connected to: " + serverSocket.getInetAddress() + ", " + serverSocket.getPort());
 			
@@ -71,8 +69,7 @@ public class Client {
 		
 		connected = true;
 		serverSocket = new Socket(serverIP, serverPort);
-		toServer = new ObjectOutputStream(serverSocket.getOutputStream());
-		fromServer = new ObjectInputStream(serverSocket.getInputStream());
+		openStreams();
 		
 		System.out.println("Reconnected to: " + serverSocket.getInetAddress() + ", " + serverSocket.getPort());
 		
@@ -84,9 +81,26 @@ public class Client {
 		
 	}
 	
+	/* Agrees on a wire codec with the server (binary preferred) and opens the framed streams with it */
+	private void openStreams() throws IOException {
+		WireCodec codec = WireHandshake.negotiate(serverSocket.getInputStream(), serverSocket.getOutputStream(), WireCodec.BINARY, WireCodec.SERIALIZED);
+		toServer = new FrameOutputStream(serverSocket.getOutputStream(), codec);
+		fromServer = new FrameInputStream(serverSocket.getInputStream(), codec);
+	}
+	
 	public void sendLoginRequest(String userName, String password) throws IOException {
+		sendLoginRequest(userName, password, DirectoryPage.NO_VERSION);
+	}
+	
+	// With the version of a cached directory the reply only carries what changed since it
+	public void sendLoginRequest(String userName, String password, long directoryVersion) throws IOException {
 		MessageCreator messageCreator = new MessageCreator(MessageType.LOGIN);
-		messageCreator.setContents(userName + " " + password);
+		if(directoryVersion == DirectoryPage.NO_VERSION) {
+			messageCreator.setContents(userName + " " + password);
+		}
+		else {
+			messageCreator.setContents(userName + " " + password + " " + directoryVersion);
+		}
 		
 		sendMessage(messageCreator.createMessage());
 		
@@ -164,6 +178,11 @@ public class Client {
 	}
 	
 	public void getMessageLogs(String userName) throws IOException {
+		getMessageLogs(userName, 0);
+	}
+	
+	// One page of the user's log starting at cursor, the reply's LogPage has the cursor for the next one
+	public void getMessageLogs(String userName, long cursor) throws IOException {
 		MessageCreator messageCreator = new MessageCreator(MessageType.GUL);
 		
 		if(user != null) {
@@ -173,11 +192,16 @@ public class Client {
 		}
 		
 		messageCreator.setToUserName(userName);
+		messageCreator.setContents(new LogQuery(cursor, LogQuery.DEFAULT_PAGE_SIZE).toContents());
 		
 		sendMessage(messageCreator.createMessage());
 	}
 	
 	public void getChatLogs(int chatroomID) throws IOException {
+		getChatLogs(chatroomID, 0);
+	}
+	
+	public void getChatLogs(int chatroomID, long cursor) throws IOException {
 		MessageCreator messageCreator = new MessageCreator(MessageType.GCL);
 		
 		if(user != null) {
@@ -187,6 +211,47 @@ public class Client {
 		}
 		
 		messageCreator.setToChatroom(chatroomID);
+		messageCreator.setContents(new LogQuery(cursor, LogQuery.DEFAULT_PAGE_SIZE).toContents());
+		
+		sendMessage(messageCreator.createMessage());
+	}
+	
+	/* A page of this user's direct messages with otherUserID (-1 for everyone) from before cursor, newest
+	 * first. UserProfile.getInboxStart() is the cursor for the first page older than what login brought. */
+	public void getOlderMessages(int otherUserID, long cursor) throws IOException {
+		MessageCreator messageCreator = new MessageCreator(MessageType.INBOX);
+		
+		if(user != null) {
+			messageCreator.setFromUserName(user.getUsername());
+			messageCreator.setFromUserID(user.getID());
+		}
+		
+		messageCreator.setToUserID(otherUserID);
+		messageCreator.setContents(new LogQuery(cursor, LogQuery.DEFAULT_PAGE_SIZE).toContents());
+		
+		sendMessage(messageCreator.createMessage());
+	}
+	
+	// A page of the users the query finds. The reply's contents are the query for the next page, see UserQuery.
+	public void findUsers(UserQuery query) throws IOException {
+		MessageCreator messageCreator = new MessageCreator(MessageType.FINDUSER);
+		messageCreator.setToUserName(query.getPrefix());
+		messageCreator.setContents(query.toContents());
+		
+		sendMessage(messageCreator.createMessage());
+	}
+	
+	// One page of the messages matching the query, use the reply's LogPage cursor with query.withCursor() for the next
+	public void search(SearchQuery query) throws IOException {
+		MessageCreator messageCreator = new MessageCreator(MessageType.SEARCH);
+		
+		if(user != null) {
+			if(!user.getAdminStatus()) return; // Not an admin so don't send message!
+			messageCreator.setFromUserName(user.getUsername());
+			messageCreator.setFromUserID(user.getID());
+		}
+		
+		messageCreator.setContents(query.toContents());
 		
 		sendMessage(messageCreator.createMessage());
 	}
@@ -330,7 +395,7 @@ public class Client {
 						// Login fail
 						clientGui.initUpdate(message);
 						if(message.getContents().equals("Success")) {
-							user = message.getUser();
+							user = message.getProfile();
 						}
 						break;
 					case LOGOUT:
@@ -359,6 +424,18 @@ public class Client {
 						// message w/ log contents
 						clientGui.addToMessageQueue(message);
 						
+						break;
+					case SEARCH:
+						// message w/ matching messages in its LogPage
+						clientGui.addToMessageQueue(message);
+						break;
+					case INBOX:
+						// message w/ older direct messages in its LogPage
+						clientGui.addToMessageQueue(message);
+						break;
+					case FINDUSER:
+						// message w/ matching users in its DirectoryPage
+						clientGui.addToMessageQueue(message);
 						break;
 					case CC:
 						// messge w/ chatroom id
@@ -1,7 +1,7 @@
 package client;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Objects;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.List;
@@ -9,8 +9,9 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
 
-import server.User;
 import shared.*;
 
 import javax.swing.*;
@@ -23,14 +24,12 @@ public class ClientUI extends JFrame {
 	protected Client client;
 	private boolean isLoggedIn = false;
 	private volatile boolean operationCheck = false;
-	private User user;
+	private UserProfile user;
 
 	// User and chatroom maps caches - populated on initUpdate() call
-	private ConcurrentMap<Integer, Chatroom> chatrooms = new ConcurrentHashMap<Integer, Chatroom>();
-	private ConcurrentMap<Integer, String> userMap = new ConcurrentHashMap<Integer, String>();
-
-	private ArrayList<String> userLog;
-	private ArrayList<String> chatroomLog;
+	private ConcurrentMap<Integer, RoomSummary> chatrooms = new ConcurrentHashMap<Integer, RoomSummary>();
+	private DirectoryCache directory = new DirectoryCache(); // Kept between runs, see DirectoryCache
+	private ConcurrentMap<Integer, String> userMap = directory.getUsers();
 
 	private ConcurrentLinkedQueue<Message> clientMessages = new ConcurrentLinkedQueue<Message>();
 
@@ -55,8 +54,19 @@ public class ClientUI extends JFrame {
 	private JList<Message> chatroomMessagesList = new JList<>(chatroomMessagesModel);
 	
 	//logs
-    DefaultListModel<String> userLogModel;
-    DefaultListModel<String> chatroomLogModel;
+	private LogViewer userLogViewer = new LogViewer("Users", Message::buildUserLog,
+			(shown, reply) -> Objects.equals(shown.getToUserName(), reply.getToUserName()),
+			(reply, cursor) -> client.getMessageLogs(reply.getToUserName(), cursor));
+	private LogViewer chatroomLogViewer = new LogViewer("Chatroom", Message::buildChatLog,
+			(shown, reply) -> shown.getToChatroomID() == reply.getToChatroomID(),
+			(reply, cursor) -> client.getChatLogs(reply.getToChatroomID(), cursor));
+	private LogViewer searchViewer = new LogViewer("Search Results",
+			record -> record.getMessageType() == MessageType.UTC ? "ROOM " + record.getToChatroomID() + ": " + record.buildChatLog() : record.buildUserLog(),
+			(shown, reply) -> shown.getContents().equals(reply.getContents()),
+			(reply, cursor) -> client.search(SearchQuery.parse(reply.getContents()).withCursor(cursor)));
+	private LogViewer userFinder = new LogViewer("Find User", null, // Replies hold users, no records to render
+			(shown, reply) -> Objects.equals(shown.getToUserName(), reply.getToUserName()),
+			(reply, cursor) -> client.findUsers(UserQuery.parse(reply.getToUserName(), reply.getContents())));
 	
 	DefaultListModel<String> usersListModel;
 	DefaultListModel<String> chatroomsListModel;
@@ -69,6 +79,7 @@ public class ClientUI extends JFrame {
 	JScrollPane chatroomMsgInfoScrollPane;
 	// Map to hold message areas for each private message and chatroom (by ID)
 	private Map<Integer, JTextArea> privateMessageAreas = new HashMap<>();
+	private Map<Integer, Long> olderMessageCursors = new HashMap<>(); // Per conversation, where the next older page starts
 	private Map<Integer, JTextArea> chatroomMessageAreas = new HashMap<>();
 
 	public ClientUI() {
@@ -97,14 +108,16 @@ public class ClientUI extends JFrame {
 
 		if (message.getContents().equals("Success")) {
 			// Init everything
-			user = message.getUser();
-			if (!(message.getChatroomMap() == null)) {
-				chatrooms = message.getChatroomMap();
+			user = message.getProfile();
+			if (!(message.getRooms() == null)) {
+				for (RoomSummary room : message.getRooms()) {
+					chatrooms.put(room.getChatroomID(), room);
+				}
 			}
-			userMap = message.getUserMap();
-			// List<Message> messages = user.getMessagesFromUsers();
+			directory.update(message);
+			directory.save();
 
-			ConcurrentHashMap<Integer, List<Message>> table = user.getMessagesFromUsers();
+			Map<Integer, List<Message>> table = user.getConversations();
 
 			userMap.put(user.getID(), user.getUsername());
 			operationCheck = true;
@@ -142,7 +155,7 @@ public class ClientUI extends JFrame {
 				chatroomMessagesModel.clear();
 				for (Integer chatroomID : chatrooms.keySet()) {
 					createChatroomMessageArea(chatroomID);
-					List<Message> messages = chatrooms.get(chatroomID).getMessages();
+					List<Message> messages = chatrooms.get(chatroomID).getRecentMessages();
 					if (!(messages == null)) {
 						for (Message m : messages) {
 							createChatroomMessageArea(chatroomID);
@@ -155,7 +168,7 @@ public class ClientUI extends JFrame {
 
 					MessageCreator cr = new MessageCreator(MessageType.LOGIN);
 					cr.setToChatroom(chatroomID);
-					cr.setChatroom(chatrooms.get(chatroomID));
+					cr.setRoom(chatrooms.get(chatroomID));
 					Message chatMessage = new Message(cr);
 					chatroomMessagesModel.addElement(chatMessage);
 				}
@@ -178,7 +191,7 @@ public class ClientUI extends JFrame {
 
 				MessageCreator cr = new MessageCreator(MessageType.LOGIN);
 				cr.setToChatroom(chatroomID);
-				cr.setChatroom(chatrooms.get(chatroomID));
+				cr.setRoom(chatrooms.get(chatroomID));
 				Message chatMessage = new Message(cr);
 				chatroomMessagesModel.addElement(chatMessage);
 			}
@@ -230,6 +243,15 @@ public class ClientUI extends JFrame {
 				case GCL:
 					processGetChatroomLogs(message);
 					break;
+				case SEARCH:
+					processSearch(message);
+					break;
+				case INBOX:
+					processOlderMessages(message);
+					break;
+				case FINDUSER:
+					SwingUtilities.invokeLater(() -> userFinder.show(message));
+					break;
 				case CC:
 					processCreateChatroom(message);
 					break;
@@ -252,7 +274,7 @@ public class ClientUI extends JFrame {
                     processUserMapUpdate(message);
 					break;
 				case UPDATECM:
-					// Handle chatroom map updates
+					processChatroomMapUpdate(message);
 					break;
 				default:
 					break;
@@ -273,6 +295,7 @@ public class ClientUI extends JFrame {
 	}
 
 	private void processLogout(Message message) {
+		directory.save(); // With the updates received since login
 		SwingUtilities.invokeLater(() -> {
 			JOptionPane.showMessageDialog(null, "You have successfully logged out.", "Logout Successful",
 					JOptionPane.INFORMATION_MESSAGE);
@@ -298,7 +321,7 @@ public class ClientUI extends JFrame {
 		SwingUtilities.invokeLater(() -> {
 			if (message.getContents().equals("Success")) {
 				// Add chatroom to the map
-				chatrooms.put(message.getToChatroomID(), message.getChatroom());
+				chatrooms.put(message.getToChatroomID(), message.getRoom());
 
 				// Add chatroom to the chatroomsListModel
 				chatroomsListModel.addElement("Chatroom " + message.getToChatroomID());
@@ -330,7 +353,7 @@ public class ClientUI extends JFrame {
 		SwingUtilities.invokeLater(() -> {
 			if (message.getContents().equals("Add")) {
 				// Add chatroom to the map
-				chatrooms.put(message.getChatroom().getChatroomID(), message.getChatroom());
+				chatrooms.put(message.getRoom().getChatroomID(), message.getRoom());
 
 				// Add chatroom to the chatroomsListModel
 				chatroomsListModel.addElement("Chatroom " + message.getToChatroomID());
@@ -346,7 +369,7 @@ public class ClientUI extends JFrame {
 		SwingUtilities.invokeLater(() -> {
 			if (message.getContents().equals("Success")) {
 				// Add chatroom to the map
-				chatrooms.put(message.getChatroom().getChatroomID(), message.getChatroom());
+				chatrooms.put(message.getRoom().getChatroomID(), message.getRoom());
 
 				// Add chatroom to the chatroomsListModel
 				chatroomsListModel.addElement("Chatroom " + message.getToChatroomID());
@@ -359,26 +382,34 @@ public class ClientUI extends JFrame {
 		
 	}
 
+	// Someone joined or left one of the user's chatrooms
+	private void processChatroomMapUpdate(Message message) {
+		MembershipDelta delta = message.getMembership();
+		if (delta == null) return;
+		chatrooms.computeIfPresent(delta.getChatroomID(), (chatroomID, room) -> room.withMembership(delta));
+	}
+
 	/* admin processing */
 	
 	protected void processUserMapUpdate(Message message) {
+		if(!directory.update(message)) return;
+		DirectoryDelta delta = message.getDirectoryDelta();
 		SwingUtilities.invokeLater(() -> {
 			
-			if(message.getContents().equals("Add")) {
-				userMap.put(message.getFromUserID(), message.getFromUserName());
-				createPrivateMessageArea(message.getFromUserID()); // Create if not exists
-				JTextArea privateArea = privateMessageAreas.get(message.getFromUserID());;
-				MessageCreator pm = new MessageCreator(MessageType.LOGIN);
-				pm.setFromUserID(message.getFromUserID());
-				pm.setFromUserName(userMap.get(message.getFromUserID()));
-				Message privateMessage = new Message(pm);
-				privateMessagesModel.addElement(privateMessage);
+			if(delta != null && delta.getRemoved().isEmpty()) {
+				// Only new users, add their cells
+				for (Map.Entry<Integer, String> added : delta.getAdded().entrySet()) {
+					createPrivateMessageArea(added.getKey()); // Create if not exists
+					MessageCreator pm = new MessageCreator(MessageType.LOGIN);
+					pm.setFromUserID(added.getKey());
+					pm.setFromUserName(added.getValue());
+					Message privateMessage = new Message(pm);
+					privateMessagesModel.addElement(privateMessage);
+				}
 				privateMessagesList.setModel(privateMessagesModel);
 				privateMessagesList.setCellRenderer(new MessageListCellRenderer());
 			}
-			else if(message.getContents().equals("Remove")) {
-				
-				userMap.remove(message.getFromUserID(), message.getFromUserName());
+			else {
                 // Update private messages list
                 privateMessagesModel.clear();
                 for (Integer userID : userMap.keySet()) {
@@ -410,92 +441,133 @@ public class ClientUI extends JFrame {
 	}
 	
 	protected void processGetUserLogs(Message message) {
-		if (true) {
-            SwingUtilities.invokeLater(() -> {
-            // display dialog of user logs
-
-            JDialog userLogDialog = new JDialog(mainFrame, "Users", true);
-            userLogModel = new DefaultListModel<>();
-            
-            
-            String userLog = message.getContents();
-            String[] split = userLog.split("\\|");
-            
-            
-            userLogModel.clear();
-            for (String log : split) {
-                userLogModel.addElement(log); // Add to the model
-                System.out.println("Added A Log!");
-            }
-            
-            
-            
-            JList<String> userLogList = new JList<>(userLogModel);
-            userLogList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-
-            JScrollPane usersScrollPane = new JScrollPane(userLogList);
-
-            userLogDialog.setLayout(new BorderLayout());
-            userLogDialog.add(usersScrollPane, BorderLayout.CENTER);
-
-            userLogDialog.setSize(200, 150);
-            userLogDialog.setLocationRelativeTo(mainFrame);
-            userLogDialog.setVisible(true);
-//
-            userLogDialog.revalidate();
-            userLogDialog.repaint();
-            });
-        } else {
-            System.out.println("Error obtaining user log.");
-        }
+		SwingUtilities.invokeLater(() -> userLogViewer.show(message));
 	}
 
 	protected void processGetChatroomLogs(Message message) {
-		if (true) {
-            SwingUtilities.invokeLater(() -> {
-            // display dialog of user logs
-
-            JDialog userLogDialog = new JDialog(mainFrame, "Chatroom" , true);
-            userLogModel = new DefaultListModel<>();
-            
-            
-            String userLog = message.getContents();
-            String[] split = userLog.split("\\|");
-            
-            
-            userLogModel.clear();
-            for (String log : split) {
-                userLogModel.addElement(log); // Add to the model
-                System.out.println("Added A Log!");
-            }
-            
-            
-            
-            JList<String> userLogList = new JList<>(userLogModel);
-            userLogList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-
-            JScrollPane usersScrollPane = new JScrollPane(userLogList);
-
-            userLogDialog.setLayout(new BorderLayout());
-            userLogDialog.add(usersScrollPane, BorderLayout.CENTER);
-
-            userLogDialog.setSize(200, 150);
-            userLogDialog.setLocationRelativeTo(mainFrame);
-            userLogDialog.setVisible(true);
-//
-            userLogDialog.revalidate();
-            userLogDialog.repaint();
-            });
-        } else {
-            System.out.println("Error obtaining user log.");
-        }
+		SwingUtilities.invokeLater(() -> chatroomLogViewer.show(message));
+	}
+	
+	// Puts a page of older direct messages (newest first) above what the conversation already shows
+	protected void processOlderMessages(Message message) {
+		LogPage page = message.getLogPage();
+		if(page == null) return;
+		int otherUserID = message.getToUserID();
+		
+		SwingUtilities.invokeLater(() -> {
+			olderMessageCursors.put(otherUserID, page.getNextCursor());
+			createPrivateMessageArea(otherUserID);
+			JTextArea privateArea = privateMessageAreas.get(otherUserID);
+			StringBuilder older = new StringBuilder();
+			List<Message> records = page.getRecords();
+			for(int i = records.size() - 1; i >= 0; i--) {
+				older.append(records.get(i).getFromUserName()).append(": ").append(records.get(i).getContents()).append("\n");
+			}
+			privateArea.insert(older.toString(), 0);
+			if(!page.hasMore()) {
+				JOptionPane.showMessageDialog(mainFrame, "No older messages.", "Older Messages", JOptionPane.INFORMATION_MESSAGE);
+			}
+		});
+	}
+	
+	protected void processSearch(Message message) {
+		if(message.getLogPage() == null) { // Refused, or search unavailable on the server
+			SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(mainFrame, message.getContents(), "Error",
+					JOptionPane.ERROR_MESSAGE));
+			return;
+		}
+		SwingUtilities.invokeLater(() -> searchViewer.show(message));
+	}
+	
+	/* Log dialog filled a page at a time: a first page opens it, "Load more" asks the server for the page
+	 * after the last one shown and that reply is appended to the open dialog. Only used on the EDT.
+	 * Also lists FINDUSER replies, whose page is a DirectoryPage of users rather than a LogPage. */
+	private class LogViewer {
+		private final String title;
+		private final Function<Message, String> render; // One record as a line of the list
+		private final BiPredicate<Message, Message> sameLog; // Whether two replies are pages of the same log
+		private final PageRequest nextPage;
+		private JDialog dialog;
+		private DefaultListModel<String> model;
+		private JButton loadMore;
+		private long nextCursor = LogPage.NO_MORE;
+		private Message lastReply;
+		
+		LogViewer(String title, Function<Message, String> render, BiPredicate<Message, Message> sameLog, PageRequest nextPage) {
+			this.title = title;
+			this.render = render;
+			this.sameLog = sameLog;
+			this.nextPage = nextPage;
+		}
+		
+		void show(Message message) {
+			LogPage page = message.getLogPage();
+			boolean open = dialog != null && dialog.isVisible() && sameLog.test(lastReply, message);
+			if(!open) model = new DefaultListModel<>();
+			
+			if(message.getDirectory() != null) {
+				for(Map.Entry<Integer, String> found : message.getDirectory().getUsers().entrySet()) {
+					model.addElement("User ID: " + found.getKey() + " | Username: " + found.getValue());
+				}
+				nextCursor = message.getDirectory().getNextCursor();
+			}
+			else if(page == null) { // Server without paging, everything is in the contents
+				for(String log : message.getContents().split("\\|")) {
+					model.addElement(log);
+				}
+				nextCursor = LogPage.NO_MORE;
+			}
+			else {
+				for(Message record : page.getRecords()) {
+					model.addElement(render.apply(record));
+				}
+				nextCursor = page.getNextCursor();
+			}
+			lastReply = message;
+			
+			if(open) {
+				loadMore.setEnabled(nextCursor != LogPage.NO_MORE);
+				return;
+			}
+			
+			JList<String> logList = new JList<>(model);
+			logList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+			loadMore = new JButton("Load more");
+			loadMore.setEnabled(nextCursor != LogPage.NO_MORE);
+			loadMore.addActionListener(e -> requestNextPage());
+			
+			dialog = new JDialog(mainFrame, title, true);
+			dialog.setLayout(new BorderLayout());
+			dialog.add(new JScrollPane(logList), BorderLayout.CENTER);
+			dialog.add(loadMore, BorderLayout.SOUTH);
+			dialog.setSize(300, 250);
+			dialog.setLocationRelativeTo(mainFrame);
+			dialog.setVisible(true);
+		}
+		
+		private void requestNextPage() {
+			loadMore.setEnabled(false); // Until the page arrives
+			try {
+				nextPage.request(lastReply, nextCursor);
+			} catch (IOException ex) {
+				loadMore.setEnabled(true);
+				JOptionPane.showMessageDialog(dialog, "Error fetching message logs: " + ex.getMessage(), "Error",
+						JOptionPane.ERROR_MESSAGE);
+			}
+		}
+	}
+	
+	// Asks the server for the page at cursor of the log the reply came from
+	private interface PageRequest {
+		void request(Message reply, long cursor) throws IOException;
 	}
 
 	/* Do-Functions */
 	/* user functions */
 	private boolean doSendLoginRequest(String userName, String password) {
 		try {
-			this.client.sendLoginRequest(userName, password);
+			directory.load(DirectoryCache.fileFor(client.getServerIP(), client.getServerPort()));
+			this.client.sendLoginRequest(userName, password, directory.getVersion());
 			operationCheck = false;
 			serverResponse = new CountDownLatch(1);
 			serverResponse.await();
@@ -724,6 +796,76 @@ public class ClientUI extends JFrame {
 		showInputDialog("Get Message Logs", "Chatroom ID:", chatroomIDField, actionListener);
 
 	}// doGetChatLogs()
+	
+	// Asks for the page of the selected conversation that comes before what it shows
+	private void doLoadOlderMessages() {
+		Message selectedUserMessage = privateMessagesList.getSelectedValue();
+		if (activeTabIndex != 0 || selectedUserMessage == null) {
+			JOptionPane.showMessageDialog(mainFrame, "Please select a private conversation.", "Error",
+					JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		int otherUserID = selectedUserMessage.getFromUserID();
+		long cursor = olderMessageCursors.getOrDefault(otherUserID, user.getInboxStart());
+		if (cursor <= 0) {
+			JOptionPane.showMessageDialog(mainFrame, "No older messages.", "Older Messages", JOptionPane.INFORMATION_MESSAGE);
+			return;
+		}
+
+		try {
+			this.client.getOlderMessages(otherUserID, cursor);
+		} catch (IOException ex) {
+			JOptionPane.showMessageDialog(mainFrame, "Error fetching older messages: " + ex.getMessage(), "Error",
+					JOptionPane.ERROR_MESSAGE);
+		}
+	}// doLoadOlderMessages()
+	
+	private void doSearchMessages() {
+		JTextField textField = new JTextField(15);
+		JTextField chatroomIDField = new JTextField(15);
+
+		ActionListener actionListener = e -> {
+			String text = textField.getText().trim();
+			String chatroom = chatroomIDField.getText().trim();
+
+			if (text.isEmpty()) {
+				JOptionPane.showMessageDialog(mainFrame, "Please enter words to search for.", "Error",
+						JOptionPane.ERROR_MESSAGE);
+				return;
+			}
+
+			try {
+				int chatroomID = chatroom.isEmpty() ? -1 : Integer.parseInt(chatroom);
+				this.client.search(new SearchQuery(text, -1, chatroomID, Long.MIN_VALUE, Long.MAX_VALUE, SearchQuery.NEWEST,
+						SearchQuery.DEFAULT_PAGE_SIZE));
+			} catch (NumberFormatException ex) {
+				JOptionPane.showMessageDialog(mainFrame, "Please enter a valid Chatroom ID (numeric) or leave it empty.", "Error",
+						JOptionPane.ERROR_MESSAGE);
+			} catch (IOException ex) {
+				JOptionPane.showMessageDialog(mainFrame, "Error searching messages: " + ex.getMessage(), "Error",
+						JOptionPane.ERROR_MESSAGE);
+			}
+		};
+
+		showDoubleInputDialog("Search Messages", "Words or \"phrase\":", textField, "Chatroom ID (optional):",
+				chatroomIDField, actionListener);
+	}// doSearchMessages()
+
+	// User picker: the users whose name starts with what's typed, a page at a time
+	private void doFindUser() {
+		JTextField prefixField = new JTextField(15);
+
+		ActionListener actionListener = e -> {
+			try {
+				this.client.findUsers(new UserQuery(prefixField.getText().trim()));
+			} catch (IOException ex) {
+				JOptionPane.showMessageDialog(mainFrame, "Error finding users: " + ex.getMessage(), "Error",
+						JOptionPane.ERROR_MESSAGE);
+			}
+		};
+
+		showInputDialog("Find User", "Username starts with:", prefixField, actionListener);
+	}// doFindUser()
 
 	private boolean doAddUser() {
 		JTextField usernameField = new JTextField(15);
@@ -964,7 +1106,7 @@ public class ClientUI extends JFrame {
 				actionListener);
 	}// showLoginDialog()
 
-	private void showMainApplication(User user) {
+	private void showMainApplication(UserProfile user) {
 		appInitialize(mainFrame);
 		mainFrame.setVisible(true);
 	}// showMainApplication()
@@ -1174,6 +1316,10 @@ public class ClientUI extends JFrame {
 		getChatLogsItem.addActionListener(e -> doGetChatLogs());
 		adminMenu.add(getChatLogsItem);
 
+		JMenuItem searchMessagesItem = new JMenuItem("Search Messages");
+		searchMessagesItem.addActionListener(e -> doSearchMessages());
+		adminMenu.add(searchMessagesItem);
+
 		menuBar.add(adminMenu);
 	}// addAdminMenu()
 
@@ -1284,9 +1430,15 @@ public class ClientUI extends JFrame {
 		JMenuItem displayUsersItem = new JMenuItem("Display Users");
 		displayUsersItem.addActionListener(e -> displayPopulation(0));
 
+		JMenuItem findUserItem = new JMenuItem("Find User");
+		findUserItem.addActionListener(e -> doFindUser());
+
 		JMenuItem displayChatroomsItem = new JMenuItem("Display Chatrooms");
 		displayChatroomsItem.addActionListener(e -> displayPopulation(1));
 
+		JMenuItem olderMessagesItem = new JMenuItem("Load Older Messages");
+		olderMessagesItem.addActionListener(e -> doLoadOlderMessages());
+
 		JMenuItem changePasswordItem = new JMenuItem("Change Password");
 		changePasswordItem.addActionListener(e -> doSendPasswordChangeRequest());
 
@@ -1297,11 +1449,13 @@ public class ClientUI extends JFrame {
 		userMenu.add(joinChatroomItem);
 		userMenu.add(inviteUserToChatroomItem);
 		userMenu.add(leaveChatroomItem);
+		userMenu.add(olderMessagesItem);
 		userMenu.addSeparator();
 		userMenu.add(changePasswordItem);
 		userMenu.add(logoutItem);
 
 		peopleMenu.add(displayUsersItem);
+		peopleMenu.add(findUserItem);
 		peopleMenu.add(displayChatroomsItem);
 	}// addUserMenuItems()
 
@@ -1365,7 +1519,7 @@ public class ClientUI extends JFrame {
 				String displayText = "Message from: " + message.getFromUserName();
 
 				// If the message is from a chatroom, display the chatroom ID or name
-				if (message.getChatroom() != null) {
+				if (message.getRoom() != null) {
 					displayText = "Chatroom " + message.getToChatroomID();
 				}
 
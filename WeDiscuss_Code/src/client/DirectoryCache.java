@@ -0,0 +1,116 @@
+package client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import shared.DirectoryDelta;
+import shared.DirectoryPage;
+import shared.Message;
+
+/* The user directory as this client last saw it, kept in a file between runs so the next LOGIN only
+ * asks for what changed since (see Client.sendLoginRequest). One file per server.
+ * version is the directory version the users are complete up to. A delta that starts after it means
+ * an update went missing, so it's still applied for display but the version stays where it was and
+ * the next login fills the gap. */
+public class DirectoryCache {
+	private final ConcurrentMap<Integer, String> users = new ConcurrentHashMap<Integer, String>();
+	private volatile long version = DirectoryPage.NO_VERSION;
+	private File file;
+
+	// The live map, changed by load() and the update methods
+	public ConcurrentMap<Integer, String> getUsers() {
+		return users;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public static File fileFor(String serverIP, int serverPort) {
+		File directory = new File(System.getProperty("wediscuss.directoryCacheDir", System.getProperty("user.home") + File.separator + ".wediscuss"));
+		return new File(directory, "directory-" + serverIP.replaceAll("[^A-Za-z0-9.-]", "_") + "-" + serverPort + ".cache");
+	}
+
+	// Replaces what's cached with the file's users, nothing cached if it can't be read
+	public synchronized void load(File file) {
+		this.file = file;
+		users.clear();
+		version = DirectoryPage.NO_VERSION;
+		if(!file.exists()) return;
+
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			long stored = in.readLong();
+			int count = in.readInt();
+			for(int i = 0; i < count; i++) {
+				int userID = in.readInt();
+				users.put(userID, in.readUTF());
+			}
+			version = stored;
+		}
+		catch(IOException e) {
+			System.err.println("Ignoring directory cache " + file + ": " + e.getMessage());
+			users.clear();
+		}
+	}
+
+	// Writes the users out, replacing the file only once they are all written
+	public synchronized void save() {
+		if(file == null || version == DirectoryPage.NO_VERSION) return;
+
+		File temp = new File(file.getPath() + ".tmp");
+		try {
+			Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+			try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+				Map<Integer, String> copy = Map.copyOf(users);
+				out.writeLong(version);
+				out.writeInt(copy.size());
+				for(Map.Entry<Integer, String> user : copy.entrySet()) {
+					out.writeInt(user.getKey());
+					out.writeUTF(user.getValue());
+				}
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(IOException e) {
+			System.err.println("Error saving directory cache: " + e.getMessage());
+		}
+	}
+
+	// Applies the directory carried by a LOGIN reply or UPDATEUM, false if it carries none
+	public synchronized boolean update(Message message) {
+		if(message.getDirectory() != null) {
+			replace(message.getDirectory());
+			return true;
+		}
+		if(message.getDirectoryDelta() != null) {
+			apply(message.getDirectoryDelta());
+			return true;
+		}
+		return false;
+	}
+
+	private void replace(DirectoryPage snapshot) {
+		users.keySet().retainAll(snapshot.getUsers().keySet());
+		users.putAll(snapshot.getUsers());
+		version = snapshot.getVersion();
+	}
+
+	private void apply(DirectoryDelta delta) {
+		if(delta.getToVersion() <= version) return; // Already has it
+		delta.applyTo(users);
+		if(delta.getFromVersion() <= version) {
+			version = delta.getToVersion();
+		}
+	}
+}
@@ -9,7 +9,6 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
 
-import server.User;
 import shared.*;
 
 import javax.swing.*;
@@ -22,10 +21,10 @@ public class ClientUI extends JFrame {
 	protected ConsoleClient client;
 	private boolean isLoggedIn = false;
 	private volatile boolean operationCheck = false;
-	private User user;
+	private UserProfile user;
 
 	// User and chatroom maps caches - populated on initUpdate() call
-	private ConcurrentMap<Integer, Chatroom> chatrooms = new ConcurrentHashMap<Integer, Chatroom>();
+	private ConcurrentMap<Integer, RoomSummary> chatrooms = new ConcurrentHashMap<Integer, RoomSummary>();
 	private ConcurrentMap<Integer, String> userMap = new ConcurrentHashMap<Integer, String>();
 
 	private ArrayList<String> userLog;
@@ -90,11 +89,13 @@ public class ClientUI extends JFrame {
 
 		if (message.getContents().equals("Success")) {
 			// Init everything
-			user = message.getUser();
-			if (!(message.getChatroomMap() == null)) {
-				chatrooms = message.getChatroomMap();
+			user = message.getProfile();
+			if (!(message.getRooms() == null)) {
+				for (RoomSummary room : message.getRooms()) {
+					chatrooms.put(room.getChatroomID(), room);
+				}
 			}
-			userMap = message.getUserMap();
+			userMap.putAll(message.getDirectory().getUsers());
 
 			userMap.put(user.getID(), user.getUsername());
 			operationCheck = true;
@@ -129,7 +130,7 @@ public class ClientUI extends JFrame {
 
 				MessageCreator cr = new MessageCreator(MessageType.LOGIN);
 				cr.setToChatroom(chatroomID);
-				cr.setChatroom(chatrooms.get(chatroomID));
+				cr.setRoom(chatrooms.get(chatroomID));
 				Message chatMessage = new Message(cr);
 				chatroomMessagesModel.addElement(chatMessage);
 			}
@@ -248,7 +249,7 @@ public class ClientUI extends JFrame {
 		SwingUtilities.invokeLater(() -> {
 			if (message.getContents().equals("Success")) {
 				// Add chatroom to the map
-				chatrooms.put(message.getToChatroomID(), message.getChatroom());
+				chatrooms.put(message.getToChatroomID(), message.getRoom());
 
 				// Add chatroom to the chatroomsListModel
 				chatroomsListModel.addElement("Chatroom " + message.getToChatroomID());
@@ -288,7 +289,20 @@ public class ClientUI extends JFrame {
 	private void processUserMapUpdate(Message message) {
 		SwingUtilities.invokeLater(() -> {
 			// Update the user map in the UI
-			if (message.getContents().equals("Add")) {
+			if (message.getDirectoryDelta() != null || message.getDirectory() != null) {
+				// A batch of changes or the whole directory, redraw the list from the map
+				if (message.getDirectoryDelta() != null) {
+					message.getDirectoryDelta().applyTo(userMap);
+				} else {
+					userMap.keySet().retainAll(message.getDirectory().getUsers().keySet());
+					userMap.putAll(message.getDirectory().getUsers());
+				}
+				usersListModel.clear();
+				for (Integer userID : userMap.keySet()) {
+					usersListModel.addElement("User ID: " + userID + " | Username: " + userMap.get(userID));
+				}
+
+			} else if (message.getContents().equals("Add")) {
 				// Add user to the map
 				userMap.put(message.getFromUserID(), message.getFromUserName());
 
@@ -316,9 +330,15 @@ public class ClientUI extends JFrame {
 
 	private void processChatroomMapUpdate(Message message) {
 		SwingUtilities.invokeLater(() -> {
+			if (message.getContents().equals("Members")) {
+				// Someone joined or left, the room stays
+				MembershipDelta delta = message.getMembership();
+				chatrooms.computeIfPresent(delta.getChatroomID(), (chatroomID, room) -> room.withMembership(delta));
+				return;
+			}
 			if (message.getContents().equals("Add")) {
 				// Add chatroom to the map
-				chatrooms.put(message.getToChatroomID(), message.getChatroom());
+				chatrooms.put(message.getToChatroomID(), message.getRoom());
 
 				// Add chatroom to the chatroomsListModel
 				chatroomsListModel.addElement("Chatroom " + message.getToChatroomID());
@@ -782,7 +802,7 @@ public class ClientUI extends JFrame {
 				actionListener);
 	}// showLoginDialog()
 
-	private void showMainApplication(User user) {
+	private void showMainApplication(UserProfile user) {
 		appInitialize(mainFrame);
 		mainFrame.setVisible(true);
 	}// showMainApplication()
@@ -1137,7 +1157,7 @@ public class ClientUI extends JFrame {
 				String displayText = "Message from: " + message.getFromUserName();
 
 				// For chatrooms, display the chatroom ID or name
-				if (message.getChatroom() != null) {
+				if (message.getRoom() != null) {
 					displayText = "Chatroom " + message.getToChatroomID();
 				}
 
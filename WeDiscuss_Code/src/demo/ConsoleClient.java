@@ -5,7 +5,6 @@ import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
-import server.User;
 import shared.*;
 
 public class ConsoleClient {
@@ -18,7 +17,7 @@ public class ConsoleClient {
 	private ObjectOutputStream toServer;
 	private ObjectInputStream fromServer;
 	private volatile Boolean connected = false;
-	private User user;
+	private UserProfile user;
 
 	private ConcurrentLinkedQueue<Message> messageQueue = new ConcurrentLinkedQueue<Message>();
 	
@@ -269,8 +268,6 @@ public class ConsoleClient {
 		}
 		
 		sendMessage(messageCreator.createMessage());
-		
-		user.getChatrooms().remove(chatroomID);
 	}
 	
 	private void sendMessage(Message message) throws IOException {
@@ -324,7 +321,7 @@ public class ConsoleClient {
 						// Login fail
 						clientGui.initUpdate(message);
 						if(message.getContents().equals("Success")) {
-							user = message.getUser();
+							user = message.getProfile();
 						}
 						break;
 					case LOGOUT:
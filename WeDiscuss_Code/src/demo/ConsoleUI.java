@@ -9,7 +9,6 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
 
-import server.User;
 import shared.*;
 
 public class ConsoleUI {
@@ -18,10 +17,11 @@ public class ConsoleUI {
 	private boolean isLoggedIn = false;
 	private volatile boolean operationCheck = false;
 	
-	private User user;
+	private UserProfile user;
+	private List<Message> inbox = Collections.synchronizedList(new ArrayList<Message>()); // Login's recent messages, then the ones received
 	
-	// User and chatroom maps caches
-	private ConcurrentMap<Integer, Chatroom> chatrooms = new ConcurrentHashMap<Integer, Chatroom>();
+	// User and chatroom maps caches, each chatroom's messages like the inbox
+	private ConcurrentMap<Integer, List<Message>> chatrooms = new ConcurrentHashMap<Integer, List<Message>>();
 	private ConcurrentMap<Integer, String> userMap = new ConcurrentHashMap<Integer, String>();
 	// Should have one for the other way as well? (<String, Integer>)
 	
@@ -178,11 +178,14 @@ public class ConsoleUI {
 		
 		if(message.getContents().equals("Success")) {
 			// Init everything
-			user = message.getUser();
-			if(!(message.getChatroomMap() == null)) {
-				chatrooms = message.getChatroomMap();
+			user = message.getProfile();
+			inbox.addAll(user.getRecentMessages());
+			if(!(message.getRooms() == null)) {
+				for(RoomSummary room : message.getRooms()) {
+					chatrooms.put(room.getChatroomID(), Collections.synchronizedList(new ArrayList<Message>(room.getRecentMessages())));
+				}
 			}
-			userMap = message.getUserMap();
+			userMap.putAll(message.getDirectory().getUsers());
 			// printMessage(message);
 			userMap.put(user.getID(), user.getUsername());
 			operationCheck = true;
@@ -468,7 +471,7 @@ public class ConsoleUI {
 				}
 				displayUpdate = new CountDownLatch(1);
 				System.out.println("CHATROOM MESSAGES");
-				chatrooms.get(chatroomID).displayMessages();
+				displayMessages(chatrooms.get(chatroomID));
 				System.out.println("---------------------------------------");
 				doDisplayChatroomOptions();
 				displayUpdate.await();
@@ -503,7 +506,7 @@ public class ConsoleUI {
 		}
 
 		// Received a message
-		user.addToInbox(message);
+		inbox.add(message);
 		System.out.println("New Message!");
 		return;
 
@@ -511,13 +514,20 @@ public class ConsoleUI {
 	
 	private void processChatroomMessage(Message message) {
 		if(chatrooms.containsKey(message.getToChatroomID())) {
-			chatrooms.get(message.getToChatroomID()).addMessage(message);
+			chatrooms.get(message.getToChatroomID()).add(message);
 			displayUpdate.countDown();
 		}
 	}
 	
 	private void processUserMapUpdate(Message message) {
-		if(message.getContents().equals("Add")) {
+		if(message.getDirectoryDelta() != null) {
+			message.getDirectoryDelta().applyTo(userMap);
+		}
+		else if(message.getDirectory() != null) {
+			userMap.keySet().retainAll(message.getDirectory().getUsers().keySet());
+			userMap.putAll(message.getDirectory().getUsers());
+		}
+		else if(message.getContents().equals("Add")) {
 			userMap.put(message.getFromUserID(), message.getFromUserName());
 		}
 		else {
@@ -548,10 +558,18 @@ public class ConsoleUI {
 	private void doDisplayUserInbox() {
 		System.out.println("Inbox:");
 		System.out.println("-----------------------------"); 
-		user.displayMessageInbox();
+		displayMessages(inbox);
 		System.out.println("-----------------------------"); 
 	}	
 	
+	private void displayMessages(List<Message> messages) {
+		synchronized(messages) {
+			for(Message message : messages) {
+				System.out.println(message.toString());
+			}
+		}
+	}
+	
 	private void printMessage(Message msg) {
 		System.out.println("From : " + msg.getFromUserName());
 		System.out.println("ID : " + msg.getFromUserID());
@@ -7,6 +7,9 @@ import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -248,7 +251,7 @@ public class ServerTest {
 			// User user = new User("admin", "123", true, testUserId++);
 			System.out.println(user.getID() + ", " + user.getUsername());
 
-			create.setUser(user);
+			create.setProfile(user.getProfile());
 			create.setContents("Success");
 			create.setToUserID(user.getID());
 			create.setToUserName(user.getUsername());
@@ -257,8 +260,12 @@ public class ServerTest {
 			usernameToUserID.put(user.getUsername(), user.getID());
 			allUsers.put(user.getUsername(), user);
 
-			create.setUserMap(userIDToUsername);
-			create.setChatroomMap(listOfChatrooms);
+			create.setDirectory(new DirectoryPage(new TreeMap<Integer, String>(userIDToUsername), DirectoryPage.NO_MORE));
+			List<RoomSummary> rooms = new ArrayList<RoomSummary>();
+			for (Chatroom chatroom : listOfChatrooms.values()) {
+				rooms.add(summarize(chatroom));
+			}
+			create.setRooms(rooms);
 
 			sendMessage(create.createMessage(), out);
 			sendUserMapUpdates(user.getID(), true);
@@ -373,7 +380,7 @@ public class ServerTest {
 			listOfChatrooms.put(lastKey, chatroom);
 			
 			create.setContents("Success");
-			create.setChatroom(chatroom);
+			create.setRoom(summarize(chatroom));
 			create.setToChatroom(lastKey);
 			sendMessage(create.createMessage(), out);
 			
@@ -542,6 +549,12 @@ public class ServerTest {
 
 	}
 
+	// A copy of the room for the client, it keeps every message since the test rooms are small
+	private RoomSummary summarize(Chatroom chatroom) {
+		List<Message> messages = new ArrayList<Message>(chatroom.getMessages());
+		return new RoomSummary(chatroom.getChatroomID(), new ArrayList<Integer>(chatroom.getMembers()), messages, messages.size());
+	}
+
 	private void sendMessage(Message message, ObjectOutputStream out) throws IOException {
 		// Send a message to client
 		System.out.println("Sending...");
@@ -1,6 +1,4 @@
 package server;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.util.*;
@@ -14,55 +12,60 @@ public class ChatroomManager {
 	protected ConcurrentHashMap<Integer, Chatroom> chatrooms = new ConcurrentHashMap<Integer, Chatroom>();
 	private List<Integer> chatroomIDs = Collections.synchronizedList(new ArrayList<Integer>());
 	
-	private String chatroomFile = "ChatroomFile.txt";
+	private final Storage storage; // Where the room list and each room's members and messages are saved
 	
-	private static int chatroomCounter = 0;
 	private Server server;
+	private MessageLog messageLog; // Where room messages are stored, null to use the storage
+	private final RoomHistoryCache history; // Rooms start with only their members, messages load on use
+	private final RoomSubscribers subscribers = new RoomSubscribers(); // Online members per room, for delivery
+	// Reverse of the member lists: every room each user belongs to. Kept in step with Chatroom.addMember/removeMember.
+	private final ConcurrentHashMap<Integer, Set<Integer>> userChatrooms = new ConcurrentHashMap<Integer, Set<Integer>>();
 	
 	private boolean modified = false;
 	
+	private final int recentMessages = Integer.getInteger("wediscuss.recentRoomMessages", RoomSummary.DEFAULT_RECENT_MESSAGES); // Newest messages a client gets per room
+	
 	public ChatroomManager(Server server)
+	{
+		this(server, Integer.getInteger("wediscuss.roomHistoryBudget", RoomHistoryCache.DEFAULT_BUDGET));
+	}
+	
+	// budget is how many messages the loaded rooms may hold between them, see RoomHistoryCache
+	public ChatroomManager(Server server, long budget)
+	{
+		this(server, budget, new StartupLoader());
+	}
+	
+	public ChatroomManager(Server server, long budget, StartupLoader startup)
+	{
+		this(server, budget, startup, FileStorage.INSTANCE);
+	}
+	
+	// Reads the room list, then every room's members in parallel on the startup loader's pool
+	public ChatroomManager(Server server, long budget, StartupLoader startup, Storage storage)
 	{
 		this.server = server;
+		this.storage = storage;
+		this.history = new RoomHistoryCache(this::readHistory, budget);
 		try //this will populate the valid user accounts
 		{
-			File myFile = new File(chatroomFile);
-			Scanner reader = new Scanner(myFile);
-		
-			while (reader.hasNextLine())
-			{
-				//getline and set delimiters
-				Scanner line = new Scanner(reader.nextLine()).useDelimiter("\\s+"); // \\s+ means whitespace
-				
-				ArrayList<String> token = new ArrayList<String>();
-				line.tokens();
-				
-				//grab all the tokens
-				while(line.hasNext())
-				{
-					token.add(line.next());
-				}
-				
-				if (token.size() != 1)
-				{
-					line.close(); //do nothing and skip this iteration
-            		continue;
-				}
-				
-				int chatroomID = Integer.valueOf(token.get(0));
-				
-				if(chatroomCounter < chatroomID) {
-					chatroomCounter = chatroomID;
+			startup.countFile(StartupLoader.ROOMS, storage, "ChatroomFile.txt");
+			List<Integer> loadIDs = storage.readChatroomIDs();
+			// create the chatrooms, each reading its members
+			List<Chatroom> loaded = startup.load(StartupLoader.ROOMS, loadIDs, chatroomID -> {
+				Chatroom make = new Chatroom(chatroomID, false, storage); // uses chatroom id for constructor, history loads on first use
+				startup.countFile(StartupLoader.ROOMS, storage, chatroomID + "Members.txt");
+				return make;
+			});
+			
+			// add them to chatmanager data in stored order
+			for(Chatroom make : loaded) {
+				chatroomIDs.add(make.getChatroomID());
+				chatrooms.put(make.getChatroomID(), make);
+				for(Integer memberID : make.getMembers()) {
+					indexMember(make.getChatroomID(), memberID);
 				}
-				
-				// create and add new chatrooms to chatmanager data
-				Chatroom make = new Chatroom(chatroomID); // uses chatroom id for constructor
-				chatroomIDs.add(chatroomID);
-				chatrooms.put(chatroomID, make);
-				
-				line.close();
 			}
-			reader.close();
 			
 		}
 		catch (Exception e) {
@@ -74,6 +77,116 @@ public class ChatroomManager {
 		return chatroomIDs;
 	}
 	
+	// Stores new room messages in the log, a room's history is then its stored messages followed by its logged messages
+	public void useMessageLog(MessageLog messageLog) throws IOException {
+		this.messageLog = messageLog;
+	}
+	
+	private List<Message> readHistory(int chatroomID) throws IOException {
+		List<Message> messages = storage.readRoomMessages(chatroomID); // Written before the log existed
+		if(messageLog != null) messages.addAll(messageLog.readRoom(chatroomID));
+		return messages;
+	}
+	
+	// Makes sure the room's history is in memory before it's used or sent to a client
+	private void loadHistory(Chatroom chatroom) {
+		try {
+			history.get(chatroom);
+		}
+		catch(IOException e) {
+			System.err.println("Error loading history of chatroom " + chatroom.getChatroomID() + ": " + e.getMessage());
+		}
+	}
+	
+	public RoomHistoryCache getHistoryCache() {
+		return history;
+	}
+	
+	/* What a client is sent about a room: copies of its members and newest messages, never the room itself.
+	 * The older messages are left for GCL requests. A room that isn't loaded stays that way, its newest
+	 * messages are read from the log, so a LOGIN doesn't pull every room the user is in into the cache. */
+	public RoomSummary summarize(Chatroom chatroom) {
+		List<Message> recent = new ArrayList<Message>();
+		long count = 0;
+		try {
+			if(messageLog != null && !chatroom.isLoaded()) {
+				count = readRecent(chatroom.getChatroomID(), recent);
+			}
+			else {
+				List<Message> messages = history.get(chatroom);
+				synchronized(messages) {
+					count = messages.size();
+					recent.addAll(messages.subList((int) Math.max(0, count - recentMessages), (int) count));
+				}
+			}
+		}
+		catch(IOException e) {
+			System.err.println("Error loading history of chatroom " + chatroom.getChatroomID() + ": " + e.getMessage());
+		}
+		return new RoomSummary(chatroom.getChatroomID(), new ArrayList<Integer>(chatroom.getMembers()), recent, count);
+	}
+	
+	/* The room's newest messages as its history would end, without loading it: the last of the log's
+	 * messages, topped up from the stored ones written before the log if the log has fewer. Returns the
+	 * room's message count. */
+	private long readRecent(int chatroomID, List<Message> into) throws IOException {
+		List<Message> stored = storage.readRoomMessages(chatroomID);
+		int logged = messageLog.getRoomMessageCount(chatroomID);
+		int fromLog = Math.min(logged, recentMessages);
+		into.addAll(stored.subList(Math.max(0, stored.size() - (recentMessages - fromLog)), stored.size()));
+		if(fromLog > 0) messageLog.readRoom(chatroomID, logged - fromLog, Long.MIN_VALUE, Long.MAX_VALUE, fromLog, into);
+		return stored.size() + logged;
+	}
+	
+	// Tells the room's other online members who joined or left, they only need the change
+	private void sendMembershipUpdate(int chatroomID, MembershipDelta delta, int userID, ConcurrentHashMap<Integer, ObjectOutputStream> clients) {
+		MessageCreator create = new MessageCreator(MessageType.UPDATECM);
+		create.setContents("Members");
+		create.setToChatroom(chatroomID);
+		create.setFromUserID(userID); // Queued updates about the same member of the same room coalesce, see OutboundQueue
+		create.setMembership(delta);
+		
+		EncodedMessage update = new EncodedMessage(create.createMessage());
+		subscribers.get(chatroomID).forEach(client -> {
+			if(client == userID) return;
+			try {
+				ObjectOutputStream output = clients.get(client);
+				if(output != null) {
+					update.writeTo(output);
+				}
+			}
+			catch(IOException e) {
+				System.err.println("Error sending update to a client!");
+			}
+		});
+	}
+	
+	// Called once a user has logged in, room messages reach them from now on
+	public void userOnline(int userID) {
+		subscribers.online(userID, getUserChatroomIDs(userID));
+	}
+	
+	public void userOffline(int userID) {
+		subscribers.offline(userID);
+	}
+	
+	public RoomSubscribers getSubscribers() {
+		return subscribers;
+	}
+	
+	private void indexMember(int chatroomID, int userID) {
+		userChatrooms.computeIfAbsent(userID, id -> ConcurrentHashMap.newKeySet()).add(chatroomID);
+	}
+	
+	private void unindexMember(int chatroomID, int userID) {
+		Set<Integer> rooms = userChatrooms.get(userID);
+		if(rooms != null) rooms.remove(chatroomID);
+	}
+	
+	private boolean isOnline(int userID) {
+		return server != null && server.getListOfClients().containsKey(userID);
+	}
+	
 	public void saveUsers()
 	{
 		
@@ -83,17 +196,8 @@ public class ChatroomManager {
 		}
 		try
 		{
-			FileWriter myFile = new FileWriter(chatroomFile); //open file to save on
-			for (int i=0; i<chatroomIDs.size(); i++)
-			{
-				Integer id = chatroomIDs.get(i);
-				
-				//writ information to file
-				myFile.write(Integer.toString(id));
-				myFile.write("\n");
-			}
+			storage.writeChatroomIDs(chatroomIDs);
 			modified = false;
-			myFile.close();
 		}
 		catch(IOException e)
 		{
@@ -134,13 +238,21 @@ public class ChatroomManager {
 			}
 			
 			
-			receive.addMessage(message); //give message to chatroom so they can store it
-			List<Integer> members = receive.getMembers();
+			loadHistory(receive);
+			if(messageLog != null) {
+				receive.addMessage(message, messageLog::append);
+			}
+			else {
+				receive.addMessage(message); //give message to chatroom so they can store it
+			}
 			
-			clients.keySet().parallelStream().forEach(client ->{
+			// Every online member gets the same frame, so the message is encoded once per codec, not per member
+			EncodedMessage encoded = new EncodedMessage(message);
+			subscribers.get(id).forEach(client ->{
 				try {
-					if(receive.findMember(client)) {
-						clients.get(client).writeObject(message);
+					ObjectOutputStream output = clients.get(client);
+					if(output != null) {
+						encoded.writeTo(output);
 					}
 				}
 				catch(IOException e) {
@@ -187,10 +299,15 @@ public class ChatroomManager {
 				return -1;
 			}
 
-			join.addMember(message.getFromUserID());;
+			join.addMember(message.getFromUserID());
+			indexMember(id, message.getFromUserID());
+			sendMembershipUpdate(id, MembershipDelta.joined(id, message.getFromUserID()), message.getFromUserID(), clients);
+			if(clients.containsKey(message.getFromUserID())) {
+				subscribers.subscribe(id, message.getFromUserID());
+			}
 			
 			create.setContents("Success");
-			create.setChatroom(join);
+			create.setRoom(summarize(join));
 			create.setToChatroom(join.getChatroomID());
 			out.writeObject(create.createMessage());
 			
@@ -232,6 +349,11 @@ public class ChatroomManager {
 			}
 			
 			receive.addMember(message.getToUserID()); //give user ID to chatroom so they can store it
+			indexMember(id, message.getToUserID());
+			sendMembershipUpdate(id, MembershipDelta.joined(id, message.getToUserID()), message.getToUserID(), clients);
+			if(clients.containsKey(message.getToUserID())) {
+				subscribers.subscribe(id, message.getToUserID());
+			}
 			
 			// Confirm that invite sent
 			create.setContents("Success");
@@ -240,7 +362,7 @@ public class ChatroomManager {
 			
 		    // Send chatroom info to invited user
 		    create.setContents("Add");
-		    create.setChatroom(receive);
+		    create.setRoom(summarize(receive));
 		    Send = new Message(create);
 		    
 		    System.out.println(message.getToUserID());
@@ -278,15 +400,20 @@ public class ChatroomManager {
             }
 
             // Make a new chatroom and add it to the list
-            Chatroom make = new Chatroom(0, message.getFromUserID());
+            Chatroom make = new Chatroom(0, message.getFromUserID(), storage);
             Integer chatId = make.getChatroomID();
             chatroomIDs.add(chatId);
             chatrooms.put(chatId, make);
+            loadHistory(make); // Empty, only counts it as loaded
+            indexMember(chatId, message.getFromUserID());
+            if(isOnline(message.getFromUserID())) {
+            	subscribers.subscribe(chatId, message.getFromUserID());
+            }
             modified = true;
             
             create.setContents("Success");
             create.setToChatroom(make.getChatroomID()); // set the chatroom ID
-            create.setChatroom(make); // set the chatroom object
+            create.setRoom(summarize(make)); // set the chatroom's summary
             Send = new Message(create); // create success message
             out.writeObject(Send); // send success message
 
@@ -325,11 +452,13 @@ public class ChatroomManager {
 			create.setContents("Remove");
 			create.setToChatroom(id);
 			
-			clients.keySet().parallelStream().forEach(client ->{
+			EncodedMessage removal = new EncodedMessage(create.createMessage());
+			subscribers.get(id).forEach(client ->{
 				try {
-					if(receive.findMember(client)) {
-						clients.get(client).writeObject(create.createMessage());
-						clients.get(client).flush();
+					ObjectOutputStream output = clients.get(client);
+					if(output != null) {
+						removal.writeTo(output);
+						output.flush();
 					}
 				}
 				catch(IOException e) {
@@ -339,6 +468,11 @@ public class ChatroomManager {
 			
 			chatroomIDs.remove(id);
 			chatrooms.remove(id);
+			history.remove(receive);
+			for(Integer memberID : receive.getMembers()) {
+				unindexMember(id, memberID);
+			}
+			subscribers.removeRoom(id);
 			modified = true;
 			
 			create.setContents("Success");
@@ -380,6 +514,9 @@ public class ChatroomManager {
 			}
 			
 			receive.removeMember(message.getToUserID()); //give user ID to chatroom so they can remove it
+			unindexMember(id, message.getToUserID());
+			subscribers.unsubscribe(id, message.getToUserID());
+			sendMembershipUpdate(id, MembershipDelta.left(id, message.getToUserID()), message.getToUserID(), clients);
 			
 			create.setContents("Remove");
 			create.setToUserID(message.getToUserID());
@@ -402,24 +539,46 @@ public class ChatroomManager {
 		
 	}
 	
+	// A deleted account leaves each of its rooms, the rooms' online members told as for LC
 	public void removeUserFromChatrooms(User user, ConcurrentHashMap<Integer, ObjectOutputStream> clients) {
-		for(Integer chatroomID : user.getChatrooms()) {
-			chatrooms.get(chatroomID).removeMember(user.getID());
+		subscribers.offline(user.getID());
+		Set<Integer> rooms = userChatrooms.remove(user.getID());
+		if(rooms != null) {
+			for(Integer chatroomID : rooms) {
+				Chatroom chatroom = chatrooms.get(chatroomID);
+				if(chatroom == null) continue;
+				chatroom.removeMember(user.getID());
+				sendMembershipUpdate(chatroomID, MembershipDelta.left(chatroomID, user.getID()), user.getID(), clients);
+			}
 		}
-
-		
 	}
 	
+	// Only looks at the user's own rooms, so login does not get slower as the server gains rooms
 	public ConcurrentHashMap<Integer, Chatroom> getUserChatrooms(int userID){
 		ConcurrentHashMap<Integer, Chatroom> returnMap = new ConcurrentHashMap<Integer, Chatroom>();
 		
-		for(Chatroom chatroom : chatrooms.values()) {
-			if(chatroom.findMember(userID)) {
-				returnMap.put(chatroom.getChatroomID(), chatroom);
+		for(Integer chatroomID : getUserChatroomIDs(userID)) {
+			Chatroom chatroom = chatrooms.get(chatroomID);
+			if(chatroom != null) {
+				returnMap.put(chatroomID, chatroom);
 			}
 		}
 		
 		return returnMap;		
 		
 	}
+	
+	// The user's rooms as their LOGIN reply carries them
+	public List<RoomSummary> getUserRoomSummaries(int userID) {
+		List<RoomSummary> summaries = new ArrayList<RoomSummary>();
+		for(Chatroom chatroom : getUserChatrooms(userID).values()) {
+			summaries.add(summarize(chatroom));
+		}
+		return summaries;
+	}
+	
+	public Set<Integer> getUserChatroomIDs(int userID) {
+		Set<Integer> rooms = userChatrooms.get(userID);
+		return rooms == null ? Collections.<Integer>emptySet() : Collections.unmodifiableSet(rooms);
+	}
 }
@@ -0,0 +1,105 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import shared.EncodedMessage;
+import shared.FrameOutputStream;
+import shared.Message;
+import shared.WireCodec;
+
+/* State the Server keeps for one connected client, independent of how the connection is serviced.
+ * Handlers write replies to getOutput() as before, but the stream only queues them in the session's
+ * OutboundQueue; the connection's own writer does the actual socket I/O. */
+public class ClientSession {
+	private final Closeable transport;
+	private final OutboundQueue outbound;
+	private final ObjectOutputStream output;
+	private volatile int userID = -1;
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+
+	public ClientSession(Closeable transport, OutboundQueue outbound) throws IOException {
+		this.transport = transport;
+		this.outbound = outbound;
+		this.output = new SessionOutput();
+	}
+
+	public ObjectOutputStream getOutput() {
+		return output;
+	}
+
+	public OutboundQueue getOutbound() {
+		return outbound;
+	}
+
+	public int getQueueDepth() {
+		return outbound.size();
+	}
+
+	public int getUserID() {
+		return userID;
+	}
+
+	public void setUserID(int userID) {
+		this.userID = userID;
+	}
+
+	public boolean isClosed() {
+		return closed.get();
+	}
+
+	// Closes the connection once the writer has sent everything already queued (e.g. a LOGOUT reply)
+	public void closeWhenFlushed() {
+		outbound.finish();
+	}
+
+	// Safe to call more than once and from any thread
+	public void close() {
+		if(!closed.compareAndSet(false, true)) return;
+		outbound.close();
+		try {
+			transport.close();
+		}
+		catch(IOException e) {
+			System.err.println("Error closing session for user: " + userID);
+		}
+	}
+
+	/* writeObject() enqueues instead of writing, so callers never block on this client's socket.
+	 * The connection's writer encodes with whatever codec it negotiated; broadcasts pass an
+	 * EncodedMessage (see EncodedMessage.writeTo) so all recipients share one encoding. */
+	private class SessionOutput extends FrameOutputStream {
+		SessionOutput() throws IOException {
+			super(WireCodec.SERIALIZED); // Unused, nothing is framed here
+		}
+
+		@Override
+		protected void writeObjectOverride(Object obj) throws IOException {
+			if(!(obj instanceof Message)) {
+				throw new NotSerializableException("Only Message objects can be sent to a client");
+			}
+			writeEncoded(new EncodedMessage((Message) obj));
+		}
+
+		@Override
+		public void writeEncoded(EncodedMessage message) {
+			if(!outbound.offer(message)) {
+				System.err.println("Outbound queue full, disconnecting slow client: " + userID);
+				ClientSession.this.close();
+			}
+		}
+
+		@Override
+		public void flush() {
+			// Nothing buffered here, the writer flushes
+		}
+
+		@Override
+		public void close() {
+			// The session owns the connection
+		}
+	}
+}
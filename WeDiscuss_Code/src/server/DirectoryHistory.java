@@ -0,0 +1,90 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import shared.DirectoryDelta;
+import shared.IdGenerator;
+
+/* The user directory's version and its most recent changes, so a client that cached the directory is
+ * only sent what changed since its version (see DirectoryDelta). Each add or remove gets a new version
+ * from an IdGenerator, so versions keep rising across restarts and a version handed out by an earlier
+ * run is always older than this run's first one. Only the newest capacity changes are kept; a client
+ * further behind than that, or holding a version this run never gave out, gets a snapshot instead.
+ * Callers make the directory change and record() it as one step, see UserManager. */
+public class DirectoryHistory {
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	private final IdGenerator versions;
+	private final int capacity;
+	private final ArrayDeque<Change> changes = new ArrayDeque<Change>(); // Oldest first
+	private long floor; // The version just before the oldest kept change
+	private long version;
+
+	public DirectoryHistory(int capacity) {
+		this(capacity, new IdGenerator(Integer.getInteger("wediscuss.nodeId", 0)));
+	}
+
+	public DirectoryHistory(int capacity, IdGenerator versions) {
+		if(capacity < 1) throw new IllegalArgumentException("History capacity must be positive: " + capacity);
+		this.capacity = capacity;
+		this.versions = versions;
+		this.version = versions.nextId();
+		this.floor = version;
+	}
+
+	// username is null for a removed user. Returns the directory's new version.
+	public synchronized long record(int userID, String username) {
+		version = versions.nextId();
+		changes.addLast(new Change(version, userID, username));
+		if(changes.size() > capacity) {
+			floor = changes.removeFirst().version;
+		}
+		return version;
+	}
+
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	// The net changes from knownVersion to now, null if they're no longer all kept or it isn't one of this run's versions
+	public synchronized DirectoryDelta since(long knownVersion) {
+		if(knownVersion < floor || knownVersion > version) return null;
+
+		Map<Integer, String> latest = new TreeMap<Integer, String>(); // null for removed
+		Iterator<Change> newestFirst = changes.descendingIterator();
+		while(newestFirst.hasNext()) {
+			Change change = newestFirst.next();
+			if(change.version <= knownVersion) break;
+			if(!latest.containsKey(change.userID)) latest.put(change.userID, change.username); // Not putIfAbsent, null is a value here
+		}
+
+		Map<Integer, String> added = new TreeMap<Integer, String>();
+		List<Integer> removed = new ArrayList<Integer>();
+		for(Map.Entry<Integer, String> user : latest.entrySet()) {
+			if(user.getValue() == null) {
+				removed.add(user.getKey());
+			}
+			else {
+				added.put(user.getKey(), user.getValue());
+			}
+		}
+		return new DirectoryDelta(knownVersion, version, added, removed);
+	}
+
+	private static final class Change {
+		final long version;
+		final int userID;
+		final String username;
+
+		Change(long version, int userID, String username) {
+			this.version = version;
+			this.userID = userID;
+			this.username = username;
+		}
+	}
+}
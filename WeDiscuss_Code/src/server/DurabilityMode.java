@@ -0,0 +1,9 @@
+package server;
+
+/* When a MessageLog append counts as done, i.e. when the sender gets its reply.
+ * Measured with bench.DurabilityBenchmark (16 senders, local SSD), see there for the numbers. */
+public enum DurabilityMode {
+	NONE,     // Written to the OS, which flushes it whenever it likes. Lost on power failure, not on a crash of the server.
+	PERIODIC, // As NONE, plus a background fsync every sync interval, so at most one interval is lost
+	SYNC      // Group commit: fsync'd before the append returns, one fsync shared by everyone waiting
+}
@@ -0,0 +1,386 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import shared.BinaryMessageCodec;
+import shared.IdGenerator;
+import shared.Message;
+import shared.MessageFraming;
+import shared.MessageType;
+import shared.Storage;
+
+/* Storage in a KeyValueStore. What was a list file is one key, and every message is kept once under
+ * its message id (see IdGenerator), with a key in each list it belongs in, sorting oldest first:
+ *   account/<user>                         one per account (UserFile.txt)
+ *   chatrooms                              every room id (ChatroomFile.txt)
+ *   members/<room>/<user>                  one per member of a room (NMembers.txt)
+ *   chats/<user>/<room>                    one per room a user is in (NChats.txt)
+ *   message/<sequence>                     the message
+ *   roommsg/<room>/<sequence>              a room's messages (NMessages.txt, and Nchatlog.txt since)
+ *   inbox/<user>/<sequence>                a user's direct messages, sent and received (NInbox.txt)
+ *   conversation/<user>/<user>/<sequence>  the direct messages between two users, lower id first
+ *   sent/<user>/<sequence>                 what a user sent (Nuserlog.txt since)
+ *   userlog/<user>/<sequence>              Nuserlog.txt as imported
+ *   chatlog/<room>/<sequence>              Nchatlog.txt as imported
+ * The list keys have no value. Imported ones, and those appended before messages were kept once, hold
+ * a copy of the message instead, which is read as it is. A direct message that went to four files and
+ * a room message that went to two are now one value and a few short keys.
+ * Ids are zero padded and sequences fixed width hex so key order is numeric order. Messages are kept
+ * in BinaryMessageCodec form, so they come back with every field, not just the ones a text line held.
+ * A member or chats key holds the sequence it was added at, which orders the list, so a join or leave
+ * is one put or delete; the store's log and merges take the place of a journal and its snapshots. */
+public class KeyValueStorage implements Storage {
+	static final String ACCOUNTS = "accounts"; // Every account in one value, as stores made before account/ keys have them
+	static final String ACCOUNT = "account/";
+	static final String CHATROOMS = "chatrooms";
+	static final String MEMBERS = "members/";
+	static final String CHATS = "chats/";
+	static final String ROOM_MESSAGES = "roommsg/";
+	static final String INBOX = "inbox/";
+	static final String USER_LOG = "userlog/";
+	static final String CHAT_LOG = "chatlog/";
+	static final String MESSAGE = "message/";
+	static final String CONVERSATION = "conversation/";
+	static final String SENT = "sent/";
+	private static final byte[] REFERENCE = new byte[0];
+	static final String IMPORTED = "meta/imported"; // Set once StorageImporter has copied the legacy files in
+
+	private final KeyValueStore store;
+	// Numbers what isn't a message, members and chats, in the order it was added
+	private final IdGenerator sequences = new IdGenerator(Integer.getInteger("wediscuss.nodeId", 0));
+
+	public KeyValueStorage(KeyValueStore store) {
+		this.store = store;
+	}
+
+	public KeyValueStore getStore() {
+		return store;
+	}
+
+	// In id order. Accounts still kept whole under "accounts" are moved to a key each on the way.
+	@Override
+	public List<Account> readAccounts() throws IOException {
+		byte[] packed = store.get(ACCOUNTS);
+		if(packed != null) {
+			List<Account> accounts = new ArrayList<Account>();
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(packed));
+			int count = in.readInt();
+			for(int i = 0; i < count; i++) {
+				accounts.add(new Account(in.readUTF(), in.readUTF(), in.readBoolean(), in.readInt()));
+			}
+			writeAccounts(accounts);
+			return accounts;
+		}
+		List<Account> accounts = new ArrayList<Account>();
+		for(byte[] value : store.values(ACCOUNT)) {
+			accounts.add(decodeAccount(value));
+		}
+		return accounts;
+	}
+
+	@Override
+	public void writeAccounts(List<Account> accounts) throws IOException {
+		KeyValueStore.Batch batch = new KeyValueStore.Batch();
+		batch.delete(ACCOUNTS);
+		store.scan(ACCOUNT, (key, value) -> batch.delete(key));
+		for(Account account : accounts) {
+			batch.put(ACCOUNT + id(account.getUserID()), encodeAccount(account));
+		}
+		store.write(batch);
+	}
+
+	@Override
+	public void putAccount(Account account) throws IOException {
+		store.put(ACCOUNT + id(account.getUserID()), encodeAccount(account));
+	}
+
+	@Override
+	public void deleteAccount(int userID) throws IOException {
+		store.delete(ACCOUNT + id(userID));
+	}
+
+	@Override
+	public List<Integer> readChatroomIDs() throws IOException {
+		return decodeIDs(store.get(CHATROOMS));
+	}
+
+	@Override
+	public void writeChatroomIDs(List<Integer> chatroomIDs) throws IOException {
+		store.put(CHATROOMS, encodeIDs(chatroomIDs));
+	}
+
+	// Nothing to make room for, a room without members or messages has no keys
+	@Override
+	public void createChatroom(int chatroomID) throws IOException {
+	}
+
+	@Override
+	public List<Integer> readMembers(int chatroomID) throws IOException {
+		return readList(MEMBERS, chatroomID);
+	}
+
+	@Override
+	public void writeMembers(int chatroomID, List<Integer> members) throws IOException {
+		writeList(MEMBERS, chatroomID, members);
+	}
+
+	@Override
+	public void addMember(int chatroomID, int userID) throws IOException {
+		store.put(listKey(MEMBERS, chatroomID, userID), encodeSequence(nextSequence()));
+	}
+
+	@Override
+	public void removeMember(int chatroomID, int userID) throws IOException {
+		store.delete(listKey(MEMBERS, chatroomID, userID));
+	}
+
+	@Override
+	public List<Message> readRoomMessages(int chatroomID) throws IOException {
+		return readMessages(true, ROOM_MESSAGES + id(chatroomID) + "/");
+	}
+
+	// Replaces the room's messages in one batch, the messages its keys referred to included
+	@Override
+	public void writeRoomMessages(int chatroomID, List<Message> messages) throws IOException {
+		KeyValueStore.Batch batch = new KeyValueStore.Batch();
+		store.scan(ROOM_MESSAGES + id(chatroomID) + "/", (key, value) -> {
+			batch.delete(key);
+			if(value.length == 0) batch.delete(MESSAGE + sequenceOf(key));
+		});
+		for(Message message : messages) {
+			long sequence = message.getMessageID();
+			batch.put(MESSAGE + hex(sequence), encode(message));
+			batch.put(messageKey(ROOM_MESSAGES, chatroomID, sequence), REFERENCE);
+		}
+		store.write(batch);
+	}
+
+	@Override
+	public void createUser(int userID) throws IOException {
+	}
+
+	@Override
+	public List<Integer> readUserChatrooms(int userID) throws IOException {
+		return readList(CHATS, userID);
+	}
+
+	@Override
+	public void writeUserChatrooms(int userID, List<Integer> chatroomIDs) throws IOException {
+		writeList(CHATS, userID, chatroomIDs);
+	}
+
+	@Override
+	public void addUserChatroom(int userID, int chatroomID) throws IOException {
+		store.put(listKey(CHATS, userID, chatroomID), encodeSequence(nextSequence()));
+	}
+
+	@Override
+	public void removeUserChatroom(int userID, int chatroomID) throws IOException {
+		store.delete(listKey(CHATS, userID, chatroomID));
+	}
+
+	@Override
+	public List<Message> readInbox(int userID) throws IOException {
+		return readMessages(true, INBOX + id(userID) + "/");
+	}
+
+	// The copies from Nuserlog.txt followed by what the user sent since
+	@Override
+	public List<Message> readUserLog(int userID) throws IOException {
+		return readMessages(true, USER_LOG + id(userID) + "/", SENT + id(userID) + "/");
+	}
+
+	// The copies from Nchatlog.txt followed by the room's messages since, NMessages.txt's copies repeat the former
+	@Override
+	public List<Message> readChatLog(int chatroomID) throws IOException {
+		List<Message> messages = readMessages(true, CHAT_LOG + id(chatroomID) + "/");
+		messages.addAll(readMessages(false, ROOM_MESSAGES + id(chatroomID) + "/"));
+		return messages;
+	}
+
+	@Override
+	public List<Message> readConversation(int userID, int otherUserID) throws IOException {
+		return readMessages(false, conversation(userID, otherUserID));
+	}
+
+	/* The message once under its id and a key without a value in each list it belongs in, all in one write.
+	 * Storing the same message again only writes the same keys again. */
+	@Override
+	public void appendMessage(Message message) throws IOException {
+		long sequence = message.getMessageID();
+		KeyValueStore.Batch batch = new KeyValueStore.Batch();
+		batch.put(MESSAGE + hex(sequence), encode(message));
+		if(message.getMessageType() == MessageType.UTU) {
+			batch.put(messageKey(INBOX, message.getToUserID(), sequence), REFERENCE);
+			batch.put(messageKey(INBOX, message.getFromUserID(), sequence), REFERENCE);
+			batch.put(conversation(message.getFromUserID(), message.getToUserID()) + hex(sequence), REFERENCE);
+			batch.put(messageKey(SENT, message.getFromUserID(), sequence), REFERENCE);
+		}
+		else {
+			batch.put(messageKey(ROOM_MESSAGES, message.getToChatroomID(), sequence), REFERENCE);
+		}
+		store.write(batch);
+	}
+
+	@Override
+	public void close() throws IOException {
+		store.close();
+	}
+
+	/* Puts messages under sequences 0, 1, 2... for the importer, so importing the same file again
+	 * overwrites instead of adding them twice. Appended messages number far above. */
+	void putMessages(KeyValueStore.Batch batch, String family, int id, List<Message> messages) throws IOException {
+		for(int i = 0; i < messages.size(); i++) {
+			batch.put(messageKey(family, id, i), encode(messages.get(i)));
+		}
+	}
+
+	/* A member or chats list in the order its ids were added. One still kept whole under <family><owner>,
+	 * as stores made before lists had a key per id do, is moved to a key per id on the way. */
+	private List<Integer> readList(String family, int owner) throws IOException {
+		byte[] packed = store.get(family + id(owner));
+		if(packed != null) {
+			List<Integer> ids = decodeIDs(packed);
+			writeList(family, owner, ids);
+			return ids;
+		}
+		String prefix = family + id(owner) + "/";
+		List<long[]> entries = new ArrayList<long[]>(); // {sequence, id}
+		store.scan(prefix, (key, value) -> entries.add(new long[] {ByteBuffer.wrap(value).getLong(), Integer.parseInt(key.substring(prefix.length()))}));
+		entries.sort(Comparator.comparingLong(entry -> entry[0]));
+		List<Integer> ids = new ArrayList<Integer>(entries.size());
+		for(long[] entry : entries) {
+			ids.add((int) entry[1]);
+		}
+		return ids;
+	}
+
+	// Replaces the whole list in one batch
+	private void writeList(String family, int owner, List<Integer> ids) throws IOException {
+		KeyValueStore.Batch batch = new KeyValueStore.Batch();
+		batch.delete(family + id(owner));
+		store.scan(family + id(owner) + "/", (key, value) -> batch.delete(key));
+		synchronized(ids) { // The callers' lists are synchronized ones
+			for(Integer id : ids) {
+				batch.put(listKey(family, owner, id), encodeSequence(nextSequence()));
+			}
+		}
+		store.write(batch);
+	}
+
+	static String listKey(String family, int owner, int id) {
+		return family + id(owner) + "/" + id(id);
+	}
+
+	/* The messages under the prefixes in sequence order. Keys without a value refer to the message/ key
+	 * of their sequence. Others hold a copy of their own, imported or from before messages were kept once;
+	 * those are left out unless copies is set. */
+	private List<Message> readMessages(boolean copies, String... prefixes) throws IOException {
+		TreeMap<String, byte[]> found = new TreeMap<String, byte[]>(); // By sequence
+		for(String prefix : prefixes) {
+			store.scan(prefix, (key, value) -> {
+				if(value.length == 0) found.put(sequenceOf(key), null);
+				else if(copies) found.put(sequenceOf(key), value);
+			});
+		}
+		List<Message> messages = new ArrayList<Message>(found.size());
+		for(Map.Entry<String, byte[]> entry : found.entrySet()) {
+			byte[] value = entry.getValue() != null ? entry.getValue() : store.get(MESSAGE + entry.getKey());
+			if(value != null) messages.add(decode(value));
+		}
+		return messages;
+	}
+
+	// The fixed width hex sequence a message key ends in
+	private static String sequenceOf(String key) {
+		return key.substring(key.length() - 16);
+	}
+
+	// The same for both users, lower id first
+	private static String conversation(int userID, int otherUserID) {
+		return CONVERSATION + id(Math.min(userID, otherUserID)) + "/" + id(Math.max(userID, otherUserID)) + "/";
+	}
+
+	private long nextSequence() {
+		return sequences.nextId();
+	}
+
+	static String messageKey(String family, int id, long sequence) {
+		return family + id(id) + "/" + hex(sequence);
+	}
+
+	static String hex(long sequence) {
+		String hex = Long.toHexString(sequence);
+		return "0000000000000000".substring(hex.length()) + hex;
+	}
+
+	// Zero padded to 10 digits, the most an int has
+	static String id(int id) {
+		String digits = Integer.toString(id);
+		if(id < 0 || digits.length() >= 10) return digits;
+		return "0000000000".substring(digits.length()) + digits;
+	}
+
+	// The frame as BinaryMessageCodec makes it, length prefix and all
+	private static byte[] encode(Message message) throws IOException {
+		return BinaryMessageCodec.toFrame(message);
+	}
+
+	private static Message decode(byte[] value) throws IOException {
+		try {
+			return BinaryMessageCodec.fromPayload(value, MessageFraming.HEADER_LENGTH, value.length - MessageFraming.HEADER_LENGTH);
+		}
+		catch(ClassNotFoundException e) {
+			throw new IOException("Stored message can't be read: " + e.getMessage(), e);
+		}
+	}
+
+	private static byte[] encodeAccount(Account account) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(account.getUsername());
+		out.writeUTF(account.getPassword());
+		out.writeBoolean(account.isAdmin());
+		out.writeInt(account.getUserID());
+		return bytes.toByteArray();
+	}
+
+	private static Account decodeAccount(byte[] value) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+		return new Account(in.readUTF(), in.readUTF(), in.readBoolean(), in.readInt());
+	}
+
+	private static byte[] encodeIDs(List<Integer> ids) {
+		synchronized(ids) { // The callers' lists are synchronized ones
+			ByteBuffer bytes = ByteBuffer.allocate(ids.size() * 4);
+			for(Integer id : ids) {
+				bytes.putInt(id);
+			}
+			return bytes.array();
+		}
+	}
+
+	private static byte[] encodeSequence(long sequence) {
+		return ByteBuffer.allocate(8).putLong(sequence).array();
+	}
+
+	private static List<Integer> decodeIDs(byte[] value) {
+		List<Integer> ids = new ArrayList<Integer>();
+		if(value == null) return ids;
+		ByteBuffer bytes = ByteBuffer.wrap(value);
+		while(bytes.remaining() >= 4) {
+			ids.add(bytes.getInt());
+		}
+		return ids;
+	}
+}
@@ -0,0 +1,861 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/* Embedded log-structured key-value store, one directory holding what used to be a few text files per
+ * user and per room. Keys are Strings ordered by String.compareTo, values byte arrays.
+ *
+ * A write is appended to the write-ahead log of the current generation (a .wal file, one record per
+ * Batch: length(4) | CRC32(4) | entry count(4) | entries) and then put in the memtable, a sorted map in
+ * memory. Once the memtable holds flushBytes it's frozen and a new generation started; the background
+ * thread writes the frozen table out as an immutable segment file and deletes its log:
+ *   records: key length(4) | key UTF-8 | value length(4), -1 for a deletion | value
+ *   index:   every INDEX_INTERVAL-th record as key length(4) | key UTF-8 | record offset(4)
+ *   footer:  record count(4) | index count(4) | index offset(4) | magic(4)
+ * Segment files are named after the first and last generation they hold and memory mapped, only the
+ * sparse index is read in. Once there are more than MAX_SEGMENTS the background thread merges the
+ * MERGE_FACTOR neighbouring ones smallest together, the newest value of a key winning. Deletions are
+ * dropped when the oldest segment takes part, there's nothing older left for them to hide.
+ *
+ * A read looks at the memtable, the frozen ones and then the segments, newest first. Opening replays
+ * the logs no segment covers yet into the memtable, cutting a torn record at the end of one off (crash
+ * mid-write). The DurabilityMode decides when a write returns: SYNC fsyncs the log first, PERIODIC has
+ * the background thread fsync it every sync interval, NONE leaves it to the OS. */
+public class KeyValueStore implements Closeable {
+	public static final long DEFAULT_FLUSH_BYTES = 4L * 1024 * 1024;
+	public static final long DEFAULT_SYNC_INTERVAL_MS = 1000;
+	private static final int MAX_SEGMENTS = 8;
+	private static final int MERGE_FACTOR = 4;
+	private static final long MAX_MERGED_BYTES = 1L << 30; // Segments are mapped as one buffer
+	private static final int MAX_FROZEN = 2; // Writers wait for the flush beyond that
+	private static final int INDEX_INTERVAL = 16;
+	private static final int MAGIC = 0x57444B56;
+	private static final int FOOTER_BYTES = 16;
+	private static final int RECORD_HEADER_LENGTH = 8;
+	private static final long ENTRY_OVERHEAD = 64; // Rough memtable cost of an entry besides key and value
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String LOG_SUFFIX = ".wal";
+	private static final byte[] DELETED = new byte[0]; // Marks a deletion, compared by identity
+
+	private final File directory;
+	private final long flushBytes;
+	private final DurabilityMode mode;
+	private final long syncIntervalMillis;
+
+	private volatile State state; // Replaced as a whole under stateLock
+	private final ReentrantLock stateLock = new ReentrantLock();
+	private final Condition workWanted = stateLock.newCondition();
+	private final Condition flushed = stateLock.newCondition();
+	private final ReentrantLock writeLock = new ReentrantLock(); // Guards writes to the log and the memtable
+	private final ReentrantLock backgroundLock = new ReentrantLock(); // One flush or merge at a time
+	private volatile FileChannel log; // Replaced under writeLock
+	private long nextGeneration;
+	private final AtomicBoolean dirty = new AtomicBoolean(); // Written since the last fsync
+	private volatile boolean closed = false;
+	private final FileChannel lockFile; // Held so a second server can't open the same store
+	private final Thread background;
+	private final AtomicLong flushCount = new AtomicLong();
+	private final AtomicLong mergeCount = new AtomicLong();
+
+	public KeyValueStore(File directory) throws IOException {
+		this(directory, DEFAULT_FLUSH_BYTES, DurabilityMode.NONE, DEFAULT_SYNC_INTERVAL_MS);
+	}
+
+	public KeyValueStore(File directory, long flushBytes, DurabilityMode mode, long syncIntervalMillis) throws IOException {
+		this.directory = directory;
+		this.flushBytes = flushBytes;
+		this.mode = mode;
+		this.syncIntervalMillis = syncIntervalMillis;
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can't create store directory " + directory);
+		}
+		lockFile = lock(directory);
+		try {
+			open();
+		}
+		catch(IOException | RuntimeException e) {
+			lockFile.close();
+			throw e;
+		}
+
+		background = new Thread(() -> runBackground(), "store-compactor");
+		background.setDaemon(true);
+		background.start();
+		if(!state.active.entries.isEmpty()) {
+			// What the logs held goes to a segment, so they don't pile up over restarts
+			writeLock.lock();
+			try {
+				freeze();
+			}
+			finally {
+				writeLock.unlock();
+			}
+		}
+	}
+
+	private static FileChannel lock(File directory) throws IOException {
+		FileChannel channel = FileChannel.open(new File(directory, "LOCK").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			if(channel.tryLock() != null) return channel;
+		}
+		catch(OverlappingFileLockException e) {
+			// Open in this JVM already
+		}
+		channel.close();
+		throw new IOException("Store " + directory + " is in use");
+	}
+
+	// Opens the segments and replays the logs they don't cover yet into the memtable
+	private void open() throws IOException {
+		List<Segment> segments = openSegments();
+		long covered = 0;
+		for(Segment segment : segments) {
+			covered = Math.max(covered, segment.last);
+		}
+		TreeMap<Long, File> logs = new TreeMap<Long, File>();
+		for(File file : directory.listFiles((dir, name) -> name.endsWith(LOG_SUFFIX))) {
+			String name = file.getName();
+			try {
+				logs.put(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())), file);
+			}
+			catch(NumberFormatException e) {
+				System.err.println("Ignoring unexpected file in store: " + name);
+			}
+		}
+
+		// Logs a segment covers were flushed already, the server stopped before deleting them
+		Memtable memtable = new Memtable(logs.isEmpty() ? covered + 1 : Math.max(covered + 1, logs.firstKey()));
+		for(Map.Entry<Long, File> entry : logs.entrySet()) {
+			if(entry.getKey() <= covered || entry.getValue().length() == 0) {
+				entry.getValue().delete();
+				continue;
+			}
+			replay(entry.getValue(), memtable);
+			memtable.logs.add(entry.getValue());
+		}
+		nextGeneration = Math.max(covered, logs.isEmpty() ? 0 : logs.lastKey()) + 1;
+		memtable.last = nextGeneration;
+		log = openLog(nextGeneration, memtable);
+		nextGeneration++;
+		state = new State(memtable, Collections.<Memtable>emptyList(), Collections.unmodifiableList(segments));
+	}
+
+	// The key's value, null if it has none
+	public byte[] get(String key) {
+		State current = state;
+		byte[] value = current.active.entries.get(key);
+		for(int i = 0; value == null && i < current.frozen.size(); i++) {
+			value = current.frozen.get(i).entries.get(key);
+		}
+		for(int i = current.segments.size() - 1; value == null && i >= 0; i--) {
+			value = current.segments.get(i).get(key);
+		}
+		return value == DELETED ? null : value;
+	}
+
+	public void put(String key, byte[] value) throws IOException {
+		write(new Batch().put(key, value));
+	}
+
+	public void delete(String key) throws IOException {
+		write(new Batch().delete(key));
+	}
+
+	// Every key starting with prefix with its value, in key order
+	public void scan(String prefix, BiConsumer<String, byte[]> visitor) {
+		merge(cursors(state, prefix), false, (key, value) -> {
+			if(!key.startsWith(prefix)) return false;
+			visitor.accept(key, value);
+			return true;
+		});
+	}
+
+	// The values of every key starting with prefix, in key order
+	public List<byte[]> values(String prefix) {
+		List<byte[]> values = new ArrayList<byte[]>();
+		scan(prefix, (key, value) -> values.add(value));
+		return values;
+	}
+
+	public boolean isEmpty() {
+		boolean[] found = {false};
+		merge(cursors(state, ""), false, (key, value) -> {
+			found[0] = true;
+			return false;
+		});
+		return !found[0];
+	}
+
+	// Everything a reader of the state looks at, newest first, each starting at from
+	private static List<Cursor> cursors(State current, String from) {
+		List<Cursor> sources = new ArrayList<Cursor>();
+		sources.add(new MemtableCursor(current.active, from));
+		for(Memtable frozen : current.frozen) {
+			sources.add(new MemtableCursor(frozen, from));
+		}
+		for(int i = current.segments.size() - 1; i >= 0; i--) {
+			sources.add(current.segments.get(i).cursor(from));
+		}
+		return sources;
+	}
+
+	/* Applies all of the batch's changes or, if the server dies before the log record is complete, none.
+	 * Returns once the change is as durable as the DurabilityMode promises. */
+	public void write(Batch batch) throws IOException {
+		if(batch.changes.isEmpty()) return;
+		ByteBuffer record = encode(batch);
+		writeLock.lock();
+		try {
+			if(closed) throw new IOException("Store is closed");
+			while(record.hasRemaining()) {
+				log.write(record);
+			}
+			if(mode == DurabilityMode.SYNC) log.force(false);
+			else dirty.set(true);
+
+			Memtable memtable = state.active;
+			for(Map.Entry<String, byte[]> change : batch.changes.entrySet()) {
+				memtable.put(change.getKey(), change.getValue());
+			}
+			if(memtable.bytes >= flushBytes) freeze();
+		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+
+	// Writes the memtable out as a segment now instead of once it's full
+	public void flush() throws IOException {
+		writeLock.lock();
+		try {
+			if(closed) throw new IOException("Store is closed");
+			if(!state.active.entries.isEmpty()) freeze();
+		}
+		finally {
+			writeLock.unlock();
+		}
+		flushFrozen();
+	}
+
+	// Merges neighbouring segments until there are at most MAX_SEGMENTS (or nothing left small enough to merge)
+	public void compact() throws IOException {
+		backgroundLock.lock();
+		try {
+			List<Segment> sources;
+			while(!closed && (sources = pickMerge(state.segments)) != null) {
+				List<Segment> current = state.segments;
+				boolean oldest = current.indexOf(sources.get(0)) == 0;
+				List<Cursor> cursors = new ArrayList<Cursor>();
+				for(int i = sources.size() - 1; i >= 0; i--) {
+					cursors.add(sources.get(i).cursor(""));
+				}
+				Segment merged = writeSegment(cursors, sources.get(0).first, sources.get(sources.size() - 1).last, oldest);
+				stateLock.lock();
+				try {
+					List<Segment> updated = new ArrayList<Segment>(state.segments);
+					int at = updated.indexOf(sources.get(0));
+					updated.removeAll(sources);
+					updated.add(at, merged);
+					state = state.withSegments(Collections.unmodifiableList(updated));
+				}
+				finally {
+					stateLock.unlock();
+				}
+				// Readers still holding the old state keep their mappings, the files can go
+				for(Segment source : sources) {
+					source.file.delete();
+				}
+				mergeCount.incrementAndGet();
+			}
+		}
+		finally {
+			backgroundLock.unlock();
+		}
+	}
+
+	/* Stops the background thread and closes the log, synced unless NONE. The memtable isn't written out,
+	 * its log is replayed on the next open, so closing takes the same time however much was written. */
+	@Override
+	public void close() throws IOException {
+		stateLock.lock();
+		try {
+			if(closed) return;
+			closed = true;
+			workWanted.signalAll();
+			flushed.signalAll();
+		}
+		finally {
+			stateLock.unlock();
+		}
+		try {
+			background.join();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		writeLock.lock();
+		try {
+			if(mode != DurabilityMode.NONE) log.force(false);
+			log.close();
+		}
+		finally {
+			writeLock.unlock();
+			lockFile.close();
+		}
+	}
+
+	public int getSegmentCount() {
+		return state.segments.size();
+	}
+
+	public long getFlushCount() {
+		return flushCount.get();
+	}
+
+	public long getMergeCount() {
+		return mergeCount.get();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	// Changes applied together by write(); a null value is the same as delete()
+	public static class Batch {
+		private final Map<String, byte[]> changes = new LinkedHashMap<String, byte[]>();
+
+		public Batch put(String key, byte[] value) {
+			changes.put(key, value == null ? DELETED : value);
+			return this;
+		}
+
+		public Batch delete(String key) {
+			changes.put(key, DELETED);
+			return this;
+		}
+
+		public int size() {
+			return changes.size();
+		}
+	}
+
+	/* Starts a new generation with a new log and hands the full memtable to the background thread.
+	 * Called with writeLock held; waits while MAX_FROZEN tables are still waiting to be written. */
+	private void freeze() throws IOException {
+		if(mode != DurabilityMode.NONE) log.force(false); // It has to outlive the table until its segment exists
+		long generation = nextGeneration++;
+		Memtable memtable = new Memtable(generation);
+		FileChannel newLog = openLog(generation, memtable);
+		log.close();
+		log = newLog;
+
+		stateLock.lock();
+		try {
+			while(state.frozen.size() >= MAX_FROZEN && !closed) {
+				flushed.awaitUninterruptibly();
+			}
+			List<Memtable> frozen = new ArrayList<Memtable>(state.frozen.size() + 1);
+			frozen.add(state.active);
+			frozen.addAll(state.frozen);
+			state = new State(memtable, Collections.unmodifiableList(frozen), state.segments);
+			workWanted.signal();
+		}
+		finally {
+			stateLock.unlock();
+		}
+	}
+
+	// Writes out the frozen memtables, oldest first
+	private void flushFrozen() throws IOException {
+		backgroundLock.lock();
+		try {
+			List<Memtable> frozen;
+			while(!(frozen = state.frozen).isEmpty()) {
+				Memtable oldest = frozen.get(frozen.size() - 1);
+				Segment segment = writeSegment(Collections.<Cursor>singletonList(new MemtableCursor(oldest, "")), oldest.first, oldest.last,
+						state.segments.isEmpty());
+				stateLock.lock();
+				try {
+					List<Segment> segments = new ArrayList<Segment>(state.segments);
+					segments.add(segment);
+					List<Memtable> remaining = new ArrayList<Memtable>(state.frozen);
+					remaining.remove(oldest);
+					state = new State(state.active, Collections.unmodifiableList(remaining), Collections.unmodifiableList(segments));
+					flushed.signalAll();
+				}
+				finally {
+					stateLock.unlock();
+				}
+				for(File file : oldest.logs) {
+					file.delete();
+				}
+				flushCount.incrementAndGet();
+			}
+		}
+		finally {
+			backgroundLock.unlock();
+		}
+	}
+
+	private void runBackground() {
+		while(!closed) {
+			stateLock.lock();
+			try {
+				if(state.frozen.isEmpty() && pickMerge(state.segments) == null) {
+					if(mode == DurabilityMode.PERIODIC) workWanted.await(syncIntervalMillis, TimeUnit.MILLISECONDS);
+					else workWanted.await();
+				}
+			}
+			catch(InterruptedException e) {
+				return;
+			}
+			finally {
+				stateLock.unlock();
+			}
+			if(closed) return;
+			try {
+				flushFrozen();
+				if(mode == DurabilityMode.PERIODIC) sync();
+				compact();
+			}
+			catch(IOException e) {
+				System.err.println("Store flush or compaction failed: " + e.getMessage());
+			}
+		}
+	}
+
+	/* Without writeLock, so a writer waiting for a flush while holding it can't hold this up. A log
+	 * that was replaced meanwhile was synced before it was closed. */
+	private void sync() throws IOException {
+		if(!dirty.getAndSet(false)) return;
+		try {
+			log.force(false);
+		}
+		catch(ClosedChannelException e) {
+			// Replaced, or the store closed, which syncs too
+		}
+	}
+
+	// The MERGE_FACTOR neighbours with the fewest bytes between them, null if no merge is due
+	private static List<Segment> pickMerge(List<Segment> current) {
+		if(current.size() <= MAX_SEGMENTS) return null;
+		int best = -1;
+		long bestBytes = Long.MAX_VALUE;
+		for(int i = 0; i + MERGE_FACTOR <= current.size(); i++) {
+			long bytes = 0;
+			for(int j = i; j < i + MERGE_FACTOR; j++) {
+				bytes += current.get(j).data.capacity();
+			}
+			if(bytes < bestBytes) {
+				best = i;
+				bestBytes = bytes;
+			}
+		}
+		if(bestBytes > MAX_MERGED_BYTES) return null;
+		return new ArrayList<Segment>(current.subList(best, best + MERGE_FACTOR));
+	}
+
+	/* Walks the sources (newest first) in key order, handing each key's newest value to the visitor
+	 * until it returns false. A key whose newest value is a deletion is left out unless keepDeletions. */
+	private static void merge(List<Cursor> sources, boolean keepDeletions, KeyVisitor visitor) {
+		PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>((a, b) -> {
+			int order = a.key.compareTo(b.key);
+			return order != 0 ? order : Integer.compare(a.rank, b.rank);
+		});
+		for(int i = 0; i < sources.size(); i++) {
+			Cursor cursor = sources.get(i);
+			cursor.rank = i;
+			if(cursor.next()) queue.add(cursor);
+		}
+		String previous = null;
+		while(!queue.isEmpty()) {
+			Cursor cursor = queue.poll();
+			String key = cursor.key;
+			if(!key.equals(previous)) {
+				previous = key;
+				if((cursor.value != DELETED || keepDeletions) && !visitor.visit(key, cursor.value)) return;
+			}
+			if(cursor.next()) queue.add(cursor);
+		}
+	}
+
+	private interface KeyVisitor {
+		boolean visit(String key, byte[] value);
+	}
+
+	/* Writes the merged sources as one segment file covering generations first to last. Deletions are
+	 * only written when there may be older segments for them to hide values in. */
+	private Segment writeSegment(List<Cursor> sources, long first, long last, boolean oldest) throws IOException {
+		String name = String.format("%020d-%020d", first, last) + SEGMENT_SUFFIX;
+		File temporary = new File(directory, name + ".tmp");
+		FileOutputStream file = new FileOutputStream(temporary);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+		List<byte[]> indexKeys = new ArrayList<byte[]>();
+		List<Integer> indexOffsets = new ArrayList<Integer>();
+		int[] count = {0};
+		try {
+			IOException[] failed = {null};
+			merge(sources, !oldest, (key, value) -> {
+				try {
+					byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+					if(count[0] % INDEX_INTERVAL == 0) {
+						indexKeys.add(keyBytes);
+						indexOffsets.add(out.size());
+					}
+					out.writeInt(keyBytes.length);
+					out.write(keyBytes);
+					if(value == DELETED) {
+						out.writeInt(-1);
+					}
+					else {
+						out.writeInt(value.length);
+						out.write(value);
+					}
+					if(out.size() == Integer.MAX_VALUE) throw new IOException("Segment larger than 2 GB"); // Where DataOutputStream's count stops
+					count[0]++;
+					return true;
+				}
+				catch(IOException e) {
+					failed[0] = e;
+					return false;
+				}
+			});
+			if(failed[0] != null) throw failed[0];
+
+			int indexOffset = out.size();
+			for(int i = 0; i < indexKeys.size(); i++) {
+				out.writeInt(indexKeys.get(i).length);
+				out.write(indexKeys.get(i));
+				out.writeInt(indexOffsets.get(i));
+			}
+			out.writeInt(count[0]);
+			out.writeInt(indexKeys.size());
+			out.writeInt(indexOffset);
+			out.writeInt(MAGIC);
+			out.flush();
+			file.getChannel().force(false);
+		}
+		finally {
+			out.close();
+		}
+		File segmentFile = new File(directory, name);
+		Files.move(temporary.toPath(), segmentFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return new Segment(segmentFile, first, last);
+	}
+
+	/* Opens the segment files, leaving out half written ones and those a finished merge already
+	 * covers (the server stopped before it could delete them) */
+	private List<Segment> openSegments() throws IOException {
+		List<Segment> opened = new ArrayList<Segment>();
+		for(File file : directory.listFiles()) {
+			String name = file.getName();
+			if(name.endsWith(".tmp")) {
+				file.delete();
+				continue;
+			}
+			if(!name.endsWith(SEGMENT_SUFFIX)) continue;
+			String[] range = name.substring(0, name.length() - SEGMENT_SUFFIX.length()).split("-");
+			try {
+				opened.add(new Segment(file, Long.parseLong(range[0]), Long.parseLong(range[1])));
+			}
+			catch(NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				System.err.println("Ignoring unexpected file in store: " + name);
+			}
+		}
+		opened.sort((a, b) -> a.first != b.first ? Long.compare(a.first, b.first) : Long.compare(b.last, a.last));
+		List<Segment> kept = new ArrayList<Segment>();
+		for(Segment segment : opened) {
+			if(!kept.isEmpty() && segment.last <= kept.get(kept.size() - 1).last) {
+				segment.file.delete();
+				continue;
+			}
+			kept.add(segment);
+		}
+		return kept;
+	}
+
+	private FileChannel openLog(long generation, Memtable memtable) throws IOException {
+		File file = new File(directory, String.format("%020d", generation) + LOG_SUFFIX);
+		memtable.logs.add(file);
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		if(mode != DurabilityMode.NONE) {
+			try(FileChannel parent = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+				parent.force(true); // So the new log's directory entry survives a crash
+			}
+			catch(IOException e) {
+				// Not every platform can open a directory, the log itself is still synced
+			}
+		}
+		return channel;
+	}
+
+	// Applies the log's complete records to the memtable and cuts off anything after the last one
+	private static void replay(File file, Memtable memtable) throws IOException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long fileSize = channel.size();
+			long offset = 0;
+			ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+			while(offset + RECORD_HEADER_LENGTH <= fileSize) {
+				header.clear();
+				readFully(channel, header, offset);
+				header.flip();
+				int length = header.getInt();
+				int checksum = header.getInt();
+				if(length < 4 || offset + RECORD_HEADER_LENGTH + length > fileSize) break;
+
+				ByteBuffer payload = ByteBuffer.allocate(length);
+				readFully(channel, payload, offset + RECORD_HEADER_LENGTH);
+				CRC32 crc = new CRC32();
+				crc.update(payload.array(), 0, length);
+				if((int) crc.getValue() != checksum) break;
+
+				payload.flip();
+				int entries = payload.getInt();
+				for(int i = 0; i < entries; i++) {
+					byte[] key = new byte[payload.getInt()];
+					payload.get(key);
+					int valueLength = payload.getInt();
+					byte[] value = DELETED;
+					if(valueLength >= 0) {
+						value = new byte[valueLength];
+						payload.get(value);
+					}
+					memtable.put(new String(key, StandardCharsets.UTF_8), value);
+				}
+				offset += RECORD_HEADER_LENGTH + length;
+			}
+			if(offset < fileSize) {
+				System.err.println("Store log " + file.getName() + " damaged after byte " + offset + ", truncating");
+				channel.truncate(offset);
+			}
+		}
+	}
+
+	private static ByteBuffer encode(Batch batch) {
+		List<byte[]> keys = new ArrayList<byte[]>(batch.changes.size());
+		int length = 4;
+		for(Map.Entry<String, byte[]> change : batch.changes.entrySet()) {
+			byte[] key = change.getKey().getBytes(StandardCharsets.UTF_8);
+			keys.add(key);
+			length += 8 + key.length + change.getValue().length;
+		}
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + length);
+		record.putInt(length);
+		record.putInt(0); // CRC, filled in below
+		record.putInt(batch.changes.size());
+		Iterator<byte[]> key = keys.iterator();
+		for(byte[] value : batch.changes.values()) {
+			byte[] keyBytes = key.next();
+			record.putInt(keyBytes.length).put(keyBytes);
+			if(value == DELETED) {
+				record.putInt(-1);
+			}
+			else {
+				record.putInt(value.length).put(value);
+			}
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), RECORD_HEADER_LENGTH, length);
+		record.putInt(4, (int) crc.getValue());
+		record.flip();
+		return record;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+		while(buffer.hasRemaining()) {
+			int read = channel.read(buffer, offset);
+			if(read < 0) throw new IOException("Unexpected end of store log");
+			offset += read;
+		}
+	}
+
+	// What a reader sees: the memtable taking writes, the frozen ones newest first, the segments oldest first
+	private static class State {
+		final Memtable active;
+		final List<Memtable> frozen;
+		final List<Segment> segments;
+
+		State(Memtable active, List<Memtable> frozen, List<Segment> segments) {
+			this.active = active;
+			this.frozen = frozen;
+			this.segments = segments;
+		}
+
+		State withSegments(List<Segment> segments) {
+			return new State(active, frozen, segments);
+		}
+	}
+
+	private static class Memtable {
+		final ConcurrentSkipListMap<String, byte[]> entries = new ConcurrentSkipListMap<String, byte[]>();
+		final List<File> logs = new ArrayList<File>(); // Deleted once the table is a segment
+		final long first; // Generations the table holds
+		long last;
+		long bytes = 0; // Only the writer holding writeLock changes it
+
+		Memtable(long generation) {
+			this.first = generation;
+			this.last = generation;
+		}
+
+		void put(String key, byte[] value) {
+			byte[] previous = entries.put(key, value);
+			if(previous == null) bytes += key.length() * 2L + ENTRY_OVERHEAD + value.length;
+			else bytes += value.length - previous.length;
+		}
+	}
+
+	// Walks a source's entries in key order; next() moves to the first one, then on
+	private abstract static class Cursor {
+		String key;
+		byte[] value;
+		int rank; // Lower is newer
+
+		abstract boolean next();
+	}
+
+	private static class MemtableCursor extends Cursor {
+		private final Iterator<Map.Entry<String, byte[]>> entries;
+
+		MemtableCursor(Memtable memtable, String from) {
+			this.entries = memtable.entries.tailMap(from, true).entrySet().iterator();
+		}
+
+		@Override
+		boolean next() {
+			if(!entries.hasNext()) return false;
+			Map.Entry<String, byte[]> entry = entries.next();
+			key = entry.getKey();
+			value = entry.getValue();
+			return true;
+		}
+	}
+
+	private static class Segment {
+		private final File file;
+		private final long first;
+		private final long last;
+		private final MappedByteBuffer data;
+		private final int count;
+		private final String[] indexKeys; // Sorted
+		private final int[] indexOffsets;
+		private final int indexOffset; // Where the records end
+
+		Segment(File file, long first, long last) throws IOException {
+			this.file = file;
+			this.first = first;
+			this.last = last;
+			try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				if(channel.size() < FOOTER_BYTES || channel.size() > Integer.MAX_VALUE) throw new IOException("Not a store segment: " + file.getName());
+				data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+			int footer = data.capacity() - FOOTER_BYTES;
+			if(data.getInt(footer + 12) != MAGIC) throw new IOException("Not a store segment: " + file.getName());
+			count = data.getInt(footer);
+			int indexCount = data.getInt(footer + 4);
+			indexOffset = data.getInt(footer + 8);
+
+			indexKeys = new String[indexCount];
+			indexOffsets = new int[indexCount];
+			int at = indexOffset;
+			for(int i = 0; i < indexCount; i++) {
+				int length = data.getInt(at);
+				indexKeys[i] = string(at + 4, length);
+				at += 4 + length;
+				indexOffsets[i] = data.getInt(at);
+				at += 4;
+			}
+		}
+
+		// The value, DELETED for a deletion, null if the segment doesn't have the key
+		byte[] get(String key) {
+			SegmentCursor cursor = cursor(key);
+			return cursor.next() && cursor.key.equals(key) ? cursor.value : null;
+		}
+
+		// Starts at the first key at or after from
+		SegmentCursor cursor(String from) {
+			int block = Arrays.binarySearch(indexKeys, from);
+			if(block < 0) block = Math.max(0, -block - 2); // The block before the first key past from
+			SegmentCursor cursor = new SegmentCursor(this, indexKeys.length == 0 ? indexOffset : indexOffsets[block]);
+			cursor.from = from;
+			return cursor;
+		}
+
+		private String string(int offset, int length) {
+			byte[] bytes = new byte[length];
+			data.get(offset, bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+
+	private static class SegmentCursor extends Cursor {
+		private final Segment segment;
+		private int offset;
+		private String from; // Keys before it are skipped
+
+		SegmentCursor(Segment segment, int offset) {
+			this.segment = segment;
+			this.offset = offset;
+		}
+
+		@Override
+		boolean next() {
+			MappedByteBuffer data = segment.data;
+			while(offset < segment.indexOffset) {
+				int keyLength = data.getInt(offset);
+				String nextKey = segment.string(offset + 4, keyLength);
+				offset += 4 + keyLength;
+				int valueLength = data.getInt(offset);
+				offset += 4;
+				int valueOffset = offset;
+				offset += Math.max(0, valueLength);
+				if(from != null) {
+					if(nextKey.compareTo(from) < 0) continue;
+					from = null;
+				}
+				key = nextKey;
+				if(valueLength < 0) {
+					value = DELETED;
+				}
+				else {
+					value = new byte[valueLength];
+					data.get(valueOffset, value);
+				}
+				return true;
+			}
+			return false;
+		}
+	}
+}
@@ -1,261 +1,298 @@
 package server;
 
+import shared.FileStorage;
+import shared.LogPage;
+import shared.LogQuery;
 import shared.Message;
 import shared.MessageCreator;
 import shared.MessageType;
+import shared.SearchQuery;
+import shared.Storage;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Scanner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class LogManager {
+	public static final int DEFAULT_QUEUE_CAPACITY = 8192;
+	public static final int MAX_BATCH = 256;
+	
 	static ConcurrentHashMap<Integer, List<Message>> userMessageLogs;
 	static ConcurrentHashMap<Integer, List<Message>> chatroomMessageLogs;
-	private static ConcurrentLinkedQueue<Message> messageQueue = new ConcurrentLinkedQueue<Message>();
+	
+	/* Handler threads queue UTU/UTC messages here and the log writer thread takes them off in batches.
+	 * The writer blocks while the queue is empty, and a full queue blocks the senders until it catches up.
+	 * With a search index the MessageLog queues every message it stores, together with its position. That
+	 * happens under the log's append lock, so those never wait for room: a record that finds the queue
+	 * full is left out and the writer catches the index up from the log instead. */
+	private final BlockingQueue<LogEntry> messageQueue;
+	private final MessageLog messageLog;
+	private final Storage storage; // Where the userlog/chatlog records are read from
+	private volatile SearchIndex searchIndex;
+	private final AtomicLong searchOverflows = new AtomicLong();
+	private volatile long searchCaughtUpAt = -1; // searchOverflows when the index last caught up, -1 before it first did
+	private final Thread logWriter;
+	private volatile boolean running = true;
+	
+	// Messages queued but not yet written, for drain()
+	private final ReentrantLock drainLock = new ReentrantLock();
+	private final Condition drained = drainLock.newCondition();
+	private long pending = 0;
+	
+	private final AtomicLong batchCount = new AtomicLong();
+	private final AtomicLong writtenCount = new AtomicLong();
+	private volatile int largestBatch = 0;
+	private volatile int largestQueueDepth = 0;
 
 	public LogManager(List<Integer> allUserIDs, List<Integer> allChatroomIDs) {
+		this(allUserIDs, allChatroomIDs, null);
+	}
+	
+	public LogManager(List<Integer> allUserIDs, List<Integer> allChatroomIDs, MessageLog messageLog) {
+		this(allUserIDs, allChatroomIDs, messageLog, DEFAULT_QUEUE_CAPACITY);
+	}
+	
+	/* The stored userlog/chatlog records only hold messages from before the MessageLog existed, those are
+	 * kept in memory. Everything since is read from the log a page at a time when GUL/GCL ask for it, so
+	 * queued messages need no further work. Without a MessageLog the storage already has each message
+	 * (Storage.appendMessage) and the writer only adds it to the in-memory logs. */
+	public LogManager(List<Integer> allUserIDs, List<Integer> allChatroomIDs, MessageLog messageLog, int queueCapacity) {
+		this(allUserIDs, allChatroomIDs, messageLog, queueCapacity, new StartupLoader());
+	}
+	
+	public LogManager(List<Integer> allUserIDs, List<Integer> allChatroomIDs, MessageLog messageLog, int queueCapacity, StartupLoader startup) {
+		this(allUserIDs, allChatroomIDs, messageLog, queueCapacity, startup, FileStorage.INSTANCE);
+	}
+	
+	public LogManager(List<Integer> allUserIDs, List<Integer> allChatroomIDs, MessageLog messageLog, int queueCapacity, StartupLoader startup,
+			Storage storage) {
+		this.storage = storage;
 		userMessageLogs = new ConcurrentHashMap<Integer, List<Message>>();
 		chatroomMessageLogs = new ConcurrentHashMap<Integer, List<Message>>();
-		loadUserMessages(allUserIDs);
-		loadChatroomMessages(allChatroomIDs);
+		this.messageQueue = new ArrayBlockingQueue<LogEntry>(queueCapacity);
+		this.messageLog = messageLog;
+		loadUserMessages(allUserIDs, startup);
+		loadChatroomMessages(allChatroomIDs, startup);
 		
-		Thread logReader = new Thread(() -> startLogReader());
-		logReader.start();
+		logWriter = new Thread(() -> runLogWriter(), "log-writer");
+		logWriter.setDaemon(true);
+		logWriter.start();
 	}
 	
 	public void loadUserMessages(List<Integer> allUserIDs) {
-		for(Integer ID : allUserIDs) {
-			try 
-	        {
-	            String messageFile = Integer.toString(ID) + "userlog.txt";
-	            
-	            File myFile = null;
-	            
-	            try {
-	            	myFile = new File(messageFile);
-
-		            if (myFile.createNewFile()) {
-		                continue; // file doesn't exist
-		            } else {
-		                System.out.println("File already exists.");
-		            }
-		        } catch (IOException e) {
-		            e.printStackTrace();
-		        }
-	            
-	            Scanner reader = new Scanner(myFile);
-
-	            //first populate the messages of the inbox
-	            while (reader.hasNextLine())
-	            {
-	                //getline and set delimiters
-	                Scanner line = new Scanner(reader.nextLine()).useDelimiter("\\|"); // \s+ means whitespace
-
-	                ArrayList<String> token = new ArrayList<String>();
-	                line.tokens();
-
-	                //grab all the tokens
-	                while(line.hasNext())
-	                {
-	                    token.add(line.next());
-	                }
-
-	                //if there are more or less than 4 tokens, then it is invalid
-	                if (token.size() != 5)
-	                {
-	                    line.close(); //do nothing and skip this iteration
-	                    continue;
-	                }
-
-	                //add all message to the arraylist
-	                Message add;
-	                MessageCreator create;
-	                create = new MessageCreator(MessageType.UTU);
-	                
-	                create.setFromUserID(Integer.parseInt(token.get(0))); //add from user id
-	                create.setContents(token.get(1)); //add the message
-	                
-	                create.setDate(Long.parseLong(token.get(2))); // add the date
-	                create.setToUserName(token.get(3));
-
-
-	                add = new Message(create);
-	                
-	                if(userMessageLogs.get(ID) == null) {
-	                	userMessageLogs.put(ID, new ArrayList<Message>());
-	                }
-	                
-	                userMessageLogs.get(ID).add(add);
-
-	                line.close();
-	            }
-	            reader.close();
-
-	        }
-	        catch (IOException e) {
-	            e.printStackTrace();
-		        System.out.println("Error loading file: " + e.getMessage());
-		        System.out.println("File " + ID + " does not exist.");
-	        }
-		}
+		loadUserMessages(allUserIDs, new StartupLoader());
 	}
 	
-	public void loadChatroomMessages(List<Integer> allChatroomIDs) {
-		for(Integer ID : allChatroomIDs) {
-			try 
-	        {
-	            String messageFile = Integer.toString(ID) + "chatlog.txt";
-
-	            File myFile = null;
-	            
-	            try {
-	            	myFile = new File(messageFile);
-
-		            if (myFile.createNewFile()) {
-		                continue; // file doesn't exist
-		            } else {
-		                System.out.println("File already exists.");
-		            }
-		        } catch (IOException e) {
-		            e.printStackTrace();
-		        }
-	            
-	            Scanner reader = new Scanner(myFile);
-
-	            //first populate the messages of the inbox
-	            while (reader.hasNextLine())
-	            {
-	                //getline and set delimiters
-	                Scanner line = new Scanner(reader.nextLine()).useDelimiter("\\|"); // \s+ means whitespace
-
-	                ArrayList<String> token = new ArrayList<String>();
-	                line.tokens();
-
-	                //grab all the tokens
-	                while(line.hasNext())
-	                {
-	                    token.add(line.next());
-	                }
-
-	                //if there are more or less than 7 tokens, then it is invalid
-	                if (token.size() != 5)
-	                {
-	                    line.close(); //do nothing and skip this iteration
-	                    continue;
-	                }
-
-	                //add all message to the arraylist
-	                Message add;
-	                MessageCreator create;
-	                create = new MessageCreator(MessageType.UTC);
-
-	                create.setFromUserID(Integer.parseInt(token.get(0))); //add from user id
-	                create.setContents(token.get(1)); //add the message
-	                create.setDate(Long.parseLong(token.get(2))); // add the date
-	                create.setToChatroom(Integer.parseInt(token.get(4)));
-
-	                add = new Message(create);
-
-	                if(chatroomMessageLogs.get(ID) == null) {
-	                	chatroomMessageLogs.put(ID, new ArrayList<Message>());
-	                }
-	                chatroomMessageLogs.get(ID).add(add);
-
-	                line.close();
-	            }
-	            reader.close();
-
-	        }
-	        catch (IOException e) {
-	            e.printStackTrace();
-		        System.out.println("Error loading file: " + e.getMessage());
-		        System.out.println("File " + ID + " does not exist.");
-	        }
-		}
+	// One userlog per user, read in parallel on the startup loader's pool
+	public void loadUserMessages(List<Integer> allUserIDs, StartupLoader startup) {
+		startup.load(StartupLoader.LOGS, allUserIDs, ID -> {
+			loadUserMessages(ID, startup);
+			return ID;
+		});
 	}
 	
-	public void getUserMessages(ObjectOutputStream output, Message message, Integer ToUserID) {
-		
-        int userID = ToUserID;
-        Message Send;
-        MessageCreator create;
-        create = new MessageCreator(MessageType.GUL);
-        create.setContents("Error");
-        Send = new Message(create);
-        
-        List<Message> messages = userMessageLogs.getOrDefault(userID, new ArrayList<>());
-        String result = "";
-        
-        for (int i=0; i<messages.size(); i++)
+	private void loadUserMessages(Integer ID, StartupLoader startup) {
+		try 
         {
-        	result += messages.get(i).buildUserLog();
-        	result += "|";
-        	
+            startup.countFile(StartupLoader.LOGS, storage, ID + "userlog.txt");
+            List<Message> loaded = storage.readUserLog(ID);
+            if(!loaded.isEmpty()) {
+            	userMessageLogs.computeIfAbsent(ID, id -> newLog()).addAll(loaded);
+            }
         }
-        create.setContents(result);
-        Send = new Message(create);
-        
-        try {
-            output.writeObject(Send);  
-        } catch (IOException e) {
+        catch (IOException e) {
             e.printStackTrace();
+	        System.out.println("Error loading user log " + ID + ": " + e.getMessage());
         }
-	}// getUserMessages
-
-	public void getChatroomMessages(ObjectOutputStream output, Message message) {
-        int chatroomID = message.getToChatroomID(); 
-        Message Send;
-        MessageCreator create;
-        create = new MessageCreator(MessageType.GCL);
-        create.setContents("Error");
-        Send = new Message(create);
-        
-        List<Message> messages = chatroomMessageLogs.getOrDefault(chatroomID, new ArrayList<>());
-        String result = "";
-        
-        for (int i=0; i<messages.size(); i++)
+	}
+	
+	public void loadChatroomMessages(List<Integer> allChatroomIDs) {
+		loadChatroomMessages(allChatroomIDs, new StartupLoader());
+	}
+	
+	// One chatlog per chatroom, read in parallel on the startup loader's pool
+	public void loadChatroomMessages(List<Integer> allChatroomIDs, StartupLoader startup) {
+		startup.load(StartupLoader.LOGS, allChatroomIDs, ID -> {
+			loadChatroomMessages(ID, startup);
+			return ID;
+		});
+	}
+	
+	private void loadChatroomMessages(Integer ID, StartupLoader startup) {
+		try 
         {
-        	result += messages.get(i).buildChatLog();
-        	result += "|";
-        	
+            startup.countFile(StartupLoader.LOGS, storage, ID + "chatlog.txt");
+            List<Message> loaded = storage.readChatLog(ID);
+            if(!loaded.isEmpty()) {
+            	chatroomMessageLogs.computeIfAbsent(ID, id -> newLog()).addAll(loaded);
+            }
         }
-
-        create.setContents(result);
-        Send = new Message(create);
-        
-        try {
-            output.writeObject(Send); 
-        } catch (IOException e) {
+        catch (IOException e) {
             e.printStackTrace();
+	        System.out.println("Error loading chatroom log " + ID + ": " + e.getMessage());
         }
+	}
+	
+	// Replies with one page of the user's log, see LogQuery for what the request's contents can ask for
+	public void getUserMessages(ObjectOutputStream output, Message message, Integer ToUserID) {
+		LogQuery query = LogQuery.parse(message.getContents());
+		LogPage page = page(userMessageLogs.get(ToUserID), query, messageLog == null ? null
+				: (cursor, max, records) -> messageLog.readUser(ToUserID, cursor, query.getFromTime(), query.getToTime(), max,
+						logged -> logged.getToUserID() == ToUserID, records));
+		
+		MessageCreator create = new MessageCreator(MessageType.GUL);
+		create.setToUserName(message.getToUserName());
+		create.setContents(render(page, true));
+		create.setLogPage(page);
+		
+		try {
+			output.writeObject(create.createMessage());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}// getUserMessages
+
+	public void getChatroomMessages(ObjectOutputStream output, Message message) {
+		LogQuery query = LogQuery.parse(message.getContents());
+		int chatroomID = message.getToChatroomID();
+		LogPage page = page(chatroomMessageLogs.get(chatroomID), query, messageLog == null ? null
+				: (cursor, max, records) -> messageLog.readRoom(chatroomID, cursor, query.getFromTime(), query.getToTime(), max, records));
+		
+		MessageCreator create = new MessageCreator(MessageType.GCL);
+		create.setToChatroom(chatroomID);
+		create.setContents(render(page, false));
+		create.setLogPage(page);
+		
+		try {
+			output.writeObject(create.createMessage());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}// getChatroomMessages
+	
+	// Replies with one page of the messages matching a SearchQuery, newest first. Search reads every room and inbox, so admins only
+	public void search(ObjectOutputStream output, Message message, boolean admin) {
+		SearchQuery query = SearchQuery.parse(message.getContents());
+		MessageCreator create = new MessageCreator(MessageType.SEARCH);
+		create.setContents(query.toContents());
+		
+		if(!admin) {
+			create.setContents("Error: only admins can search messages");
+		}
+		else if(searchIndex == null) {
+			create.setContents("Error: search unavailable");
+		}
+		else {
+			List<Message> records = new ArrayList<Message>();
+			try {
+				create.setLogPage(new LogPage(records, searchIndex.search(query, records)));
+			}
+			catch(IOException e) {
+				System.err.println("Error searching the message log: " + e.getMessage());
+				create.setContents("Error: search failed");
+			}
+		}
+		
+		try {
+			output.writeObject(create.createMessage());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}// search
+	
+	/* Records from the query's cursor on that fall in its time window, at most a page of them.
+	 * The cursor is the index into the log, which only ever grows at the end so it stays valid. */
+	public static LogPage page(List<Message> log, LogQuery query) {
+		List<Message> records = new ArrayList<Message>(Math.min(query.getPageSize(), 64));
+		if(log == null) return new LogPage(records, LogPage.NO_MORE);
+		
+		synchronized(log) {
+			int index = (int) Math.min(query.getCursor(), log.size());
+			while(index < log.size() && records.size() < query.getPageSize()) {
+				Message message = log.get(index++);
+				if(query.inWindow(message)) {
+					records.add(message);
+				}
+			}
+			return new LogPage(records, index < log.size() ? index : LogPage.NO_MORE);
+		}
+	}
+	
+	/* A log that continues in the MessageLog: cursors below the in-memory part's size point into it, the
+	 * rest into the MessageLog's messages for that user/chatroom */
+	private static LogPage page(List<Message> inMemory, LogQuery query, LoggedRange logged) {
+		LogPage page = page(inMemory, query);
+		if(logged == null || page.hasMore()) return page;
+		
+		int inMemoryCount = inMemory == null ? 0 : inMemory.size();
+		List<Message> records = new ArrayList<Message>(page.getRecords());
+		try {
+			long next = logged.read(Math.max(0, query.getCursor() - inMemoryCount), query.getPageSize() - records.size(), records);
+			return new LogPage(records, next < 0 ? LogPage.NO_MORE : inMemoryCount + next);
+		}
+		catch(IOException e) {
+			System.err.println("Error reading the message log: " + e.getMessage());
+			return page;
+		}
+	}
+	
+	// Reads from the MessageLog into records, returning where to continue or -1, see MessageLog.readRoom
+	private interface LoggedRange {
+		long read(long cursor, int max, List<Message> records) throws IOException;
+	}
+	
+	// A message for the log writer, position is where the MessageLog stored it or -1 if it didn't
+	private static class LogEntry {
+		static final LogEntry STOP = new LogEntry(null, -1); // Queued by close(), the writer ends after its batch
+		final Message message;
+		final long position;
+		
+		LogEntry(Message message, long position) {
+			this.message = message;
+			this.position = position;
+		}
+	}
+	
+	// The page as the old one line listing, for clients that only read the contents
+	private static String render(LogPage page, boolean userLog) {
+		StringBuilder result = new StringBuilder();
+		for(Message record : page.getRecords()) {
+			result.append(userLog ? record.buildUserLog() : record.buildChatLog()).append('|');
+		}
+		return result.toString();
+	}
 
+	// Messages are persisted by the MessageLog before they get here, this only keeps the GUL/GCL views
 	public void storeMessage(Message message) {
 		// Check if the message is addressed to a specific user
 		if (message.getToUserID() >= 0) {
-			List<Message> userMessages = userMessageLogs.getOrDefault(message.getToUserID(), new ArrayList<>());
-			userMessages.add(message);
-
-			userMessageLogs.put(message.getToUserID(), userMessages);
-			saveLogs(message);
+			userMessageLogs.computeIfAbsent(message.getToUserID(), id -> newLog()).add(message);
 		} // if
 
 		
 		if (message.getToChatroomID() >= 0) {
-			List<Message> chatroomMessages = chatroomMessageLogs.getOrDefault(message.getToChatroomID(), new ArrayList<>());
-			chatroomMessages.add(message);
-
-			chatroomMessageLogs.put(message.getToChatroomID(), chatroomMessages);
-			saveLogs(message);
+			chatroomMessageLogs.computeIfAbsent(message.getToChatroomID(), id -> newLog()).add(message);
 		} // if
 
 	}// storeMessage
+	
+	// Appended to by the log writer while handler threads page through them
+	private static List<Message> newLog() {
+		return Collections.synchronizedList(new ArrayList<Message>());
+	}
 
 	public List<Message> getLogs(String filePath) {
 	    List<Message> loadedMessages = new ArrayList<>();
@@ -305,61 +342,229 @@ public class LogManager {
 	}//getLogs
 
 	
-	public static void saveLogs(Message message) {
-		if(message.getMessageType().equals(MessageType.UTU)) {
-			String logFilePath = String.valueOf(message.getFromUserID()) + "userlog.txt";
-			try(FileWriter writer = new FileWriter(logFilePath, true)) { // True = will not overwrite
-				writer.write(message.storeUserLogMessage() + "\n");
-				writer.close();
+	// Blocks while the queue is full. Nothing to do when the MessageLog already holds the message.
+	public void addToLogQueue(Message message) {
+		MessageType type = message.getMessageType();
+		if(messageLog != null || (type != MessageType.UTU && type != MessageType.UTC)) return;
+		enqueue(new LogEntry(message, -1));
+	}
+	
+	/* Indexes every message the MessageLog stores from now on. Messages may already be arriving (the
+	 * index opens in the background at startup), so the writer first catches the index up with the log,
+	 * then adds the queued messages it didn't get to; the empty entry makes sure that happens even if
+	 * nothing else is queued. Search reports itself unavailable until this is called. */
+	public synchronized void useSearchIndex(SearchIndex searchIndex) {
+		if(!running) { // Closed while the index was opening
+			try {
+				searchIndex.close();
 			}
 			catch(IOException e) {
-				System.err.println("Error saving log of: " + logFilePath);
+				System.err.println("Error closing search index: " + e.getMessage());
 			}
+			return;
 		}
-		else if(message.getMessageType().equals(MessageType.UTC)) {
-			String logFilePath = String.valueOf(message.getToChatroomID()) + "chatlog.txt";
-			try(FileWriter writer = new FileWriter(logFilePath, true)) {
-				writer.write(message.storeChatLogMessage() + "\n");
-				writer.close();
-			}
-			catch(IOException e) {
-				System.err.println("Error saving log of: " + logFilePath);
-			}
+		this.searchIndex = searchIndex;
+		messageLog.setAppendListener((position, message) -> offerLogged(new LogEntry(message, position)));
+		enqueue(new LogEntry(null, -1));
+	}
+	
+	// Called under the MessageLog's append lock, so it must not wait for the writer
+	private void offerLogged(LogEntry entry) {
+		if(offer(entry)) return;
+		searchOverflows.incrementAndGet(); // The writer catches up again, it was caught up at a lower count
+		offer(new LogEntry(null, -1)); // Wakes the writer if it took its last batch before the count moved
+	}
+	
+	private boolean offer(LogEntry entry) {
+		drainLock.lock();
+		try {
+			pending++;
+		}
+		finally {
+			drainLock.unlock();
 		}
+		if(!messageQueue.offer(entry)) {
+			written(1);
+			return false;
+		}
+		int depth = messageQueue.size();
+		if(depth > largestQueueDepth) largestQueueDepth = depth;
+		return true;
 	}
 	
-	public void addToLogQueue(Message message) {
-		messageQueue.add(message);
+	private void enqueue(LogEntry entry) {
+		drainLock.lock();
+		try {
+			pending++;
+		}
+		finally {
+			drainLock.unlock();
+		}
+		try {
+			messageQueue.put(entry);
+		}
+		catch(InterruptedException e) {
+			written(1);
+			Thread.currentThread().interrupt();
+			return;
+		}
+		int depth = messageQueue.size();
+		if(depth > largestQueueDepth) largestQueueDepth = depth;
 	}
 	
 	public Boolean isLogQueueEmpty() {
-		if(messageQueue.isEmpty()) return true;
-		
-		return false;
+		drainLock.lock();
+		try {
+			return pending == 0;
+		}
+		finally {
+			drainLock.unlock();
+		}
 	}
 	
-	private void startLogReader() {
-		
-		while(true) {
-			Message message = messageQueue.poll();
-			if(message == null) continue;
-			
-			MessageType type = message.getMessageType();
-			
-			switch(type) {
-				case UTU:
-					storeMessage(message);
-					break;
-				case UTC:
-					storeMessage(message);
-					break;
-				default:
-					break;
+	// Waits until everything queued so far has been written. False if that took longer than the timeout.
+	public boolean drain(long timeout, TimeUnit unit) throws InterruptedException {
+		long remaining = unit.toNanos(timeout);
+		drainLock.lock();
+		try {
+			while(pending > 0) {
+				if(remaining <= 0) return false;
+				remaining = drained.awaitNanos(remaining);
 			}
+			return true;
+		}
+		finally {
+			drainLock.unlock();
+		}
+	}
+	
+	/* Stops the writer once it's idle, drain() first to not lose queued messages. The writer is stopped by
+	 * queueing STOP rather than interrupting it: an interrupt inside searchIndex.catchUp() would close the
+	 * MessageLog's FileChannel it's reading, for every other reader too. */
+	public void close() {
+		synchronized(this) {
+			if(!running) return;
+			running = false;
+		}
+		enqueue(LogEntry.STOP);
+		try {
+			logWriter.join(); // Done with its last batch before the server closes what that uses
+			if(searchIndex == null) return;
+			messageLog.setAppendListener(null);
+			searchIndex.close();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch(IOException e) {
+			System.err.println("Error closing search index: " + e.getMessage());
+		}
+	}
+	
+	private void runLogWriter() {
+		List<LogEntry> batch = new ArrayList<LogEntry>(MAX_BATCH);
+		boolean stopping = false;
+		while(!stopping) {
+			try {
+				batch.add(messageQueue.take());
+			}
+			catch(InterruptedException e) {
+				continue;
+			}
+			messageQueue.drainTo(batch, MAX_BATCH - 1);
+			int taken = batch.size();
+			stopping = batch.remove(LogEntry.STOP);
 			
+			try {
+				writeBatch(batch);
+			}
+			catch(RuntimeException e) {
+				System.err.println("Error writing log batch: " + e.getMessage());
+			}
+			batchCount.incrementAndGet();
+			writtenCount.addAndGet(batch.size());
+			if(batch.size() > largestBatch) largestBatch = batch.size();
+			written(taken);
+			batch.clear();
+		}
+	}
+	
+	private void written(int count) {
+		drainLock.lock();
+		try {
+			pending -= count;
+			if(pending == 0) drained.signalAll();
+		}
+		finally {
+			drainLock.unlock();
+		}
+	}
+	
+	private void writeBatch(List<LogEntry> batch) {
+		if(messageLog != null) {
+			if(batch.isEmpty()) return;
+			/* Read before catching up, so a message left out meanwhile moves the count past it and is caught
+			 * up with the next batch. Only recorded once catchUp() worked; until then the batch isn't added
+			 * either, since indexing past the gap would make the next catchUp() start after it. */
+			long overflows = searchOverflows.get();
+			if(searchCaughtUpAt != overflows) {
+				try {
+					searchIndex.catchUp();
+					searchCaughtUpAt = overflows;
+				}
+				catch(IOException e) {
+					System.err.println("Error catching up the search index: " + e.getMessage());
+					return;
+				}
+			}
+			for(LogEntry entry : batch) {
+				if(entry.message != null) searchIndex.add(entry.position, entry.message);
+			}
+			return;
+		}
+		// Saved with the rest of the message's copies when it was sent, see Storage.appendMessage
+		for(LogEntry entry : batch) {
+			storeMessage(entry.message);
 		}
 	}
 	
+	public int getQueueDepth() {
+		return messageQueue.size();
+	}
+	
+	public int getLargestQueueDepth() {
+		return largestQueueDepth;
+	}
+	
+	public long getBatchCount() {
+		return batchCount.get();
+	}
+	
+	public long getWrittenCount() {
+		return writtenCount.get();
+	}
+	
+	// Logged messages that found the queue full and reached the search index by catching up instead
+	public long getSearchOverflowCount() {
+		return searchOverflows.get();
+	}
+	
+	public int getLargestBatch() {
+		return largestBatch;
+	}
+	
+	public double getAverageBatchSize() {
+		long batches = batchCount.get();
+		return batches == 0 ? 0 : (double) writtenCount.get() / batches;
+	}
+	
+	// CPU time the writer thread has used, -1 if the JVM can't tell. Stays flat while the server is idle.
+	public long getWriterCpuNanos() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(!threads.isThreadCpuTimeSupported()) return -1;
+		return threads.getThreadCpuTime(logWriter.getId());
+	}
+	
 	// Added for testing purposes
 	public static ConcurrentHashMap<Integer, List<Message>> getUserMessageLogs() {
 		return userMessageLogs;
@@ -0,0 +1,761 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+import shared.BinaryMessageCodec;
+import shared.Message;
+import shared.MessageFraming;
+import shared.MessageType;
+
+/* Append-only store for every chat message (UTU and UTC), the server's system of record for them.
+ *
+ * The log is a directory of segment files, each named after the log position of its first byte.
+ * A record is [4 byte payload length][4 byte CRC32 of the payload][payload], the payload being the
+ * message in BinaryMessageCodec form. Once a segment reaches its size limit a new one is started.
+ * Each message is written with one FileChannel write, instead of the open/append/close of a text
+ * file per chatroom, inbox and log that it used to take.
+ *
+ * Positions of every room's and every user's messages are kept in memory. When a segment is sealed
+ * its share of them is saved beside it in a <base>.idx file, CRC-checked like the records, so opening
+ * the log reads those and only rescans the active segment, and any sealed one whose index file is
+ * missing or doesn't match. A torn record at the end of a segment (crash mid-write) is cut off.
+ * Alongside each position list is a sparse time index, the latest message date seen so far at every
+ * TIME_INDEX_INTERVAL-th position, which lets a time range query start reading right where the range
+ * begins instead of at the room's first message.
+ *
+ * Like KeyValueStore, the log holds a lock on a LOCK file in its directory while open, so a second
+ * server started on the same directory fails instead of interleaving its appends with this one's.
+ *
+ * The DurabilityMode decides when an append returns. With SYNC, appends are group committed: senders
+ * queue their records and wait, a committer thread writes everything queued with one gathering write,
+ * fsyncs once and releases the whole batch. With PERIODIC the same thread only fsyncs on a timer. */
+public class MessageLog {
+	public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+	public static final long DEFAULT_SYNC_INTERVAL_MS = 1000;
+	private static final int RECORD_HEADER_LENGTH = 8;
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String INDEX_SUFFIX = ".idx";
+	// An index file is [8 byte segment size][4 byte entry count][entries][4 byte CRC32 of all before it]
+	private static final int INDEX_HEADER_LENGTH = 12;
+	private static final int INDEX_ENTRY_LENGTH = 25; // [kind][id][other id][position][time]
+	private static final byte ROOM_ENTRY = 0;
+	private static final byte USER_ENTRY = 1;
+	private static final int TIME_INDEX_INTERVAL = 64;
+
+	private final File directory;
+	private final long segmentBytes;
+	private final FileChannel lockFile; // Held so a second server can't append to the same log
+	private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+	private final ConcurrentHashMap<Integer, PositionList> roomIndex = new ConcurrentHashMap<Integer, PositionList>();
+	private final ConcurrentHashMap<Integer, PositionList> userIndex = new ConcurrentHashMap<Integer, PositionList>();
+	private final ReentrantLock appendLock = new ReentrantLock(); // Guards writes to the active segment
+	private Segment active;
+	private volatile boolean closed = false;
+	private boolean dirty = false; // Written since the last fsync, guarded by appendLock
+	private final DurabilityMode mode;
+	private final long syncIntervalMillis;
+	private final AtomicLong syncCount = new AtomicLong();
+	private Committer committer;
+	private volatile AppendListener appendListener;
+	private int scannedSegments = 0; // Read record by record at open, instead of from their index file
+
+	public MessageLog(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_BYTES);
+	}
+
+	public MessageLog(File directory, long segmentBytes) throws IOException {
+		this(directory, segmentBytes, DurabilityMode.NONE, DEFAULT_SYNC_INTERVAL_MS);
+	}
+
+	public MessageLog(File directory, long segmentBytes, DurabilityMode mode, long syncIntervalMillis) throws IOException {
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.mode = mode;
+		this.syncIntervalMillis = syncIntervalMillis;
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can't create message log directory " + directory);
+		}
+
+		lockFile = lock(directory);
+		try {
+			File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+			for(File file : files) {
+				String name = file.getName();
+				try {
+					long base = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+					segments.put(base, new Segment(file, base));
+				}
+				catch(NumberFormatException e) {
+					System.err.println("Ignoring unexpected file in message log: " + name);
+				}
+			}
+			Segment last = segments.isEmpty() ? null : segments.lastEntry().getValue();
+			for(Segment segment : segments.values()) {
+				if(segment != last && loadIndex(segment)) continue;
+				segment.entries = ByteBuffer.allocate(INDEX_ENTRY_LENGTH * 64);
+				recover(segment);
+				scannedSegments++;
+				if(segment != last) saveIndex(segment);
+			}
+			active = last == null ? newSegment(0) : last;
+		}
+		catch(IOException | RuntimeException e) {
+			for(Segment segment : segments.values()) {
+				segment.channel.close();
+			}
+			lockFile.close();
+			throw e;
+		}
+
+		if(mode != DurabilityMode.NONE) {
+			committer = new Committer();
+			Thread thread = new Thread(committer, "message-log-committer");
+			thread.setDaemon(true);
+			committer.thread = thread;
+			thread.start();
+		}
+	}
+
+	/* Stores the message and returns its position in the log. Returns once the record is as durable
+	 * as the DurabilityMode promises; with SYNC that means waiting for the current group commit. */
+	public long append(Message message) throws IOException {
+		PendingAppend append = new PendingAppend(message, encode(message));
+		if(mode == DurabilityMode.SYNC) {
+			committer.commit(append);
+			return append.position;
+		}
+		appendLock.lock();
+		try {
+			if(closed) throw new IOException("Message log is closed");
+			write(Collections.singletonList(append));
+			return append.position;
+		}
+		finally {
+			appendLock.unlock();
+		}
+	}
+
+	/* Told about every record once it's written, in log order, on the appending (or committer) thread with
+	 * appendLock held. Must not block: every appender waits for it. */
+	public interface AppendListener {
+		void appended(long position, Message message);
+	}
+
+	public void setAppendListener(AppendListener listener) {
+		this.appendListener = listener;
+	}
+
+	/* Hands every record after the one at afterPosition to the listener, oldest first; afterPosition -1
+	 * replays the whole log. For catching up something that followed the log and was stopped. */
+	public void replay(long afterPosition, AppendListener listener) throws IOException {
+		Map.Entry<Long, Segment> start = afterPosition < 0 ? segments.firstEntry() : segments.floorEntry(afterPosition);
+		if(start == null) return;
+		for(Segment segment : segments.tailMap(start.getKey(), true).values()) {
+			long offset = segment == start.getValue() && afterPosition >= 0 ? afterPosition - segment.base : 0;
+			long size = segment.size;
+			ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+			while(offset + RECORD_HEADER_LENGTH <= size) {
+				header.clear();
+				readFully(segment.channel, header, offset);
+				header.flip();
+				int length = header.getInt();
+				long position = segment.base + offset;
+				if(position > afterPosition) {
+					listener.appended(position, read(position));
+				}
+				offset += RECORD_HEADER_LENGTH + length;
+			}
+		}
+	}
+
+	public DurabilityMode getDurabilityMode() {
+		return mode;
+	}
+
+	// Number of fsyncs so far; with SYNC, appends divided by this is the average group size
+	public long getSyncCount() {
+		return syncCount.get();
+	}
+
+	public Message read(long position) throws IOException {
+		Map.Entry<Long, Segment> entry = segments.floorEntry(position);
+		if(entry == null) throw new IOException("No segment holds position " + position);
+		Segment segment = entry.getValue();
+		long offset = position - segment.base;
+
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+		readFully(segment.channel, header, offset);
+		header.flip();
+		int length = header.getInt();
+		MessageFraming.checkLength(length);
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		readFully(segment.channel, payload, offset + RECORD_HEADER_LENGTH);
+		try {
+			return BinaryMessageCodec.fromPayload(payload.array(), 0, length);
+		}
+		catch(ClassNotFoundException e) {
+			throw new IOException("Unreadable message at " + position, e);
+		}
+	}
+
+	// Every message sent to the chatroom, oldest first
+	public List<Message> readRoom(int chatroomID) throws IOException {
+		return readAll(roomIndex.get(chatroomID));
+	}
+
+	// Every direct message the user sent or received, oldest first
+	public List<Message> readUser(int userID) throws IOException {
+		return readAll(userIndex.get(userID));
+	}
+
+	/* Reads up to max of the chatroom's messages dated within [fromTime, toTime], starting at cursor (the
+	 * n-th message sent to the room) or where the time index says the range starts, whichever is later.
+	 * Returns the cursor to continue from, or -1 once the range or the room's messages are exhausted.
+	 * Log order is taken to be time order, the server dates what it stores (Message.withServerStamp):
+	 * reading stops at the first message dated after toTime. */
+	public long readRoom(int chatroomID, long cursor, long fromTime, long toTime, int max, List<Message> into) throws IOException {
+		return readRange(roomIndex.get(chatroomID), cursor, fromTime, toTime, max, message -> true, into);
+	}
+
+	// As readRoom, over the direct messages the user sent or received, keeping only those that pass the filter
+	public long readUser(int userID, long cursor, long fromTime, long toTime, int max, Predicate<Message> filter, List<Message> into) throws IOException {
+		return readRange(userIndex.get(userID), cursor, fromTime, toTime, max, filter, into);
+	}
+
+	/* Reads up to max of the user's direct messages that pass the filter, newest first, starting just
+	 * below before (the n-th message the user sent or received). Returns the index to continue below,
+	 * or -1 once there are no older ones. */
+	public long readUserBefore(int userID, long before, int max, Predicate<Message> filter, List<Message> into) throws IOException {
+		PositionList positions = userIndex.get(userID);
+		if(positions == null) return -1;
+		int index = (int) Math.max(0, Math.min(before, positions.size()));
+		int added = 0;
+		while(index > 0) {
+			if(added == max) return index;
+			Message message = read(positions.get(--index));
+			if(filter.test(message)) {
+				into.add(message);
+				added++;
+			}
+		}
+		return -1;
+	}
+
+	// Log position of the user's index-th direct message
+	public long getUserMessagePosition(int userID, int index) {
+		return userIndex.get(userID).get(index);
+	}
+
+	public int getRoomMessageCount(int chatroomID) {
+		PositionList positions = roomIndex.get(chatroomID);
+		return positions == null ? 0 : positions.size();
+	}
+
+	public int getUserMessageCount(int userID) {
+		PositionList positions = userIndex.get(userID);
+		return positions == null ? 0 : positions.size();
+	}
+
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	// How many segments opening the log had to read record by record, the active one and any without a usable index file
+	public int getScannedSegmentCount() {
+		return scannedSegments;
+	}
+
+	// Pushes written records to the storage device
+	public void force() throws IOException {
+		appendLock.lock();
+		try {
+			if(!closed) sync();
+		}
+		finally {
+			appendLock.unlock();
+		}
+	}
+
+	// Waits for queued appends to be committed, then syncs (unless NONE) and closes the segments
+	public void close() throws IOException {
+		if(committer != null) {
+			committer.stop();
+		}
+		appendLock.lock();
+		try {
+			if(closed) return;
+			if(mode != DurabilityMode.NONE) sync();
+			closed = true;
+			for(Segment segment : segments.values()) {
+				segment.channel.close();
+			}
+			lockFile.close();
+		}
+		finally {
+			appendLock.unlock();
+		}
+	}
+
+	private static FileChannel lock(File directory) throws IOException {
+		FileChannel channel = FileChannel.open(new File(directory, "LOCK").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			if(channel.tryLock() != null) return channel;
+		}
+		catch(OverlappingFileLockException e) {
+			// Open in this JVM already
+		}
+		channel.close();
+		throw new IOException("Message log " + directory + " is in use");
+	}
+
+	/* Writes the records at the end of the log, as few gathering writes as the segment boundaries allow,
+	 * and indexes them. Called with appendLock held. */
+	private void write(List<PendingAppend> appends) throws IOException {
+		int start = 0;
+		while(start < appends.size()) {
+			if(active.size > 0 && active.size + appends.get(start).record.remaining() > segmentBytes) {
+				roll();
+			}
+			long offset = active.size;
+			int end = start;
+			while(end < appends.size() && (end == start || offset + appends.get(end).record.remaining() <= segmentBytes)) {
+				appends.get(end).position = active.base + offset;
+				offset += appends.get(end).record.remaining();
+				end++;
+			}
+
+			ByteBuffer[] records = new ByteBuffer[end - start];
+			for(int i = start; i < end; i++) {
+				records[i - start] = appends.get(i).record;
+			}
+			long remaining = offset - active.size;
+			active.channel.position(active.size);
+			while(remaining > 0) {
+				remaining -= active.channel.write(records);
+			}
+			active.size = offset;
+			dirty = true;
+
+			AppendListener listener = appendListener;
+			for(int i = start; i < end; i++) {
+				index(active, appends.get(i).message, appends.get(i).position);
+				if(listener != null) listener.appended(appends.get(i).position, appends.get(i).message);
+			}
+			start = end;
+		}
+	}
+
+	// Starts a new segment; the finished one is synced first unless nothing is ever synced, then its index saved
+	private void roll() throws IOException {
+		if(mode != DurabilityMode.NONE) sync();
+		Segment sealed = active;
+		active = newSegment(sealed.base + sealed.size);
+		saveIndex(sealed);
+	}
+
+	// Called with appendLock held
+	private void sync() throws IOException {
+		if(!dirty) return;
+		active.channel.force(false);
+		dirty = false;
+		syncCount.incrementAndGet();
+	}
+
+	private List<Message> readAll(PositionList positions) throws IOException {
+		List<Message> messages = new ArrayList<Message>();
+		if(positions == null) return messages;
+		for(long position : positions.toArray()) {
+			messages.add(read(position));
+		}
+		return messages;
+	}
+
+	private long readRange(PositionList positions, long cursor, long fromTime, long toTime, int max, Predicate<Message> filter, List<Message> into) throws IOException {
+		if(positions == null) return -1;
+		int size = positions.size();
+		int index = (int) Math.min(size, Math.max(cursor, positions.seek(fromTime)));
+		int added = 0;
+		while(index < size) {
+			if(added == max) return index;
+			Message message = read(positions.get(index));
+			long time = timeOf(message);
+			if(time > toTime) return -1;
+			index++;
+			if(time >= fromTime && filter.test(message)) {
+				into.add(message);
+				added++;
+			}
+		}
+		return -1;
+	}
+
+	private static long timeOf(Message message) {
+		return message.getDateSent() == null ? Long.MIN_VALUE : message.getDateSent().getTime();
+	}
+
+	private static ByteBuffer encode(Message message) throws IOException {
+		byte[] frame = BinaryMessageCodec.toFrame(message);
+		int length = frame.length - MessageFraming.HEADER_LENGTH;
+		CRC32 crc = new CRC32();
+		crc.update(frame, MessageFraming.HEADER_LENGTH, length);
+
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + length);
+		record.putInt(length);
+		record.putInt((int) crc.getValue());
+		record.put(frame, MessageFraming.HEADER_LENGTH, length);
+		record.flip();
+		return record;
+	}
+
+	private void index(Segment segment, Message message, long position) {
+		long time = timeOf(message);
+		if(message.getMessageType() == MessageType.UTC) {
+			index(segment, ROOM_ENTRY, message.getToChatroomID(), 0, position, time);
+		}
+		else if(message.getMessageType() == MessageType.UTU) {
+			index(segment, USER_ENTRY, message.getFromUserID(), message.getToUserID(), position, time);
+		}
+	}
+
+	// Adds the position to the room's or both users' lists, and to the entries the segment saves when sealed
+	private void index(Segment segment, byte kind, int id, int otherID, long position, long time) {
+		if(segment.entries != null) {
+			if(segment.entries.remaining() < INDEX_ENTRY_LENGTH) {
+				ByteBuffer grown = ByteBuffer.allocate(segment.entries.capacity() * 2);
+				segment.entries.flip();
+				segment.entries = grown.put(segment.entries);
+			}
+			segment.entries.put(kind).putInt(id).putInt(otherID).putLong(position).putLong(time);
+		}
+		if(kind == ROOM_ENTRY) {
+			roomIndex.computeIfAbsent(id, key -> new PositionList()).add(position, time);
+		}
+		else {
+			userIndex.computeIfAbsent(id, key -> new PositionList()).add(position, time);
+			if(otherID != id) {
+				userIndex.computeIfAbsent(otherID, key -> new PositionList()).add(position, time);
+			}
+		}
+	}
+
+	/* Writes the sealed segment's index entries to its index file. Not synced: one cut short by a crash
+	 * fails its CRC and the segment is scanned instead, as is one that couldn't be written at all. */
+	private void saveIndex(Segment segment) {
+		ByteBuffer entries = segment.entries;
+		segment.entries = null;
+		if(entries == null) return;
+		ByteBuffer file = ByteBuffer.allocate(INDEX_HEADER_LENGTH + entries.position() + 4);
+		file.putLong(segment.size);
+		file.putInt(entries.position() / INDEX_ENTRY_LENGTH);
+		file.put(entries.array(), 0, entries.position());
+		CRC32 crc = new CRC32();
+		crc.update(file.array(), 0, file.position());
+		file.putInt((int) crc.getValue());
+		file.flip();
+		try(FileChannel channel = FileChannel.open(indexFile(segment).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while(file.hasRemaining()) {
+				channel.write(file);
+			}
+		}
+		catch(IOException e) {
+			System.err.println("Couldn't save the index of message log segment " + segment.file.getName() + ": " + e.getMessage());
+		}
+	}
+
+	// Indexes a sealed segment from its index file, false if there is none or it doesn't check out
+	private boolean loadIndex(Segment segment) throws IOException {
+		File file = indexFile(segment);
+		if(!file.isFile()) return false;
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		if(bytes.length < INDEX_HEADER_LENGTH + 4) return false;
+		ByteBuffer index = ByteBuffer.wrap(bytes);
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length - 4);
+		if((int) crc.getValue() != index.getInt(bytes.length - 4)) return false;
+		long size = index.getLong();
+		int count = index.getInt();
+		if(size != segment.channel.size() || bytes.length != INDEX_HEADER_LENGTH + (long) count * INDEX_ENTRY_LENGTH + 4) return false;
+
+		for(int i = 0; i < count; i++) {
+			index(segment, index.get(), index.getInt(), index.getInt(), index.getLong(), index.getLong());
+		}
+		segment.size = size;
+		return true;
+	}
+
+	private File indexFile(Segment segment) {
+		return new File(directory, String.format("%020d", segment.base) + INDEX_SUFFIX);
+	}
+
+	// Indexes the segment's records and cuts off anything after the last complete one
+	private void recover(Segment segment) throws IOException {
+		long fileSize = segment.channel.size();
+		long offset = 0;
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+		while(offset + RECORD_HEADER_LENGTH <= fileSize) {
+			header.clear();
+			readFully(segment.channel, header, offset);
+			header.flip();
+			int length = header.getInt();
+			int checksum = header.getInt();
+			if(length < 0 || length > MessageFraming.MAX_FRAME_LENGTH || offset + RECORD_HEADER_LENGTH + length > fileSize) break;
+
+			ByteBuffer payload = ByteBuffer.allocate(length);
+			readFully(segment.channel, payload, offset + RECORD_HEADER_LENGTH);
+			CRC32 crc = new CRC32();
+			crc.update(payload.array(), 0, length);
+			if((int) crc.getValue() != checksum) break;
+
+			try {
+				index(segment, BinaryMessageCodec.fromPayload(payload.array(), 0, length), segment.base + offset);
+			}
+			catch(IOException | ClassNotFoundException e) {
+				break;
+			}
+			offset += RECORD_HEADER_LENGTH + length;
+		}
+		if(offset < fileSize) {
+			System.err.println("Message log segment " + segment.file.getName() + " damaged after byte " + offset + ", truncating");
+			segment.channel.truncate(offset);
+		}
+		segment.size = offset;
+	}
+
+	private Segment newSegment(long base) throws IOException {
+		Segment segment = new Segment(new File(directory, String.format("%020d", base) + SEGMENT_SUFFIX), base);
+		segment.entries = ByteBuffer.allocate(INDEX_ENTRY_LENGTH * 64);
+		segments.put(base, segment);
+		return segment;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+		while(buffer.hasRemaining()) {
+			int read = channel.read(buffer, offset);
+			if(read < 0) throw new IOException("Unexpected end of message log segment");
+			offset += read;
+		}
+	}
+
+	/* Group commit for SYNC, timed fsync for PERIODIC. Appenders only touch the pending batch; the
+	 * committer swaps it for an empty one, so new appends queue up while the previous fsync runs. */
+	private class Committer implements Runnable {
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition changed = lock.newCondition();
+		private Batch pending = new Batch();
+		private boolean stopping = false;
+		private Thread thread;
+
+		void commit(PendingAppend append) throws IOException {
+			Batch batch;
+			lock.lock();
+			try {
+				if(stopping) throw new IOException("Message log is closed");
+				batch = pending;
+				batch.appends.add(append);
+				changed.signal();
+			}
+			finally {
+				lock.unlock();
+			}
+			batch.await();
+		}
+
+		void stop() {
+			lock.lock();
+			try {
+				stopping = true;
+				changed.signal();
+			}
+			finally {
+				lock.unlock();
+			}
+			try {
+				thread.join();
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public void run() {
+			boolean done = false;
+			while(!done) {
+				Batch batch;
+				lock.lock();
+				try {
+					if(mode == DurabilityMode.SYNC) {
+						while(pending.appends.isEmpty() && !stopping) {
+							changed.await();
+						}
+					}
+					else if(!stopping) {
+						changed.await(syncIntervalMillis, TimeUnit.MILLISECONDS);
+					}
+					done = stopping;
+					batch = pending;
+					pending = new Batch();
+				}
+				catch(InterruptedException e) {
+					return;
+				}
+				finally {
+					lock.unlock();
+				}
+				commitBatch(batch);
+			}
+		}
+
+		private void commitBatch(Batch batch) {
+			IOException failure = null;
+			appendLock.lock();
+			try {
+				if(closed) throw new IOException("Message log is closed");
+				write(batch.appends);
+				sync();
+			}
+			catch(IOException e) {
+				System.err.println("Message log commit failed: " + e.getMessage());
+				failure = e;
+			}
+			finally {
+				appendLock.unlock();
+			}
+			batch.complete(failure);
+		}
+	}
+
+	private static class PendingAppend {
+		private final Message message;
+		private final ByteBuffer record;
+		private long position;
+
+		PendingAppend(Message message, ByteBuffer record) {
+			this.message = message;
+			this.record = record;
+		}
+	}
+
+	// Appends committed by one fsync; everyone waiting on it is released together
+	private static class Batch {
+		private final List<PendingAppend> appends = new ArrayList<PendingAppend>();
+		private final CountDownLatch committed = new CountDownLatch(1);
+		private volatile IOException failure;
+
+		void complete(IOException failure) {
+			this.failure = failure;
+			committed.countDown();
+		}
+
+		void await() throws IOException {
+			try {
+				committed.await();
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for the message log commit");
+			}
+			if(failure != null) throw new IOException("Message log commit failed", failure);
+		}
+	}
+
+	private static class Segment {
+		private final File file;
+		private final long base;
+		private final FileChannel channel;
+		private volatile long size = 0; // Only changed under appendLock, replay reads it without
+		private ByteBuffer entries; // Index entries of the active segment, saved once it's sealed; null after
+
+		Segment(File file, long base) throws IOException {
+			this.file = file;
+			this.base = base;
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+	}
+
+	/* Growable list of log positions. Only appended to by the thread holding appendLock, read by anyone:
+	 * the arrays are replaced before count is published, so readers never see a position that isn't there.
+	 * sampleTimes[k] is the latest date among positions 0..k*TIME_INDEX_INTERVAL. Being a running maximum
+	 * it never decreases, even when clients' clocks disagree, so it can be binary searched. */
+	private static class PositionList {
+		private volatile long[] positions = new long[8];
+		private volatile long[] sampleTimes = new long[4];
+		private volatile int count = 0;
+		private long latestTime = Long.MIN_VALUE;
+
+		void add(long position, long time) {
+			latestTime = Math.max(latestTime, time);
+			if(count % TIME_INDEX_INTERVAL == 0) {
+				int sample = count / TIME_INDEX_INTERVAL;
+				long[] samples = sampleTimes;
+				if(sample == samples.length) {
+					samples = Arrays.copyOf(samples, samples.length * 2);
+					sampleTimes = samples;
+				}
+				samples[sample] = latestTime;
+			}
+			long[] current = positions;
+			if(count == current.length) {
+				current = Arrays.copyOf(current, current.length * 2);
+				positions = current;
+			}
+			current[count] = position;
+			count = count + 1;
+		}
+
+		int size() {
+			return count;
+		}
+
+		long get(int index) {
+			return positions[index];
+		}
+
+		// First index that can hold a message dated fromTime or later; everything before it is older
+		int seek(long fromTime) {
+			int size = count;
+			long[] samples = sampleTimes;
+			int low = 0;
+			int high = (size + TIME_INDEX_INTERVAL - 1) / TIME_INDEX_INTERVAL - 1;
+			int before = -1; // Last sample dated entirely before fromTime
+			while(low <= high) {
+				int middle = (low + high) >>> 1;
+				if(samples[middle] < fromTime) {
+					before = middle;
+					low = middle + 1;
+				}
+				else {
+					high = middle - 1;
+				}
+			}
+			return before < 0 ? 0 : Math.min(size, before * TIME_INDEX_INTERVAL + 1);
+		}
+
+		long[] toArray() {
+			int size = count;
+			return Arrays.copyOf(positions, size);
+		}
+	}
+}
@@ -0,0 +1,384 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import shared.*;
+
+/* Selector based front end for the Server. One acceptor thread hands new channels to a small, fixed
+ * set of I/O threads; each I/O thread multiplexes its connections with a Selector, decodes frames
+ * (see MessageFraming) and hands the Messages to the handler pool, which runs Server.handleMessage.
+ * An idle connection costs a buffer and a selection key instead of a blocked thread.
+ * The I/O threads only frame and move bytes: handlers can block (a SYNC log append, a disk read), and
+ * on an I/O thread that would stall every connection it serves. A connection's messages are handled
+ * one after another, in the order they arrived, and replies go out through its OutboundQueue. A client
+ * more than MAX_BACKLOG messages ahead of its handler isn't read from until it has caught up by half. */
+class NioServer {
+	private static final int READ_BUFFER_SIZE = 8 * 1024;
+	private static final int MAX_BACKLOG = 256;
+
+	private final Server server;
+	private final int port;
+	private final IoWorker[] workers;
+	private final Executor handlers;
+	private ServerSocketChannel serverChannel;
+	private Thread acceptThread;
+	private volatile boolean running = false;
+
+	NioServer(Server server, int port, int ioThreads, Executor handlers) {
+		this.server = server;
+		this.port = port;
+		this.workers = new IoWorker[ioThreads];
+		this.handlers = handlers;
+	}
+
+	void start() throws IOException {
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+		running = true;
+
+		for(int i = 0; i < workers.length; i++) {
+			workers[i] = new IoWorker(Selector.open());
+			Thread workerThread = new Thread(workers[i], "nio-io-" + i);
+			workerThread.setDaemon(true);
+			workerThread.start();
+		}
+
+		acceptThread = new Thread(() -> acceptConnections(), "nio-accept");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	void stop() {
+		running = false;
+		try {
+			if(serverChannel != null) serverChannel.close();
+		}
+		catch(IOException e) {
+			System.err.println("Error closing server channel: " + e.getMessage());
+		}
+		for(IoWorker worker : workers) {
+			if(worker != null) worker.selector.wakeup();
+		}
+	}
+
+	private void acceptConnections() {
+		int next = 0;
+		try {
+			while(running) {
+				SocketChannel channel = serverChannel.accept(); // Blocking accept, the channel itself is switched to non-blocking
+				System.out.println("New Connection! From: " + channel.getRemoteAddress());
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+
+				IoWorker worker = workers[next];
+				next = (next + 1) % workers.length;
+				worker.register(new NioConnection(channel, worker));
+			}
+		}
+		catch(IOException e) {
+			if(running) System.err.println(e.getMessage());
+		}
+	}
+
+	private class IoWorker implements Runnable {
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<NioConnection> pendingRegistrations = new ConcurrentLinkedQueue<NioConnection>();
+		private final ConcurrentLinkedQueue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<NioConnection>();
+		private final ConcurrentLinkedQueue<NioConnection> pendingResumes = new ConcurrentLinkedQueue<NioConnection>();
+
+		IoWorker(Selector selector) {
+			this.selector = selector;
+		}
+
+		void register(NioConnection connection) {
+			pendingRegistrations.add(connection);
+			selector.wakeup();
+		}
+
+		// Called from any thread that queued output for the connection
+		void requestWrite(NioConnection connection) {
+			pendingWrites.add(connection);
+			selector.wakeup();
+		}
+
+		// Called by a handler that worked a paused connection's backlog down
+		void requestResume(NioConnection connection) {
+			pendingResumes.add(connection);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while(running) {
+				try {
+					selector.select();
+				}
+				catch(IOException e) {
+					System.err.println("Selector failed: " + e.getMessage());
+					break;
+				}
+
+				NioConnection connection;
+				while((connection = pendingRegistrations.poll()) != null) {
+					try {
+						connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+					}
+					catch(ClosedChannelException e) {
+						connection.close();
+					}
+				}
+				while((connection = pendingWrites.poll()) != null) {
+					connection.writeScheduled.set(false);
+					if(connection.key != null && connection.key.isValid()) {
+						connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+					}
+				}
+				while((connection = pendingResumes.poll()) != null) {
+					connection.resumeReading();
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					connection = (NioConnection) key.attachment();
+					try {
+						if(key.isValid() && key.isReadable()) connection.read();
+						if(key.isValid() && key.isWritable()) connection.flushWrites();
+					}
+					catch(IOException | ClassNotFoundException e) {
+						System.err.println("Error processing Client Message: " + e.getMessage());
+						connection.close();
+					}
+					catch(RuntimeException | Error e) {
+						// e.g. a StackOverflowError decoding a deeply nested frame: drop that client, not the thread
+						System.err.println("Error processing Client Message: " + e);
+						connection.close();
+					}
+				}
+			}
+
+			for(SelectionKey key : selector.keys()) {
+				((NioConnection) key.attachment()).close();
+			}
+			try {
+				selector.close();
+			}
+			catch(IOException e) {
+				System.err.println("Error closing selector!");
+			}
+		}
+	}
+
+	private class NioConnection implements Closeable {
+		private final SocketChannel channel;
+		private final IoWorker worker;
+		private final ClientSession session;
+		private ByteBuffer pendingWrite; // Frame partly written when the socket buffer filled up
+		private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+		private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>(); // Run in order on the handler pool
+		private final AtomicBoolean handling = new AtomicBoolean(false); // A handler is running this connection's tasks
+		private final AtomicInteger backlog = new AtomicInteger(); // Messages decoded but not yet handled
+		private boolean readPaused = false; // Only touched by the I/O thread
+		private volatile boolean closeAfterFlush = false;
+		private volatile SelectionKey key;
+		private boolean handshakeDone = false;
+		private WireCodec codec = WireCodec.SERIALIZED;
+
+		NioConnection(SocketChannel channel, IoWorker worker) throws IOException {
+			this.channel = channel;
+			this.worker = worker;
+			this.session = new ClientSession(this, new OutboundQueue(server.getOutboundQueueCapacity(), server.getSlowConsumerPolicy(), () -> scheduleWrite()));
+		}
+
+		private void scheduleWrite() {
+			if(closed.get()) return;
+			if(writeScheduled.compareAndSet(false, true)) {
+				worker.requestWrite(this);
+			}
+		}
+
+		// Reads what is available and dispatches every complete frame
+		void read() throws IOException, ClassNotFoundException {
+			int read = channel.read(readBuffer);
+			if(read == -1) {
+				close();
+				return;
+			}
+
+			readBuffer.flip();
+			if(!handshakeDone && !readHandshake()) {
+				readBuffer.compact();
+				return;
+			}
+			
+			int needed = 0;
+			while(readBuffer.remaining() >= MessageFraming.HEADER_LENGTH && !closeAfterFlush) {
+				int length = readBuffer.getInt(readBuffer.position());
+				MessageFraming.checkLength(length);
+				if(readBuffer.remaining() < MessageFraming.HEADER_LENGTH + length) {
+					needed = MessageFraming.HEADER_LENGTH + length;
+					break;
+				}
+
+				int start = readBuffer.position() + MessageFraming.HEADER_LENGTH;
+				Message message = codec.fromPayload(readBuffer.array(), start, length);
+				readBuffer.position(start + length);
+				dispatch(message);
+			}
+			readBuffer.compact();
+			if(backlog.get() >= MAX_BACKLOG && key.isValid()) {
+				readPaused = true;
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			}
+
+			// Frame larger than the buffer, grow it so the rest can arrive
+			if(needed > readBuffer.capacity()) {
+				ByteBuffer larger = ByteBuffer.allocate(needed);
+				readBuffer.flip();
+				larger.put(readBuffer);
+				readBuffer = larger;
+			}
+		}
+
+		/* Handles the optional codec hello at the start of the connection (see WireHandshake).
+		 * Returns false while more bytes are needed to decide. */
+		private boolean readHandshake() throws IOException {
+			int start = readBuffer.position();
+			if(readBuffer.remaining() < 4) return false;
+			if(!WireHandshake.isHello(readBuffer.getInt(start))) {
+				handshakeDone = true; // Client went straight to SERIALIZED frames
+				return true;
+			}
+			if(readBuffer.remaining() < 6) return false;
+			int count = readBuffer.get(start + 5) & 0xFF;
+			if(count > WireHandshake.MAX_OFFERED_CODECS) {
+				throw new StreamCorruptedException("Too many codecs offered: " + count);
+			}
+			if(readBuffer.remaining() < 6 + count) return false;
+			
+			int[] offered = new int[count];
+			for(int i = 0; i < count; i++) {
+				offered[i] = readBuffer.get(start + 6 + i) & 0xFF;
+			}
+			readBuffer.position(start + 6 + count);
+			
+			// Nothing can be queued before the handshake, so the reply goes out first
+			int version = readBuffer.get(start + 4) & 0xFF;
+			WireCodec chosen = WireHandshake.choose(version, offered);
+			pendingWrite = ByteBuffer.wrap(WireHandshake.reply(chosen));
+			handshakeDone = true;
+			if(chosen == null) {
+				System.err.println(WireHandshake.incompatibleClient(version).getMessage());
+				closeAfterFlush = true; // Nothing it sends is read
+				readBuffer.position(readBuffer.limit());
+			}
+			else {
+				codec = chosen;
+			}
+			scheduleWrite();
+			return true;
+		}
+		
+		// Handles the message on the handler pool, after the ones before it
+		private void dispatch(Message message) {
+			backlog.incrementAndGet();
+			submit(() -> {
+				try {
+					if(closed.get() || closeAfterFlush) return;
+					if(!server.handleMessage(session, message)) {
+						// Let the reply go out before the connection is dropped
+						closeAfterFlush = true;
+						scheduleWrite();
+					}
+				}
+				catch(RuntimeException e) {
+					System.err.println("Error handling " + message.getMessageType() + " from a client: " + e);
+					close();
+				}
+				finally {
+					if(backlog.decrementAndGet() == MAX_BACKLOG / 2) worker.requestResume(this);
+				}
+			});
+		}
+
+		private void submit(Runnable task) {
+			tasks.add(task);
+			if(handling.compareAndSet(false, true)) {
+				try {
+					handlers.execute(this::runTasks);
+				}
+				catch(RejectedExecutionException e) {
+					runTasks(); // Stopping, finish here
+				}
+			}
+		}
+
+		// One handler at a time per connection; a task added while it finishes is picked up, not stranded
+		private void runTasks() {
+			do {
+				Runnable task;
+				while((task = tasks.poll()) != null) {
+					task.run();
+				}
+				handling.set(false);
+			} while(!tasks.isEmpty() && handling.compareAndSet(false, true));
+		}
+
+		// On the I/O thread
+		void resumeReading() {
+			if(!readPaused || backlog.get() >= MAX_BACKLOG || key == null || !key.isValid()) return;
+			readPaused = false;
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		}
+
+		/* Drains the session's OutboundQueue. A message is encoded on this I/O thread only if no other
+		 * connection with the same codec has encoded it yet; the frame array itself is shared. */
+		void flushWrites() throws IOException {
+			boolean closing = closeAfterFlush; // Read first: what was queued before it was set is written below
+			OutboundQueue outbound = session.getOutbound();
+			while(true) {
+				if(pendingWrite == null) {
+					EncodedMessage next = outbound.poll();
+					if(next == null) break;
+					pendingWrite = ByteBuffer.wrap(next.getFrame(codec));
+				}
+				channel.write(pendingWrite);
+				if(pendingWrite.hasRemaining()) return; // Socket buffer is full, wait for the next OP_WRITE
+				pendingWrite = null;
+			}
+			key.interestOps(readPaused ? 0 : SelectionKey.OP_READ);
+			if(closing) close();
+		}
+
+		@Override
+		public void close() {
+			if(!closed.compareAndSet(false, true)) return;
+			if(key != null) key.cancel();
+			try {
+				channel.close();
+			}
+			catch(IOException e) {
+				System.err.println("Error closing resources!");
+			}
+			submit(() -> server.endSession(session)); // After the messages already handed over
+		}
+	}
+}
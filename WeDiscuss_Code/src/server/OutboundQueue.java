@@ -0,0 +1,209 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import shared.DirectoryDelta;
+import shared.DirectoryPage;
+import shared.EncodedMessage;
+import shared.Message;
+import shared.MessageCreator;
+import shared.MessageType;
+
+/* Bounded queue of messages waiting to be written to one client. Senders only ever enqueue, so a
+ * stalled client can't block them, and a single writer drains it, so writes to one socket never
+ * interleave. When the queue is full the SlowConsumerPolicy decides what gives.
+ * Entries are EncodedMessages so one broadcast can sit in many queues sharing the same frame. */
+public class OutboundQueue {
+	private final ArrayDeque<EncodedMessage> queue;
+	private final int capacity;
+	private final SlowConsumerPolicy policy;
+	private final Runnable onAvailable; // Tells a non-blocking writer there is work, may be null
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private boolean closed = false;
+	private boolean finishing = false;
+	
+	public OutboundQueue(int capacity, SlowConsumerPolicy policy, Runnable onAvailable) {
+		this.queue = new ArrayDeque<EncodedMessage>(Math.min(capacity, 64));
+		this.capacity = capacity;
+		this.policy = policy;
+		this.onAvailable = onAvailable;
+	}
+	
+	public boolean offer(Message message) {
+		return offer(new EncodedMessage(message));
+	}
+	
+	/* Returns false if the client can't keep up and must be disconnected.
+	 * A message that was dropped or merged by the policy still counts as handled. */
+	public boolean offer(EncodedMessage message) {
+		lock.lock();
+		try {
+			if(closed) return true;
+			if(queue.size() < capacity) {
+				queue.addLast(message);
+				notEmpty.signal();
+			}
+			else if(!handleOverflow(message)) {
+				return false;
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+		if(onAvailable != null) onAvailable.run();
+		return true;
+	}
+	
+	// Called with the lock held on a full queue. False if the client has to go.
+	private boolean handleOverflow(EncodedMessage message) {
+		switch(policy) {
+			case DROP_EPHEMERAL:
+				if(!isUpdate(message.getMessage())) return false;
+				dropped.incrementAndGet();
+				return true;
+			case COALESCE_DIRECTORY:
+				if(!isUpdate(message.getMessage())) return false;
+				// Only the newest state about a user/chatroom matters, merge it into the queued one where that sits
+				EncodedMessage older = null;
+				for(EncodedMessage queued : queue) {
+					if(sameSubject(queued.getMessage(), message.getMessage())) {
+						older = queued;
+						break;
+					}
+				}
+				if(older == null) return false;
+				replace(older, coalesce(older, message));
+				coalesced.incrementAndGet();
+				return true;
+			default:
+				return false;
+		}
+	}
+	
+	/* Swaps the entry for its merge in the same position, so it still goes out before whatever was queued
+	 * after it, e.g. a member's room message after the membership update that introduced them.
+	 * Rotates the whole deque once, which has no set-at-index. */
+	private void replace(EncodedMessage older, EncodedMessage merged) {
+		for(int i = queue.size(); i > 0; i--) {
+			EncodedMessage queued = queue.pollFirst();
+			queue.addLast(queued == older ? merged : queued);
+		}
+	}
+	
+	// Blocks until a message is available, returns null once the queue is closed or finished and empty
+	public EncodedMessage take() throws InterruptedException {
+		lock.lock();
+		try {
+			while(queue.isEmpty() && !closed && !finishing) {
+				notEmpty.await();
+			}
+			return queue.pollFirst();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	// Returns null if nothing is queued
+	public EncodedMessage poll() {
+		lock.lock();
+		try {
+			return queue.pollFirst();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	public int size() {
+		lock.lock();
+		try {
+			return queue.size();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+	
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+	
+	// Lets the writer deliver what is queued, then take() returns null
+	public void finish() {
+		lock.lock();
+		try {
+			finishing = true;
+			notEmpty.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	// Wakes the writer and discards anything still queued
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			queue.clear();
+			notEmpty.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	// UPDATEUM/UPDATECM notifications can be rebuilt by the client at its next login
+	static boolean isUpdate(Message message) {
+		MessageType type = message.getMessageType();
+		return type == MessageType.UPDATEUM || type == MessageType.UPDATECM;
+	}
+	
+	// Directory updates build on each other, so the newer one only stands alone if it's a snapshot
+	private static EncodedMessage coalesce(EncodedMessage older, EncodedMessage newer) {
+		DirectoryDelta changes = newer.getMessage().getDirectoryDelta();
+		if(changes == null) return newer;
+		Message queued = older.getMessage();
+		MessageCreator create = new MessageCreator(MessageType.UPDATEUM);
+		if(queued.getDirectoryDelta() != null) {
+			create.setContents("Delta");
+			create.setDirectoryDelta(queued.getDirectoryDelta().followedBy(changes));
+		}
+		else if(queued.getDirectory() != null) {
+			Map<Integer, String> users = new TreeMap<Integer, String>(queued.getDirectory().getUsers());
+			changes.applyTo(users);
+			create.setContents("Snapshot");
+			create.setDirectory(new DirectoryPage(users, DirectoryPage.NO_MORE, changes.getToVersion()));
+		}
+		else {
+			return newer;
+		}
+		return new EncodedMessage(create.createMessage());
+	}
+	
+	// Both updates are about the same user (UPDATEUM) or chatroom (UPDATECM)
+	private static boolean sameSubject(Message a, Message b) {
+		if(a.getMessageType() != b.getMessageType()) return false;
+		if(a.getMessageType() == MessageType.UPDATECM) {
+			return a.getToChatroomID() == b.getToChatroomID() && a.getFromUserID() == b.getFromUserID();
+		}
+		return a.getFromUserID() == b.getFromUserID();
+	}
+}
@@ -0,0 +1,77 @@
+package server;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import shared.Chatroom;
+import shared.Message;
+
+/* Which chatrooms have their message history in memory. Rooms start without it; the first time one is
+ * used its history is loaded, and once the loaded rooms hold more than budget messages between them the
+ * least recently used ones are dropped again (they reload on their next use). The room just used is
+ * never dropped, so a single room larger than the budget still works, it's just the only one loaded.
+ *
+ * A room's size is counted when it's used, messages added in between are noticed on its next use. */
+public class RoomHistoryCache {
+	public static final int DEFAULT_BUDGET = 500000;
+
+	private final Chatroom.HistoryLoader loader;
+	private final long budget;
+	// Loaded rooms, least recently used first, with the message count last seen. Guarded by this.
+	private final LinkedHashMap<Chatroom, Integer> loaded = new LinkedHashMap<Chatroom, Integer>(16, 0.75f, true);
+	private long resident = 0;
+	private final AtomicLong loadCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	public RoomHistoryCache(Chatroom.HistoryLoader loader, long budget) {
+		this.loader = loader;
+		this.budget = budget;
+	}
+
+	// The room's history, loaded if it isn't, and the room marked as the most recently used
+	public List<Message> get(Chatroom chatroom) throws IOException {
+		boolean cold = !chatroom.isLoaded();
+		List<Message> messages = chatroom.loadMessages(loader);
+		if(cold) loadCount.incrementAndGet();
+
+		synchronized(this) {
+			Integer counted = loaded.put(chatroom, messages.size());
+			resident += messages.size() - (counted == null ? 0 : counted);
+			Iterator<Map.Entry<Chatroom, Integer>> eldest = loaded.entrySet().iterator();
+			while(resident > budget && loaded.size() > 1) {
+				Map.Entry<Chatroom, Integer> evicted = eldest.next();
+				evicted.getKey().unloadMessages();
+				resident -= evicted.getValue();
+				eldest.remove();
+				evictionCount.incrementAndGet();
+			}
+		}
+		return messages;
+	}
+
+	// For a room that's being deleted
+	public synchronized void remove(Chatroom chatroom) {
+		Integer counted = loaded.remove(chatroom);
+		if(counted != null) resident -= counted;
+	}
+
+	public synchronized int getLoadedRooms() {
+		return loaded.size();
+	}
+
+	public synchronized long getResidentMessages() {
+		return resident;
+	}
+
+	public long getLoadCount() {
+		return loadCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+}
@@ -0,0 +1,58 @@
+package server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* Which members of each chatroom are online right now. Room messages go only to these users instead
+ * of checking every connected client against the room's member list. Kept up to date by the
+ * ChatroomManager as users log in and out and join or leave rooms. */
+public class RoomSubscribers {
+	private final ConcurrentHashMap<Integer, Set<Integer>> byRoom = new ConcurrentHashMap<Integer, Set<Integer>>();
+	private final ConcurrentHashMap<Integer, Set<Integer>> byUser = new ConcurrentHashMap<Integer, Set<Integer>>(); // Rooms each online user is in
+
+	// User logged in, subscribe them to all of their rooms
+	public void online(int userID, Collection<Integer> chatroomIDs) {
+		for(Integer chatroomID : chatroomIDs) {
+			subscribe(chatroomID, userID);
+		}
+	}
+
+	public void offline(int userID) {
+		Set<Integer> rooms = byUser.remove(userID);
+		if(rooms == null) return;
+		for(Integer chatroomID : rooms) {
+			Set<Integer> online = byRoom.get(chatroomID);
+			if(online != null) online.remove(userID);
+		}
+	}
+
+	public void subscribe(int chatroomID, int userID) {
+		byRoom.computeIfAbsent(chatroomID, id -> ConcurrentHashMap.newKeySet()).add(userID);
+		byUser.computeIfAbsent(userID, id -> ConcurrentHashMap.newKeySet()).add(chatroomID);
+	}
+
+	public void unsubscribe(int chatroomID, int userID) {
+		Set<Integer> online = byRoom.get(chatroomID);
+		if(online != null) online.remove(userID);
+		Set<Integer> rooms = byUser.get(userID);
+		if(rooms != null) rooms.remove(chatroomID);
+	}
+
+	// Chatroom deleted
+	public void removeRoom(int chatroomID) {
+		Set<Integer> online = byRoom.remove(chatroomID);
+		if(online == null) return;
+		for(Integer userID : online) {
+			Set<Integer> rooms = byUser.get(userID);
+			if(rooms != null) rooms.remove(chatroomID);
+		}
+	}
+
+	// Online members of the room, safe to iterate while it changes
+	public Set<Integer> get(int chatroomID) {
+		Set<Integer> online = byRoom.get(chatroomID);
+		return online == null ? Collections.<Integer>emptySet() : Collections.unmodifiableSet(online);
+	}
+}
@@ -0,0 +1,673 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import shared.LogPage;
+import shared.Message;
+import shared.MessageType;
+import shared.SearchQuery;
+
+/* Inverted index over the chat messages in the MessageLog, for admin SEARCH requests: each term maps to
+ * the messages containing it, and a message is identified by its log position.
+ *
+ * New messages go into an in-memory segment. Once that holds flushDocs messages (and on close) it is
+ * written out as an immutable segment file named after the first and last log position it covers:
+ *   header:     magic | version | doc count | term count | postings offset | dictionary offset
+ *   docs:       one fixed width row per message, position(8) time(8) chatroomID(4) fromUserID(4) toUserID(4)
+ *   postings:   per term, the rows holding it as varint deltas
+ *   dictionary: the terms in sorted order, each as length + UTF-8 | doc frequency | postings offset
+ * Segment files are memory mapped, only the dictionary is read in. Once there are more than MAX_SEGMENTS
+ * a background thread merges MERGE_FACTOR neighbouring ones, so a query has few files to look at.
+ * What was indexed but not yet flushed when the server stopped is read again from the MessageLog on open.
+ *
+ * Only the indexing thread (LogManager's log writer) calls add(); searches can run on any thread. */
+public class SearchIndex {
+	public static final int DEFAULT_FLUSH_DOCS = 100000;
+	private static final int MAX_SEGMENTS = 8;
+	private static final int MERGE_FACTOR = 4;
+	private static final int MAX_MERGED_DOCS = 20000000;
+	private static final int MAX_TERM_LENGTH = 64;
+	private static final int MAGIC = 0x57445358;
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 32;
+	private static final int DOC_ROW_BYTES = 28;
+	private static final String SEGMENT_SUFFIX = ".idx";
+
+	private final File directory;
+	private final MessageLog messageLog;
+	private final int flushDocs;
+	private volatile List<DiskSegment> segments; // Oldest first, replaced as a whole under segmentsLock
+	private final ReentrantLock segmentsLock = new ReentrantLock();
+	private final Condition mergeWanted = segmentsLock.newCondition();
+	private final ReentrantLock mergeLock = new ReentrantLock(); // One merge at a time
+	private final ReentrantReadWriteLock bufferLock = new ReentrantReadWriteLock();
+	private MemorySegment buffer = new MemorySegment(); // Guarded by bufferLock
+	private long lastIndexed = -1;
+	private volatile boolean closed = false;
+	private final Thread merger;
+	private final AtomicLong mergeCount = new AtomicLong();
+
+	public SearchIndex(File directory, MessageLog messageLog) throws IOException {
+		this(directory, messageLog, DEFAULT_FLUSH_DOCS);
+	}
+
+	public SearchIndex(File directory, MessageLog messageLog, int flushDocs) throws IOException {
+		this.directory = directory;
+		this.messageLog = messageLog;
+		this.flushDocs = flushDocs;
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can't create search index directory " + directory);
+		}
+		this.segments = Collections.unmodifiableList(openSegments());
+		for(DiskSegment segment : segments) {
+			lastIndexed = Math.max(lastIndexed, segment.last);
+		}
+		catchUp();
+
+		merger = new Thread(() -> runMerger(), "search-merger");
+		merger.setDaemon(true);
+		merger.start();
+	}
+
+	// Indexes whatever the log holds past the last indexed message. On the thread that calls add().
+	public void catchUp() throws IOException {
+		messageLog.replay(lastIndexed, this::add);
+	}
+
+	/* Indexes a message stored at the given log position. Positions must come in increasing order,
+	 * which is the order the MessageLog hands them out in. */
+	public void add(long position, Message message) {
+		if(position <= lastIndexed) return;
+		lastIndexed = position;
+		MessageType type = message.getMessageType();
+		if(type != MessageType.UTC && type != MessageType.UTU) return;
+		List<String> terms = terms(message.getContents());
+		if(terms.isEmpty()) return;
+
+		bufferLock.writeLock().lock();
+		try {
+			buffer.add(position, message, new LinkedHashSet<String>(terms));
+		}
+		finally {
+			bufferLock.writeLock().unlock();
+		}
+		if(buffer.count >= flushDocs) {
+			try {
+				flush();
+			}
+			catch(IOException e) {
+				System.err.println("Error writing search index segment: " + e.getMessage());
+			}
+		}
+	}
+
+	/* Adds the next page of matches, newest first, to into and returns the cursor for the page after it,
+	 * LogPage.NO_MORE when there are no more. A query without any terms matches nothing. */
+	public long search(SearchQuery query, List<Message> into) throws IOException {
+		List<String> required = new ArrayList<String>();
+		List<List<String>> phrases = new ArrayList<List<String>>();
+		parse(query.getText(), required, phrases);
+		if(required.isEmpty()) return LogPage.NO_MORE;
+
+		List<DiskSegment> searched;
+		long[] recent;
+		bufferLock.readLock().lock();
+		try {
+			searched = segments; // Taken together with the buffer so a flush in between can't hide or repeat messages
+			recent = buffer.count == 0 ? new long[0] : matches(buffer, required, query);
+		}
+		finally {
+			bufferLock.readLock().unlock();
+		}
+
+		long next = collect(recent, query, phrases, into);
+		for(int i = searched.size() - 1; i >= 0 && next == LogPage.NO_MORE; i--) {
+			DiskSegment segment = searched.get(i);
+			if(segment.first >= query.getCursor()) continue;
+			next = collect(matches(segment, required, query), query, phrases, into);
+		}
+		return next;
+	}
+
+	// Reads and checks the candidates, newest first. Returns the last one's position once the page is full.
+	private long collect(long[] candidates, SearchQuery query, List<List<String>> phrases, List<Message> into) throws IOException {
+		for(long position : candidates) {
+			Message message = messageLog.read(position);
+			if(!containsPhrases(message, phrases)) continue;
+			into.add(message);
+			if(into.size() == query.getPageSize()) return position;
+		}
+		return LogPage.NO_MORE;
+	}
+
+	// Positions in the segment holding every term and passing the query's filters, newest first
+	private static long[] matches(Segment segment, List<String> terms, SearchQuery query) {
+		int[][] lists = new int[terms.size()][];
+		for(int i = 0; i < terms.size(); i++) {
+			lists[i] = segment.postings(terms.get(i));
+			if(lists[i] == null) return new long[0];
+		}
+		Arrays.sort(lists, (a, b) -> Integer.compare(a.length, b.length));
+		int[] rows = lists[0];
+		int count = rows.length;
+		for(int i = 1; i < lists.length && count > 0; i++) {
+			int[] next = new int[count];
+			count = intersect(rows, count, lists[i], next);
+			rows = next;
+		}
+
+		long[] positions = new long[count];
+		int found = 0;
+		for(int i = count - 1; i >= 0; i--) {
+			int row = rows[i];
+			long position = segment.position(row);
+			if(position >= query.getCursor()) continue;
+			long time = segment.time(row);
+			if(time < query.getFromTime() || time > query.getToTime()) continue;
+			if(query.getChatroomID() >= 0 && segment.chatroom(row) != query.getChatroomID()) continue;
+			if(query.getUserID() >= 0 && segment.fromUser(row) != query.getUserID() && segment.toUser(row) != query.getUserID()) continue;
+			positions[found++] = position;
+		}
+		return found == positions.length ? positions : Arrays.copyOf(positions, found);
+	}
+
+	// Rows in both sorted lists, written to out; returns how many
+	private static int intersect(int[] small, int smallCount, int[] large, int[] out) {
+		int found = 0;
+		int from = 0;
+		for(int i = 0; i < smallCount && from < large.length; i++) {
+			int at = Arrays.binarySearch(large, from, large.length, small[i]);
+			if(at >= 0) {
+				out[found++] = small[i];
+				from = at + 1;
+			}
+			else {
+				from = -at - 1;
+			}
+		}
+		return found;
+	}
+
+	private static boolean containsPhrases(Message message, List<List<String>> phrases) {
+		if(phrases.isEmpty()) return true;
+		List<String> words = terms(message.getContents());
+		for(List<String> phrase : phrases) {
+			if(Collections.indexOfSubList(words, phrase) < 0) return false;
+		}
+		return true;
+	}
+
+	// Splits "words and \"quoted phrases\"" into every term needed and the multi word phrases
+	private static void parse(String text, List<String> required, List<List<String>> phrases) {
+		String[] parts = text.split("\"", -1);
+		for(int i = 0; i < parts.length; i++) {
+			List<String> terms = terms(parts[i]);
+			for(String term : terms) {
+				if(!required.contains(term)) required.add(term);
+			}
+			if(i % 2 == 1 && terms.size() > 1) phrases.add(terms);
+		}
+	}
+
+	// Lower cased runs of letters and digits, the same for messages and queries
+	public static List<String> terms(String text) {
+		List<String> terms = new ArrayList<String>();
+		if(text == null) return terms;
+		int start = -1;
+		for(int i = 0; i <= text.length(); i++) {
+			boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if(inWord && start < 0) {
+				start = i;
+			}
+			else if(!inWord && start >= 0) {
+				terms.add(text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase(Locale.ROOT));
+				start = -1;
+			}
+		}
+		return terms;
+	}
+
+	// Writes the in-memory segment to a file, called by the indexing thread
+	public void flush() throws IOException {
+		if(buffer.count == 0) return;
+		DiskSegment flushed = write(Collections.singletonList(buffer));
+		bufferLock.writeLock().lock();
+		segmentsLock.lock();
+		try {
+			List<DiskSegment> updated = new ArrayList<DiskSegment>(segments);
+			updated.add(flushed);
+			segments = Collections.unmodifiableList(updated);
+			buffer = new MemorySegment();
+			if(updated.size() > MAX_SEGMENTS) mergeWanted.signal();
+		}
+		finally {
+			segmentsLock.unlock();
+			bufferLock.writeLock().unlock();
+		}
+	}
+
+	// Merges neighbouring segments until there are at most MAX_SEGMENTS (or nothing left small enough to merge)
+	public void merge() throws IOException {
+		mergeLock.lock();
+		try {
+			List<DiskSegment> sources;
+			while(!closed && (sources = pickMerge(segments)) != null) {
+				DiskSegment merged = write(sources);
+				segmentsLock.lock();
+				try {
+					List<DiskSegment> updated = new ArrayList<DiskSegment>(segments);
+					int at = updated.indexOf(sources.get(0));
+					updated.removeAll(sources);
+					updated.add(at, merged);
+					segments = Collections.unmodifiableList(updated);
+				}
+				finally {
+					segmentsLock.unlock();
+				}
+				// Searches still holding the old list keep their mappings, the files can go
+				for(DiskSegment source : sources) {
+					source.file.delete();
+				}
+				mergeCount.incrementAndGet();
+			}
+		}
+		finally {
+			mergeLock.unlock();
+		}
+	}
+
+	// The MERGE_FACTOR neighbours with the fewest messages between them, null if no merge is due
+	private static List<DiskSegment> pickMerge(List<DiskSegment> current) {
+		if(current.size() <= MAX_SEGMENTS) return null;
+		int best = -1;
+		long bestDocs = Long.MAX_VALUE;
+		for(int i = 0; i + MERGE_FACTOR <= current.size(); i++) {
+			long docs = 0;
+			for(int j = i; j < i + MERGE_FACTOR; j++) {
+				docs += current.get(j).docCount();
+			}
+			if(docs < bestDocs) {
+				best = i;
+				bestDocs = docs;
+			}
+		}
+		if(bestDocs > MAX_MERGED_DOCS) return null;
+		return new ArrayList<DiskSegment>(current.subList(best, best + MERGE_FACTOR));
+	}
+
+	private void runMerger() {
+		while(!closed) {
+			segmentsLock.lock();
+			try {
+				while(!closed && pickMerge(segments) == null) {
+					mergeWanted.await();
+				}
+			}
+			catch(InterruptedException e) {
+				return;
+			}
+			finally {
+				segmentsLock.unlock();
+			}
+			try {
+				merge();
+			}
+			catch(IOException e) {
+				System.err.println("Search index merge failed: " + e.getMessage());
+			}
+		}
+	}
+
+	// Stops merging and writes out what's only in memory; call once the indexing thread is done
+	public void close() throws IOException {
+		segmentsLock.lock();
+		try {
+			closed = true;
+			mergeWanted.signal();
+		}
+		finally {
+			segmentsLock.unlock();
+		}
+		try {
+			merger.join();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	public long getMergeCount() {
+		return mergeCount.get();
+	}
+
+	public long getDocCount() {
+		bufferLock.readLock().lock();
+		try {
+			long docs = buffer.count;
+			for(DiskSegment segment : segments) {
+				docs += segment.docCount();
+			}
+			return docs;
+		}
+		finally {
+			bufferLock.readLock().unlock();
+		}
+	}
+
+	// Writes the sources' messages, in order, as one segment file
+	private DiskSegment write(List<? extends Segment> sources) throws IOException {
+		long first = sources.get(0).position(0);
+		Segment lastSource = sources.get(sources.size() - 1);
+		long last = lastSource.position(lastSource.docCount() - 1);
+		String name = String.format("%020d-%020d", first, last) + SEGMENT_SUFFIX;
+		File temporary = new File(directory, name + ".tmp");
+
+		int docCount = 0;
+		TreeSet<String> allTerms = new TreeSet<String>();
+		for(Segment source : sources) {
+			docCount += source.docCount();
+			allTerms.addAll(source.terms());
+		}
+
+		long postingsOffset = HEADER_BYTES + (long) docCount * DOC_ROW_BYTES;
+		FileOutputStream file = new FileOutputStream(temporary);
+		CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(file, 1 << 16));
+		try {
+			out.skip(HEADER_BYTES);
+			ByteBuffer docRow = ByteBuffer.allocate(DOC_ROW_BYTES);
+			for(Segment source : sources) {
+				for(int i = 0; i < source.docCount(); i++) {
+					docRow.clear();
+					docRow.putLong(source.position(i)).putLong(source.time(i)).putInt(source.chatroom(i))
+						.putInt(source.fromUser(i)).putInt(source.toUser(i));
+					out.write(docRow.array());
+				}
+			}
+
+			long[] termOffsets = new long[allTerms.size()];
+			int[] docFrequencies = new int[allTerms.size()];
+			int termNumber = 0;
+			for(String term : allTerms) {
+				termOffsets[termNumber] = out.count - postingsOffset;
+				int rowBase = 0;
+				int previous = 0;
+				for(Segment source : sources) {
+					int[] rows = source.postings(term);
+					if(rows != null) {
+						for(int row : rows) {
+							out.writeVarLong(rowBase + row - previous);
+							previous = rowBase + row;
+						}
+						docFrequencies[termNumber] += rows.length;
+					}
+					rowBase += source.docCount();
+				}
+				termNumber++;
+			}
+
+			long dictionaryOffset = out.count;
+			termNumber = 0;
+			for(String term : allTerms) {
+				byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+				out.writeVarLong(bytes.length);
+				out.write(bytes);
+				out.writeVarLong(docFrequencies[termNumber]);
+				out.writeVarLong(termOffsets[termNumber]);
+				termNumber++;
+			}
+			out.flush();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			header.putInt(MAGIC).putInt(VERSION).putInt(docCount).putInt(allTerms.size()).putLong(postingsOffset).putLong(dictionaryOffset);
+			header.flip();
+			FileChannel channel = file.getChannel();
+			while(header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+			channel.force(false);
+		}
+		finally {
+			out.close();
+		}
+		File segmentFile = new File(directory, name);
+		Files.move(temporary.toPath(), segmentFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return new DiskSegment(segmentFile, first, last);
+	}
+
+	/* Opens the segment files, leaving out half written ones and those a finished merge already
+	 * covers (the server stopped before it could delete them) */
+	private List<DiskSegment> openSegments() throws IOException {
+		List<DiskSegment> opened = new ArrayList<DiskSegment>();
+		File[] files = directory.listFiles();
+		for(File file : files) {
+			String name = file.getName();
+			if(name.endsWith(".tmp")) {
+				file.delete();
+				continue;
+			}
+			if(!name.endsWith(SEGMENT_SUFFIX)) continue;
+			String[] range = name.substring(0, name.length() - SEGMENT_SUFFIX.length()).split("-");
+			try {
+				opened.add(new DiskSegment(file, Long.parseLong(range[0]), Long.parseLong(range[1])));
+			}
+			catch(NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				System.err.println("Ignoring unexpected file in search index: " + name);
+			}
+		}
+		opened.sort((a, b) -> a.first != b.first ? Long.compare(a.first, b.first) : Long.compare(b.last, a.last));
+		List<DiskSegment> kept = new ArrayList<DiskSegment>();
+		for(DiskSegment segment : opened) {
+			if(!kept.isEmpty() && segment.last <= kept.get(kept.size() - 1).last) {
+				segment.file.delete();
+				continue;
+			}
+			kept.add(segment);
+		}
+		return kept;
+	}
+
+	// What searches and writes need from the in-memory segment and from segment files alike
+	private interface Segment {
+		int docCount();
+		long position(int row);
+		long time(int row);
+		int chatroom(int row);
+		int fromUser(int row);
+		int toUser(int row);
+		int[] postings(String term); // Sorted rows, null if the term isn't in the segment
+		Collection<String> terms();
+	}
+
+	private static class MemorySegment implements Segment {
+		private long[] positions = new long[1024];
+		private long[] times = new long[1024];
+		private int[] chatrooms = new int[1024];
+		private int[] fromUsers = new int[1024];
+		private int[] toUsers = new int[1024];
+		private int count = 0;
+		private final Map<String, RowList> postings = new HashMap<String, RowList>();
+
+		void add(long position, Message message, Collection<String> terms) {
+			if(count == positions.length) {
+				int size = positions.length * 2;
+				positions = Arrays.copyOf(positions, size);
+				times = Arrays.copyOf(times, size);
+				chatrooms = Arrays.copyOf(chatrooms, size);
+				fromUsers = Arrays.copyOf(fromUsers, size);
+				toUsers = Arrays.copyOf(toUsers, size);
+			}
+			positions[count] = position;
+			times[count] = message.getDateSent() == null ? 0 : message.getDateSent().getTime();
+			chatrooms[count] = message.getMessageType() == MessageType.UTC ? message.getToChatroomID() : -1;
+			fromUsers[count] = message.getFromUserID();
+			toUsers[count] = message.getMessageType() == MessageType.UTU ? message.getToUserID() : -1;
+			for(String term : terms) {
+				postings.computeIfAbsent(term, t -> new RowList()).add(count);
+			}
+			count++;
+		}
+
+		public int docCount() { return count; }
+		public long position(int row) { return positions[row]; }
+		public long time(int row) { return times[row]; }
+		public int chatroom(int row) { return chatrooms[row]; }
+		public int fromUser(int row) { return fromUsers[row]; }
+		public int toUser(int row) { return toUsers[row]; }
+
+		public int[] postings(String term) {
+			RowList rows = postings.get(term);
+			return rows == null ? null : Arrays.copyOf(rows.rows, rows.size);
+		}
+
+		public Collection<String> terms() {
+			return postings.keySet();
+		}
+	}
+
+	private static class RowList {
+		private int[] rows = new int[4];
+		private int size = 0;
+
+		void add(int row) {
+			if(size == rows.length) rows = Arrays.copyOf(rows, size * 2);
+			rows[size++] = row;
+		}
+	}
+
+	private static class DiskSegment implements Segment {
+		private final File file;
+		private final long first;
+		private final long last;
+		private final MappedByteBuffer data;
+		private final int docCount;
+		private final long postingsOffset;
+		private final String[] terms; // Sorted
+		private final int[] docFrequencies;
+		private final long[] termOffsets;
+
+		DiskSegment(File file, long first, long last) throws IOException {
+			this.file = file;
+			this.first = first;
+			this.last = last;
+			try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+			if(data.getInt(0) != MAGIC || data.getInt(4) != VERSION) throw new IOException("Not a search index segment: " + file.getName());
+			docCount = data.getInt(8);
+			int termCount = data.getInt(12);
+			postingsOffset = data.getLong(16);
+			long dictionaryOffset = data.getLong(24);
+
+			terms = new String[termCount];
+			docFrequencies = new int[termCount];
+			termOffsets = new long[termCount];
+			long[] at = {dictionaryOffset};
+			for(int i = 0; i < termCount; i++) {
+				int length = (int) readVarLong(data, at);
+				byte[] bytes = new byte[length];
+				data.get((int) at[0], bytes);
+				at[0] += length;
+				terms[i] = new String(bytes, StandardCharsets.UTF_8);
+				docFrequencies[i] = (int) readVarLong(data, at);
+				termOffsets[i] = readVarLong(data, at);
+			}
+		}
+
+		public int docCount() { return docCount; }
+		public long position(int row) { return data.getLong(HEADER_BYTES + row * DOC_ROW_BYTES); }
+		public long time(int row) { return data.getLong(HEADER_BYTES + row * DOC_ROW_BYTES + 8); }
+		public int chatroom(int row) { return data.getInt(HEADER_BYTES + row * DOC_ROW_BYTES + 16); }
+		public int fromUser(int row) { return data.getInt(HEADER_BYTES + row * DOC_ROW_BYTES + 20); }
+		public int toUser(int row) { return data.getInt(HEADER_BYTES + row * DOC_ROW_BYTES + 24); }
+
+		public int[] postings(String term) {
+			int index = Arrays.binarySearch(terms, term);
+			if(index < 0) return null;
+			int[] rows = new int[docFrequencies[index]];
+			long[] at = {postingsOffset + termOffsets[index]};
+			int row = 0;
+			for(int i = 0; i < rows.length; i++) {
+				row += (int) readVarLong(data, at);
+				rows[i] = row;
+			}
+			return rows;
+		}
+
+		public Collection<String> terms() {
+			return Arrays.asList(terms);
+		}
+
+		private static long readVarLong(ByteBuffer data, long[] at) {
+			long value = 0;
+			for(int shift = 0; ; shift += 7) {
+				int b = data.get((int) at[0]++);
+				value |= (long) (b & 0x7F) << shift;
+				if((b & 0x80) == 0) return value;
+			}
+		}
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		void skip(int bytes) throws IOException {
+			out.write(new byte[bytes]);
+			count += bytes;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			out.write(bytes, offset, length);
+			count += length;
+		}
+
+		void writeVarLong(long value) throws IOException {
+			while((value & ~0x7FL) != 0) {
+				write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			write((int) value);
+		}
+	}
+}
@@ -3,59 +3,241 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import shared.*;
 
 
 public class Server {
 	private ConcurrentHashMap<Integer, ObjectOutputStream> listOfClients;
-	private ConcurrentHashMap<Integer, Thread> clientThreads;
+	private ConcurrentHashMap<Integer, ClientSession> clientSessions;
 	private UserManager userManager;
 	private LogManager logManager;
+	private MessageLog messageLog;
+	private Storage storage;
 	private ChatroomManager chatroomManager;
 	private ServerSocket serverSocket;
 	private int port;
 	private String serverIP;
-	private boolean running;
+	private volatile boolean running;
+	private ServerMode mode;
+	private Thread listenThread;
+	private NioServer nioServer;
 	private ExecutorService executorService;
+	private ExecutorService writerExecutor; // Drains each blocking session's OutboundQueue
+	private ScheduledExecutorService directoryUpdates; // Sends the batched UPDATEUMs, and unloads idle inboxes
+	private final AtomicBoolean directoryUpdatePending = new AtomicBoolean();
+	private long broadcastVersion; // Directory version every client has been sent, only used by the directoryUpdates thread
+	private long directoryBatchMillis = Long.getLong("wediscuss.directoryBatchMs", 200);
+	private long inboxIdleMillis = Long.getLong("wediscuss.inboxIdleMs", 30 * 60 * 1000); // 0 keeps inboxes loaded until logout
+	private int outboundQueueCapacity = Integer.getInteger("wediscuss.outboundQueueCapacity", 1024);
+	private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.valueOf(System.getProperty("wediscuss.slowConsumerPolicy", "COALESCE_DIRECTORY").toUpperCase());
 	private static final int MAX_THREADS = 10;
+	private static final long LOG_DRAIN_TIMEOUT_MS = 10000;
+	private static final int NIO_IO_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+	private static final AtomicInteger SESSION_THREAD_COUNT = new AtomicInteger();
 	
 	public Server(int port) throws UnknownHostException {
+		this(port, ServerMode.BLOCKING);
+	}
+	
+	public Server(int port, ServerMode mode) throws UnknownHostException {
 		this.port = port;
+		if(mode == ServerMode.VIRTUAL && !virtualThreadsSupported()) {
+			// A platform thread per connection would have no cap at all, NIO serves as many on a few threads
+			System.err.println("WARNING: VIRTUAL mode needs virtual threads (Java 21+), this is Java " + Runtime.version().feature()
+					+ ". Running in NIO mode instead.");
+			mode = ServerMode.NIO;
+		}
+		this.mode = mode;
 		this.serverIP = InetAddress.getLocalHost().getHostAddress().trim();
 		this.running = false;
-		this.userManager = new UserManager();
-		this.chatroomManager = new ChatroomManager(this);
-		this.logManager = new LogManager(userManager.getAllUserIDs(), chatroomManager.getAllChatroomIDs());
+		
+		// The message log rebuilds its indexes on the loader's pool while the users and rooms load there too
+		StartupLoader startup = new StartupLoader(Integer.getInteger("wediscuss.startupThreads", StartupLoader.DEFAULT_PARALLELISM));
+		CompletableFuture<MessageLog> openingLog = openMessageLog(startup);
+		this.storage = openStorage(startup);
+		this.userManager = startup.time(StartupLoader.USERS, () -> new UserManager(startup, storage));
+		this.chatroomManager = startup.time(StartupLoader.ROOMS, () -> new ChatroomManager(this,
+				Integer.getInteger("wediscuss.roomHistoryBudget", RoomHistoryCache.DEFAULT_BUDGET), startup, storage));
+		this.messageLog = useMessageLog(openingLog);
+		this.logManager = startup.time(StartupLoader.LOGS, () -> new LogManager(userManager.getAllUserIDs(), chatroomManager.getAllChatroomIDs(),
+				messageLog, Integer.getInteger("wediscuss.logQueueCapacity", LogManager.DEFAULT_QUEUE_CAPACITY), startup, storage));
+		openSearchIndex(startup);
+		System.out.println(startup.report());
+		startup.shutdown(); // The search index still finishes opening
 		this.listOfClients = new ConcurrentHashMap<>();
-		this.clientThreads = new ConcurrentHashMap<>();
-		this.executorService = Executors.newFixedThreadPool(MAX_THREADS);
+		this.clientSessions = new ConcurrentHashMap<>();
+		// Blocking sessions, or in NIO mode the handlers the I/O threads pass messages to
+		this.executorService = mode == ServerMode.VIRTUAL ? newVirtualThreadExecutor() : Executors.newFixedThreadPool(MAX_THREADS, task -> {
+			Thread thread = new Thread(task, (this.mode == ServerMode.NIO ? "nio-handler-" : "session-") + SESSION_THREAD_COUNT.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.writerExecutor = mode == ServerMode.VIRTUAL ? newVirtualThreadExecutor() : Executors.newCachedThreadPool(task -> {
+			Thread thread = new Thread(task, "writer-" + SESSION_THREAD_COUNT.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.broadcastVersion = userManager.getDirectoryVersion();
+		this.directoryUpdates = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "directory-updates");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	// Chat messages go to the MessageLog; without it they fall back to the per-room/per-user text files
+	private CompletableFuture<MessageLog> openMessageLog(StartupLoader startup) {
+		File directory = new File(System.getProperty("wediscuss.messageLogDir", "messagelog"));
+		DurabilityMode durability = DurabilityMode.valueOf(System.getProperty("wediscuss.durability", "PERIODIC").toUpperCase());
+		long segmentBytes = Long.getLong("wediscuss.messageLogSegmentBytes", MessageLog.DEFAULT_SEGMENT_BYTES);
+		long syncInterval = Long.getLong("wediscuss.syncIntervalMs", MessageLog.DEFAULT_SYNC_INTERVAL_MS);
+		return startup.submit(StartupLoader.INDEXES, () -> {
+			MessageLog log = new MessageLog(directory, segmentBytes, durability, syncInterval);
+			startup.countDirectory(StartupLoader.INDEXES, directory);
+			return log;
+		});
+	}
+	
+	/* Accounts, rooms, memberships and the messages not in the MessageLog go to one KeyValueStore, the
+	 * legacy text files imported into it the first time. The server only uses the files with
+	 * wediscuss.storage=files: a store that can't be opened fails startup, since the files are stale once
+	 * anything was written to the store and whatever the server wrote to them would be missed later. */
+	private Storage openStorage(StartupLoader startup) {
+		if(System.getProperty("wediscuss.storage", "store").equalsIgnoreCase("files")) return FileStorage.INSTANCE;
+		File directory = new File(System.getProperty("wediscuss.storageDir", "store"));
+		DurabilityMode durability = DurabilityMode.valueOf(System.getProperty("wediscuss.durability", "PERIODIC").toUpperCase());
+		long flushBytes = Long.getLong("wediscuss.storeFlushBytes", KeyValueStore.DEFAULT_FLUSH_BYTES);
+		long syncInterval = Long.getLong("wediscuss.syncIntervalMs", KeyValueStore.DEFAULT_SYNC_INTERVAL_MS);
+		return startup.time(StartupLoader.STORAGE, () -> {
+			KeyValueStorage opened = null;
+			try {
+				opened = new KeyValueStorage(new KeyValueStore(directory, flushBytes, durability, syncInterval));
+				if(StorageImporter.isNeeded(FileStorage.INSTANCE, opened)) {
+					StorageImporter importer = new StorageImporter(FileStorage.INSTANCE, opened);
+					importer.importAll();
+					System.out.println(importer.summary() + " from the legacy files into " + directory);
+				}
+				startup.countDirectory(StartupLoader.STORAGE, directory);
+				return opened;
+			}
+			catch(IOException | RuntimeException e) {
+				closeQuietly(opened);
+				throw new IllegalStateException("Can't open the store in " + directory + ": " + e.getMessage(), e);
+			}
+		});
+	}
+	
+	private MessageLog useMessageLog(CompletableFuture<MessageLog> opening) {
+		MessageLog log = null;
+		try {
+			log = opening.get();
+			userManager.useMessageLog(log);
+			chatroomManager.useMessageLog(log);
+			return log;
+		}
+		catch(ExecutionException | IOException e) {
+			Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+			System.err.println("Message log unavailable, using message files: " + cause.getMessage());
+			closeQuietly(log);
+			return null;
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			System.err.println("Message log unavailable, using message files: interrupted while opening");
+			opening.thenAccept(Server::closeQuietly);
+			return null;
+		}
 	}
 	
+	/* Admin message search, only over the MessageLog so there's nothing to search without one. Opening
+	 * it replays whatever it hasn't indexed yet, all of the log the first time, so the server doesn't
+	 * wait for it: search reports itself unavailable until the index is caught up. */
+	private void openSearchIndex(StartupLoader startup) {
+		if(messageLog == null) return;
+		File directory = new File(System.getProperty("wediscuss.searchIndexDir", "searchindex"));
+		int flushDocs = Integer.getInteger("wediscuss.searchFlushDocs", SearchIndex.DEFAULT_FLUSH_DOCS);
+		StartupLoader.Phase phase = startup.phase(StartupLoader.SEARCH_INDEX);
+		startup.background(StartupLoader.SEARCH_INDEX, () -> new SearchIndex(directory, messageLog, flushDocs))
+			.whenComplete((searchIndex, e) -> {
+				if(e != null) {
+					System.err.println("Search index unavailable: " + e.getMessage());
+					return;
+				}
+				logManager.useSearchIndex(searchIndex);
+				System.out.println("Search index ready after " + phase.getMillis() + " ms");
+			});
+	}
+	
+	private static void closeQuietly(Storage storage) {
+		if(storage == null) return;
+		try {
+			storage.close();
+		}
+		catch(IOException e) {
+			System.err.println("Error closing store: " + e.getMessage());
+		}
+	}
+	
+	private static void closeQuietly(MessageLog log) {
+		if(log == null) return;
+		try {
+			log.close();
+		}
+		catch(IOException e) {
+			System.err.println("Error closing message log: " + e.getMessage());
+		}
+	}
+	
+	/* One new virtual thread per connection. Looked up reflectively so the project still builds and runs
+	 * on Java 17, where the constructor runs VIRTUAL mode as NIO instead. */
+	static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch(ReflectiveOperationException e) {
+			throw new IllegalStateException("Virtual threads unavailable on Java " + Runtime.version().feature(), e);
+		}
+	}
+	
+	public static boolean virtualThreadsSupported() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		}
+		catch(NoSuchMethodException e) {
+			return false;
+		}
+	}
+	
+	// Usage: Server [port] [blocking|nio|virtual]
 	public static void main(String[] args) throws UnknownHostException {
-		Server server = new Server(8080); //temp port for testing
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080; //temp port for testing
+		ServerMode mode = args.length > 1 ? ServerMode.valueOf(args[1].toUpperCase()) : ServerMode.BLOCKING;
+		Server server = new Server(port, mode);
 		server.start();	
 	}
 	
 	public void start() {
-		running = true;
-		
 		// shutdown hook so stop() is called if server terminates unexpectedly or System.exit(0) is reached
 		Runtime.getRuntime().addShutdownHook(new Thread(() -> stop()));
 		
-		// Starts thread that listens for incoming client connections
-		Thread listenThread = new Thread(() -> listenForConnections());
-		listenThread.start();
+		startListening();
 		
 		try(Scanner scanner = new Scanner(System.in)){
 			while(running) {
 				System.out.println("Enter 'end' to shutdown the server: ");
 				if(scanner.hasNextLine()) {
 					String input = scanner.nextLine();
+					if(input.equalsIgnoreCase("queues")) {
+						getOutboundQueueDepths().forEach((userID, depth) -> System.out.println("User " + userID + ": " + depth + " queued"));
+					}
 					if(input.equalsIgnoreCase("end")) {
 						System.out.println("Shutting down server...");
 						running = false;
-						listenThread.interrupt();
+						if(listenThread != null) listenThread.interrupt();
 					}
 				}
 			}
@@ -64,25 +246,93 @@ public class Server {
 		System.exit(0);
 	}
 	
+	// Starts accepting clients in the configured mode without blocking the caller
+	public void startListening() {
+		running = true;
+		if(inboxIdleMillis > 0) {
+			directoryUpdates.scheduleWithFixedDelay(() -> userManager.unloadIdleInboxes(inboxIdleMillis), inboxIdleMillis, inboxIdleMillis, TimeUnit.MILLISECONDS);
+		}
+		
+		if(mode == ServerMode.NIO) {
+			try {
+				nioServer = new NioServer(this, port, NIO_IO_THREADS, executorService);
+				nioServer.start();
+				System.out.println("Server started (NIO, " + NIO_IO_THREADS + " I/O threads, " + MAX_THREADS + " handlers) on IPV4 Address: " +  serverIP + " Port: " + port);
+			}
+			catch(IOException e) {
+				System.err.println(e.getMessage());
+			}
+			return;
+		}
+		
+		// Starts thread that listens for incoming client connections
+		listenThread = new Thread(() -> listenForConnections());
+		listenThread.start();
+	}
+	
 	public void stop() {		
+		running = false;
 		try {
-			if (serverSocket != null) {
-				if(!serverSocket.isClosed()) {
-					serverSocket.close();
-				}
-				userManager.saveUsers();
-				chatroomManager.saveUsers();
-				while(!logManager.isLogQueueEmpty()) {
-					System.out.println("Processing Log Message");
+			if(nioServer != null) {
+				nioServer.stop();
+			}
+			if (serverSocket != null && !serverSocket.isClosed()) {
+				serverSocket.close();
+			}
+			// Also for a server that never listened: its stores are open from the constructor
+			chatroomManager.saveUsers(); // Accounts are saved as they change
+			try {
+				if(!logManager.drain(LOG_DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+					System.err.println("Log queue not drained, " + logManager.getQueueDepth() + " messages left");
 				}
-				System.out.println("Server stopped.");
 			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			logManager.close();
+			if(messageLog != null) {
+				messageLog.close();
+			}
+			storage.close();
+			System.out.println("Server stopped.");
 		} catch (IOException e) {
 			System.out.println("Error closing server: " + e.getMessage());
 		}
 		finally {
 			executorService.shutdown();
+			writerExecutor.shutdown();
+			directoryUpdates.shutdown();
+		}
+	}
+	
+	public ServerMode getMode() {
+		return mode;
+	}
+	
+	// Must be set before startListening(), applies to sessions opened afterwards
+	public void setOutboundQueueCapacity(int capacity) {
+		this.outboundQueueCapacity = capacity;
+	}
+	
+	public int getOutboundQueueCapacity() {
+		return outboundQueueCapacity;
+	}
+	
+	public void setSlowConsumerPolicy(SlowConsumerPolicy policy) {
+		this.slowConsumerPolicy = policy;
+	}
+	
+	public SlowConsumerPolicy getSlowConsumerPolicy() {
+		return slowConsumerPolicy;
+	}
+	
+	// Messages waiting to be written, per logged in user
+	public Map<Integer, Integer> getOutboundQueueDepths() {
+		Map<Integer, Integer> depths = new TreeMap<Integer, Integer>();
+		for(ClientSession session : clientSessions.values()) {
+			depths.put(session.getUserID(), session.getQueueDepth());
 		}
+		return depths;
 	}
 	
 	public UserManager getUserManager() {
@@ -94,6 +344,10 @@ public class Server {
 		return logManager;
 	}
 	
+	public MessageLog getMessageLog() {
+		return messageLog;
+	}
+	
 	public ChatroomManager getChatroomManager() {
 		return chatroomManager;
 	}
@@ -117,8 +371,7 @@ public class Server {
 			while (!Thread.currentThread().isInterrupted()) {
 				Socket clientSocket = serverSocket.accept();
 				System.out.println("New Connection! From: " + clientSocket.getLocalSocketAddress());
-				Thread processThread = new Thread(() -> processResponse(clientSocket));
-				executorService.submit(processThread);
+				executorService.submit(() -> processResponse(clientSocket));
 			}
 		} catch (IOException e) {
 			System.err.println(e.getMessage());
@@ -126,161 +379,244 @@ public class Server {
 	}
 	
 	public void processResponse(Socket clientSocket) {
-		//Create appropriate Message objects and route them 
-		//to the correct handler based on message type
-		int userID = -1;
+		// Blocking mode: this thread reads the client's messages until it disconnects
+		ClientSession session = null;
 		ObjectInputStream input = null;
-		ObjectOutputStream output = null;
-		String clientIP = clientSocket.getLocalAddress().getHostAddress().trim();
+		boolean loggedOut = false;
 		try {	
-			input = new ObjectInputStream(clientSocket.getInputStream());
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
+			// Framed clients (with or without the codec handshake) and plain ObjectOutputStream clients are all accepted
+			BufferedInputStream rawInput = new BufferedInputStream(clientSocket.getInputStream());
+			ObjectOutputStream socketOutput;
+			int prefix = WireHandshake.peekPrefix(rawInput);
+			if(WireHandshake.isObjectStream(prefix)) {
+				input = new ObjectInputStream(rawInput);
+				socketOutput = new ObjectOutputStream(clientSocket.getOutputStream());
+			}
+			else {
+				WireCodec codec = WireCodec.SERIALIZED;
+				if(WireHandshake.isHello(prefix)) {
+					codec = WireHandshake.accept(rawInput, clientSocket.getOutputStream());
+				}
+				input = new FrameInputStream(rawInput, codec);
+				socketOutput = new FrameOutputStream(clientSocket.getOutputStream(), codec);
+			}
+			session = new ClientSession(clientSocket, new OutboundQueue(outboundQueueCapacity, slowConsumerPolicy, null));
+			ClientSession writerSession = session;
+			writerExecutor.submit(() -> drainOutbound(writerSession, socketOutput));
 			
-			while(running) {
-				// If thread stopped for w/e reason (User deletion) stop processing & shutdown
-			    if (Thread.interrupted()) {
-			        System.out.println("Thread interrupted, shutting down for user: " + userID);
-			        closeResources(clientSocket, input, output, userID);
-			    }
-				
+			while(running && !session.isClosed()) {
 				Message message = (Message) input.readObject();
 				
 				if(message == null) continue;
 				
 				System.out.println("Message recieved from client: " + message.getMessageType());
 				
-				MessageType type = message.getMessageType();
-				
-				switch(type) {
-					case LOGIN:
-							userID = userManager.authUser(output, message, chatroomManager);
-							if(userID != -1) {
-								 listOfClients.put(userID, output);
-								 clientThreads.put(userID, Thread.currentThread());
-								 // sendUserMapUpdates(userID, userManager.getUsername(userID), true);
-							}
-						break;
-					case LOGOUT:
-							if(userManager.logout(output, message)) {
-								closeResources(clientSocket, input, output, userID); // Sends usermap update
-								listOfClients.remove(userID);
-								clientThreads.remove(userID);
-								return;
-							}
-						break;
-					case ADDUSER:
-							int addID = userManager.addUser(output, message);
-							if(addID != -1) {
-								sendUserMapUpdates(addID, userManager.getUsername(addID), true); // Let everyone know User is Added
-							}
-						break;
-					case DELUSER:
-							User delUser = userManager.deleteUser(output, message);
-							if(delUser != null) {
-								sendUserMapUpdates(delUser.getID(), delUser.getUsername(), false); // Let everyone know User is no longer apart of the server
-								System.out.println("Ending User: " + delUser.getUsername());
-						    	// Remove user from all chatrooms they are apart of
-						    	chatroomManager.removeUserFromChatrooms(delUser, listOfClients);
-						    	
-						    	// Stop servicing the client
-								Thread clientThread = clientThreads.get(delUser.getID());
-								if(clientThread != null) {
-									clientThread.interrupt();
-								}
-							}
-						break;
-					case CPWD:
-							userManager.changeUserPassword(output, message);
-						break;
-					case GUL:
-							logManager.getUserMessages(output, message, userManager.getUserID(message.getToUserName()));
-						break;
-					case GCL:
-							logManager.getChatroomMessages(output, message);
-						break;
-					case CC:
-							chatroomManager.createChatroom(output, message);
-						break;
-					case IUC:
-							int invitedUserID = chatroomManager.addUsertoChatroom(output, message, listOfClients);
-							if(invitedUserID != -1) {
-								userManager.addChatroomToUser(invitedUserID, message.getToChatroomID()); // Add chatroomID to User Object's list of chatrooms
-							}
-						break;
-					case JC:
-							int joinedUserID = chatroomManager.joinChatroom(output, message, listOfClients);
-							if(joinedUserID != -1) {
-								userManager.addChatroomToUser(joinedUserID, message.getToChatroomID()); // Add chatroomID to User Object's list of chatrooms
-								
-							}
-						break;
-					case LC:
-							chatroomManager.removeUserfromChatroom(output, message, listOfClients);
-							userManager.getUser(message.getFromUserID()).removeChatroom(message.getToChatroomID());
-						break;
-					case UTU:
-							userManager.sendMessage(output, message, listOfClients);
-							logManager.addToLogQueue(message);	
-						break;
-					case UTC:
-							chatroomManager.sendMessageToChatroom(output, message, listOfClients);
-							logManager.addToLogQueue(message);
-						break;
-					default:
-						break;
-				}	
+				if(!handleMessage(session, message)) {
+					loggedOut = true;
+					break;
+				}
 			}
 		}
 		catch(IOException | ClassNotFoundException e) {
 			System.err.println("Error processing Client Message: " + e.getMessage());
 		}
 		finally {
-			clientThreads.remove(userID);
+			if(session != null) {
+				endSession(session, loggedOut);
+			}
+			else {
+				closeResources(clientSocket, input, null, -1);
+			}
+		}
+		
+	}
+	
+	// Writer for a blocking session: the only thread that touches the client's output stream
+	private void drainOutbound(ClientSession session, ObjectOutputStream socketOutput) {
+		OutboundQueue outbound = session.getOutbound();
+		try {
+			EncodedMessage message;
+			while((message = outbound.take()) != null) {
+				message.writeTo(socketOutput); // Shared frame for framed clients, writeObject() for legacy ones
+				if(outbound.size() == 0) socketOutput.flush();
+			}
+			session.close(); // Queue finished or closed, the connection is done
+		}
+		catch(IOException e) {
+			System.err.println("Error writing to client: " + e.getMessage());
+			session.close();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/* Routes a message to the correct handler based on message type. Shared by every server mode.
+	 * Returns false once the session should be closed. */
+	boolean handleMessage(ClientSession session, Message message) {
+		ObjectOutputStream output = session.getOutput();
+		int userID = session.getUserID();
+		MessageType type = message.getMessageType();
+		
+		switch(type) {
+			case LOGIN:
+					userID = userManager.authUser(output, message, chatroomManager);
+					if(userID != -1) {
+						 session.setUserID(userID);
+						 listOfClients.put(userID, output);
+						 clientSessions.put(userID, session);
+						 chatroomManager.userOnline(userID);
+						 // sendUserMapUpdates(userID, userManager.getUsername(userID), true);
+					}
+				break;
+			case LOGOUT:
+					if(userManager.logout(output, message)) {
+						return false; // endSession removes the client & sends usermap update
+					}
+				break;
+			case ADDUSER:
+					int addID = userManager.addUser(output, message);
+					if(addID != -1) {
+						directoryChanged(); // Let everyone know User is Added
+					}
+				break;
+			case DELUSER:
+					User delUser = userManager.deleteUser(output, message);
+					if(delUser != null) {
+						listOfClients.remove(delUser.getID());
+						directoryChanged(); // Let everyone know User is no longer apart of the server
+						System.out.println("Ending User: " + delUser.getUsername());
+				    	// Remove user from all chatrooms they are apart of
+				    	chatroomManager.removeUserFromChatrooms(delUser, listOfClients);
+				    	
+				    	// Stop servicing the client
+						ClientSession deletedSession = clientSessions.get(delUser.getID());
+						if(deletedSession != null) {
+							deletedSession.close();
+						}
+					}
+				break;
+			case CPWD:
+					userManager.changeUserPassword(output, message);
+				break;
+			case GUL:
+					logManager.getUserMessages(output, message, userManager.getUserID(message.getToUserName()));
+				break;
+			case GCL:
+					logManager.getChatroomMessages(output, message);
+				break;
+			case SEARCH:
+					User searcher = userManager.getUser(userID); // null before LOGIN
+					logManager.search(output, message, searcher != null && searcher.getAdminStatus());
+				break;
+			case INBOX:
+					userManager.getOlderMessages(output, message, userID);
+				break;
+			case FINDUSER:
+					userManager.findUsers(output, message);
+				break;
+			case CC:
+					chatroomManager.createChatroom(output, message);
+				break;
+			case IUC:
+					int invitedUserID = chatroomManager.addUsertoChatroom(output, message, listOfClients);
+					if(invitedUserID != -1) {
+						userManager.addChatroomToUser(invitedUserID, message.getToChatroomID()); // Add chatroomID to User Object's list of chatrooms
+					}
+				break;
+			case JC:
+					int joinedUserID = chatroomManager.joinChatroom(output, message, listOfClients);
+					if(joinedUserID != -1) {
+						userManager.addChatroomToUser(joinedUserID, message.getToChatroomID()); // Add chatroomID to User Object's list of chatrooms
+						
+					}
+				break;
+			case LC:
+					chatroomManager.removeUserfromChatroom(output, message, listOfClients);
+					userManager.getUser(message.getFromUserID()).removeChatroom(message.getToChatroomID());
+				break;
+			case UTU:
+					message = message.withServerStamp(); // Stored, delivered and logged under the server's id and time
+					userManager.sendMessage(output, message, listOfClients);
+					logManager.addToLogQueue(message);	
+				break;
+			case UTC:
+					message = message.withServerStamp();
+					chatroomManager.sendMessageToChatroom(output, message, listOfClients);
+					logManager.addToLogQueue(message);
+				break;
+			default:
+				break;
+		}
+		return true;
+	}
+	
+	// Forgets a client once its connection ends, whichever side closed it
+	void endSession(ClientSession session) {
+		endSession(session, false);
+	}
+	
+	// With flushFirst the connection stays open until already queued replies are written
+	void endSession(ClientSession session, boolean flushFirst) {
+		int userID = session.getUserID();
+		if(userID != -1) {
+			listOfClients.remove(userID, session.getOutput());
+			if(clientSessions.remove(userID, session)) {
+				chatroomManager.userOffline(userID);
+			}
 			MessageCreator create = new MessageCreator(MessageType.LOGOUT);
 			create.setFromUserID(userID);
 			create.setFromUserName(userManager.getUsername(userID));
 			userManager.logout(create.createMessage());
-			closeResources(clientSocket, input, output, userID);
 		}
-		
+		if(flushFirst) {
+			session.closeWhenFlushed();
+		}
+		else {
+			session.close();
+		}
 	}
 	
-	private void sendUserMapUpdates(Integer userID, String username, Boolean addUser) {
+	// The first directory change of a burst schedules one UPDATEUM, which carries every change made by the time it's sent
+	private void directoryChanged() {
+		if(directoryUpdatePending.compareAndSet(false, true)) {
+			try {
+				directoryUpdates.schedule(this::sendDirectoryUpdate, directoryBatchMillis, TimeUnit.MILLISECONDS);
+			}
+			catch(RejectedExecutionException e) {
+				// Stopping, clients catch up at their next login
+			}
+		}
+	}
+	
+	private void sendDirectoryUpdate() {
+		directoryUpdatePending.set(false); // A change from here on schedules the next update
 		MessageCreator messageCreator = new MessageCreator(MessageType.UPDATEUM);
-		messageCreator.setFromUserID(userID);
-		messageCreator.setFromUserName(username);
-		if(addUser) {	
-			messageCreator.setContents("Add");
-			
-			// Synchronizes the sending of the update message!
-			listOfClients.values().parallelStream().forEach(output ->{
-				try {
-					output.writeObject(messageCreator.createMessage());
-					// output.flush();
-				}
-				catch(IOException e) {
-					System.err.println("Error sending update to a client!");
-				}
-				
-			});
+		DirectoryDelta changes = userManager.getDirectoryChanges(broadcastVersion);
+		if(changes == null) {
+			// More changes than the history keeps, send the whole directory
+			DirectoryPage directory = userManager.getDirectory();
+			messageCreator.setContents("Snapshot");
+			messageCreator.setDirectory(directory);
+			broadcastVersion = directory.getVersion();
 		}
 		else {
-			listOfClients.remove(userID);
-			messageCreator.setContents("Remove");
-			
-			// Synchronizes the sending of the update message!
-			listOfClients.values().parallelStream().forEach(output ->{
-				try {
-					output.writeObject(messageCreator.createMessage());
-					//output.flush();
-				}
-				catch(IOException e) {
-					System.err.println("Error sending update to a client!");
-				}
-				
-			});
+			if(changes.isEmpty()) return;
+			messageCreator.setContents("Delta");
+			messageCreator.setDirectoryDelta(changes);
+			broadcastVersion = changes.getToVersion();
 		}
 		
+		// Encoded once and only queued here, each client's writer does the socket write
+		EncodedMessage update = new EncodedMessage(messageCreator.createMessage());
+		listOfClients.values().forEach(output ->{
+			try {
+				update.writeTo(output);
+			}
+			catch(IOException e) {
+				System.err.println("Error sending update to a client!");
+			}
+		});
 	}
 	
 	protected void sendChatroomUpdates(Integer chatroomID, Boolean addChatroom) {
@@ -293,13 +629,14 @@ public class Server {
 	        // Retrieve the chatroom using the ChatroomManager
 	        Chatroom chatroom = chatroomManager.getChatroom(chatroomID);
 	        if (chatroom != null) {
-	            messageCreator.setChatroom(chatroom);  // Set chatroom details
+	            messageCreator.setRoom(chatroomManager.summarize(chatroom));  // Set chatroom details
 	            messageCreator.setToChatroom(chatroomID);
 
-	            // Notify all clients about the chatroom addition
-	            listOfClients.values().parallelStream().forEach(output -> {
+	            // Notify all clients about the chatroom addition, one message encoded once for everyone
+	            EncodedMessage update = new EncodedMessage(messageCreator.createMessage());
+	            listOfClients.values().forEach(output -> {
 	                try {
-	                    output.writeObject(messageCreator.createMessage());
+	                    update.writeTo(output);
 	                } catch (IOException e) {
 	                    System.err.println("Error sending chatroom update to a client!");
 	                }
@@ -311,9 +648,10 @@ public class Server {
 	        messageCreator.setContents("Remove");
 
 	        // Notify all clients about the chatroom removal
-	        listOfClients.values().parallelStream().forEach(output -> {
+	        EncodedMessage update = new EncodedMessage(messageCreator.createMessage());
+	        listOfClients.values().forEach(output -> {
 	            try {
-	                output.writeObject(messageCreator.createMessage());
+	                update.writeTo(output);
 	            } catch (IOException e) {
 	                System.err.println("Error sending chatroom removal update to a client!");
 	            }
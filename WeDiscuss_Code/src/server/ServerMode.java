@@ -0,0 +1,7 @@
+package server;
+
+public enum ServerMode {
+	BLOCKING, // One pooled thread per connection, blocking reads (original behaviour)
+	NIO, // A few selector threads multiplex every connection
+	VIRTUAL, // One virtual thread per connection, blocking reads (NIO before Java 21)
+}
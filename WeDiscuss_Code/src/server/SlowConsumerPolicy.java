@@ -0,0 +1,8 @@
+package server;
+
+/* What a session's OutboundQueue does when it is full and another message arrives */
+public enum SlowConsumerPolicy {
+	DROP_EPHEMERAL, // Drop the new UPDATEUM/UPDATECM notification; anything else disconnects the client
+	COALESCE_DIRECTORY, // Replace a queued UPDATEUM/UPDATECM about the same user/chatroom, merging directory deltas; otherwise disconnect
+	DISCONNECT, // Disconnect the client straight away
+}
@@ -0,0 +1,238 @@
+package server;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import shared.FileStorage;
+import shared.Storage;
+
+/* Runs the server's startup loads. The per-user and per-room files are read on a fork-join pool of at
+ * most parallelism threads, so a cold start with thousands of small files keeps several reads in
+ * flight without opening thousands at once. Each named phase records its wall time, how many items
+ * and files it read and their size, see report().
+ *
+ * Optional phases (the search index) run in the background: the server starts listening without
+ * waiting for them and whatever depends on one reports itself unavailable until it's done. */
+public class StartupLoader {
+	public static final int DEFAULT_PARALLELISM = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors() * 2));
+	public static final String USERS = "users";
+	public static final String ROOMS = "rooms";
+	public static final String LOGS = "logs"; // The userlog/chatlog files
+	public static final String STORAGE = "storage"; // Opening the KeyValueStore, and importing the legacy files into it
+	public static final String INDEXES = "indexes"; // Opening the MessageLog, which rebuilds its indexes
+	public static final String SEARCH_INDEX = "search index";
+
+	private final ForkJoinPool pool;
+	private final Map<String, Phase> phases = Collections.synchronizedMap(new LinkedHashMap<String, Phase>());
+	private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+	public StartupLoader() {
+		this(DEFAULT_PARALLELISM);
+	}
+
+	public StartupLoader(int parallelism) {
+		this.pool = new ForkJoinPool(Math.max(1, parallelism), pool -> {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName("startup-" + THREAD_COUNT.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}, null, false);
+	}
+
+	/* Calls loader for every item on the pool and returns the results in the items' order. A loader
+	 * that throws fails the whole load, loaders that can skip a bad file should catch themselves. */
+	public <I, T> List<T> load(String name, List<I> items, Function<I, T> loader) {
+		Phase phase = phase(name);
+		phase.begin();
+		List<Callable<T>> tasks = new ArrayList<Callable<T>>(items.size());
+		for(I item : items) {
+			tasks.add(() -> loader.apply(item));
+		}
+		try {
+			List<T> results = new ArrayList<T>(items.size());
+			for(Future<T> future : pool.invokeAll(tasks)) {
+				results.add(future.get());
+			}
+			phase.items.addAndGet(items.size());
+			return results;
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while loading " + name);
+		}
+		catch(ExecutionException e) {
+			throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+					: new IllegalStateException("Error loading " + name, e.getCause());
+		}
+		finally {
+			phase.end();
+		}
+	}
+
+	// Times work done on the calling thread as part of a phase
+	public <T> T time(String name, Supplier<T> work) {
+		Phase phase = phase(name);
+		phase.begin();
+		try {
+			return work.get();
+		}
+		finally {
+			phase.end();
+		}
+	}
+
+	// Runs a phase on the pool while the caller goes on; the future fails with whatever the work threw
+	public <T> CompletableFuture<T> submit(String name, Callable<T> work) {
+		Phase phase = phase(name);
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		pool.execute(() -> {
+			T value;
+			phase.begin();
+			try {
+				value = work.call();
+			}
+			catch(Exception e) {
+				phase.end();
+				result.completeExceptionally(e);
+				return;
+			}
+			phase.end();
+			result.complete(value);
+		});
+		return result;
+	}
+
+	// An optional phase: submitted the same way, but nothing at startup waits for it
+	public <T> CompletableFuture<T> background(String name, Callable<T> work) {
+		phase(name).background = true;
+		return submit(name, work);
+	}
+
+	// Counts a file a phase read, if it exists
+	public void countFile(String name, File file) {
+		long length = file.length();
+		if(length == 0 && !file.exists()) return;
+		Phase phase = phase(name);
+		phase.files.incrementAndGet();
+		phase.bytes.addAndGet(length);
+	}
+
+	// Counts one of the storage's files, when it keeps them in files
+	public void countFile(String name, Storage storage, String fileName) {
+		if(storage instanceof FileStorage) countFile(name, ((FileStorage) storage).file(fileName));
+	}
+
+	// Counts every file directly in a directory
+	public void countDirectory(String name, File directory) {
+		File[] files = directory.listFiles(File::isFile);
+		if(files == null) return;
+		for(File file : files) {
+			countFile(name, file);
+		}
+	}
+
+	public Phase phase(String name) {
+		return phases.computeIfAbsent(name, Phase::new);
+	}
+
+	public List<Phase> getPhases() {
+		synchronized(phases) {
+			return new ArrayList<Phase>(phases.values());
+		}
+	}
+
+	public int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	// One line per phase, in the order they started
+	public String report() {
+		StringBuilder report = new StringBuilder("Startup (" + getParallelism() + " loader threads):");
+		for(Phase phase : getPhases()) {
+			report.append("\n  ").append(phase);
+		}
+		return report.toString();
+	}
+
+	// Background phases already started still finish
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	/* Wall time from the first start to the last end of the phase's work, so work done concurrently
+	 * (several loads, or a load on the pool while the caller times something else) isn't added twice. */
+	public static class Phase {
+		private final String name;
+		private final AtomicLong firstStart = new AtomicLong(Long.MAX_VALUE);
+		private final AtomicLong lastEnd = new AtomicLong(Long.MIN_VALUE);
+		private final AtomicInteger running = new AtomicInteger();
+		private final AtomicLong items = new AtomicLong();
+		private final AtomicLong files = new AtomicLong();
+		private final AtomicLong bytes = new AtomicLong();
+		private volatile boolean background = false;
+
+		Phase(String name) {
+			this.name = name;
+		}
+
+		private void begin() {
+			running.incrementAndGet();
+			firstStart.accumulateAndGet(System.nanoTime(), Math::min);
+		}
+
+		private void end() {
+			lastEnd.accumulateAndGet(System.nanoTime(), Math::max);
+			running.decrementAndGet();
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public boolean isDone() {
+			return running.get() == 0 && lastEnd.get() != Long.MIN_VALUE;
+		}
+
+		public boolean isBackground() {
+			return background;
+		}
+
+		public long getMillis() {
+			long start = firstStart.get();
+			long end = isDone() ? lastEnd.get() : System.nanoTime();
+			return start == Long.MAX_VALUE ? 0 : (end - start) / 1000000;
+		}
+
+		public long getItems() {
+			return items.get();
+		}
+
+		public long getFiles() {
+			return files.get();
+		}
+
+		public long getBytes() {
+			return bytes.get();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-14s %6d ms %8d items %8d files %12d bytes%s", name, getMillis(), getItems(), getFiles(), getBytes(),
+					(background ? " (background" + (isDone() ? ")" : ", still running)") : isDone() ? "" : " (still running)"));
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import shared.FileStorage;
+import shared.Message;
+import shared.Storage;
+
+/* Copies the legacy text files (see FileStorage) into a KeyValueStorage: every account and room in
+ * UserFile.txt and ChatroomFile.txt with their member, chats, inbox, message and log files. Each file
+ * goes in as one batch and the account and room lists last, followed by a marker key, so a store that
+ * was only partly imported is imported again on the next try, overwriting what's there. The legacy
+ * files are left alone; once imported the server no longer reads them.
+ *
+ * The server imports on its own when it opens a store that doesn't have the marker while the legacy
+ * files exist. Usage: StorageImporter [legacyDirectory] [storeDirectory] */
+public class StorageImporter {
+	private final FileStorage from;
+	private final KeyValueStorage to;
+	private int accounts = 0;
+	private int chatrooms = 0;
+	private long messages = 0;
+
+	public StorageImporter(FileStorage from, KeyValueStorage to) {
+		this.from = from;
+		this.to = to;
+	}
+
+	public static void main(String[] args) throws IOException {
+		File legacy = new File(args.length > 0 ? args[0] : ".");
+		File directory = new File(args.length > 1 ? args[1] : "store");
+		try(KeyValueStorage storage = new KeyValueStorage(new KeyValueStore(directory))) {
+			StorageImporter importer = new StorageImporter(new FileStorage(legacy), storage);
+			long start = System.nanoTime();
+			importer.importAll();
+			storage.getStore().flush();
+			System.out.println(importer.summary() + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+		}
+	}
+
+	// Whether the store still needs the legacy files imported
+	public static boolean isNeeded(FileStorage from, KeyValueStorage to) {
+		return to.getStore().get(KeyValueStorage.IMPORTED) == null
+				&& (from.file("UserFile.txt").exists() || from.file("UserJournal.txt").exists() || from.file("ChatroomFile.txt").exists());
+	}
+
+	public void importAll() throws IOException {
+		List<Storage.Account> accountList = from.readAccounts();
+		for(Storage.Account account : accountList) {
+			int userID = account.getUserID();
+			KeyValueStore.Batch batch = new KeyValueStore.Batch();
+			copyMessages(batch, KeyValueStorage.INBOX, userID, from.readInbox(userID));
+			copyMessages(batch, KeyValueStorage.USER_LOG, userID, from.readUserLog(userID));
+			to.getStore().write(batch);
+			to.writeUserChatrooms(userID, from.readUserChatrooms(userID));
+			accounts++;
+		}
+
+		List<Integer> chatroomIDs = from.readChatroomIDs();
+		for(int chatroomID : chatroomIDs) {
+			KeyValueStore.Batch batch = new KeyValueStore.Batch();
+			copyMessages(batch, KeyValueStorage.ROOM_MESSAGES, chatroomID, from.readRoomMessages(chatroomID));
+			copyMessages(batch, KeyValueStorage.CHAT_LOG, chatroomID, from.readChatLog(chatroomID));
+			to.getStore().write(batch);
+			to.writeMembers(chatroomID, from.readMembers(chatroomID));
+			chatrooms++;
+		}
+
+		to.writeAccounts(accountList);
+		to.writeChatroomIDs(chatroomIDs);
+		to.getStore().put(KeyValueStorage.IMPORTED, Long.toString(System.currentTimeMillis()).getBytes());
+	}
+
+	private void copyMessages(KeyValueStore.Batch batch, String family, int id, List<Message> copied) throws IOException {
+		to.putMessages(batch, family, id, copied);
+		messages += copied.size();
+	}
+
+	public String summary() {
+		return "Imported " + accounts + " accounts, " + chatrooms + " chatrooms and " + messages + " messages";
+	}
+}
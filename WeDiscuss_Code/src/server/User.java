@@ -1,91 +1,103 @@
 package server;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 import java.io.*;
 
 
 
+import shared.FileStorage;
 import shared.Message;
-import shared.MessageCreator;
-import shared.MessageType;
+import shared.Storage;
+import shared.UserProfile;
 
 public class User implements Serializable{
 	//static counter to generate unique IDs
 	
 	private static final long serialVersionUID = 1L;
 	
-	private static int IDCounter = 0;
+	private static final AtomicInteger IDCounter = new AtomicInteger(); // The highest id loaded or given out
 	
-	private String username;
-	private String password;
+	public static final int DEFAULT_INBOX_WINDOW = 200;
+	
+	private volatile String username; // Changed only by UserDirectory.rename
+	private volatile String password;
 	private int ID;
-	private boolean status; //False = offline, True = online
+	private volatile boolean status; //False = offline, True = online
 	private boolean adminStatus; //False = non-admin, True = admin
-	private List<Message> messageInbox = Collections.synchronizedList(new ArrayList<Message>());
 	private List<Integer> involvedChatrooms = Collections.synchronizedList(new ArrayList<Integer>());
 	
+	/* Only the newest inboxWindow direct messages are kept, and only while the inbox is loaded (from login
+	 * to logout, or until it sits unread for long, unloadIdleInbox()); null otherwise. Everything older is read from disk a page at a time, readOlderMessages(). */
+	private List<Message> messageInbox = null;
+	private ConcurrentHashMap<Integer, List<Message>> messagesFromUsers = null;
+	private int inboxWindow = DEFAULT_INBOX_WINDOW;
+	private long inboxStart = 0; // How many of the user's messages are older than messageInbox
+	private long loggedThrough = -1; // Last MessageLog position read into messageInbox, later ones get added
+	private volatile long inboxUsedAt; // When the loaded window was last read, see unloadIdleInbox()
+	private volatile int filedCount = -1; // Size of the stored inbox once a MessageLog takes the new messages, -1 until read
+	
+	// Guards inbox/chatroom changes together with their storage writes (ReentrantLock so virtual threads don't pin)
+	private final ReentrantLock lock = new ReentrantLock();
 	
-	private ConcurrentHashMap<Integer, List<Message>> messagesFromUsers = new ConcurrentHashMap<Integer, List<Message>>();
+	private transient Storage storage; // Where the inbox and chatroom list are saved, only set on the server's copy
 	
 	
 
 	
+	// Users load in parallel at startup and are added from many handler threads, neither takes a lock
+	private static void noteID(int userID) {
+		IDCounter.accumulateAndGet(userID, Math::max);
+	}
+	
+	private static int nextID() {
+		return IDCounter.incrementAndGet();
+	}
+	
 	//Constructor when loading
 	public User(String username, String password, boolean adminStatus, int userID) {
+		this(username, password, adminStatus, userID, FileStorage.INSTANCE);
+	}
+	
+	public User(String username, String password, boolean adminStatus, int userID, Storage storage) {
+		this.storage = storage;
 		this.username = username;
 		this.password = password;
 		this.adminStatus = adminStatus;
 		this.ID = userID;
 		
 		//just for keeping it
-		if(userID >= IDCounter)
-		{
-			IDCounter = userID;
-		}
+		noteID(userID);
 		
 		
 		this.status = false; //Initially offline
-		loadMessageInbox();
-		loadChatrooms();
+		loadChatrooms(); // The inbox loads at login
 		
 		
 	}
 	//
 	//Constructor when making new account
 		public User(String username, String password, boolean adminStatus) {
+			this(username, password, adminStatus, FileStorage.INSTANCE);
+		}
+		
+		public User(String username, String password, boolean adminStatus, Storage storage) {
+			this.storage = storage;
 			this.username = username;
 			this.password = password;
 			this.adminStatus = adminStatus;
 			//increment ID Counter
-			IDCounter += 1;
-			this.ID = IDCounter;
+			this.ID = nextID();
 			
 			
 			this.status = false; //Initially offline
+			this.messageInbox = Collections.synchronizedList(new ArrayList<Message>()); // Nothing to load yet
+			this.messagesFromUsers = new ConcurrentHashMap<Integer, List<Message>>();
 			
-			String messageFile = Integer.toString(ID) + "Inbox.txt";
 			try {
-	            File file = new File(messageFile);
-
-	            if (file.createNewFile()) {
-	                
-	            } else {
-	                System.out.println("File already exists. USER ERROR");
-	            }
-	        } catch (IOException e) {
-	            e.printStackTrace();
-	        }
-			
-			String chatsFile = Integer.toString(ID) + "Chats.txt";
-			
-			try {
-	            File file = new File(chatsFile);
-
-	            if (file.createNewFile()) {
-	                
-	            } else {
-	                System.out.println("File already exists. USER ERROR");
-	            }
+				storage.createUser(ID);
 	        } catch (IOException e) {
 	            e.printStackTrace();
 	        }
@@ -98,163 +110,133 @@ public class User implements Serializable{
 		
 	//Load messages from inbox file
 	public void loadMessageInbox() {
-		
-		//make sure the file exists first
-		String messageFiles = Integer.toString(ID) + "Inbox.txt";
+		loadMessageInbox(null, DEFAULT_INBOX_WINDOW);
+	}
+	
+	/* Loads the newest window of the user's direct messages: the stored inbox (all of them without a
+	 * MessageLog, otherwise the ones from before it) followed by the MessageLog's. Nothing if already loaded. */
+	public void loadMessageInbox(MessageLog messageLog, int window) {
+		lock.lock();
 		try {
-            File file = new File(messageFiles);
-
-            if (file.createNewFile()) {
-                
-            } else {
-            	
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-		
-		
-		//then load the data
-		try 
-		{
-			String messageFile = Integer.toString(ID) + "Inbox.txt";
+			if(messageInbox != null) return;
 			
-			File myFile = new File(messageFile);
-			Scanner reader = new Scanner(myFile);
-
-			//first populate the messages of the inbox
-			while (reader.hasNextLine())
-			{
-				//getline and set delimiters
-				Scanner line = new Scanner(reader.nextLine()).useDelimiter("\\|"); // \\s+ means whitespace
-				
-				ArrayList<String> token = new ArrayList<String>();
-				line.tokens();
-				
-				//grab all the tokens
-				while(line.hasNext())
-				{
-					token.add(line.next());
-				}
-				
-				//if there are more or less than 7 tokens, then it is invalid
-				if (token.size() != 7)
-				{
-					System.out.println("its skipping!!");
-					line.close(); //do nothing and skip this iteration
-            		continue;
-				}
-				
-				
-				
-				//add all message to the arraylist
-				Message add;
-				MessageCreator create;
-				create = new MessageCreator(MessageType.UTU);
-				
-				create.setContents(token.get(0)); //add the message
-				create.setDate(Long.parseLong(token.get(1))); // add the date
-				create.setToUserName(token.get(2)); //add the toUsername
-				create.setToUserID(Integer.parseInt(token.get(3))); //add the toUserid
-				
-				create.setFromUserName(token.get(4)); //add from username
-				create.setFromUserID(Integer.parseInt(token.get(5))); //add from user id
-				
-				
-				add = new Message(create);
-				
-				messageInbox.add(add);
-				
-				int toUserID = Integer.parseInt(token.get(3));
-				int fromUserID = Integer.parseInt(token.get(5));
-				
-				
-				//check if the message is one thats sent or received, then add it to the hashmap
-				if(fromUserID == ID)
-				{
-					//first check if it exists in the map
-					if (!messagesFromUsers.containsKey(toUserID))
-					{
-						messagesFromUsers.put(toUserID, new ArrayList<Message>());
-					}
-					messagesFromUsers.get(toUserID).add(add);
-				}
-				else
-				{
-					//first check if it exists in the map
-					if (!messagesFromUsers.containsKey(Integer.parseInt(token.get(5))))
-					{
-						messagesFromUsers.put(fromUserID, new ArrayList<Message>());
-					}
-					messagesFromUsers.get(fromUserID).add(add);
-				}
-				
-				line.close();
+			List<Message> newest = new ArrayList<Message>(); // Newest first
+			int logged = messageLog == null ? 0 : messageLog.getUserMessageCount(ID);
+			long through = logged == 0 ? -1 : messageLog.getUserMessagePosition(ID, logged - 1);
+			if(logged > 0) {
+				messageLog.readUserBefore(ID, logged, window, message -> true, newest);
 			}
-			reader.close();
+			List<Message> filed = storage().readInbox(ID);
+			for(int i = filed.size() - 1; i >= 0 && newest.size() < window; i--) {
+				newest.add(filed.get(i));
+			}
+			if(messageLog != null) filedCount = filed.size();
 			
+			inboxWindow = window;
+			inboxUsedAt = System.currentTimeMillis();
+			inboxStart = filed.size() + logged - newest.size();
+			loggedThrough = through;
+			messageInbox = Collections.synchronizedList(new ArrayList<Message>(newest.size()));
+			messagesFromUsers = new ConcurrentHashMap<Integer, List<Message>>();
+			for(int i = newest.size() - 1; i >= 0; i--) {
+				keepInInbox(newest.get(i));
+			}
+		}
+		catch(IOException e) {
+			e.printStackTrace();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	// Drops the inbox from memory, e.g. at logout
+	public void unloadMessageInbox() {
+		lock.lock();
+		try {
+			messageInbox = null;
+			messagesFromUsers = null;
+		}
+		finally {
+			lock.unlock();
 		}
-		catch (IOException e) {
-        	e.printStackTrace();
-        }
 	}
+	
+	/* Drops the loaded window of an online user nothing has read since idleSince (a currentTimeMillis time),
+	 * e.g. a session left open for days. New messages then only go to the log and to their client, the
+	 * next login loads it again. Returns whether it did. */
+	public boolean unloadIdleInbox(long idleSince) {
+		lock.lock();
+		try {
+			if(messageInbox == null || inboxUsedAt >= idleSince) return false;
+			messageInbox = null;
+			messagesFromUsers = null;
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	public boolean isInboxLoaded() {
+		return messageInbox != null;
+	}
+	
+	/* Reads up to max of the user's direct messages that pass the filter, newest first, starting just below
+	 * before (the n-th message counting the stored inbox's first, then the MessageLog's). Returns the index
+	 * to continue below, or -1 once there are no older ones. getInboxStart() is where the window begins.
+	 * With a MessageLog the stored inbox no longer grows, so only its size is kept: a page among the logged
+	 * messages seeks there through the user's positions and costs the page, only the older ones read it. */
+	public long readOlderMessages(MessageLog messageLog, long before, int max, Predicate<Message> filter, List<Message> into) throws IOException {
+		inboxUsedAt = System.currentTimeMillis();
+		List<Message> filed = null;
+		int stored = filedCount;
+		if(messageLog == null || stored < 0) {
+			filed = storage().readInbox(ID);
+			stored = filed.size();
+			if(messageLog != null) filedCount = stored;
+		}
+		int added = 0;
+		long index = before;
+		if(messageLog != null && before > stored) {
+			int start = into.size();
+			long next = messageLog.readUserBefore(ID, before - stored, max, filter, into);
+			added = into.size() - start;
+			if(next >= 0) return stored + next;
+			index = stored;
+		}
+		if(index <= 0) return -1;
+		if(added == max) return index;
 		
+		if(filed == null) filed = storage().readInbox(ID);
+		int at = (int) Math.max(0, Math.min(index, filed.size()));
+		while(at > 0) {
+			if(added == max) return at;
+			Message message = filed.get(--at);
+			if(filter.test(message)) {
+				into.add(message);
+				added++;
+			}
+		}
+		return -1;
+	}
+	
+	// The messages saved in a user's NInbox.txt file, oldest first
+	public static List<Message> readInboxFile(int userID) throws IOException {
+		return FileStorage.INSTANCE.readInbox(userID);
+	}
+	
+	// A copy a client received has none, it saves to the files like the demo always did
+	private Storage storage() {
+		return storage == null ? FileStorage.INSTANCE : storage;
+	}
 
-	//Load chatrooms IDs from the chatrooms file
+	//Load chatrooms IDs from the user's saved chatroom list
 	public void loadChatrooms() {
-		
-		String chatsFiles = Integer.toString(ID) + "Chats.txt";
-		
-		try {
-            File file = new File(chatsFiles);
-
-            if (file.createNewFile()) {
-                
-            } else {
-                
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-		
 		try 
 		{
-			
-			String chatsFile = Integer.toString(ID) + "Chats.txt";
-			
-			File File = new File(chatsFile);
-			Scanner readers = new Scanner(File);
-
-			//first populate the chatroom ids
-			while (readers.hasNextLine())
-			{
-				//getline and set delimiters
-				Scanner line = new Scanner(readers.nextLine()).useDelimiter("\\s+"); // \\s+ means whitespace
-				
-				ArrayList<String> token = new ArrayList<String>();
-				line.tokens();
-				
-				//grab all the tokens
-				while(line.hasNext())
-				{
-					token.add(line.next());
-				}
-				
-				//if there are more or less than 1 tokens, then it is invalid
-				if (token.size() != 1)
-				{
-					line.close(); //do nothing and skip this iteration
-            		continue;
-				}
-				
-				//add chatroom ids to array
-				involvedChatrooms.add(Integer.valueOf(token.get(0)));
-				
-				line.close();
-			}
-			readers.close();
-			
-			
+			storage().createUser(ID);
+			involvedChatrooms.addAll(storage().readUserChatrooms(ID));
 		}
 		catch (IOException e) {
         	e.printStackTrace();
@@ -267,32 +249,25 @@ public class User implements Serializable{
 		
 	//save chatroom ID to chatrooms file
 	public void saveChatrooms() {
-		
-		String chatsFile = Integer.toString(ID) + "Chats.txt";
-		
+		lock.lock();
 		try
 		{
-			FileWriter myFile = new FileWriter(chatsFile); //open file to save on
-			for (int i=0; i<involvedChatrooms.size(); i++)
-			{
-				int userID = involvedChatrooms.get(i);
-				
-				//write information to file
-				myFile.write(Integer.toString(userID));
-				myFile.write("\n");
-			}
-			myFile.close();
+			storage().writeUserChatrooms(ID, involvedChatrooms);
 		}
 		catch(IOException e)
 		{
 			e.printStackTrace();
 		}
+		finally
+		{
+			lock.unlock();
+		}
 	}	
 		
 	//display messages in inbox with console formatting for testing without GUI use
 	//thought this could be useful 
 	public void displayMessageInboxToConsole() {
-		for (Message message : messageInbox) {
+		for (Message message : getMessageInbox()) {
 			System.out.println("From: " + message.getFromUserName());
 			System.out.println("Date: " + message.getDateSent());
 			System.out.println("Type: " + message.getMessageType());
@@ -343,22 +318,89 @@ public class User implements Serializable{
 	//Add a chatroom to the user's involved chatrooms list
 	//Update: added functionality to save inovolved chatroomID to chatroom file
 	public void addChatroom(int chatroomID) {
-		if (!involvedChatrooms.contains(chatroomID)) {
-			involvedChatrooms.add(chatroomID);
-			saveChatrooms();
+		lock.lock();
+		try {
+			if (!involvedChatrooms.contains(chatroomID)) {
+				involvedChatrooms.add(chatroomID);
+				storage().addUserChatroom(ID, chatroomID); // Appends the one change, the rest of the list stays as it is
+			}
+		}
+		catch(IOException e) {
+			e.printStackTrace();
+		}
+		finally {
+			lock.unlock();
 		}
 	}
 	
 	public void removeChatroom(int chatroomID) {
-		if (involvedChatrooms.contains(chatroomID)) {
-			involvedChatrooms.remove(chatroomID);
-			saveChatrooms();
+		lock.lock();
+		try {
+			if (involvedChatrooms.contains(chatroomID)) {
+				involvedChatrooms.remove((Integer) chatroomID); // remove by value, not by index
+				storage().removeUserChatroom(ID, chatroomID);
+			}
+		}
+		catch(IOException e) {
+			e.printStackTrace();
+		}
+		finally {
+			lock.unlock();
 		}
 	}
 	
 	//Add a message to the user's inbox
 	//Update: added ability to save message to file
+	// Saved once for both users it's between, see addStoredMessage for the other one
 	public void addToInbox(Message message) {
+		lock.lock();
+		try {
+			storeInInbox(message);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	// For a message already saved by the other user's addToInbox, only kept in memory here
+	public void addStoredMessage(Message message) {
+		lock.lock();
+		try {
+			keepInInbox(message);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	// For a message the server has already stored in its MessageLog at position, only kept in memory here
+	public void addLoggedMessage(Message message, long position) {
+		lock.lock();
+		try {
+			if(position > loggedThrough) keepInInbox(message); // Otherwise loading the inbox already read it
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	private void storeInInbox(Message message) {
+		keepInInbox(message);
+		
+		//append the message to the saved inbox
+		try
+		{
+			storage().appendMessage(message);
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	// Adds to the loaded window, the oldest message dropping out once it's full. Nothing to do if not loaded.
+	private void keepInInbox(Message message) {
+		if(this.messageInbox == null) return;
 		this.messageInbox.add(message);
 		
 		int toUserID = message.getToUserID();
@@ -368,7 +410,7 @@ public class User implements Serializable{
 			//first check if it exists in the map
 			if (!messagesFromUsers.containsKey(toUserID))
 			{
-				messagesFromUsers.put(toUserID, new ArrayList<Message>());
+				messagesFromUsers.put(toUserID, Collections.synchronizedList(new ArrayList<Message>()));
 			}
 			messagesFromUsers.get(toUserID).add(message);
 		}
@@ -377,35 +419,26 @@ public class User implements Serializable{
 			//first check if it exists in the map
 			if (!messagesFromUsers.containsKey(fromUserID))
 			{
-				messagesFromUsers.put(fromUserID, new ArrayList<Message>());
+				messagesFromUsers.put(fromUserID, Collections.synchronizedList(new ArrayList<Message>()));
 			}
 			messagesFromUsers.get(fromUserID).add(message);
 		}
 		
-		
-		//append the message to the messagesFile
-		String messageFile = Integer.toString(ID) + "Inbox.txt";
-		try
-		{
-			FileWriter myFile = new FileWriter(messageFile, true); //open file in append mode
-			
-			String line = message.storeInboxMessage(); //get storable message
-				
-			//write information at the end of the file
-			myFile.write(line);
-			myFile.write("\n");
-			myFile.close();
-			
-		}
-		catch(IOException e)
-		{
-			e.printStackTrace();
+		if(this.messageInbox.size() > inboxWindow) {
+			Message oldest = this.messageInbox.remove(0);
+			int otherUserID = oldest.getFromUserID() == ID ? oldest.getToUserID() : oldest.getFromUserID();
+			List<Message> conversation = messagesFromUsers.get(otherUserID);
+			if(conversation != null) {
+				conversation.remove(oldest);
+				if(conversation.isEmpty()) messagesFromUsers.remove(otherUserID);
+			}
+			inboxStart++;
 		}
 	}
 	
 	//Display all messages in the user's inbox
 	public void displayMessageInbox() {
-		for (Message message : messageInbox) {
+		for (Message message : getMessageInbox()) {
 			System.out.println(message.toString());
 		}
 	}
@@ -420,9 +453,64 @@ public class User implements Serializable{
 		this.status = status;
 	}
 	
+	// Marks the user online, false if they already were, so only one of two logins gets through
+	public boolean markOnline() {
+		lock.lock();
+		try {
+			if(status) return false;
+			status = true;
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	// Marks the user offline, false if they weren't online
+	public boolean markOffline() {
+		lock.lock();
+		try {
+			if(!status) return false;
+			status = false;
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	// Only UserDirectory renames, it moves the user between its name views at the same time
+	void setUsername(String username) {
+		this.username = username;
+	}
+	
+	// Empty while the inbox isn't loaded
 	public ConcurrentHashMap<Integer, List<Message>> getMessagesFromUsers()
 	{
-		return this.messagesFromUsers;
+		ConcurrentHashMap<Integer, List<Message>> loaded = this.messagesFromUsers;
+		return loaded == null ? new ConcurrentHashMap<Integer, List<Message>>() : loaded;
+	}
+	
+	public List<Message> getMessageInbox() {
+		List<Message> loaded = this.messageInbox;
+		return loaded == null ? Collections.<Message>emptyList() : loaded;
+	}
+	
+	// What the user's LOGIN reply tells their client, a copy holding none of this User's state
+	public UserProfile getProfile() {
+		lock.lock();
+		try {
+			inboxUsedAt = System.currentTimeMillis();
+			return new UserProfile(ID, username, adminStatus, inboxStart, new ArrayList<Message>(getMessageInbox()));
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	// Index of the oldest message in the loaded window, the cursor for readOlderMessages() to continue below
+	public long getInboxStart() {
+		return inboxStart;
 	}
 	
 	
@@ -0,0 +1,275 @@
+package server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import shared.DirectoryDelta;
+import shared.DirectoryPage;
+import shared.Storage;
+import shared.UserQuery;
+
+/* Every account, one User per account, found by id or by username in O(1), plus the usernames in a
+ * case-insensitively sorted array for prefix search, see find(). The views sit in one immutable Snapshot
+ * that a write rebuilds and swaps in under the write lock, so lookups take no lock and see an add, delete
+ * or rename in every view or in none. Accounts change rarely, so a write copying the views is cheap
+ * enough; logging in doesn't write, being online is the User's own flag.
+ * Writes save the account to storage first and change nothing if that fails. Each directory change is
+ * recorded in the DirectoryHistory under the same lock, a Snapshot's version always matching it. */
+public class UserDirectory {
+	private final Storage storage;
+	private final DirectoryHistory history;
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private volatile Snapshot snapshot;
+
+	public UserDirectory(Collection<User> users, Storage storage, DirectoryHistory history) {
+		this.storage = storage;
+		this.history = history;
+		Map<Integer, User> byID = new HashMap<Integer, User>(users.size() * 2);
+		Map<String, User> byName = new HashMap<String, User>(users.size() * 2);
+		for(User user : users) {
+			byID.put(user.getID(), user);
+			byName.put(user.getUsername(), user);
+		}
+		Name[] sorted = new Name[users.size()];
+		int i = 0;
+		for(User user : byID.values()) {
+			sorted[i++] = new Name(user.getID(), user.getUsername());
+		}
+		Arrays.sort(sorted, NAME_ORDER);
+		this.snapshot = new Snapshot(byID, byName, sorted, history.getVersion());
+	}
+
+	public User get(int userID) {
+		return snapshot.byID.get(userID);
+	}
+
+	public User get(String username) {
+		return username == null ? null : snapshot.byName.get(username);
+	}
+
+	public boolean contains(String username) {
+		return get(username) != null;
+	}
+
+	public int size() {
+		return snapshot.byID.size();
+	}
+
+	// Every user in id order, a copy
+	public List<User> getUsers() {
+		List<User> users = new ArrayList<User>(snapshot.byID.values());
+		users.sort(Comparator.comparingInt(User::getID));
+		return users;
+	}
+
+	public List<Integer> getUserIDs() {
+		List<Integer> ids = new ArrayList<Integer>(snapshot.byID.keySet());
+		Collections.sort(ids);
+		return ids;
+	}
+
+	// False if the username is taken
+	public boolean add(User user) throws IOException {
+		writeLock.lock();
+		try {
+			Snapshot current = snapshot;
+			if(current.byName.containsKey(user.getUsername())) return false;
+			save(user, user.getUsername());
+
+			Map<Integer, User> byID = new HashMap<Integer, User>(current.byID);
+			Map<String, User> byName = new HashMap<String, User>(current.byName);
+			byID.put(user.getID(), user);
+			byName.put(user.getUsername(), user);
+			long version = history.record(user.getID(), user.getUsername());
+			snapshot = new Snapshot(byID, byName, insert(current.sorted, new Name(user.getID(), user.getUsername())), version);
+			return true;
+		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+
+	// The removed user, null if there was none by that name
+	public User remove(String username) throws IOException {
+		writeLock.lock();
+		try {
+			Snapshot current = snapshot;
+			User user = current.byName.get(username);
+			if(user == null) return null;
+			storage.deleteAccount(user.getID());
+
+			Map<Integer, User> byID = new HashMap<Integer, User>(current.byID);
+			Map<String, User> byName = new HashMap<String, User>(current.byName);
+			byID.remove(user.getID());
+			byName.remove(username);
+			long version = history.record(user.getID(), null);
+			snapshot = new Snapshot(byID, byName, delete(current.sorted, new Name(user.getID(), username)), version);
+			return user;
+		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+
+	// False if there's no such user or the new name is taken
+	public boolean rename(int userID, String newName) throws IOException {
+		writeLock.lock();
+		try {
+			Snapshot current = snapshot;
+			User user = current.byID.get(userID);
+			if(user == null || current.byName.containsKey(newName)) return false;
+			save(user, newName);
+
+			Map<String, User> byName = new HashMap<String, User>(current.byName);
+			byName.remove(user.getUsername());
+			Name[] sorted = insert(delete(current.sorted, new Name(userID, user.getUsername())), new Name(userID, newName));
+			user.setUsername(newName);
+			byName.put(newName, user);
+			long version = history.record(userID, newName);
+			snapshot = new Snapshot(current.byID, byName, sorted, version);
+			return true;
+		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+
+	// False if there's no such user. Not a directory change, only the account is saved.
+	public boolean changePassword(String username, String password) throws IOException {
+		writeLock.lock();
+		try {
+			User user = snapshot.byName.get(username);
+			if(user == null) return false;
+			storage.putAccount(new Storage.Account(username, password, user.getAdminStatus(), user.getID()));
+			user.setPassword(password);
+			return true;
+		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+
+	private void save(User user, String username) throws IOException {
+		storage.putAccount(new Storage.Account(username, user.getPassword(), user.getAdminStatus(), user.getID()));
+	}
+
+	// Every user's id and name in id order, at the version it was copied at
+	public DirectoryPage getDirectory() {
+		Snapshot current = snapshot;
+		Map<Integer, String> users = new TreeMap<Integer, String>();
+		for(Name name : current.sorted) {
+			users.put(name.userID, name.username);
+		}
+		return new DirectoryPage(users, DirectoryPage.NO_MORE, current.version);
+	}
+
+	// What a client holding knownVersion is missing, null if it needs the whole directory instead
+	public DirectoryDelta getChanges(long knownVersion) {
+		return history.since(knownVersion);
+	}
+
+	public long getVersion() {
+		return snapshot.version;
+	}
+
+	/* Up to the query's pageSize users whose name starts with its prefix, ignoring case, in name order, from
+	 * just after its after name. DirectoryPage's nextCursor only says whether there are more, the next page
+	 * is asked for with query.next(page). */
+	public DirectoryPage find(UserQuery query) {
+		Snapshot current = snapshot;
+		String key = key(query.getPrefix());
+		int i = firstAtOrAfter(current.sorted, key);
+		if(!query.getAfter().isEmpty()) {
+			Name after = new Name(-1, query.getAfter());
+			i = Math.max(i, firstAtOrAfter(current.sorted, after.key));
+			while(i < current.sorted.length && NAME_ORDER.compare(current.sorted[i], after) <= 0) i++; // Same key, up to and including after
+		}
+		Map<Integer, String> found = new LinkedHashMap<Integer, String>();
+		for(; i < current.sorted.length && found.size() < query.getPageSize(); i++) {
+			Name name = current.sorted[i];
+			if(!name.key.startsWith(key)) break;
+			found.put(name.userID, name.username);
+		}
+		boolean more = i < current.sorted.length && current.sorted[i].key.startsWith(key);
+		return new DirectoryPage(found, more ? found.size() : DirectoryPage.NO_MORE, current.version);
+	}
+
+	private static String key(String username) {
+		return username.toLowerCase(Locale.ROOT);
+	}
+
+	private static final Comparator<Name> NAME_ORDER = Comparator.comparing((Name name) -> name.key).thenComparing(name -> name.username);
+
+	private static int firstAtOrAfter(Name[] sorted, String key) {
+		int low = 0;
+		int high = sorted.length;
+		while(low < high) {
+			int middle = (low + high) >>> 1;
+			if(sorted[middle].key.compareTo(key) < 0) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	private static Name[] insert(Name[] sorted, Name name) {
+		int at = Arrays.binarySearch(sorted, name, NAME_ORDER);
+		at = at < 0 ? -at - 1 : at;
+		Name[] copy = new Name[sorted.length + 1];
+		System.arraycopy(sorted, 0, copy, 0, at);
+		copy[at] = name;
+		System.arraycopy(sorted, at, copy, at + 1, sorted.length - at);
+		return copy;
+	}
+
+	private static Name[] delete(Name[] sorted, Name name) {
+		int at = Arrays.binarySearch(sorted, name, NAME_ORDER);
+		if(at < 0) return sorted;
+		Name[] copy = new Name[sorted.length - 1];
+		System.arraycopy(sorted, 0, copy, 0, at);
+		System.arraycopy(sorted, at + 1, copy, at, sorted.length - at - 1);
+		return copy;
+	}
+
+	// Never changed once published
+	private static final class Snapshot {
+		final Map<Integer, User> byID;
+		final Map<String, User> byName;
+		final Name[] sorted; // By NAME_ORDER
+		final long version;
+
+		Snapshot(Map<Integer, User> byID, Map<String, User> byName, Name[] sorted, long version) {
+			this.byID = byID;
+			this.byName = byName;
+			this.sorted = sorted;
+			this.version = version;
+		}
+	}
+
+	// A username as the snapshot holds it, the User's own name can change after
+	private static final class Name {
+		final int userID;
+		final String username;
+		final String key; // Lower case, what the search matches
+
+		Name(int userID, String username) {
+			this.userID = userID;
+			this.username = username;
+			this.key = key(username);
+		}
+	}
+}
@@ -1,6 +1,4 @@
 package server;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -10,110 +8,97 @@ import java.util.concurrent.*;
 import shared.*;
 
 public class UserManager {
-	// all maps 
-	protected ConcurrentHashMap<String, String> validUsers = new ConcurrentHashMap<String, String>(); // map of all valid username/pw combos
-
-	private ConcurrentHashMap<String, String> adminStatus = new ConcurrentHashMap<String, String>(); // map of admin status
-	private ConcurrentHashMap<Integer, String> userIDToUsername = new ConcurrentHashMap<Integer, String>(); // id to username
-	private ConcurrentHashMap<String, Integer> usernameToUserID = new ConcurrentHashMap<String, Integer>(); // username to id
-	private ConcurrentHashMap<String, User> allUsers = new ConcurrentHashMap<String, User>(); // map of all existing users to usernames
+	// Every account, found by id or name, with its prefix index and directory versions
+	private final UserDirectory directory;
 	
-	private List<String> activeUsers = Collections.synchronizedList(new ArrayList<String>()); // list of active users
-	private List<String> allUsernames = Collections.synchronizedList(new ArrayList<String>()); // list of all usernames
+	// Where accounts and each user's chatroom list and inbox are saved. Every account change is saved
+	// there before it's acknowledged, so there's nothing left to save at shutdown.
+	private final Storage storage;
 	
-	private List<Integer> allUserIDs = Collections.synchronizedList(new ArrayList<Integer>()); // list of all userIDs
+	private MessageLog messageLog; // Where direct messages are stored, null to use the inbox files
+	private final int inboxWindow = Integer.getInteger("wediscuss.inboxWindow", User.DEFAULT_INBOX_WINDOW); // Newest messages kept per online user
 	
-	//filename
-	private String userFile = "UserFile.txt";
 	
-	private boolean modified = false;
+	public UserManager() 
+	{
+		this(new StartupLoader());
+	}
 	
+	public UserManager(StartupLoader startup)
+	{
+		this(startup, FileStorage.INSTANCE);
+	}
 	
-	public UserManager() 
+	// Reads the accounts, then every user's chatroom list in parallel on the startup loader's pool
+	public UserManager(StartupLoader startup, Storage storage)
 	{
-		
+		this.storage = storage;
+		List<User> users = new ArrayList<User>();
 		try //this will populate the valid user accounts
 		{
-			File myFile = new File(userFile);
-			Scanner reader = new Scanner(myFile);
-		
-			while (reader.hasNextLine())
-			{
-				//getline and set delimiters
-				Scanner line = new Scanner(reader.nextLine()).useDelimiter("\\s+"); // \\s+ means whitespace
-				
-				ArrayList<String> token = new ArrayList<String>();
-				line.tokens();
-				
-				//grab all the tokens
-				while(line.hasNext())
-				{
-					token.add(line.next());
-				}
-				
-				//if there are more or less than 4 tokens, then it is invalid
-				if (token.size() != 4)
-				{
-					line.close(); //do nothing and skip this iteration
-            		continue;
-				}
-				
-				//get userid to store
-				Integer id = Integer.valueOf(token.get(3));
-				
-				allUsernames.add(token.get(0));
-				validUsers.put(token.get(0), token.get(1)); //add username and password to map
-				adminStatus.put(token.get(0), token.get(2)); //add admin status to username
-				userIDToUsername.put(id,  token.get(0));
-				usernameToUserID.put(token.get(0), id);
-				
-				//create user and add it to list of all users
-				User makeuser = new User(token.get(0), token.get(1), Boolean.valueOf(token.get(2)), id);
-				allUsers.put(token.get(0), makeuser);
-				allUserIDs.add(id);
-				
-				line.close();
-			}
-			reader.close();
+			startup.countFile(StartupLoader.USERS, storage, "UserFile.txt");
+			List<Storage.Account> accounts = storage.readAccounts();
+			
+			//create the users, each reading its chats
+			users = startup.load(StartupLoader.USERS, accounts, account -> {
+				User makeuser = new User(account.getUsername(), account.getPassword(), account.isAdmin(), account.getUserID(), storage);
+				startup.countFile(StartupLoader.USERS, storage, makeuser.getID() + "Chats.txt");
+				return makeuser;
+			});
+			
 		}
 		catch (IOException e) {
         	e.printStackTrace();
         }
+		directory = new UserDirectory(users, storage, new DirectoryHistory(Integer.getInteger("wediscuss.directoryHistory", DirectoryHistory.DEFAULT_CAPACITY)));
 	}
 	
 	
+	// Stores new direct messages in the log, an inbox is then its stored inbox followed by its logged messages
+	public void useMessageLog(MessageLog messageLog) throws IOException {
+		this.messageLog = messageLog;
+	}
+	
 	public List<Integer> getAllUserIDs(){
-		return allUserIDs;
+		return directory.getUserIDs();
 	}
 	
 	public String getUsername(int id)
 	{
-		String find;
-		find = userIDToUsername.get(id);
-		//if id is not found, 'find' will be labeled as null
-		return find;
+		User find = directory.get(id);
+		//if id is not found, the name is null
+		return find == null ? null : find.getUsername();
 		
 	}
 	
+	// Every user's id and name in id order, copied so the reply never holds the live map
+	public DirectoryPage getDirectory() {
+		return directory.getDirectory();
+	}
+	
+	// What a client holding knownVersion is missing, null if it needs the whole directory instead
+	public DirectoryDelta getDirectoryChanges(long knownVersion) {
+		return directory.getChanges(knownVersion);
+	}
+	
+	public long getDirectoryVersion() {
+		return directory.getVersion();
+	}
+
 	public User getUser(int userID)
 	{
-		String grab = getUsername(userID);
-		User find = allUsers.get(grab);
-		
-		return find;
-		
+		return directory.get(userID);
 	}
 	
 	public int getUserID(String username)
 	{
-		Integer find;
-		find = usernameToUserID.get(username);
-		//if username is not found, 'find' will be labeled as null
+		User find = directory.get(username);
+		//if username is not found, the id is -1
 		if (find == null)
 		{
 			return -1;
 		}
-		return find;
+		return find.getID();
 		
 	}
 	
@@ -135,41 +120,54 @@ public class UserManager {
 	            return -1;
 	        }
 
+	        // username password, then the directory version the client has cached if it has one
 	        String[] split = input.split("\\s+");
-	        if (split.length != 2) {
+	        if (split.length != 2 && split.length != 3) {
 	            create.setContents("Error: Invalid number of arguments.");
 	            out.writeObject(Send);
 	            return -1;
 	        }
 
 	        // Check if username exists and is not logged in already
-	        if (!validUsers.containsKey(split[0])) {
+	        User loggedIn = directory.get(split[0]);
+	        if (loggedIn == null) {
 	            create.setContents("Error: User does not exist.");
 	            out.writeObject(Send);
 	            return -1;
 	        }
 
-	        if (activeUsers.contains(split[0])) {
+	        if (loggedIn.getStatus()) {
 	            create.setContents("Error: User already logged in.");
 	            out.writeObject(Send);
 	            return -1;
 	        }
 
-	        String storedPassword = validUsers.get(split[0]).trim();
+	        String storedPassword = loggedIn.getPassword().trim();
 	        String clientPassword = split[1].trim();
 
-	        if (storedPassword.equals(clientPassword)) {	            
+	        if (storedPassword.equals(clientPassword)) {
+	            if (!loggedIn.markOnline()) { // Another login got there first
+	                create.setContents("Error: User already logged in.");
+	                out.writeObject(Send);
+	                return -1;
+	            }
 	            create.setContents("Success");
-	            create.setUser(allUsers.get(split[0]));
+	            loggedIn.loadMessageInbox(messageLog, inboxWindow); // Goes to the client with the newest messages
+	            create.setProfile(loggedIn.getProfile());
 	            
-	            create.setUserMap(userIDToUsername);
+	            DirectoryDelta changes = split.length == 3 ? getDirectoryChanges(parseVersion(split[2])) : null;
+	            if (changes != null) {
+	            	create.setDirectoryDelta(changes);
+	            }
+	            else {
+	            	create.setDirectory(getDirectory());
+	            }
 	            
-	            create.setChatroomMap(chatroomManager.getUserChatrooms(getUserID(split[0])));
+	            create.setRooms(chatroomManager.getUserRoomSummaries(loggedIn.getID()));
 	            
 	            Send = new Message(create);
 	            out.writeObject(Send);  
-	            activeUsers.add(split[0]);  
-	            return getUserID(split[0]); 
+	            return loggedIn.getID(); 
 	        }
 
 	        create.setContents("Error: Incorrect password.");
@@ -181,6 +179,16 @@ public class UserManager {
 	    }
 	    return -1;
 	}
+	
+	// A version that isn't a number is treated as none, the client then gets the whole directory
+	private static long parseVersion(String version) {
+		try {
+			return Long.parseLong(version);
+		}
+		catch(NumberFormatException e) {
+			return DirectoryPage.NO_VERSION;
+		}
+	}
 
 	
 	public int addUser(ObjectOutputStream out, Message message)
@@ -205,31 +213,32 @@ public class UserManager {
 			}  
 		    
 		    //check if already exists
-		    if (validUsers.containsKey(message.getToUserName()))
+		    if (directory.contains(message.getToUserName()))
 		    {
 		    	out.writeObject(Send);
 		    	return -1;
 		    }
 
-			//create user and add it to list of all users
-			User makeuser = new User(message.getToUserName(), password, false);
-		    //then add credentials to valid user map
-		    validUsers.put(makeuser.getUsername(), makeuser.getPassword()); //add username and password to map
-		    
-			allUsernames.add(makeuser.getUsername()); // add to all Username map
-			allUsers.put(makeuser.getUsername(), makeuser);
-			allUserIDs.add(makeuser.getID());
-			
-			// adminStatus.put(token.get(0), token.get(2)); //add admin status to username
-			
-			userIDToUsername.put(makeuser.getID(),  makeuser.getUsername());
-			usernameToUserID.put(makeuser.getUsername(),  makeuser.getID());
-			
+			//create user, then save and add it in one step, which fails if the name was taken meanwhile
+			User makeuser = new User(message.getToUserName(), password, false, storage);
+			try
+			{
+				if(!directory.add(makeuser))
+				{
+					out.writeObject(Send);
+					return -1;
+				}
+			}
+			catch(IOException e)
+			{
+				System.err.println("Error saving account change: " + e.getMessage());
+				out.writeObject(Send);
+				return -1;
+			}
 		    
 		    create.setContents("Success");
 			Send = new Message(create);// create an accept message
 		    out.writeObject(Send); //send message
-		    modified = true;
 		    
 		    return makeuser.getID();
 		    
@@ -272,17 +281,12 @@ public class UserManager {
 		    }
 		    
 		    
-		    //check if already exists inorder to change
-		    if (validUsers.containsKey(split[0]))
+		    //change it if the account exists
+		    if (changePassword(split[0], split[1]))
 		    {
-		    	validUsers.put(split[0], split[1]);
-		    	User toChange = allUsers.get(split[0]);
-		    	toChange.setPassword(split[1]);
-		    	
 		    	create.setContents("Success");
 				Send = new Message(create);// create an accept message
 		    	out.writeObject(Send);//send success message
-		    	modified = true;
 		    	return;
 		    }
 		    
@@ -316,11 +320,13 @@ public class UserManager {
 			}
 			
 			
-			Integer id = getUserID(message.getToUserName()); // get user id of receiver
+			User receivingUser = directory.get(message.getToUserName()); // the receiver
+			//additionally, the message goes in the sending user's inbox
+			User sendingUser = directory.get(message.getFromUserName());
 			
-			if(id != null) // if its valid
+			if(receivingUser != null && sendingUser != null) // if its valid
 			{
-				if(activeUsers.contains(message.getToUserName())) // only send out message if user is online
+				if(receivingUser.getStatus()) // only send out message if user is online
 				{
 					//get output stream for receiver
 					int receiver = message.getToUserID();
@@ -334,14 +340,16 @@ public class UserManager {
 					
 				}
 				
-				//then add the message to the receiving User's inbox file
-				User receivingUser = allUsers.get(message.getToUserName());
-				receivingUser.addToInbox(message);
-				
-				
-				//additionally, add the message to the sending user's inbox file
-				User sendingUser = allUsers.get(message.getFromUserName());
-				sendingUser.addToInbox(message);
+				//then add the message to the receiving User's inbox
+				if(messageLog != null) {
+					long position = messageLog.append(message); // One write covers both inboxes
+					receivingUser.addLoggedMessage(message, position);
+					if(sendingUser != receivingUser) sendingUser.addLoggedMessage(message, position);
+				}
+				else {
+					receivingUser.addToInbox(message); // Stores it for both
+					if(sendingUser != receivingUser) sendingUser.addStoredMessage(message);
+				}
 				
 				create.setContents("Success");
 				Send = new Message(create);// create an accept message 
@@ -390,20 +398,22 @@ public class UserManager {
 				return null;
 		    }
 		    
-		    //check if already exists inorder to remove
-		    if (validUsers.containsKey(removeName))
+		    //remove it from storage and every view at once if it exists
+		    User delUser;
+		    try
 		    {
-		    	User delUser = allUsers.get(removeName);
-		    	//get extra details of account being deleted
-		    	int removeID = getUserID(removeName);
-		    	
-		    	//remove from all local data
-		    	userIDToUsername.remove(removeID);
-		    	usernameToUserID.remove(removeName);
-		    	activeUsers.remove(removeName);
-		    	allUsernames.remove(removeName);	    	
-		    	allUsers.remove(removeName);
-		    	validUsers.remove(removeName);
+		    	delUser = directory.remove(removeName);
+		    }
+		    catch(IOException e)
+		    {
+		    	System.err.println("Error saving account change: " + e.getMessage());
+		    	out.writeObject(Send);
+		    	return null;
+		    }
+		    
+		    if (delUser != null)
+		    {
+		    	delUser.markOffline();
 		    	
 		    	/*
 		    	//return a success message
@@ -411,7 +421,6 @@ public class UserManager {
 				Send = new Message(create);// create an accept message
 		    	out.writeObject(Send);//send success message
 		    	*/
-		    	modified = true;
 		    	
 		    	//return the removed user id
 		    	return delUser;
@@ -429,29 +438,47 @@ public class UserManager {
 		
 	}
 	
-	public void saveUsers()
+	// Saves the new password, then changes it. False if there's no such account or it couldn't be saved.
+	private boolean changePassword(String username, String password)
 	{
-		
-		if (modified == false) // check if saving is needed
+		try
 		{
-			return;
+			return directory.changePassword(username, password);
 		}
+		catch(IOException e)
+		{
+			System.err.println("Error saving account change: " + e.getMessage());
+			return false;
+		}
+	}
+	
+	// Renames the account everywhere at once, clients get it as a directory change.
+	// False if there's no such user, the name is taken or it couldn't be saved.
+	public boolean renameUser(int userID, String newName)
+	{
 		try
 		{
-			FileWriter myFile = new FileWriter(userFile); //open file to save on
-			for (int i=0; i<allUsernames.size(); i++)
+			return directory.rename(userID, newName);
+		}
+		catch(IOException e)
+		{
+			System.err.println("Error saving account change: " + e.getMessage());
+			return false;
+		}
+	}
+	
+	// Writes every account out whole. Not needed to keep them, each change is saved as it's made.
+	public void saveUsers()
+	{
+		try
+		{
+			List<User> users = directory.getUsers();
+			List<Storage.Account> accounts = new ArrayList<Storage.Account>(users.size());
+			for (User user : users)
 			{
-				String username = allUsernames.get(i); //get username
-				String pw = validUsers.get(username); // get password
-				String admin = adminStatus.get(username); //get admin status
-				Integer id = getUserID(username); // get user id
-				
-				//writ information to file
-				myFile.write(username + " " + pw + " " + admin + " " + Integer.toString(id));
-				myFile.write("\r\n");
+				accounts.add(new Storage.Account(user.getUsername(), user.getPassword(), user.getAdminStatus(), user.getID()));
 			}
-			modified = false;
-			myFile.close();
+			storage.writeAccounts(accounts);
 		}
 		catch(IOException e)
 		{
@@ -483,9 +510,10 @@ public class UserManager {
 			
 			
 			//check if actually logged on
-			if(activeUsers.contains(username))
+			User user = directory.get(username);
+			if(user != null && user.markOffline())
 			{
-				activeUsers.remove(username); // remove from list of active users
+				user.unloadMessageInbox();
 				create.setContents("Success");
 				Send = new Message(create);// create a success message
 				out.writeObject(Send); //send the message
@@ -503,14 +531,71 @@ public class UserManager {
 	}
 	
 	public void logout(Message message) {
-		String username = message.getFromUserName();
-		activeUsers.remove(username);
+		User user = directory.get(message.getFromUserName());
+		if(user != null && user.markOffline()) user.unloadMessageInbox();
+	}
+	
+	// Drops the inbox windows of online users no one has read for idleMillis, returns how many
+	public int unloadIdleInboxes(long idleMillis) {
+		long idleSince = System.currentTimeMillis() - idleMillis;
+		int unloaded = 0;
+		for(User user : directory.getUsers()) {
+			if(user.getStatus() && user.unloadIdleInbox(idleSince)) unloaded++;
+		}
+		return unloaded;
+	}
+	
+	// Replies with a page of the user's own direct messages from before the ones the LOGIN reply held, see LogQuery
+	public void getOlderMessages(ObjectOutputStream out, Message message, int userID) {
+		LogQuery query = LogQuery.parse(message.getContents());
+		int otherUserID = message.getToUserID();
+		MessageCreator create = new MessageCreator(MessageType.INBOX);
+		create.setToUserID(otherUserID);
+		create.setContents(query.toContents());
+		
+		User user = getUser(userID);
+		List<Message> records = new ArrayList<Message>();
+		long next = LogPage.NO_MORE;
+		if(user != null) {
+			try {
+				next = user.readOlderMessages(messageLog, query.getCursor(), query.getPageSize(), older -> query.inWindow(older)
+						&& (otherUserID < 0 || otherUserID == (older.getFromUserID() == userID ? older.getToUserID() : older.getFromUserID())), records);
+			}
+			catch(IOException e) {
+				System.err.println("Error reading older messages: " + e.getMessage());
+			}
+		}
+		create.setLogPage(new LogPage(records, next));
+		
+		try {
+			out.writeObject(create.createMessage());
+		}
+		catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/* Replies with a page of the users whose name starts with the request's toUserName, for the client's user
+	 * picker. The reply's contents are the UserQuery for the page after it. */
+	public void findUsers(ObjectOutputStream out, Message message) {
+		UserQuery query = UserQuery.parse(message.getToUserName(), message.getContents());
+		DirectoryPage page = directory.find(query);
+		MessageCreator create = new MessageCreator(MessageType.FINDUSER);
+		create.setToUserName(query.getPrefix());
+		create.setContents(query.next(page).toContents());
+		create.setDirectory(page);
+		
+		try {
+			out.writeObject(create.createMessage());
+		}
+		catch(IOException e) {
+			e.printStackTrace();
+		}
 	}
 	
 	public void addChatroomToUser(int userID, int chatroomID)
 	{
-		String grab = getUsername(userID);
-		User find = allUsers.get(grab); //find the correct user
+		User find = directory.get(userID); //find the correct user
 		
 		
 		find.addChatroom(chatroomID); //add the chatroom ID to the user
@@ -0,0 +1,385 @@
+package shared;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/* Compact binary encoding of a Message, used as a frame payload (see MessageFraming).
+ *
+ * Layout, all integers as varints (signed ones zig-zag encoded):
+ *   version | type code | presence flags | messageID | date millis | toUserID | fromUserID | toChatroomID
+ *   then, when flagged: contents | toUserName | fromUserName   (varint length + UTF-8)
+ *   then, when flagged: profile as userID | username | admin | inboxStart | message count | each message
+ *   then, when flagged: log page as nextCursor | record count | each record's fields from type code on
+ *   then, when flagged: room summary as chatroomID | member count | member ids | messageCount | message count | each message
+ *   then, when flagged: room summary count | each room summary
+ *   then, when flagged: directory page as nextCursor | version | user count | each userID | username
+ *   then, when flagged: membership delta as chatroomID | added count | added ids | removed count | removed ids
+ *   then, when flagged: directory delta as fromVersion | toVersion | added count | each userID | username | removed count | removed ids
+ * where each message is written from its type code on, like the log page's records. Those inner
+ * messages are plain records: only the first four flags are allowed on them, so a frame can't nest
+ * profiles or pages inside each other deep enough to exhaust the reader's stack.
+ *
+ * Nothing is Java serialized. Version 1 sent the server's User/Chatroom/maps as one serialized blob,
+ * version 2 had no directory versions. A new version needs a new WireHandshake.VERSION, so connections
+ * between builds that disagree are refused at the handshake instead of failing at their first frame. */
+public final class BinaryMessageCodec {
+	public static final int VERSION = 3;
+
+	private static final int HAS_CONTENTS = 1;
+	private static final int HAS_TO_USERNAME = 1 << 1;
+	private static final int HAS_FROM_USERNAME = 1 << 2;
+	private static final int HAS_DATE = 1 << 3;
+	private static final int HAS_PROFILE = 1 << 4;
+	private static final int HAS_LOG_PAGE = 1 << 5;
+	private static final int HAS_ROOM = 1 << 6;
+	private static final int HAS_ROOMS = 1 << 7;
+	private static final int HAS_DIRECTORY = 1 << 8;
+	private static final int HAS_MEMBERSHIP = 1 << 9;
+	private static final int HAS_DIRECTORY_DELTA = 1 << 10;
+	private static final int RECORD_FLAGS = HAS_CONTENTS | HAS_TO_USERNAME | HAS_FROM_USERNAME | HAS_DATE;
+
+	private BinaryMessageCodec() {}
+
+	public static byte[] toFrame(Message message) throws IOException {
+		String contents = message.getContents();
+		ByteWriter out = new ByteWriter(48 + (contents == null ? 0 : contents.length() * 3));
+		out.skip(MessageFraming.HEADER_LENGTH);
+		out.writeVarInt(VERSION);
+		writeFields(out, message, false);
+		return out.toFrame();
+	}
+
+	public static Message fromPayload(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException {
+		ByteReader in = new ByteReader(payload, offset, length);
+
+		int version = in.readVarInt();
+		if(version != VERSION) {
+			throw new StreamCorruptedException("Unsupported binary message version: " + version);
+		}
+		return readFields(in, false);
+	}
+
+	// A record is a message inside another one's profile, page or room, written without its own aggregates
+	private static void writeFields(ByteWriter out, Message message, boolean record) {
+		String contents = message.getContents();
+		int flags = 0;
+		if(contents != null) flags |= HAS_CONTENTS;
+		if(message.getToUserName() != null) flags |= HAS_TO_USERNAME;
+		if(message.getFromUserName() != null) flags |= HAS_FROM_USERNAME;
+		if(message.getDateSent() != null) flags |= HAS_DATE;
+		if(message.getProfile() != null) flags |= HAS_PROFILE;
+		if(message.getLogPage() != null) flags |= HAS_LOG_PAGE;
+		if(message.getRoom() != null) flags |= HAS_ROOM;
+		if(message.getRooms() != null) flags |= HAS_ROOMS;
+		if(message.getDirectory() != null) flags |= HAS_DIRECTORY;
+		if(message.getMembership() != null) flags |= HAS_MEMBERSHIP;
+		if(message.getDirectoryDelta() != null) flags |= HAS_DIRECTORY_DELTA;
+		if(record) flags &= RECORD_FLAGS;
+
+		out.writeVarInt(message.getMessageType().getCode());
+		out.writeVarInt(flags);
+		out.writeSignedVarLong(message.getMessageID());
+		if(message.getDateSent() != null) out.writeSignedVarLong(message.getDateSent().getTime());
+		out.writeSignedVarLong(message.getToUserID());
+		out.writeSignedVarLong(message.getFromUserID());
+		out.writeSignedVarLong(message.getToChatroomID());
+		if(contents != null) out.writeString(contents);
+		if(message.getToUserName() != null) out.writeString(message.getToUserName());
+		if(message.getFromUserName() != null) out.writeString(message.getFromUserName());
+		if((flags & HAS_PROFILE) != 0) {
+			UserProfile profile = message.getProfile();
+			out.writeSignedVarLong(profile.getID());
+			out.writeString(profile.getUsername());
+			out.writeVarInt(profile.getAdminStatus() ? 1 : 0);
+			out.writeSignedVarLong(profile.getInboxStart());
+			writeMessages(out, profile.getRecentMessages());
+		}
+		if((flags & HAS_LOG_PAGE) != 0) {
+			// Records are plain chat messages, so they go field by field like the message itself
+			LogPage page = message.getLogPage();
+			out.writeSignedVarLong(page.getNextCursor());
+			writeMessages(out, page.getRecords());
+		}
+		if((flags & HAS_ROOM) != 0) {
+			writeRoom(out, message.getRoom());
+		}
+		if((flags & HAS_ROOMS) != 0) {
+			out.writeVarInt(message.getRooms().size());
+			for(RoomSummary room : message.getRooms()) {
+				writeRoom(out, room);
+			}
+		}
+		if((flags & HAS_DIRECTORY) != 0) {
+			DirectoryPage page = message.getDirectory();
+			out.writeSignedVarLong(page.getNextCursor());
+			out.writeSignedVarLong(page.getVersion());
+			writeUsers(out, page.getUsers());
+		}
+		if((flags & HAS_MEMBERSHIP) != 0) {
+			MembershipDelta delta = message.getMembership();
+			out.writeSignedVarLong(delta.getChatroomID());
+			writeIDs(out, delta.getAdded());
+			writeIDs(out, delta.getRemoved());
+		}
+		if((flags & HAS_DIRECTORY_DELTA) != 0) {
+			DirectoryDelta delta = message.getDirectoryDelta();
+			out.writeSignedVarLong(delta.getFromVersion());
+			out.writeSignedVarLong(delta.getToVersion());
+			writeUsers(out, delta.getAdded());
+			writeIDs(out, delta.getRemoved());
+		}
+	}
+
+	private static void writeMessages(ByteWriter out, List<Message> messages) {
+		out.writeVarInt(messages.size());
+		for(Message message : messages) {
+			writeFields(out, message, true);
+		}
+	}
+
+	private static void writeRoom(ByteWriter out, RoomSummary room) {
+		out.writeSignedVarLong(room.getChatroomID());
+		writeIDs(out, room.getMembers());
+		out.writeSignedVarLong(room.getMessageCount());
+		writeMessages(out, room.getRecentMessages());
+	}
+
+	private static void writeUsers(ByteWriter out, Map<Integer, String> users) {
+		out.writeVarInt(users.size());
+		for(Map.Entry<Integer, String> user : users.entrySet()) {
+			out.writeSignedVarLong(user.getKey());
+			out.writeString(user.getValue());
+		}
+	}
+
+	private static void writeIDs(ByteWriter out, List<Integer> ids) {
+		out.writeVarInt(ids.size());
+		for(Integer id : ids) {
+			out.writeSignedVarLong(id);
+		}
+	}
+
+	private static Message readFields(ByteReader in, boolean record) throws IOException {
+		MessageType type = MessageType.fromCode(in.readVarInt());
+		if(type == null) {
+			throw new StreamCorruptedException("Unknown message type");
+		}
+		int flags = in.readVarInt();
+		if(record && (flags & ~RECORD_FLAGS) != 0) {
+			throw new StreamCorruptedException("Nested message record with flags " + flags);
+		}
+
+		MessageCreator create = new MessageCreator(type);
+		long messageID = in.readSignedVarLong();
+		if((flags & HAS_DATE) != 0) create.setDate(in.readSignedVarLong());
+		create.setToUserID((int) in.readSignedVarLong());
+		create.setFromUserID((int) in.readSignedVarLong());
+		create.setToChatroom((int) in.readSignedVarLong());
+		if((flags & HAS_CONTENTS) != 0) create.setContents(in.readString());
+		if((flags & HAS_TO_USERNAME) != 0) create.setToUserName(in.readString());
+		if((flags & HAS_FROM_USERNAME) != 0) create.setFromUserName(in.readString());
+		if((flags & HAS_PROFILE) != 0) {
+			int userID = (int) in.readSignedVarLong();
+			String username = in.readString();
+			boolean admin = in.readVarInt() != 0;
+			long inboxStart = in.readSignedVarLong();
+			create.setProfile(new UserProfile(userID, username, admin, inboxStart, readMessages(in)));
+		}
+		if((flags & HAS_LOG_PAGE) != 0) {
+			long nextCursor = in.readSignedVarLong();
+			List<Message> records = readMessages(in);
+			if(records.size() > LogQuery.MAX_PAGE_SIZE) throw new StreamCorruptedException("Bad log page size: " + records.size());
+			create.setLogPage(new LogPage(records, nextCursor));
+		}
+		if((flags & HAS_ROOM) != 0) {
+			create.setRoom(readRoom(in));
+		}
+		if((flags & HAS_ROOMS) != 0) {
+			int count = in.readCount();
+			List<RoomSummary> rooms = new ArrayList<RoomSummary>(count);
+			for(int i = 0; i < count; i++) {
+				rooms.add(readRoom(in));
+			}
+			create.setRooms(rooms);
+		}
+		if((flags & HAS_DIRECTORY) != 0) {
+			long nextCursor = in.readSignedVarLong();
+			long version = in.readSignedVarLong();
+			create.setDirectory(new DirectoryPage(readUsers(in), nextCursor, version));
+		}
+		if((flags & HAS_MEMBERSHIP) != 0) {
+			int chatroomID = (int) in.readSignedVarLong();
+			List<Integer> added = readIDs(in);
+			create.setMembership(new MembershipDelta(chatroomID, added, readIDs(in)));
+		}
+		if((flags & HAS_DIRECTORY_DELTA) != 0) {
+			long fromVersion = in.readSignedVarLong();
+			long toVersion = in.readSignedVarLong();
+			Map<Integer, String> added = readUsers(in);
+			create.setDirectoryDelta(new DirectoryDelta(fromVersion, toVersion, added, readIDs(in)));
+		}
+
+		return new Message(create, messageID);
+	}
+
+	private static List<Message> readMessages(ByteReader in) throws IOException {
+		int count = in.readCount();
+		List<Message> messages = new ArrayList<Message>(count);
+		for(int i = 0; i < count; i++) {
+			messages.add(readFields(in, true));
+		}
+		return messages;
+	}
+
+	private static RoomSummary readRoom(ByteReader in) throws IOException {
+		int chatroomID = (int) in.readSignedVarLong();
+		List<Integer> members = readIDs(in);
+		long messageCount = in.readSignedVarLong();
+		return new RoomSummary(chatroomID, members, readMessages(in), messageCount);
+	}
+
+	private static Map<Integer, String> readUsers(ByteReader in) throws IOException {
+		int count = in.readCount();
+		Map<Integer, String> users = new LinkedHashMap<Integer, String>(count * 2);
+		for(int i = 0; i < count; i++) {
+			int userID = (int) in.readSignedVarLong();
+			users.put(userID, in.readString());
+		}
+		return users;
+	}
+
+	private static List<Integer> readIDs(ByteReader in) throws StreamCorruptedException {
+		int count = in.readCount();
+		List<Integer> ids = new ArrayList<Integer>(count);
+		for(int i = 0; i < count; i++) {
+			ids.add((int) in.readSignedVarLong());
+		}
+		return ids;
+	}
+
+	// Growable byte buffer with varint helpers
+	static final class ByteWriter {
+		private byte[] buffer;
+		private int position = 0;
+
+		ByteWriter(int initialCapacity) {
+			buffer = new byte[Math.max(16, initialCapacity)];
+		}
+
+		void skip(int count) {
+			ensure(count);
+			position += count;
+		}
+
+		void writeByte(int value) {
+			ensure(1);
+			buffer[position++] = (byte) value;
+		}
+
+		void writeVarInt(int value) {
+			writeVarLong(value & 0xFFFFFFFFL);
+		}
+
+		void writeVarLong(long value) {
+			ensure(10);
+			while((value & ~0x7FL) != 0) {
+				buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buffer[position++] = (byte) value;
+		}
+
+		void writeSignedVarLong(long value) {
+			writeVarLong((value << 1) ^ (value >> 63)); // zig-zag so -1 takes one byte
+		}
+
+		void writeString(String value) {
+			writeBytes(value.getBytes(StandardCharsets.UTF_8));
+		}
+
+		void writeBytes(byte[] bytes) {
+			writeVarInt(bytes.length);
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, buffer, position, bytes.length);
+			position += bytes.length;
+		}
+
+		// Fills in the frame header reserved by skip(HEADER_LENGTH) and returns the exact-sized frame
+		byte[] toFrame() {
+			int length = position - MessageFraming.HEADER_LENGTH;
+			buffer[0] = (byte) (length >>> 24);
+			buffer[1] = (byte) (length >>> 16);
+			buffer[2] = (byte) (length >>> 8);
+			buffer[3] = (byte) length;
+			return Arrays.copyOf(buffer, position);
+		}
+
+		private void ensure(int extra) {
+			if(position + extra > buffer.length) {
+				buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+			}
+		}
+	}
+
+	static final class ByteReader {
+		private final byte[] buffer;
+		private int position;
+		private final int limit;
+
+		ByteReader(byte[] buffer, int offset, int length) {
+			this.buffer = buffer;
+			this.position = offset;
+			this.limit = offset + length;
+		}
+
+		int readByte() throws StreamCorruptedException {
+			if(position >= limit) throw new StreamCorruptedException("Truncated message");
+			return buffer[position++] & 0xFF;
+		}
+
+		int readVarInt() throws StreamCorruptedException {
+			long value = readVarLong();
+			if(value > 0xFFFFFFFFL) throw new StreamCorruptedException("Varint too long");
+			return (int) value;
+		}
+
+		long readVarLong() throws StreamCorruptedException {
+			long value = 0;
+			for(int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if((b & 0x80) == 0) return value;
+			}
+			throw new StreamCorruptedException("Varint too long");
+		}
+
+		long readSignedVarLong() throws StreamCorruptedException {
+			long raw = readVarLong();
+			return (raw >>> 1) ^ -(raw & 1);
+		}
+
+		String readString() throws StreamCorruptedException {
+			int length = readLength();
+			String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+			position += length;
+			return value;
+		}
+
+		// A number of items to follow, each at least a byte, so a corrupt count can't make the reader allocate for more
+		int readCount() throws StreamCorruptedException {
+			return readLength();
+		}
+
+		private int readLength() throws StreamCorruptedException {
+			int length = readVarInt();
+			if(length < 0 || length > limit - position) throw new StreamCorruptedException("Truncated message");
+			return length;
+		}
+	}
+}
@@ -1,49 +1,39 @@
 package shared;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Chatroom implements Serializable {
 	
 	private static final long serialVersionUID = 1L;
 	
-	private static int IDCounter =0;
+	private static final AtomicInteger IDCounter = new AtomicInteger(); // The highest id loaded or given out
 	private int id;
 	private List<Integer> members = Collections.synchronizedList(new ArrayList<Integer>());
-	private List<Message> messages = Collections.synchronizedList(new ArrayList<Message>());
+	private List<Message> messages = Collections.synchronizedList(new ArrayList<Message>()); // Null while the history isn't loaded
+	
+	// Guards member/message changes together with their file writes. A ReentrantLock instead of
+	// synchronized so that handler threads doing file I/O here never pin a virtual thread's carrier.
+	private final ReentrantLock lock = new ReentrantLock();
+	
+	// Where members and messages are saved, only set on the server's copy
+	private transient Storage storage;
 	
 	//constructor when making a new chatroom, uses a dummy int to differentiate
     public Chatroom(int x, int creatorID)
     {
-        IDCounter += 1;
-        id = IDCounter;
-
-
-        String messageFile = Integer.toString(id) + "Messages.txt";
-        try {
-            File file = new File(messageFile);
-
-            if (file.createNewFile()) {
-
-            } else {
-                System.out.println("File already exists. CHATROOM ");
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        String membersFile = Integer.toString(id) + "Members.txt";
+        this(x, creatorID, FileStorage.INSTANCE);
+    }
+    
+    public Chatroom(int x, int creatorID, Storage storage)
+    {
+        id = nextID();
+        this.storage = storage;
 
         try {
-            File file = new File(membersFile);
-
-            if (file.createNewFile()) {
-
-            } else {
-                System.out.println("File already exists. CHATROOM ERROR");
-            }
+            storage.createChatroom(id);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -53,141 +43,107 @@ public class Chatroom implements Serializable {
     }
 
 	
+	// Rooms load in parallel at startup and are created from many handler threads, neither takes a lock
+	private static void noteID(int chatroomID) {
+		IDCounter.accumulateAndGet(chatroomID, Math::max);
+	}
+	
+	private static int nextID() {
+		return IDCounter.incrementAndGet();
+	}
+	
 	//constructor when loading existing chatroom
 	public Chatroom(int chatroomID) {
+		this(chatroomID, true);
+	}
+	
+	/* A room started without its history (loadMessages false) only reads its members. The server loads
+	 * the messages when the room is used, see loadMessages(), and can drop them again with unloadMessages(). */
+	public Chatroom(int chatroomID, boolean loadMessages) {
+		this(chatroomID, loadMessages, FileStorage.INSTANCE);
+	}
+	
+	public Chatroom(int chatroomID, boolean loadMessages, Storage storage) {
 		this.id = chatroomID;
+		this.storage = storage;
 		
-		if(chatroomID >= IDCounter)
-		{
-			IDCounter = chatroomID;
-		}
-		
-		String messageFiles = Integer.toString(id) + "Messages.txt";
-		try {
-            File file = new File(messageFiles);
-
-            if (file.createNewFile()) {
-                
-            } else {
-                
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-		
-		
-		String membersFiles = Integer.toString(id) + "Members.txt";
-		
-		try {
-            File file = new File(membersFiles);
-
-            if (file.createNewFile()) {
-                
-            } else {
-                
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-		
-		
+		noteID(chatroomID);
 		
 		try //this will populate messages and members of a chatroom
 		{
-			String messageFile = Integer.toString(id) + "Messages.txt";
+			storage.createChatroom(id);
 			
-			File myFile = new File(messageFile);
-			Scanner reader = new Scanner(myFile);
-
-			//first populate the messages of the chatroom
-			while (reader.hasNextLine())
-			{
-				//getline and set delimiters
-				Scanner line = new Scanner(reader.nextLine()).useDelimiter("\\|"); // \\s+ means whitespace
-				
-				ArrayList<String> token = new ArrayList<String>();
-				line.tokens();
-				
-				//grab all the tokens
-				while(line.hasNext())
-				{
-					token.add(line.next());
-				}
-				
-				//if there are more or less than 7 tokens, then it is invalid
-				if (token.size() != 6)
-				{
-					line.close(); //do nothing and skip this iteration
-            		continue;
-				}
-				
-				//add all message to the arraylist
-				Message add;
-				MessageCreator create;
-				create = new MessageCreator(MessageType.UTC);
-				
-				create.setContents(token.get(0)); //add the message
-				create.setDate(Long.parseLong(token.get(1))); // add the date
-				create.setToChatroom(Integer.parseInt(token.get(2))); //add chatroom id
-				create.setFromUserName(token.get(3)); //add from username
-				create.setFromUserID(Integer.parseInt(token.get(4))); //add from user id
-				
-				add = new Message(create);
-				
-				messages.add(add);
-				
-				line.close();
+			if(loadMessages) {
+				messages.addAll(storage.readRoomMessages(id));
 			}
-			reader.close();
-			
-			
-			String memberFile = Integer.toString(id) + "Members.txt";
-			
-			File File = new File(memberFile);
-			Scanner readers = new Scanner(File);
-
-			//first populate the messages of the chatroom
-			while (readers.hasNextLine())
-			{
-				//getline and set delimiters
-				Scanner line = new Scanner(readers.nextLine()).useDelimiter("\\s+"); // \\s+ means whitespace
-				
-				ArrayList<String> token = new ArrayList<String>();
-				line.tokens();
-				
-				//grab all the tokens
-				while(line.hasNext())
-				{
-					token.add(line.next());
-				}
-				
-				//if there are more or less than 1 tokens, then it is invalid
-				if (token.size() != 1)
-				{
-					line.close(); //do nothing and skip this iteration
-            		continue;
-				}
-				
-				//add all members to the arraylist
-				members.add(Integer.valueOf(token.get(0)));
-				
-				line.close();
+			else {
+				messages = null;
 			}
-			readers.close();
-			
 			
+			members.addAll(storage.readMembers(id));
 		}
 		catch (IOException e) {
         	e.printStackTrace();
         }
 	}
 	
+	// The messages saved in a room's NMessages.txt file
+	public static List<Message> readMessageFile(int chatroomID) throws IOException {
+		return FileStorage.INSTANCE.readRoomMessages(chatroomID);
+	}
+	
+	// A copy a client received has none, it saves to the files like the demo always did
+	private Storage storage() {
+		return storage == null ? FileStorage.INSTANCE : storage;
+	}
+	
 	public int getChatroomID() {
 		return this.id;
 	}
 	
+	// Empty while the history isn't loaded
 	public List<Message> getMessages() {
-		return this.messages;
+		List<Message> loaded = this.messages;
+		return loaded == null ? Collections.<Message>emptyList() : loaded;
+	}
+	
+	public boolean isLoaded() {
+		return this.messages != null;
+	}
+	
+	// Where a room's history comes from when it's loaded
+	public interface HistoryLoader {
+		List<Message> load(int chatroomID) throws IOException;
+	}
+	
+	// Stores a message somewhere other than the room's Storage
+	public interface MessageStore {
+		void store(Message message) throws IOException;
+	}
+	
+	// Returns the history, loading it first if it isn't. Messages added while loading wait for it.
+	public List<Message> loadMessages(HistoryLoader loader) throws IOException {
+		lock.lock();
+		try {
+			if(this.messages == null) {
+				this.messages = Collections.synchronizedList(new ArrayList<Message>(loader.load(id)));
+			}
+			return this.messages;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	// Drops the history from memory, the next loadMessages() reads it again
+	public void unloadMessages() {
+		lock.lock();
+		try {
+			this.messages = null;
+		}
+		finally {
+			lock.unlock();
+		}
 	}
 	
 	public List<Integer> getMembers() {
@@ -195,28 +151,39 @@ public class Chatroom implements Serializable {
 	}
 	
 	public void addMessage(Message message) {
-		this.messages.add(message);
-		
-		//append the message to the messagesFile
-		String messageFile = Integer.toString(id) + "Messages.txt";
+		lock.lock();
 		try
 		{
-			FileWriter myFile = new FileWriter(messageFile, true); //open file in append mode
-			String line = message.storeChatroomMessage();
-				
-			//write information at the end of the file
-			myFile.write(line);
-			myFile.write("\n");
-			myFile.close();
+			if(this.messages != null) this.messages.add(message);
+			
+			//append the message to the room's saved messages, its chat log too
+			storage().appendMessage(message);
 		}
 		catch(IOException e)
 		{
 			e.printStackTrace();
 		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/* Stores the message with the given store instead of the room's Storage, e.g. the server's MessageLog. Done under
+	 * the room's lock so a history being loaded at the same time holds the message exactly once. */
+	public void addMessage(Message message, MessageStore store) throws IOException {
+		lock.lock();
+		try {
+			store.store(message);
+			if(this.messages != null) this.messages.add(message);
+		}
+		finally {
+			lock.unlock();
+		}
 	}
 	
 	public void displayMessages() {
-		for (Message message : this.messages) {
+		for (Message message : getMessages()) {
 			System.out.println(message.toString());
 		}
 	}
@@ -230,67 +197,75 @@ public class Chatroom implements Serializable {
     }
 	
 	public void addMember(int userID) {
-		if (!this.members.contains(userID)) {
-			this.members.add(userID);
-			saveMembers();
+		lock.lock();
+		try {
+			if (!this.members.contains(userID)) {
+				this.members.add(userID);
+				storage().addMember(id, userID); // Appends the one change, the rest of the list stays as it is
+			}
+			else {
+				System.out.println("User already exists in chatroom.");
+			}
 		}
-		else {
-			System.out.println("User already exists in chatroom.");
+		catch(IOException e) {
+			e.printStackTrace();
+		}
+		finally {
+			lock.unlock();
 		}
 	}
 	
 	public void removeMember(int userID) {
-		if (this.members.contains(userID)) {
-			this.members.remove((Integer) userID);
-			saveMembers();
-		} else {
-			System.out.println("User does not exist in chatroom.");
+		lock.lock();
+		try {
+			if (this.members.contains(userID)) {
+				this.members.remove((Integer) userID);
+				storage().removeMember(id, userID);
+			} else {
+				System.out.println("User does not exist in chatroom.");
+			}
+		}
+		catch(IOException e) {
+			e.printStackTrace();
+		}
+		finally {
+			lock.unlock();
 		}
-		
 	}
 	
 	public void saveMembers()
 	{
-		String memberFile = Integer.toString(id) + "Members.txt";
+		lock.lock();
 		try
 		{
-			FileWriter myFile = new FileWriter(memberFile); //open file to save on
-			for (int i=0; i<members.size(); i++)
-			{
-				int userID = members.get(i);
-				
-				//write information to file
-				myFile.write(Integer.toString(userID));
-				myFile.write("\n");
-			}
-			myFile.close();
+			storage().writeMembers(id, members);
 		}
 		catch(IOException e)
 		{
 			e.printStackTrace();
 		}
+		finally
+		{
+			lock.unlock();
+		}
 	}
 	
 	public void saveMessages()
 	{
-		String messageFile = Integer.toString(id) + "Messages.txt";
+		lock.lock();
 		try
 		{
-			FileWriter myFile = new FileWriter(messageFile); //open file to save on
-			for (int i=0; i<messages.size(); i++)
-			{
-				String line = messages.get(i).storeChatroomMessage();
-				
-				//write information to file
-				myFile.write(line);
-				myFile.write("\n");
-			}
-			myFile.close();
+			if(messages == null) return; // Not loaded, the storage already holds it all
+			storage().writeRoomMessages(id, messages);
 		}
 		catch(IOException e)
 		{
 			e.printStackTrace();
 		}
+		finally
+		{
+			lock.unlock();
+		}
 	}
 }
 
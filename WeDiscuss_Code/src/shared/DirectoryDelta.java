@@ -0,0 +1,72 @@
+package shared;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/* What changed in the user directory between two versions: the users added, with their names, and the
+ * ids removed. Sent in place of the whole directory to a client that already has fromVersion (LOGIN
+ * replies and UPDATEUM "Delta"). Changes are net per user, so applying a delta to a directory newer
+ * than fromVersion, or applying it twice, still leaves toVersion's directory. */
+public class DirectoryDelta implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final long fromVersion;
+	private final long toVersion;
+	private final Map<Integer, String> added;
+	private final List<Integer> removed;
+
+	public DirectoryDelta(long fromVersion, long toVersion, Map<Integer, String> added, List<Integer> removed) {
+		this.fromVersion = fromVersion;
+		this.toVersion = toVersion;
+		this.added = added;
+		this.removed = removed;
+	}
+
+	public long getFromVersion() {
+		return fromVersion;
+	}
+
+	public long getToVersion() {
+		return toVersion;
+	}
+
+	public Map<Integer, String> getAdded() {
+		return Collections.unmodifiableMap(added);
+	}
+
+	public List<Integer> getRemoved() {
+		return Collections.unmodifiableList(removed);
+	}
+
+	public boolean isEmpty() {
+		return added.isEmpty() && removed.isEmpty();
+	}
+
+	public void applyTo(Map<Integer, String> users) {
+		for(Integer userID : removed) {
+			users.remove(userID);
+		}
+		users.putAll(added);
+	}
+
+	// This delta and a later one as a single delta, the later one winning for a user in both
+	public DirectoryDelta followedBy(DirectoryDelta later) {
+		Map<Integer, String> mergedAdded = new TreeMap<Integer, String>(added);
+		TreeSet<Integer> mergedRemoved = new TreeSet<Integer>(removed);
+		for(Integer userID : later.removed) {
+			mergedAdded.remove(userID);
+			mergedRemoved.add(userID);
+		}
+		for(Map.Entry<Integer, String> user : later.added.entrySet()) {
+			mergedRemoved.remove(user.getKey());
+			mergedAdded.put(user.getKey(), user.getValue());
+		}
+		return new DirectoryDelta(Math.min(fromVersion, later.fromVersion), Math.max(toVersion, later.toVersion),
+				mergedAdded, new ArrayList<Integer>(mergedRemoved));
+	}
+}
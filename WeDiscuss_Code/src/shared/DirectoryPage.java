@@ -0,0 +1,47 @@
+package shared;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+
+/* Part of the user directory, id to username in id order (name order for FINDUSER replies), and the
+ * cursor to send for the part after it.
+ * nextCursor is NO_MORE once the page reached the end. A FINDUSER reply continues by name instead, with
+ * the UserQuery in its contents, so there it only tells whether there is more. A copy, never the server's own map.
+ * version is the directory version the page was copied at (see DirectoryDelta), NO_VERSION if unknown. */
+public class DirectoryPage implements Serializable {
+	private static final long serialVersionUID = 2L;
+
+	public static final long NO_MORE = -1;
+	public static final long NO_VERSION = 0;
+
+	private final Map<Integer, String> users;
+	private final long nextCursor;
+	private final long version;
+
+	public DirectoryPage(Map<Integer, String> users, long nextCursor) {
+		this(users, nextCursor, NO_VERSION);
+	}
+
+	public DirectoryPage(Map<Integer, String> users, long nextCursor, long version) {
+		this.users = users;
+		this.nextCursor = nextCursor;
+		this.version = version;
+	}
+
+	public Map<Integer, String> getUsers() {
+		return Collections.unmodifiableMap(users);
+	}
+
+	public long getNextCursor() {
+		return nextCursor;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public boolean hasMore() {
+		return nextCursor != NO_MORE;
+	}
+}
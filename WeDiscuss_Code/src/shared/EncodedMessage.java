@@ -0,0 +1,52 @@
+package shared;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* A Message on its way to one or more clients, together with its encoded frames. Each frame is built
+ * the first time a connection using that WireCodec asks for it and then shared, so a broadcast costs
+ * one encoding per codec in use instead of one per recipient. Frames must not be modified. */
+public final class EncodedMessage {
+	private final Message message;
+	private final AtomicReferenceArray<byte[]> frames = new AtomicReferenceArray<byte[]>(WireCodec.values().length);
+	private final ReentrantLock encodeLock = new ReentrantLock();
+
+	public EncodedMessage(Message message) {
+		this.message = message;
+	}
+
+	public Message getMessage() {
+		return message;
+	}
+
+	// Complete frame for the codec, length prefix included. Encoded at most once per codec.
+	public byte[] getFrame(WireCodec codec) throws IOException {
+		byte[] frame = frames.get(codec.ordinal());
+		if(frame != null) return frame;
+
+		encodeLock.lock();
+		try {
+			frame = frames.get(codec.ordinal());
+			if(frame == null) {
+				frame = codec.toFrame(message);
+				frames.set(codec.ordinal(), frame);
+			}
+			return frame;
+		}
+		finally {
+			encodeLock.unlock();
+		}
+	}
+
+	// Framed outputs take the shared frame, a plain ObjectOutputStream still gets the Message
+	public void writeTo(ObjectOutputStream out) throws IOException {
+		if(out instanceof FrameOutputStream) {
+			((FrameOutputStream) out).writeEncoded(this);
+		}
+		else {
+			out.writeObject(message);
+		}
+	}
+}
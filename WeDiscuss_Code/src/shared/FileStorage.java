@@ -0,0 +1,518 @@
+package shared;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* The text files the server has always kept its data in:
+ *   UserFile.txt       one "username password admin id" line per account
+ *   UserJournal.txt    account changes since UserFile.txt was written
+ *   ChatroomFile.txt   one chatroom id per line
+ *   NMembers.txt       a room's member ids, NMessages.txt its messages
+ *   NChats.txt         the rooms a user is in, NInbox.txt their direct messages
+ *   Nuserlog.txt       what a user sent, Nchatlog.txt what was sent to a room (LogManager's logs)
+ * Messages are appended one line each, a copy to every file they belong in. The member and chats lists are journals: a snapshot of ids, one
+ * per line, followed by the changes since, "id" for an add and "-id" for a removal (ids are positive).
+ * Reading one replays the changes onto the snapshot. Once a list has had as many changes appended as it
+ * had ids, and at least MIN_COMPACTION_CHANGES, it's compacted back to a plain snapshot, so a join costs
+ * one short append however big the room is. Snapshots are written to a temporary file and renamed over
+ * the old one, so a crash leaves either. Callers serialize writes to the same file (the room's or
+ * user's lock, LogManager's single writer).
+ *
+ * Accounts work the same way with the changes in a file of their own, as account lines (the newest line
+ * for an id wins) and "-id" for a deletion, each appended before the change is acknowledged. After as
+ * many changes as there are accounts, at least MIN_COMPACTION_CHANGES, a background checkpoint moves the
+ * journal aside to UserJournal.old, so appends go on to a new one, replays it onto UserFile.txt and then
+ * deletes it. Replaying is idempotent, so a checkpoint cut short by a crash is simply replayed again. */
+public class FileStorage implements Storage {
+	public static final FileStorage INSTANCE = new FileStorage(null); // The working directory
+	static final int MIN_COMPACTION_CHANGES = 256;
+	private static final String ACCOUNTS = "UserFile.txt";
+	private static final String ACCOUNT_JOURNAL = "UserJournal.txt";
+	private static final String CHECKPOINTED_JOURNAL = "UserJournal.old";
+
+	private final File directory;
+	// Changes appended to a list file since it was last compacted, only for files changed in this run
+	private final ConcurrentHashMap<String, Journal> journals = new ConcurrentHashMap<String, Journal>();
+
+	private static class Journal {
+		// Guards a list file's appends and compaction (the account journal goes by accountLock instead).
+		// Not synchronized, so a virtual thread compacting the file isn't pinned to its carrier.
+		final ReentrantLock lock = new ReentrantLock();
+		int changes = 0;
+		int limit = MIN_COMPACTION_CHANGES;
+	}
+
+	// Orders account appends against the journal being moved aside
+	private final ReentrantLock accountLock = new ReentrantLock();
+	private final ReentrantLock checkpointLock = new ReentrantLock(); // One checkpoint at a time
+	private final Journal accountJournal = new Journal();
+	private boolean checkpointing = false;
+
+	public FileStorage(File directory) {
+		this.directory = directory;
+	}
+
+	public File file(String name) {
+		return new File(directory, name);
+	}
+
+	// UserFile.txt with the journals replayed onto it
+	@Override
+	public List<Account> readAccounts() throws IOException {
+		Map<Integer, Account> accounts = new LinkedHashMap<Integer, Account>();
+		readAccountFile(file(ACCOUNTS), accounts);
+		readAccountFile(file(CHECKPOINTED_JOURNAL), accounts);
+		readAccountFile(file(ACCOUNT_JOURNAL), accounts);
+		accountLock.lock();
+		try {
+			accountJournal.limit = Math.max(MIN_COMPACTION_CHANGES, accounts.size());
+		}
+		finally {
+			accountLock.unlock();
+		}
+		return new ArrayList<Account>(accounts.values());
+	}
+
+	// Replaces every account, the journals included
+	@Override
+	public void writeAccounts(List<Account> accounts) throws IOException {
+		checkpointLock.lock();
+		accountLock.lock();
+		try {
+			writeAccountFile(accounts);
+			Files.deleteIfExists(file(CHECKPOINTED_JOURNAL).toPath());
+			Files.deleteIfExists(file(ACCOUNT_JOURNAL).toPath());
+			accountJournal.changes = 0;
+			accountJournal.limit = Math.max(MIN_COMPACTION_CHANGES, accounts.size());
+		}
+		finally {
+			accountLock.unlock();
+			checkpointLock.unlock();
+		}
+	}
+
+	@Override
+	public void putAccount(Account account) throws IOException {
+		appendAccountChange(account.getUsername() + " " + account.getPassword() + " " + account.isAdmin() + " " + account.getUserID() + "\r\n");
+	}
+
+	@Override
+	public void deleteAccount(int userID) throws IOException {
+		appendAccountChange("-" + userID + "\r\n");
+	}
+
+	/* Folds the journal into UserFile.txt. Runs on its own thread once enough changes are in, appends
+	 * carry on meanwhile as only moving the journal aside holds them up. */
+	public void checkpointAccounts() throws IOException {
+		checkpointLock.lock();
+		try {
+			accountLock.lock();
+			try {
+				File journal = file(ACCOUNT_JOURNAL);
+				// An old journal still there is from a checkpoint that didn't finish, that one goes first
+				if(journal.exists() && !file(CHECKPOINTED_JOURNAL).exists()) {
+					Files.move(journal.toPath(), file(CHECKPOINTED_JOURNAL).toPath(), StandardCopyOption.ATOMIC_MOVE);
+					accountJournal.changes = 0;
+				}
+			}
+			finally {
+				accountLock.unlock();
+			}
+
+			Map<Integer, Account> accounts = new LinkedHashMap<Integer, Account>();
+			readAccountFile(file(ACCOUNTS), accounts);
+			readAccountFile(file(CHECKPOINTED_JOURNAL), accounts);
+			writeAccountFile(accounts.values());
+			Files.deleteIfExists(file(CHECKPOINTED_JOURNAL).toPath());
+
+			accountLock.lock();
+			try {
+				accountJournal.limit = Math.max(MIN_COMPACTION_CHANGES, accounts.size());
+			}
+			finally {
+				accountLock.unlock();
+			}
+		}
+		finally {
+			checkpointLock.unlock();
+		}
+	}
+
+	private void appendAccountChange(String line) throws IOException {
+		boolean checkpoint;
+		accountLock.lock();
+		try {
+			append(file(ACCOUNT_JOURNAL), line);
+			checkpoint = ++accountJournal.changes >= accountJournal.limit && !checkpointing;
+			if(checkpoint) checkpointing = true;
+		}
+		finally {
+			accountLock.unlock();
+		}
+		if(checkpoint) {
+			Thread checkpointer = new Thread(() -> {
+				try {
+					checkpointAccounts();
+				}
+				catch(IOException e) {
+					System.err.println("Error checkpointing accounts: " + e.getMessage());
+				}
+				finally {
+					accountLock.lock();
+					checkpointing = false;
+					accountLock.unlock();
+				}
+			}, "account-checkpoint");
+			checkpointer.setDaemon(true);
+			checkpointer.start();
+		}
+	}
+
+	// Account lines put or replace an account, "-id" lines delete one
+	private static void readAccountFile(File myFile, Map<Integer, Account> accounts) throws IOException {
+		if(!myFile.exists()) return;
+		try(RecordParser reader = new RecordParser(myFile, RecordParser.Separator.WHITESPACE))
+		{
+			while (reader.next())
+			{
+				if (reader.fieldCount() == 1)
+				{
+					accounts.remove(-reader.intField(0));
+					continue;
+				}
+				//if there are more or less than 4 tokens, then it is invalid
+				if (reader.fieldCount() != 4)
+				{
+					continue; //do nothing and skip this iteration
+				}
+				Account account = new Account(reader.field(0), reader.field(1), Boolean.valueOf(reader.field(2)), reader.intField(3));
+				accounts.put(account.getUserID(), account);
+			}
+		}
+	}
+
+	private void writeAccountFile(Collection<Account> accounts) throws IOException {
+		File temporary = file(ACCOUNTS + ".tmp");
+		try(FileWriter myFile = new FileWriter(temporary)) //open file to save on
+		{
+			for (Account account : accounts)
+			{
+				myFile.write(account.getUsername() + " " + account.getPassword() + " " + account.isAdmin() + " " + account.getUserID());
+				myFile.write("\r\n");
+			}
+		}
+		Files.move(temporary.toPath(), file(ACCOUNTS).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	@Override
+	public List<Integer> readChatroomIDs() throws IOException {
+		return readIDs(file("ChatroomFile.txt"));
+	}
+
+	@Override
+	public void writeChatroomIDs(List<Integer> chatroomIDs) throws IOException {
+		writeIDs(file("ChatroomFile.txt"), chatroomIDs);
+	}
+
+	@Override
+	public void createChatroom(int chatroomID) throws IOException {
+		file(chatroomID + "Messages.txt").createNewFile();
+		file(chatroomID + "Members.txt").createNewFile();
+	}
+
+	@Override
+	public List<Integer> readMembers(int chatroomID) throws IOException {
+		return readIDs(file(chatroomID + "Members.txt"));
+	}
+
+	@Override
+	public void writeMembers(int chatroomID, List<Integer> members) throws IOException {
+		writeIDs(file(chatroomID + "Members.txt"), members);
+	}
+
+	@Override
+	public void addMember(int chatroomID, int userID) throws IOException {
+		appendChange(chatroomID + "Members.txt", userID, true);
+	}
+
+	@Override
+	public void removeMember(int chatroomID, int userID) throws IOException {
+		appendChange(chatroomID + "Members.txt", userID, false);
+	}
+
+	@Override
+	public List<Message> readRoomMessages(int chatroomID) throws IOException {
+		List<Message> loaded = new ArrayList<Message>();
+		File myFile = file(chatroomID + "Messages.txt");
+		if(!myFile.exists()) return loaded;
+		try(RecordParser reader = new RecordParser(myFile, RecordParser.Separator.PIPE))
+		{
+			while (reader.next())
+			{
+				//if there are more or less than 6 tokens, then it is invalid
+				if (reader.fieldCount() != 6)
+				{
+					continue; //do nothing and skip this iteration
+				}
+
+				MessageCreator create = new MessageCreator(MessageType.UTC);
+				create.setContents(reader.field(0)); //add the message
+				create.setDate(reader.longField(1)); // add the date
+				create.setToChatroom(reader.intField(2)); //add chatroom id
+				create.setFromUserName(reader.field(3)); //add from username
+				create.setFromUserID(reader.intField(4)); //add from user id
+				loaded.add(new Message(create));
+			}
+		}
+		return loaded;
+	}
+
+	public void appendRoomMessage(int chatroomID, Message message) throws IOException {
+		append(file(chatroomID + "Messages.txt"), message.storeChatroomMessage() + "\n");
+	}
+
+	@Override
+	public void writeRoomMessages(int chatroomID, List<Message> messages) throws IOException {
+		try(FileWriter myFile = new FileWriter(file(chatroomID + "Messages.txt"))) //open file to save on
+		{
+			for (Message message : messages)
+			{
+				myFile.write(message.storeChatroomMessage());
+				myFile.write("\n");
+			}
+		}
+	}
+
+	@Override
+	public void createUser(int userID) throws IOException {
+		file(userID + "Inbox.txt").createNewFile();
+		file(userID + "Chats.txt").createNewFile();
+	}
+
+	@Override
+	public List<Integer> readUserChatrooms(int userID) throws IOException {
+		return readIDs(file(userID + "Chats.txt"));
+	}
+
+	@Override
+	public void writeUserChatrooms(int userID, List<Integer> chatroomIDs) throws IOException {
+		writeIDs(file(userID + "Chats.txt"), chatroomIDs);
+	}
+
+	@Override
+	public void addUserChatroom(int userID, int chatroomID) throws IOException {
+		appendChange(userID + "Chats.txt", chatroomID, true);
+	}
+
+	@Override
+	public void removeUserChatroom(int userID, int chatroomID) throws IOException {
+		appendChange(userID + "Chats.txt", chatroomID, false);
+	}
+
+	@Override
+	public List<Message> readInbox(int userID) throws IOException {
+		List<Message> loaded = new ArrayList<Message>();
+		File myFile = file(userID + "Inbox.txt");
+		if(!myFile.exists()) return loaded;
+		try(RecordParser reader = new RecordParser(myFile, RecordParser.Separator.PIPE))
+		{
+			while (reader.next())
+			{
+				//if there are more or less than 7 tokens, then it is invalid
+				if (reader.fieldCount() != 7)
+				{
+					continue; //do nothing and skip this iteration
+				}
+
+				MessageCreator create = new MessageCreator(MessageType.UTU);
+				create.setContents(reader.field(0)); //add the message
+				create.setDate(reader.longField(1)); // add the date
+				create.setToUserName(reader.field(2)); //add the toUsername
+				create.setToUserID(reader.intField(3)); //add the toUserid
+				create.setFromUserName(reader.field(4)); //add from username
+				create.setFromUserID(reader.intField(5)); //add from user id
+				loaded.add(new Message(create));
+			}
+		}
+		return loaded;
+	}
+
+	public void appendInbox(int userID, Message message) throws IOException {
+		append(file(userID + "Inbox.txt"), message.storeInboxMessage() + "\n");
+	}
+
+	@Override
+	public List<Message> readUserLog(int userID) throws IOException {
+		List<Message> loaded = new ArrayList<Message>();
+		File myFile = file(userID + "userlog.txt");
+		if(!myFile.exists()) return loaded;
+		try(RecordParser reader = new RecordParser(myFile, RecordParser.Separator.PIPE))
+		{
+			while (reader.next())
+			{
+				//if there are more or less than 5 tokens, then it is invalid
+				if (reader.fieldCount() != 5)
+				{
+					continue; //do nothing and skip this iteration
+				}
+
+				MessageCreator create = new MessageCreator(MessageType.UTU);
+				create.setFromUserID(reader.intField(0)); //add from user id
+				create.setContents(reader.field(1)); //add the message
+				create.setDate(reader.longField(2)); // add the date
+				create.setToUserName(reader.field(3));
+				loaded.add(new Message(create));
+			}
+		}
+		return loaded;
+	}
+
+	@Override
+	public List<Message> readChatLog(int chatroomID) throws IOException {
+		List<Message> loaded = new ArrayList<Message>();
+		File myFile = file(chatroomID + "chatlog.txt");
+		if(!myFile.exists()) return loaded;
+		try(RecordParser reader = new RecordParser(myFile, RecordParser.Separator.PIPE))
+		{
+			while (reader.next())
+			{
+				//if there are more or less than 5 tokens, then it is invalid
+				if (reader.fieldCount() != 5)
+				{
+					continue; //do nothing and skip this iteration
+				}
+
+				MessageCreator create = new MessageCreator(MessageType.UTC);
+				create.setFromUserID(reader.intField(0)); //add from user id
+				create.setContents(reader.field(1)); //add the message
+				create.setDate(reader.longField(2)); // add the date
+				create.setToChatroom(reader.intField(4));
+				loaded.add(new Message(create));
+			}
+		}
+		return loaded;
+	}
+
+	// Only those two users' messages of the first one's inbox
+	@Override
+	public List<Message> readConversation(int userID, int otherUserID) throws IOException {
+		List<Message> conversation = new ArrayList<Message>();
+		for(Message message : readInbox(userID)) {
+			int other = message.getFromUserID() == userID ? message.getToUserID() : message.getFromUserID();
+			if(other == otherUserID) conversation.add(message);
+		}
+		return conversation;
+	}
+
+	// A line in each file the message belongs in, the files have no way to share one
+	@Override
+	public void appendMessage(Message message) throws IOException {
+		if(message.getMessageType() == MessageType.UTU) {
+			appendInbox(message.getToUserID(), message);
+			if(message.getFromUserID() != message.getToUserID()) appendInbox(message.getFromUserID(), message);
+		}
+		else {
+			appendRoomMessage(message.getToChatroomID(), message);
+		}
+		appendLogs(List.of(message));
+	}
+
+	// One open and append per file for the whole batch
+	public void appendLogs(List<Message> messages) throws IOException {
+		Map<String, StringBuilder> lines = new LinkedHashMap<String, StringBuilder>();
+		for(Message message : messages) {
+			if(message.getMessageType() == MessageType.UTU) {
+				lines.computeIfAbsent(message.getFromUserID() + "userlog.txt", path -> new StringBuilder())
+					.append(message.storeUserLogMessage()).append('\n');
+			}
+			else {
+				lines.computeIfAbsent(message.getToChatroomID() + "chatlog.txt", path -> new StringBuilder())
+					.append(message.storeChatLogMessage()).append('\n');
+			}
+		}
+		IOException failed = null;
+		for(Map.Entry<String, StringBuilder> logFile : lines.entrySet()) {
+			try {
+				append(file(logFile.getKey()), logFile.getValue().toString());
+			}
+			catch(IOException e) {
+				failed = new IOException("Can't append to " + logFile.getKey(), e); // The other files still get theirs
+			}
+		}
+		if(failed != null) throw failed;
+	}
+
+	private void appendChange(String name, int id, boolean added) throws IOException {
+		Journal journal = journals.computeIfAbsent(name, key -> new Journal());
+		journal.lock.lock();
+		try {
+			append(file(name), (added ? "" : "-") + id + "\n"); // Under the lock, so a compaction can't drop it
+			if(++journal.changes < journal.limit) return;
+			List<Integer> ids = readIDs(file(name));
+			writeIDs(file(name), ids);
+			journal.changes = 0;
+			journal.limit = Math.max(MIN_COMPACTION_CHANGES, ids.size());
+		}
+		finally {
+			journal.lock.unlock();
+		}
+	}
+
+	// The snapshot with the changes after it replayed, other lines skipped
+	private static List<Integer> readIDs(File myFile) throws IOException {
+		Set<Integer> ids = new LinkedHashSet<Integer>();
+		if(!myFile.exists()) return new ArrayList<Integer>(ids);
+		try(RecordParser reader = new RecordParser(myFile, RecordParser.Separator.WHITESPACE))
+		{
+			while (reader.next())
+			{
+				//if there are more or less than 1 tokens, then it is invalid
+				if (reader.fieldCount() != 1)
+				{
+					continue; //do nothing and skip this iteration
+				}
+				int id = reader.intField(0);
+				if(id < 0) {
+					ids.remove(-id);
+				}
+				else {
+					ids.remove(id); // A re-add goes to the end, as it would in the list
+					ids.add(id);
+				}
+			}
+		}
+		return new ArrayList<Integer>(ids);
+	}
+
+	private static void writeIDs(File myFile, List<Integer> ids) throws IOException {
+		StringBuilder lines = new StringBuilder(ids.size() * 8);
+		synchronized(ids) { // The callers' lists are synchronized ones
+			for(Integer id : ids) {
+				lines.append(id).append('\n');
+			}
+		}
+		File temporary = new File(myFile.getPath() + ".tmp");
+		try(FileWriter writer = new FileWriter(temporary)) { //open file to save on
+			writer.write(lines.toString());
+		}
+		Files.move(temporary.toPath(), myFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void append(File myFile, String lines) throws IOException {
+		try(FileWriter writer = new FileWriter(myFile, true)) { // True = will not overwrite
+			writer.write(lines);
+		}
+	}
+}
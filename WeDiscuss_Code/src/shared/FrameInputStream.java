@@ -0,0 +1,37 @@
+package shared;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+
+/* Reading side of FrameOutputStream: readObject() returns the Message held in the next frame */
+public class FrameInputStream extends ObjectInputStream {
+	private final DataInputStream in;
+	private final WireCodec codec;
+	
+	public FrameInputStream(InputStream in) throws IOException {
+		this(in, WireCodec.SERIALIZED);
+	}
+	
+	public FrameInputStream(InputStream in, WireCodec codec) throws IOException {
+		super();
+		this.in = new DataInputStream(in instanceof BufferedInputStream ? in : new BufferedInputStream(in));
+		this.codec = codec;
+	}
+	
+	@Override
+	protected Object readObjectOverride() throws IOException, ClassNotFoundException {
+		int length = in.readInt();
+		MessageFraming.checkLength(length);
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		return codec.fromPayload(payload, 0, length);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
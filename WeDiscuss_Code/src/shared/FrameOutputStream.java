@@ -0,0 +1,78 @@
+package shared;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* ObjectOutputStream that writes every Message as a separate length-prefixed frame (see MessageFraming).
+ * Code that already talks to an ObjectOutputStream keeps calling writeObject() unchanged.
+ * Subclasses can override writeFrame() to hand frames to something other than a stream, or
+ * writeEncoded() to pass a shared EncodedMessage along without encoding it. */
+public class FrameOutputStream extends ObjectOutputStream {
+	private final OutputStream out;
+	private volatile WireCodec codec;
+	private final ReentrantLock writeLock = new ReentrantLock(); // not a monitor, so a virtual thread blocked on the socket does not pin its carrier
+	
+	public FrameOutputStream(OutputStream out) throws IOException {
+		this(out, WireCodec.SERIALIZED);
+	}
+	
+	public FrameOutputStream(OutputStream out, WireCodec codec) throws IOException {
+		super();
+		this.out = new BufferedOutputStream(out);
+		this.codec = codec;
+	}
+	
+	// For subclasses that deliver frames themselves
+	protected FrameOutputStream(WireCodec codec) throws IOException {
+		super();
+		this.out = null;
+		this.codec = codec;
+	}
+	
+	public WireCodec getCodec() {
+		return codec;
+	}
+	
+	// Only switched while nothing is being written, i.e. right after the handshake
+	public void setCodec(WireCodec codec) {
+		this.codec = codec;
+	}
+	
+	@Override
+	protected void writeObjectOverride(Object obj) throws IOException {
+		if(!(obj instanceof Message)) {
+			throw new NotSerializableException("Only Message objects can be framed");
+		}
+		writeFrame(codec.toFrame((Message) obj));
+	}
+
+	// Writes a message that may already have been encoded for another recipient
+	public void writeEncoded(EncodedMessage message) throws IOException {
+		writeFrame(message.getFrame(codec));
+	}
+
+	protected void writeFrame(byte[] frame) throws IOException {
+		writeLock.lock();
+		try {
+			out.write(frame);
+			out.flush();
+		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+	
+	@Override
+	public void flush() throws IOException {
+		if(out != null) out.flush();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if(out != null) out.close();
+	}
+}
@@ -0,0 +1,56 @@
+package shared;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/* 64 bit ids that sort in the order they were made, from high to low bits:
+ *   41 bits  milliseconds since EPOCH (good until 2093)
+ *   12 bits  sequence, for more than one id in the same millisecond
+ *   10 bits  node id, so servers that each have their own can't make the same id
+ * The node id is in the low bits so that a sequence running over carries into the time: a node making
+ * more than 4096 ids in a millisecond borrows from the next one instead of wrapping around. Each id is
+ * at least one step above the last, so they keep rising when the clock is set back, and they are above
+ * those of an earlier run as long as the clock didn't go back further than the restart took.
+ * nextId() is a single compare-and-set on the last id, no lock. */
+public final class IdGenerator {
+	public static final long EPOCH = 1704067200000L; // 2024-01-01T00:00:00Z
+	public static final int NODE_BITS = 10;
+	public static final int SEQUENCE_BITS = 12;
+	public static final int MAX_NODE = (1 << NODE_BITS) - 1;
+	private static final int TIME_SHIFT = NODE_BITS + SEQUENCE_BITS;
+	private static final long STEP = 1L << NODE_BITS; // One sequence number
+
+	private final int node;
+	private final LongSupplier clock;
+	private final AtomicLong last;
+
+	public IdGenerator(int node) {
+		this(node, System::currentTimeMillis);
+	}
+
+	// The clock in milliseconds, a fixed one for tests
+	public IdGenerator(int node, LongSupplier clock) {
+		if(node < 0 || node > MAX_NODE) throw new IllegalArgumentException("Node id " + node + " not in 0.." + MAX_NODE);
+		this.node = node;
+		this.clock = clock;
+		this.last = new AtomicLong(node - STEP);
+	}
+
+	public long nextId() {
+		long now = ((clock.getAsLong() - EPOCH) << TIME_SHIFT) | node;
+		return last.accumulateAndGet(now, (previous, time) -> Math.max(previous + STEP, time));
+	}
+
+	public int getNode() {
+		return node;
+	}
+
+	// When the id was made, in milliseconds like System.currentTimeMillis()
+	public static long timeOf(long id) {
+		return (id >>> TIME_SHIFT) + EPOCH;
+	}
+
+	public static int nodeOf(long id) {
+		return (int) (id & MAX_NODE);
+	}
+}
@@ -0,0 +1,33 @@
+package shared;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+/* One page of a GUL/GCL reply: the log records, oldest first, and the cursor to send for the page after
+ * it. nextCursor is NO_MORE once the page reached the end of the log. */
+public class LogPage implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public static final long NO_MORE = -1;
+
+	private final List<Message> records;
+	private final long nextCursor;
+
+	public LogPage(List<Message> records, long nextCursor) {
+		this.records = records;
+		this.nextCursor = nextCursor;
+	}
+
+	public List<Message> getRecords() {
+		return Collections.unmodifiableList(records);
+	}
+
+	public long getNextCursor() {
+		return nextCursor;
+	}
+
+	public boolean hasMore() {
+		return nextCursor != NO_MORE;
+	}
+}
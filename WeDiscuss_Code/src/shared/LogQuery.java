@@ -0,0 +1,77 @@
+package shared;
+
+/* What a GUL/GCL request asks for, carried in its contents as cursor|pageSize|fromTime|toTime.
+ * The cursor is the sequence number of a record in that user's/chatroom's log, 0 being the oldest, and
+ * the time window is inclusive milliseconds. Empty contents ask for the first page of everything. */
+public class LogQuery {
+	public static final int DEFAULT_PAGE_SIZE = 100;
+	public static final int MAX_PAGE_SIZE = 1000;
+
+	private final long cursor;
+	private final int pageSize;
+	private final long fromTime;
+	private final long toTime;
+
+	public LogQuery(long cursor, int pageSize) {
+		this(cursor, pageSize, Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	public LogQuery(long cursor, int pageSize, long fromTime, long toTime) {
+		this.cursor = Math.max(0, cursor);
+		this.pageSize = Math.max(1, Math.min(MAX_PAGE_SIZE, pageSize));
+		this.fromTime = fromTime;
+		this.toTime = toTime;
+	}
+
+	// Anything missing or unreadable falls back to its default
+	public static LogQuery parse(String contents) {
+		long cursor = 0;
+		int pageSize = DEFAULT_PAGE_SIZE;
+		long fromTime = Long.MIN_VALUE;
+		long toTime = Long.MAX_VALUE;
+
+		if(contents != null) {
+			String[] fields = contents.split("\\|");
+			cursor = field(fields, 0, cursor);
+			pageSize = (int) field(fields, 1, pageSize);
+			fromTime = field(fields, 2, fromTime);
+			toTime = field(fields, 3, toTime);
+		}
+		return new LogQuery(cursor, pageSize, fromTime, toTime);
+	}
+
+	private static long field(String[] fields, int index, long fallback) {
+		if(index >= fields.length || fields[index].isEmpty()) return fallback;
+		try {
+			return Long.parseLong(fields[index].trim());
+		}
+		catch(NumberFormatException e) {
+			return fallback;
+		}
+	}
+
+	public String toContents() {
+		return cursor + "|" + pageSize + "|" + fromTime + "|" + toTime;
+	}
+
+	public boolean inWindow(Message message) {
+		long time = message.getDateSent().getTime();
+		return time >= fromTime && time <= toTime;
+	}
+
+	public long getCursor() {
+		return cursor;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	public long getFromTime() {
+		return fromTime;
+	}
+
+	public long getToTime() {
+		return toTime;
+	}
+}
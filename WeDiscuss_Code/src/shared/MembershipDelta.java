@@ -0,0 +1,41 @@
+package shared;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+/* Who joined and who left a chatroom, sent to its online members (UPDATECM "Members") in place of the
+ * room's whole member list. See RoomSummary.withMembership. */
+public class MembershipDelta implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final int chatroomID;
+	private final List<Integer> added;
+	private final List<Integer> removed;
+
+	public MembershipDelta(int chatroomID, List<Integer> added, List<Integer> removed) {
+		this.chatroomID = chatroomID;
+		this.added = added;
+		this.removed = removed;
+	}
+
+	public static MembershipDelta joined(int chatroomID, int userID) {
+		return new MembershipDelta(chatroomID, List.of(userID), List.<Integer>of());
+	}
+
+	public static MembershipDelta left(int chatroomID, int userID) {
+		return new MembershipDelta(chatroomID, List.<Integer>of(), List.of(userID));
+	}
+
+	public int getChatroomID() {
+		return chatroomID;
+	}
+
+	public List<Integer> getAdded() {
+		return Collections.unmodifiableList(added);
+	}
+
+	public List<Integer> getRemoved() {
+		return Collections.unmodifiableList(removed);
+	}
+}
@@ -2,15 +2,12 @@ package shared;
 
 import java.io.Serializable;
 import java.util.*;
-import java.util.concurrent.ConcurrentMap;
-
-import server.*;
 
 public class Message implements Serializable{
 	/**
 	 * 
 	 */
-	private static final long serialVersionUID = 1L;
+	private static final long serialVersionUID = 2L;
 	
 	private String contents;
 	private Date dateSent;
@@ -19,19 +16,29 @@ public class Message implements Serializable{
 	private String fromUserName;
 	private int fromUserID;
 	private int toChatroomID;
-	private static int messageIDCounter = 0;
-	private	int messageID;
+	// The node id tells the server's ids apart from other servers', see IdGenerator
+	private static final IdGenerator messageIDs = new IdGenerator(Integer.getInteger("wediscuss.nodeId", 0));
+	private	long messageID;
 	private MessageType messageType;
 	
 	
-	private User user;
-	private ConcurrentMap<Integer, Chatroom> chatroomMap;
-	private ConcurrentMap<Integer, String> userMap;
-	private Chatroom chatroom;
+	// Replies carry copies made for them, never the server's own User, Chatroom or maps
+	private UserProfile profile; // LOGIN replies
+	private List<RoomSummary> rooms; // LOGIN replies, the user's chatrooms
+	private DirectoryPage directory; // LOGIN replies, UPDATEUM "Snapshot"
+	private DirectoryDelta directoryDelta; // LOGIN replies to a client with a cached directory, UPDATEUM "Delta"
+	private RoomSummary room; // JC/IUC/CC/UPDATECM replies
+	private MembershipDelta membership; // UPDATECM "Members"
+	private LogPage logPage; // GUL/GCL replies
 	
 	
 	
 	public Message(MessageCreator messageCreator) {
+		this(messageCreator, messageIDs.nextId());
+	}
+	
+	// Used by the wire codecs to rebuild a message with the id it was sent with
+	Message(MessageCreator messageCreator, long messageID) {
 		this.contents = messageCreator.getContents();
 		this.dateSent = messageCreator.getDate();
 		this.toUserName = messageCreator.getToUserName();
@@ -39,12 +46,15 @@ public class Message implements Serializable{
 		this.fromUserName = messageCreator.getFromUserName();
 		this.fromUserID = messageCreator.getFromUserID();
 		this.toChatroomID = messageCreator.getChatroomID();
-		this.messageID = messageIDCounter++;
+		this.messageID = messageID;
 		this.messageType = messageCreator.getMessageType();
-		this.user = messageCreator.getUser();
-		this.chatroom = messageCreator.getChatroom();
-		this.chatroomMap = messageCreator.getChatroomMap();
-		this.userMap = messageCreator.getUserMap();
+		this.profile = messageCreator.getProfile();
+		this.rooms = messageCreator.getRooms();
+		this.directory = messageCreator.getDirectory();
+		this.directoryDelta = messageCreator.getDirectoryDelta();
+		this.room = messageCreator.getRoom();
+		this.membership = messageCreator.getMembership();
+		this.logPage = messageCreator.getLogPage();
 		
 	}
 	
@@ -76,28 +86,68 @@ public class Message implements Serializable{
 		return this.toChatroomID;
 	}
 	
-	public int getMessageID() {
+	public long getMessageID() {
 		return this.messageID;
 	}
 	
+	/* A copy with a new id and dated when that id was made, for the server to number and date the chat
+	 * messages it receives itself. The sender's client only made sure its id was unique for itself, and
+	 * its clock can be off: stored by server time, log order stays date order for time range reads. */
+	public Message withServerStamp() {
+		Message copy = new Message(this);
+		copy.messageID = messageIDs.nextId();
+		copy.dateSent = new Date(IdGenerator.timeOf(copy.messageID));
+		return copy;
+	}
+	
+	private Message(Message message) {
+		this.contents = message.contents;
+		this.dateSent = message.dateSent;
+		this.toUserName = message.toUserName;
+		this.toUserID = message.toUserID;
+		this.fromUserName = message.fromUserName;
+		this.fromUserID = message.fromUserID;
+		this.toChatroomID = message.toChatroomID;
+		this.messageType = message.messageType;
+		this.profile = message.profile;
+		this.rooms = message.rooms;
+		this.directory = message.directory;
+		this.directoryDelta = message.directoryDelta;
+		this.room = message.room;
+		this.membership = message.membership;
+		this.logPage = message.logPage;
+	}
+	
 	public MessageType getMessageType() {
 		return this.messageType;
 	}
 	
-	public User getUser() {
-		return this.user;
+	public UserProfile getProfile() {
+		return this.profile;
+	}
+	
+	public List<RoomSummary> getRooms() {
+		return this.rooms;
+	}
+	
+	public DirectoryPage getDirectory() {
+		return this.directory;
+	}
+	
+	public DirectoryDelta getDirectoryDelta() {
+		return this.directoryDelta;
 	}
 	
-	public Chatroom getChatroom() {
-		return this.chatroom;
+	public RoomSummary getRoom() {
+		return this.room;
 	}
 	
-	public ConcurrentMap<Integer, Chatroom> getChatroomMap() {
-		return this.chatroomMap;
+	public MembershipDelta getMembership() {
+		return this.membership;
 	}
 	
-	public ConcurrentMap<Integer, String> getUserMap() {
-		return this.userMap;
+	public LogPage getLogPage() {
+		return this.logPage;
 	}
 	
 	public void outputMessage(MessageType messageType) {
@@ -135,13 +185,14 @@ public class Message implements Serializable{
 		return result;
 	}
 	
+	// The store* formats are read back by RecordParser, which is why the text fields are escaped
 	public String storeChatroomMessage()
 	{
 		String result = "";
-		result += this.contents + "|";
+		result += RecordParser.escape(this.contents) + "|";
 		result += this.dateSent.getTime() + "|";
 		result += Integer.toString(this.toChatroomID) + "|";
-		result += this.fromUserName + "|";
+		result += RecordParser.escape(this.fromUserName) + "|";
 		result += Integer.toString(this.fromUserID) + "|";
 		
 		String type = typeToString(this.messageType);
@@ -154,11 +205,11 @@ public class Message implements Serializable{
 	public String storeInboxMessage()
 	{
 		String result = "";
-		result += this.contents + "|";
+		result += RecordParser.escape(this.contents) + "|";
 		result += this.dateSent.getTime() + "|";
-		result += this.toUserName + "|";
+		result += RecordParser.escape(this.toUserName) + "|";
 		result += Integer.toString(this.toUserID) + "|";
-		result += this.fromUserName + "|";
+		result += RecordParser.escape(this.fromUserName) + "|";
 		result += Integer.toString(this.fromUserID) + "|";
 		
 		String type = typeToString(this.messageType);
@@ -171,9 +222,9 @@ public class Message implements Serializable{
 	public String storeUserLogMessage() {
 		String result = "";
 		result += Integer.toString(this.fromUserID) + "|";
-		result += this.contents + "|";
+		result += RecordParser.escape(this.contents) + "|";
 		result += this.dateSent.getTime() + "|";
-		result += this.toUserName + "|";
+		result += RecordParser.escape(this.toUserName) + "|";
 		
 		String type = typeToString(this.messageType);
 		
@@ -185,7 +236,7 @@ public class Message implements Serializable{
 	public String storeChatLogMessage() {
 		String result = "";
 		result += Integer.toString(this.fromUserID) + "|";
-		result += this.contents + "|";
+		result += RecordParser.escape(this.contents) + "|";
 		result += this.dateSent.getTime() + "|";
 		
 		
@@ -241,6 +292,15 @@ public class Message implements Serializable{
 			case UTC:
 				return "UTC";
 				
+			case SEARCH:
+				return "SEARCH";
+				
+			case INBOX:
+				return "INBOX";
+				
+			case FINDUSER:
+				return "FINDUSER";
+				
 			default:
 				return "ERROR";
 		}
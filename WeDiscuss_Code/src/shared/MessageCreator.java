@@ -1,8 +1,5 @@
 package shared;
 import java.util.*;
-import java.util.concurrent.ConcurrentMap;
-
-import server.*;
 
 public class MessageCreator {
 	private String contents;
@@ -13,10 +10,13 @@ public class MessageCreator {
 	private int fromUserID;
 	private int toChatroomID;
 	private MessageType messageType;
-	private User user;
-	private Chatroom chatroom;
-	private ConcurrentMap<Integer, Chatroom> chatroomMapping;
-	private ConcurrentMap<Integer, String> userMap;
+	private UserProfile profile;
+	private List<RoomSummary> rooms;
+	private DirectoryPage directory;
+	private DirectoryDelta directoryDelta;
+	private RoomSummary room;
+	private MembershipDelta membership;
+	private LogPage logPage;
 	
 	public MessageCreator(MessageType messageType) {
 		this.messageType = messageType;
@@ -27,10 +27,13 @@ public class MessageCreator {
 		this.fromUserName = null;
 		this.fromUserID = -1;
 		this.toChatroomID = -1;
-		this.user = null;
-		this.chatroom = null;
-		this.chatroomMapping = null;
-		this.userMap = null;
+		this.profile = null;
+		this.rooms = null;
+		this.directory = null;
+		this.directoryDelta = null;
+		this.room = null;
+		this.membership = null;
+		this.logPage = null;
 	}
 	
 	public void setContents(String contents) {
@@ -61,20 +64,32 @@ public class MessageCreator {
 		this.toChatroomID = toChatroomid;
 	}
 	
-	public void setUser(User user) {
-        this.user = user;
-    }
+	public void setProfile(UserProfile profile) {
+		this.profile = profile;
+	}
+	
+	public void setRooms(List<RoomSummary> rooms) {
+		this.rooms = rooms;
+	}
+	
+	public void setDirectory(DirectoryPage directory) {
+		this.directory = directory;
+	}
+	
+	public void setDirectoryDelta(DirectoryDelta directoryDelta) {
+		this.directoryDelta = directoryDelta;
+	}
 	
-	public void setChatroom(Chatroom chatroom) {
-        this.chatroom = chatroom;
-    }
+	public void setRoom(RoomSummary room) {
+		this.room = room;
+	}
 	
-	public void setChatroomMap( ConcurrentMap<Integer, Chatroom> chatroomMapping ) {
-		this.chatroomMapping = chatroomMapping;
+	public void setMembership(MembershipDelta membership) {
+		this.membership = membership;
 	}
 	
-	public void setUserMap(ConcurrentMap<Integer, String> userMap) {
-		this.userMap = userMap;
+	public void setLogPage(LogPage logPage) {
+		this.logPage = logPage;
 	}
 	
 	public String getContents() {
@@ -109,20 +124,32 @@ public class MessageCreator {
 		return this.toChatroomID;
 	}
 	
-	public User getUser() {
-        return this.user;
-    }
+	public UserProfile getProfile() {
+		return this.profile;
+	}
+	
+	public List<RoomSummary> getRooms() {
+		return this.rooms;
+	}
+	
+	public DirectoryPage getDirectory() {
+		return this.directory;
+	}
+	
+	public DirectoryDelta getDirectoryDelta() {
+		return this.directoryDelta;
+	}
 	
-	public Chatroom getChatroom() {
-		return this.chatroom;
+	public RoomSummary getRoom() {
+		return this.room;
 	}
 	
-	public ConcurrentMap<Integer, Chatroom> getChatroomMap() {
-		return this.chatroomMapping;
+	public MembershipDelta getMembership() {
+		return this.membership;
 	}
 	
-	public ConcurrentMap<Integer, String> getUserMap() {
-		return this.userMap;
+	public LogPage getLogPage() {
+		return this.logPage;
 	}
 	
 	// get Chat room Map Function
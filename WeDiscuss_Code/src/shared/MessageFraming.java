@@ -0,0 +1,53 @@
+package shared;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+
+/* Helpers for the framed transport. A frame is [4 byte big-endian length][payload], where the payload
+ * is one Message encoded with the connection's WireCodec; the methods here are the SERIALIZED codec. Unlike a single long ObjectOutputStream, every frame stands on its own, so
+ * a reader can split the byte stream into messages without understanding the payload. */
+public final class MessageFraming {
+	public static final int HEADER_LENGTH = 4;
+	public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+	
+	private MessageFraming() {}
+	
+	// Serializes a message and returns the complete frame, length prefix included
+	public static byte[] toFrame(Message message) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		bytes.write(new byte[HEADER_LENGTH]); // room for the length prefix
+		try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(message);
+		}
+		byte[] frame = bytes.toByteArray();
+		writeLength(frame, frame.length - HEADER_LENGTH);
+		return frame;
+	}
+	
+	public static Message fromPayload(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException {
+		try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload, offset, length))) {
+			Object read = in.readObject();
+			if(!(read instanceof Message)) {
+				throw new StreamCorruptedException("Frame does not contain a Message");
+			}
+			return (Message) read;
+		}
+	}
+	
+	public static void checkLength(int length) throws IOException {
+		if(length < 0 || length > MAX_FRAME_LENGTH) {
+			throw new StreamCorruptedException("Invalid frame length: " + length);
+		}
+	}
+	
+	private static void writeLength(byte[] frame, int length) {
+		frame[0] = (byte) (length >>> 24);
+		frame[1] = (byte) (length >>> 16);
+		frame[2] = (byte) (length >>> 8);
+		frame[3] = (byte) length;
+	}
+}
@@ -1,20 +1,48 @@
 package shared;
 
 public enum MessageType {
-	LOGIN, // Login request
-	LOGOUT, // Logout request
-	ADDUSER, // Administrator add user account request
-	DELUSER, // Administrator delete user account request
-	GETDEL, // Message Informing user of account deletion 
-	CPWD, // Change password request
-	GUL, // Get user log
-	GCL, // Get Chat room log
-	CC, // Create Chat room
-	IUC, // Invite User to Chat room
-	JC, // Join Chat room
-	LC, // Leave Chat room
-	UTU, // User to User
-	UTC, // User to Chat room
-	UPDATEUM, // Any data updates from server->client about Usermap
-	UPDATECM, // Any data updates from server->client aboud Chatroommap
+	LOGIN(1), // Login request
+	LOGOUT(2), // Logout request
+	ADDUSER(3), // Administrator add user account request
+	DELUSER(4), // Administrator delete user account request
+	GETDEL(5), // Message Informing user of account deletion 
+	CPWD(6), // Change password request
+	GUL(7), // Get user log
+	GCL(8), // Get Chat room log
+	CC(9), // Create Chat room
+	IUC(10), // Invite User to Chat room
+	JC(11), // Join Chat room
+	LC(12), // Leave Chat room
+	UTU(13), // User to User
+	UTC(14), // User to Chat room
+	UPDATEUM(15), // Any data updates from server->client about Usermap
+	UPDATECM(16), // Any data updates from server->client aboud Chatroommap
+	SEARCH(17), // Administrator message search, request and reply
+	INBOX(18), // A page of the user's own older direct messages, request and reply
+	FINDUSER(19), // A page of the users whose name starts with a prefix, request and reply
+	;
+	
+	// Fixed wire code used by BinaryMessageCodec, never reuse or renumber one
+	private final int code;
+	
+	private static final MessageType[] BY_CODE = new MessageType[128];
+	static {
+		for(MessageType type : values()) {
+			BY_CODE[type.code] = type;
+		}
+	}
+	
+	MessageType(int code) {
+		this.code = code;
+	}
+	
+	public int getCode() {
+		return code;
+	}
+	
+	// Returns null for an unknown code
+	public static MessageType fromCode(int code) {
+		if(code < 0 || code >= BY_CODE.length) return null;
+		return BY_CODE[code];
+	}
 }
@@ -0,0 +1,218 @@
+package shared;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/* Reads the line-per-record text files (UserFile.txt, NMembers.txt, NInbox.txt, Nchatlog.txt...) a chunk
+ * at a time. next() moves to the next line and finds where its fields are without copying anything;
+ * intField/longField decode numbers straight from the buffer, field() makes a String only for the
+ * fields that are asked for.
+ *
+ * PIPE records are split on every '|', so empty fields count. In them a backslash escapes the next
+ * character, see escape(), so message contents can hold '|' and line breaks. WHITESPACE records are
+ * split on runs of spaces and tabs with no escaping. Lines may end in \n or \r\n. Splitting is done on
+ * bytes, which is fine for the default charset the files are written in as long as it's ASCII based. */
+public class RecordParser implements Closeable {
+	public enum Separator { PIPE, WHITESPACE }
+
+	private static final int CHUNK_SIZE = 64 * 1024;
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	private final InputStream in;
+	private final Separator separator;
+	private byte[] buffer = new byte[CHUNK_SIZE];
+	private int position = 0; // Start of the next record
+	private int limit = 0; // End of the bytes read so far
+	private boolean eof = false;
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+	private int fieldCount = 0;
+	private boolean escaped = false; // The current record has a backslash in it somewhere
+	private byte[] scratch = new byte[256]; // For unescaping
+
+	public RecordParser(File file, Separator separator) throws IOException {
+		this(new FileInputStream(file), separator);
+	}
+
+	public RecordParser(InputStream in, Separator separator) {
+		this.in = in;
+		this.separator = separator;
+	}
+
+	// Moves to the next line, false at the end of the file. A blank line is a record with no fields.
+	public boolean next() throws IOException {
+		int end = indexOf(position, limit, (byte) '\n');
+		while(end < 0 && !eof) {
+			int scanned = limit - position; // fill() moves the record to the front
+			fill();
+			end = indexOf(scanned, limit, (byte) '\n');
+		}
+		if(end < 0) {
+			if(position == limit) return false;
+			end = limit; // Last line without a line break
+		}
+		int lineEnd = end > position && buffer[end - 1] == '\r' ? end - 1 : end;
+		split(position, lineEnd);
+		position = end < limit ? end + 1 : end;
+		return true;
+	}
+
+	public int fieldCount() {
+		return fieldCount;
+	}
+
+	public String field(int index) {
+		check(index);
+		int start = starts[index];
+		int length = ends[index] - start;
+		if(!escaped || indexOf(start, ends[index], (byte) '\\') < 0) return new String(buffer, start, length, CHARSET);
+
+		if(scratch.length < length) scratch = new byte[Math.max(length, scratch.length * 2)];
+		int out = 0;
+		for(int i = start; i < ends[index]; i++) {
+			byte b = buffer[i];
+			if(b == '\\' && i + 1 < ends[index]) {
+				b = buffer[++i];
+				if(b == 'n') b = '\n';
+				else if(b == 'r') b = '\r';
+			}
+			scratch[out++] = b;
+		}
+		return new String(scratch, 0, out, CHARSET);
+	}
+
+	// Throws NumberFormatException if the field isn't an int, like Integer.parseInt
+	public int intField(int index) {
+		long value = longField(index);
+		if(value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) throw numberFormat(index);
+		return (int) value;
+	}
+
+	// Throws NumberFormatException if the field isn't a long, like Long.parseLong
+	public long longField(int index) {
+		check(index);
+		int i = starts[index];
+		int end = ends[index];
+		if(i == end) throw numberFormat(index);
+		boolean negative = buffer[i] == '-';
+		if(negative || buffer[i] == '+') {
+			if(++i == end) throw numberFormat(index);
+		}
+		// Accumulated negatively so Long.MIN_VALUE fits
+		long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long multiplyLimit = limit / 10;
+		long result = 0;
+		for(; i < end; i++) {
+			int digit = buffer[i] - '0';
+			if(digit < 0 || digit > 9 || result < multiplyLimit) throw numberFormat(index);
+			result *= 10;
+			if(result < limit + digit) throw numberFormat(index);
+			result -= digit;
+		}
+		return negative ? result : -result;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/* What a PIPE field has to be written as so it reads back the same: backslash, '|' and line breaks
+	 * get a backslash in front, the line breaks written as \n and \r. null is written as "null". */
+	public static String escape(String field) {
+		if(field == null) return "null";
+		int i = 0;
+		while(i < field.length() && !needsEscape(field.charAt(i))) i++;
+		if(i == field.length()) return field;
+
+		StringBuilder escaped = new StringBuilder(field.length() + 8).append(field, 0, i);
+		for(; i < field.length(); i++) {
+			char c = field.charAt(i);
+			if(c == '\n') escaped.append("\\n");
+			else if(c == '\r') escaped.append("\\r");
+			else if(needsEscape(c)) escaped.append('\\').append(c);
+			else escaped.append(c);
+		}
+		return escaped.toString();
+	}
+
+	private static boolean needsEscape(char c) {
+		return c == '\\' || c == '|' || c == '\n' || c == '\r';
+	}
+
+	private void split(int start, int end) {
+		fieldCount = 0;
+		escaped = false;
+		if(separator == Separator.PIPE) {
+			int fieldStart = start;
+			for(int i = start; i < end; i++) {
+				byte b = buffer[i];
+				if(b == '\\') {
+					escaped = true;
+					i++;
+				}
+				else if(b == '|') {
+					addField(fieldStart, i);
+					fieldStart = i + 1;
+				}
+			}
+			if(end > start) addField(fieldStart, end);
+			return;
+		}
+		int i = start;
+		while(i < end) {
+			while(i < end && isBlank(buffer[i])) i++;
+			if(i == end) break;
+			int fieldStart = i;
+			while(i < end && !isBlank(buffer[i])) i++;
+			addField(fieldStart, i);
+		}
+	}
+
+	private void addField(int start, int end) {
+		if(fieldCount == starts.length) {
+			starts = Arrays.copyOf(starts, fieldCount * 2);
+			ends = Arrays.copyOf(ends, fieldCount * 2);
+		}
+		starts[fieldCount] = start;
+		ends[fieldCount] = end;
+		fieldCount++;
+	}
+
+	// Moves the unread bytes to the front and reads more after them, growing the buffer for long lines
+	private void fill() throws IOException {
+		if(position > 0) {
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			limit -= position;
+			position = 0;
+		}
+		if(limit == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+		int read = in.read(buffer, limit, buffer.length - limit);
+		if(read < 0) eof = true;
+		else limit += read;
+	}
+
+	private int indexOf(int from, int to, byte b) {
+		for(int i = from; i < to; i++) {
+			if(buffer[i] == b) return i;
+		}
+		return -1;
+	}
+
+	private static boolean isBlank(byte b) {
+		return b == ' ' || b == '\t' || b == '\f' || b == 0x0B;
+	}
+
+	private void check(int index) {
+		if(index < 0 || index >= fieldCount) throw new IndexOutOfBoundsException("Field " + index + " of " + fieldCount);
+	}
+
+	private NumberFormatException numberFormat(int index) {
+		return new NumberFormatException("For input string: \"" + field(index) + "\"");
+	}
+}
@@ -0,0 +1,52 @@
+package shared;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/* What a client is sent about one of its chatrooms: the members and the newest messages, oldest first.
+ * messageCount is how many the room holds in all, the older ones are read with GCL requests. */
+public class RoomSummary implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public static final int DEFAULT_RECENT_MESSAGES = 50;
+
+	private final int chatroomID;
+	private final List<Integer> members;
+	private final List<Message> recentMessages;
+	private final long messageCount;
+
+	public RoomSummary(int chatroomID, List<Integer> members, List<Message> recentMessages, long messageCount) {
+		this.chatroomID = chatroomID;
+		this.members = members;
+		this.recentMessages = recentMessages;
+		this.messageCount = messageCount;
+	}
+
+	public int getChatroomID() {
+		return chatroomID;
+	}
+
+	public List<Integer> getMembers() {
+		return Collections.unmodifiableList(members);
+	}
+
+	public List<Message> getRecentMessages() {
+		return Collections.unmodifiableList(recentMessages);
+	}
+
+	public long getMessageCount() {
+		return messageCount;
+	}
+
+	// The same room with a membership change applied
+	public RoomSummary withMembership(MembershipDelta delta) {
+		List<Integer> changed = new ArrayList<Integer>(members);
+		changed.removeAll(delta.getRemoved());
+		for(Integer userID : delta.getAdded()) {
+			if(!changed.contains(userID)) changed.add(userID);
+		}
+		return new RoomSummary(chatroomID, changed, recentMessages, messageCount);
+	}
+}
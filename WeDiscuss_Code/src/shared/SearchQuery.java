@@ -0,0 +1,89 @@
+package shared;
+
+/* What a SEARCH request asks for, carried in its contents as
+ *   userID|chatroomID|fromTime|toTime|cursor|pageSize|text
+ * The text is words and "quoted phrases", all of which a message must contain. userID matches the sender
+ * or recipient of a direct message, and -1 for it or chatroomID means any. Results come newest first,
+ * the cursor being the log position to continue below (Long.MAX_VALUE for the newest). */
+public class SearchQuery {
+	public static final int DEFAULT_PAGE_SIZE = 50;
+	public static final long NEWEST = Long.MAX_VALUE;
+
+	private final String text;
+	private final int userID;
+	private final int chatroomID;
+	private final long fromTime;
+	private final long toTime;
+	private final long cursor;
+	private final int pageSize;
+
+	public SearchQuery(String text) {
+		this(text, -1, -1, Long.MIN_VALUE, Long.MAX_VALUE, NEWEST, DEFAULT_PAGE_SIZE);
+	}
+
+	public SearchQuery(String text, int userID, int chatroomID, long fromTime, long toTime, long cursor, int pageSize) {
+		this.text = text == null ? "" : text;
+		this.userID = userID;
+		this.chatroomID = chatroomID;
+		this.fromTime = fromTime;
+		this.toTime = toTime;
+		this.cursor = cursor;
+		this.pageSize = Math.max(1, Math.min(LogQuery.MAX_PAGE_SIZE, pageSize));
+	}
+
+	// Anything missing or unreadable falls back to its default
+	public static SearchQuery parse(String contents) {
+		if(contents == null) return new SearchQuery("");
+		String[] fields = contents.split("\\|", 7);
+		if(fields.length < 7) return new SearchQuery(contents);
+		return new SearchQuery(fields[6], (int) field(fields[0], -1), (int) field(fields[1], -1), field(fields[2], Long.MIN_VALUE),
+				field(fields[3], Long.MAX_VALUE), field(fields[4], NEWEST), (int) field(fields[5], DEFAULT_PAGE_SIZE));
+	}
+
+	private static long field(String field, long fallback) {
+		if(field.isEmpty()) return fallback;
+		try {
+			return Long.parseLong(field.trim());
+		}
+		catch(NumberFormatException e) {
+			return fallback;
+		}
+	}
+
+	public String toContents() {
+		return userID + "|" + chatroomID + "|" + fromTime + "|" + toTime + "|" + cursor + "|" + pageSize + "|" + text;
+	}
+
+	// The same search continuing below another cursor
+	public SearchQuery withCursor(long cursor) {
+		return new SearchQuery(text, userID, chatroomID, fromTime, toTime, cursor, pageSize);
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public int getUserID() {
+		return userID;
+	}
+
+	public int getChatroomID() {
+		return chatroomID;
+	}
+
+	public long getFromTime() {
+		return fromTime;
+	}
+
+	public long getToTime() {
+		return toTime;
+	}
+
+	public long getCursor() {
+		return cursor;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+}
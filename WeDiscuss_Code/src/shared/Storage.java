@@ -0,0 +1,106 @@
+package shared;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/* Where the server keeps its accounts, chatrooms, memberships and the messages that don't go to the
+ * MessageLog. FileStorage is the text files it has always written, a few per user and per room; the
+ * server's KeyValueStorage keeps the same records in one embedded store. Every method may be called
+ * from many handler threads at once. The write* methods replace what was there, the append* ones add
+ * to the end. add/remove change one id of a list without rewriting the rest. */
+public interface Storage extends Closeable {
+
+	// One line of UserFile.txt
+	class Account {
+		private final String username;
+		private final String password;
+		private final boolean admin;
+		private final int userID;
+
+		public Account(String username, String password, boolean admin, int userID) {
+			this.username = username;
+			this.password = password;
+			this.admin = admin;
+			this.userID = userID;
+		}
+
+		public String getUsername() {
+			return username;
+		}
+
+		public String getPassword() {
+			return password;
+		}
+
+		public boolean isAdmin() {
+			return admin;
+		}
+
+		public int getUserID() {
+			return userID;
+		}
+	}
+
+	List<Account> readAccounts() throws IOException;
+
+	void writeAccounts(List<Account> accounts) throws IOException;
+
+	// Adds the account or replaces the one with its id, saved by the time this returns
+	void putAccount(Account account) throws IOException;
+
+	void deleteAccount(int userID) throws IOException;
+
+	List<Integer> readChatroomIDs() throws IOException;
+
+	void writeChatroomIDs(List<Integer> chatroomIDs) throws IOException;
+
+	// Makes room for a new chatroom's members and messages, nothing if it's already there
+	void createChatroom(int chatroomID) throws IOException;
+
+	List<Integer> readMembers(int chatroomID) throws IOException;
+
+	void writeMembers(int chatroomID, List<Integer> members) throws IOException;
+
+	void addMember(int chatroomID, int userID) throws IOException;
+
+	void removeMember(int chatroomID, int userID) throws IOException;
+
+	// Oldest first
+	List<Message> readRoomMessages(int chatroomID) throws IOException;
+
+	void writeRoomMessages(int chatroomID, List<Message> messages) throws IOException;
+
+	// Makes room for a new user's inbox and chatroom list, nothing if it's already there
+	void createUser(int userID) throws IOException;
+
+	// The chatrooms the user is in
+	List<Integer> readUserChatrooms(int userID) throws IOException;
+
+	void writeUserChatrooms(int userID, List<Integer> chatroomIDs) throws IOException;
+
+	void addUserChatroom(int userID, int chatroomID) throws IOException;
+
+	void removeUserChatroom(int userID, int chatroomID) throws IOException;
+
+	// The user's direct messages, oldest first
+	List<Message> readInbox(int userID) throws IOException;
+
+	// The messages a user sent, as LogManager keeps them, oldest first
+	List<Message> readUserLog(int userID) throws IOException;
+
+	// The messages sent to a chatroom, as LogManager keeps them, oldest first
+	List<Message> readChatLog(int chatroomID) throws IOException;
+
+	// The direct messages between two users, oldest first
+	List<Message> readConversation(int userID, int otherUserID) throws IOException;
+
+	/* Stores a message where everything that reads it finds it: a UTU message in its receiver's and
+	 * sender's inboxes, their conversation and the sender's user log, a UTC message in its room's messages
+	 * and chat log. */
+	void appendMessage(Message message) throws IOException;
+
+	@Override
+	default void close() throws IOException {
+	}
+}
@@ -0,0 +1,60 @@
+package shared;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/* The logged-in user as their LOGIN reply describes them: who they are and the newest of their direct
+ * messages, oldest first. Everything older is paged in with INBOX requests starting at inboxStart.
+ * A copy made for the reply, so it never carries the server's User (its password, its locks). */
+public class UserProfile implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final int userID;
+	private final String username;
+	private final boolean admin;
+	private final long inboxStart;
+	private final List<Message> recentMessages;
+
+	public UserProfile(int userID, String username, boolean admin, long inboxStart, List<Message> recentMessages) {
+		this.userID = userID;
+		this.username = username;
+		this.admin = admin;
+		this.inboxStart = inboxStart;
+		this.recentMessages = recentMessages;
+	}
+
+	public int getID() {
+		return userID;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public boolean getAdminStatus() {
+		return admin;
+	}
+
+	// Index of the oldest recent message, the cursor for the page before it
+	public long getInboxStart() {
+		return inboxStart;
+	}
+
+	public List<Message> getRecentMessages() {
+		return Collections.unmodifiableList(recentMessages);
+	}
+
+	// The recent messages by the other user of each conversation, oldest first
+	public Map<Integer, List<Message>> getConversations() {
+		Map<Integer, List<Message>> conversations = new LinkedHashMap<Integer, List<Message>>();
+		for(Message message : recentMessages) {
+			int otherUserID = message.getFromUserID() == userID ? message.getToUserID() : message.getFromUserID();
+			conversations.computeIfAbsent(otherUserID, id -> new ArrayList<Message>()).add(message);
+		}
+		return conversations;
+	}
+}
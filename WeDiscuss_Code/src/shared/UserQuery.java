@@ -0,0 +1,63 @@
+package shared;
+
+/* What a FINDUSER request asks for: a page of the users whose name starts with prefix, ignoring case, in
+ * name order. The prefix travels as the message's toUserName and the rest in its contents as
+ * pageSize|after, after being the last username the previous page held (empty for the first page), so the
+ * next page starts right after it however the directory changed in between. A reply carries the query for
+ * the page after it, see next(). */
+public class UserQuery {
+	public static final int DEFAULT_PAGE_SIZE = 100;
+
+	private final String prefix;
+	private final String after;
+	private final int pageSize;
+
+	public UserQuery(String prefix) {
+		this(prefix, "", DEFAULT_PAGE_SIZE);
+	}
+
+	public UserQuery(String prefix, String after, int pageSize) {
+		this.prefix = prefix == null ? "" : prefix;
+		this.after = after == null ? "" : after;
+		this.pageSize = Math.max(1, Math.min(LogQuery.MAX_PAGE_SIZE, pageSize));
+	}
+
+	// Anything missing or unreadable falls back to its default
+	public static UserQuery parse(String prefix, String contents) {
+		if(contents == null) return new UserQuery(prefix);
+		String[] fields = contents.split("\\|", 2);
+		int pageSize = DEFAULT_PAGE_SIZE;
+		try {
+			pageSize = Integer.parseInt(fields[0].trim());
+		}
+		catch(NumberFormatException e) {
+			// Default size
+		}
+		return new UserQuery(prefix, fields.length < 2 ? "" : fields[1], pageSize);
+	}
+
+	public String toContents() {
+		return pageSize + "|" + after;
+	}
+
+	// The query for the page after this one's, which found page (its users in name order)
+	public UserQuery next(DirectoryPage page) {
+		String last = after;
+		for(String username : page.getUsers().values()) {
+			last = username;
+		}
+		return new UserQuery(prefix, last, pageSize);
+	}
+
+	public String getPrefix() {
+		return prefix;
+	}
+
+	public String getAfter() {
+		return after;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+}
@@ -0,0 +1,52 @@
+package shared;
+
+import java.io.IOException;
+
+/* Encodings a framed connection can use for its Message payloads, agreed on by WireHandshake */
+public enum WireCodec {
+	SERIALIZED(1) { // Java serialization of the whole Message, one stream per frame
+		@Override
+		public byte[] toFrame(Message message) throws IOException {
+			return MessageFraming.toFrame(message);
+		}
+		
+		@Override
+		public Message fromPayload(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException {
+			return MessageFraming.fromPayload(payload, offset, length);
+		}
+	},
+	BINARY(2) { // BinaryMessageCodec
+		@Override
+		public byte[] toFrame(Message message) throws IOException {
+			return BinaryMessageCodec.toFrame(message);
+		}
+		
+		@Override
+		public Message fromPayload(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException {
+			return BinaryMessageCodec.fromPayload(payload, offset, length);
+		}
+	};
+	
+	private final int id;
+	
+	WireCodec(int id) {
+		this.id = id;
+	}
+	
+	public int getId() {
+		return id;
+	}
+	
+	// Returns null for a codec this build does not know
+	public static WireCodec fromId(int id) {
+		for(WireCodec codec : values()) {
+			if(codec.id == id) return codec;
+		}
+		return null;
+	}
+	
+	// Returns the complete frame, length prefix included
+	public abstract byte[] toFrame(Message message) throws IOException;
+	
+	public abstract Message fromPayload(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException;
+}
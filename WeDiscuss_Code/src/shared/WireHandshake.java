@@ -0,0 +1,140 @@
+package shared;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+
+/* Connect-time codec negotiation for framed connections.
+ *   client -> server:  'W' 'D' 'S' 'C' | version | codec count | codec ids in order of preference
+ *   server -> client:  'W' 'D' 'S' 'C' | version | chosen codec id
+ * A client that skips the hello and sends frames straight away gets WireCodec.SERIALIZED, and one that
+ * opens a plain ObjectOutputStream is recognised by the stream magic (see prefix checks below).
+ *
+ * version is what both codecs put on the wire: BinaryMessageCodec.VERSION and Message's serialized
+ * form, so it goes up whenever either changes. A build can't decode another version's frames with
+ * either codec, so peers of different versions find out here rather than at their first frame: the
+ * server answers NO_CODEC and closes, and a client refuses a server that answers with another version.
+ * Each version so far is the BinaryMessageCodec version of the same number. */
+public final class WireHandshake {
+	public static final int VERSION = 3;
+	public static final int MAGIC = ('W' << 24) | ('D' << 16) | ('S' << 8) | 'C';
+	public static final int MAX_OFFERED_CODECS = 16;
+	public static final int NO_CODEC = 0; // Reply to a client of another version
+	
+	private static final int OBJECT_STREAM_MAGIC = 0xACED;
+	
+	private WireHandshake() {}
+	
+	// Client side: offers the codecs in order of preference and returns the one the server picked
+	public static WireCodec negotiate(InputStream in, OutputStream out, WireCodec... preferred) throws IOException {
+		byte[] hello = new byte[6 + preferred.length];
+		writeInt(hello, MAGIC);
+		hello[4] = (byte) VERSION;
+		hello[5] = (byte) preferred.length;
+		for(int i = 0; i < preferred.length; i++) {
+			hello[6 + i] = (byte) preferred[i].getId();
+		}
+		out.write(hello);
+		out.flush();
+		
+		DataInputStream reply = new DataInputStream(in);
+		if(reply.readInt() != MAGIC) {
+			throw new StreamCorruptedException("Server did not answer the codec handshake");
+		}
+		int version = reply.readUnsignedByte();
+		int id = reply.readUnsignedByte();
+		if(version != VERSION || id == NO_CODEC) {
+			throw new IncompatibleVersionException("Server speaks wire version " + version + ", this client version " + VERSION);
+		}
+		WireCodec chosen = WireCodec.fromId(id);
+		if(chosen == null) {
+			throw new StreamCorruptedException("Server chose an unknown codec");
+		}
+		return chosen;
+	}
+	
+	/* Server side: reads the first four bytes of a connection without consuming them. The stream must
+	 * support mark/reset (e.g. BufferedInputStream). */
+	public static int peekPrefix(InputStream in) throws IOException {
+		in.mark(4);
+		int prefix = 0;
+		for(int i = 0; i < 4; i++) {
+			int b = in.read();
+			if(b == -1) throw new EOFException("Connection closed before first message");
+			prefix = (prefix << 8) | b;
+		}
+		in.reset();
+		return prefix;
+	}
+	
+	public static boolean isObjectStream(int prefix) {
+		return (prefix >>> 16) == OBJECT_STREAM_MAGIC;
+	}
+	
+	public static boolean isHello(int prefix) {
+		return prefix == MAGIC;
+	}
+	
+	/* Server side, after isHello(): consumes the hello, answers it and returns the codec to use. A client
+	 * of another version is answered NO_CODEC and gets an IncompatibleVersionException. */
+	public static WireCodec accept(InputStream in, OutputStream out) throws IOException {
+		DataInputStream hello = new DataInputStream(in);
+		hello.readInt(); // magic
+		int version = hello.readUnsignedByte();
+		int count = hello.readUnsignedByte();
+		if(count > MAX_OFFERED_CODECS) {
+			throw new StreamCorruptedException("Too many codecs offered: " + count);
+		}
+		int[] offered = new int[count];
+		for(int i = 0; i < count; i++) {
+			offered[i] = hello.readUnsignedByte();
+		}
+		WireCodec chosen = choose(version, offered);
+		out.write(reply(chosen));
+		out.flush();
+		if(chosen == null) throw incompatibleClient(version);
+		return chosen;
+	}
+	
+	// First codec the client offered that this build understands, null if the client is of another version
+	public static WireCodec choose(int version, int[] offered) {
+		if(version != VERSION) return null;
+		for(int id : offered) {
+			WireCodec codec = WireCodec.fromId(id);
+			if(codec != null) return codec;
+		}
+		return WireCodec.SERIALIZED;
+	}
+	
+	// chosen is null to turn the client away
+	public static byte[] reply(WireCodec chosen) {
+		byte[] reply = new byte[6];
+		writeInt(reply, MAGIC);
+		reply[4] = (byte) VERSION;
+		reply[5] = (byte) (chosen == null ? NO_CODEC : chosen.getId());
+		return reply;
+	}
+	
+	public static IncompatibleVersionException incompatibleClient(int version) {
+		return new IncompatibleVersionException("Client speaks wire version " + version + ", this server version " + VERSION);
+	}
+	
+	// The peer is of another wire version, nothing it sends could be decoded
+	public static class IncompatibleVersionException extends IOException {
+		private static final long serialVersionUID = 1L;
+		
+		public IncompatibleVersionException(String message) {
+			super(message);
+		}
+	}
+	
+	private static void writeInt(byte[] bytes, int value) {
+		bytes[0] = (byte) (value >>> 24);
+		bytes[1] = (byte) (value >>> 16);
+		bytes[2] = (byte) (value >>> 8);
+		bytes[3] = (byte) value;
+	}
+}
@@ -4,7 +4,7 @@ import org.junit.platform.suite.api.SelectClasses;
 import org.junit.platform.suite.api.Suite;
 
 @Suite
-@SelectClasses({ChatroomTester.class, MessageCreatorTester.class, MessageTester.class, UserTester.class, UserManagerTester.class, ChatroomManagerTester.class, LogManagerTest.class /* add more classes here */})
+@SelectClasses({ChatroomTester.class, MessageCreatorTester.class, MessageTester.class, UserTester.class, UserManagerTester.class, ChatroomManagerTester.class, LogManagerTest.class, BinaryMessageCodecTester.class, OutboundQueueTester.class, RoomSubscribersTester.class, MessageLogTester.class, SearchIndexTester.class, RoomHistoryCacheTester.class, StartupLoaderTester.class, RecordParserTester.class, KeyValueStoreTester.class, FileStorageTester.class, IdGeneratorTester.class, DirectoryHistoryTester.class, UserDirectoryTester.class /* add more classes here */})
 class AllTests {
 	// runs all tests, remains empty
 }
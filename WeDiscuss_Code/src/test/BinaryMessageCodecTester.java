@@ -0,0 +1,226 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import shared.*;
+
+public class BinaryMessageCodecTester {
+
+    private Message roundTrip(Message message) throws Exception {
+        byte[] frame = BinaryMessageCodec.toFrame(message);
+        return BinaryMessageCodec.fromPayload(frame, MessageFraming.HEADER_LENGTH, frame.length - MessageFraming.HEADER_LENGTH);
+    }
+
+    @Test
+    public void testChatMessageRoundTrip() throws Exception {
+        MessageCreator creator = new MessageCreator(MessageType.UTC);
+        creator.setContents("Héllo | room ✓");
+        creator.setFromUserName("Jane");
+        creator.setFromUserID(7);
+        creator.setToChatroom(3);
+        Message original = creator.createMessage();
+
+        Message decoded = roundTrip(original);
+
+        assertEquals(MessageType.UTC, decoded.getMessageType());
+        assertEquals(original.getMessageID(), decoded.getMessageID());
+        assertEquals(original.getContents(), decoded.getContents());
+        assertEquals(original.getDateSent(), decoded.getDateSent());
+        assertEquals("Jane", decoded.getFromUserName());
+        assertEquals(7, decoded.getFromUserID());
+        assertEquals(3, decoded.getToChatroomID());
+        assertEquals(-1, decoded.getToUserID());
+        assertNull(decoded.getToUserName());
+    }
+
+    private Message direct(String contents, int from, int to) {
+        MessageCreator creator = new MessageCreator(MessageType.UTU);
+        creator.setContents(contents);
+        creator.setFromUserID(from);
+        creator.setToUserID(to);
+        return creator.createMessage();
+    }
+
+    @Test
+    public void testLoginPayloadRoundTrip() throws Exception {
+        Map<Integer, String> users = new TreeMap<>();
+        users.put(1, "sender");
+        users.put(2, "other");
+        MessageCreator creator = new MessageCreator(MessageType.LOGIN);
+        creator.setContents("Success");
+        creator.setProfile(new UserProfile(1, "sender", true, 17, List.of(direct("hi", 2, 1), direct("hey", 1, 2))));
+        creator.setDirectory(new DirectoryPage(users, DirectoryPage.NO_MORE));
+        creator.setRooms(List.of(new RoomSummary(5, List.of(1, 2), List.of(direct("in room", 2, -1)), 300)));
+
+        Message decoded = roundTrip(creator.createMessage());
+
+        UserProfile profile = decoded.getProfile();
+        assertEquals(1, profile.getID());
+        assertEquals("sender", profile.getUsername());
+        assertTrue(profile.getAdminStatus());
+        assertEquals(17, profile.getInboxStart());
+        assertEquals(List.of("hi", "hey"), List.of(profile.getRecentMessages().get(0).getContents(), profile.getRecentMessages().get(1).getContents()));
+        assertEquals(2, profile.getConversations().get(2).size());
+        assertEquals(users, decoded.getDirectory().getUsers());
+        assertFalse(decoded.getDirectory().hasMore());
+        RoomSummary room = decoded.getRooms().get(0);
+        assertEquals(5, room.getChatroomID());
+        assertEquals(List.of(1, 2), room.getMembers());
+        assertEquals(300, room.getMessageCount());
+        assertEquals("in room", room.getRecentMessages().get(0).getContents());
+        assertNull(decoded.getRoom());
+        assertNull(decoded.getMembership());
+    }
+
+    @Test
+    public void testMembershipDeltaRoundTrip() throws Exception {
+        MessageCreator creator = new MessageCreator(MessageType.UPDATECM);
+        creator.setContents("Members");
+        creator.setToChatroom(5);
+        creator.setMembership(MembershipDelta.joined(5, 3));
+
+        MembershipDelta delta = roundTrip(creator.createMessage()).getMembership();
+
+        assertEquals(5, delta.getChatroomID());
+        assertEquals(List.of(3), delta.getAdded());
+        assertTrue(delta.getRemoved().isEmpty());
+        RoomSummary room = new RoomSummary(5, List.of(1, 2), List.of(), 0);
+        assertEquals(List.of(1, 2, 3), room.withMembership(delta).getMembers());
+        assertEquals(List.of(1, 3), room.withMembership(delta).withMembership(MembershipDelta.left(5, 2)).getMembers());
+    }
+
+    @Test
+    public void testDirectoryDeltaRoundTrip() throws Exception {
+        Map<Integer, String> added = new TreeMap<>();
+        added.put(9, "newcomer");
+        MessageCreator creator = new MessageCreator(MessageType.UPDATEUM);
+        creator.setContents("Delta");
+        creator.setDirectoryDelta(new DirectoryDelta(100, 250, added, List.of(3)));
+
+        DirectoryDelta delta = roundTrip(creator.createMessage()).getDirectoryDelta();
+
+        assertEquals(100, delta.getFromVersion());
+        assertEquals(250, delta.getToVersion());
+        assertEquals(added, delta.getAdded());
+        assertEquals(List.of(3), delta.getRemoved());
+        Map<Integer, String> users = new TreeMap<>(Map.of(1, "sender", 3, "leaving"));
+        delta.applyTo(users);
+        assertEquals(Map.of(1, "sender", 9, "newcomer"), users);
+
+        MessageCreator snapshot = new MessageCreator(MessageType.UPDATEUM);
+        snapshot.setDirectory(new DirectoryPage(users, DirectoryPage.NO_MORE, 250));
+        assertEquals(250, roundTrip(snapshot.createMessage()).getDirectory().getVersion());
+    }
+
+    @Test
+    public void testLogPageRoundTrip() throws Exception {
+        List<Message> records = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            MessageCreator record = new MessageCreator(MessageType.UTC);
+            record.setContents("entry " + i);
+            record.setFromUserID(i);
+            record.setToChatroom(4);
+            records.add(record.createMessage());
+        }
+        MessageCreator creator = new MessageCreator(MessageType.GCL);
+        creator.setToChatroom(4);
+        creator.setLogPage(new LogPage(records, 42));
+
+        Message decoded = roundTrip(creator.createMessage());
+
+        LogPage page = decoded.getLogPage();
+        assertNotNull(page);
+        assertEquals(42, page.getNextCursor());
+        assertEquals(3, page.getRecords().size());
+        assertEquals("entry 2", page.getRecords().get(2).getContents());
+        assertEquals(4, page.getRecords().get(0).getToChatroomID());
+    }
+
+    @Test
+    public void testRecordsAreWrittenWithoutAggregates() throws Exception {
+        MessageCreator inner = new MessageCreator(MessageType.GCL);
+        inner.setContents("inner");
+        inner.setLogPage(new LogPage(List.of(direct("deep", 1, 2)), 7));
+        MessageCreator creator = new MessageCreator(MessageType.GCL);
+        creator.setLogPage(new LogPage(List.of(inner.createMessage()), 42));
+
+        Message record = roundTrip(creator.createMessage()).getLogPage().getRecords().get(0);
+
+        assertEquals("inner", record.getContents());
+        assertNull(record.getLogPage());
+    }
+
+    @Test
+    public void testNestedPageInARecordIsRejected() {
+        int gcl = MessageType.GCL.getCode();
+        int hasLogPage = 1 << 5;
+        // version | GCL | page flag | ids | page, whose one record is again a GCL with a page flag
+        byte[] payload = {
+            (byte) BinaryMessageCodec.VERSION, (byte) gcl, (byte) hasLogPage, 0, 0, 0, 0, 0, 1,
+            (byte) gcl, (byte) hasLogPage, 0, 0, 0, 0, 0, 1,
+            (byte) gcl, 0, 0, 0, 0, 0 };
+        assertThrows(StreamCorruptedException.class, () -> BinaryMessageCodec.fromPayload(payload, 0, payload.length));
+    }
+
+    @Test
+    public void testBinaryIsSmallerThanSerialized() throws Exception {
+        MessageCreator creator = new MessageCreator(MessageType.UTU);
+        creator.setContents("Hi");
+        Message message = creator.createMessage();
+
+        assertTrue(BinaryMessageCodec.toFrame(message).length < MessageFraming.toFrame(message).length);
+    }
+
+    @Test
+    public void testHandshakeChoosesFirstKnownCodec() {
+        assertEquals(WireCodec.BINARY, WireHandshake.choose(WireHandshake.VERSION, new int[] {99, WireCodec.BINARY.getId(), WireCodec.SERIALIZED.getId()}));
+        assertEquals(WireCodec.SERIALIZED, WireHandshake.choose(WireHandshake.VERSION, new int[] {99}));
+    }
+
+    private static byte[] hello(int version, WireCodec... offered) {
+        byte[] hello = new byte[6 + offered.length];
+        hello[0] = 'W';
+        hello[1] = 'D';
+        hello[2] = 'S';
+        hello[3] = 'C';
+        hello[4] = (byte) version;
+        hello[5] = (byte) offered.length;
+        for (int i = 0; i < offered.length; i++) {
+            hello[6 + i] = (byte) offered[i].getId();
+        }
+        return hello;
+    }
+
+    @Test
+    public void testHandshakeTurnsAwayAnOldClient() throws IOException {
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        assertThrows(WireHandshake.IncompatibleVersionException.class,
+            () -> WireHandshake.accept(new ByteArrayInputStream(hello(1, WireCodec.BINARY, WireCodec.SERIALIZED)), reply));
+        // What a version 1 client reads: a codec it doesn't know, so it gives up before sending a frame
+        byte[] answer = reply.toByteArray();
+        assertEquals(6, answer.length);
+        assertEquals(WireHandshake.NO_CODEC, answer[5]);
+        assertNull(WireCodec.fromId(answer[5]));
+
+        reply.reset();
+        assertEquals(WireCodec.BINARY, WireHandshake.accept(new ByteArrayInputStream(hello(WireHandshake.VERSION, WireCodec.BINARY)), reply));
+    }
+
+    @Test
+    public void testHandshakeRefusesAnOldServer() {
+        // A version 1 server picks BINARY, whose frames this client can't read
+        byte[] oldReply = {'W', 'D', 'S', 'C', 1, (byte) WireCodec.BINARY.getId()};
+        assertThrows(WireHandshake.IncompatibleVersionException.class,
+            () -> WireHandshake.negotiate(new ByteArrayInputStream(oldReply), new ByteArrayOutputStream(), WireCodec.BINARY, WireCodec.SERIALIZED));
+    }
+}
@@ -4,14 +4,27 @@ import static org.junit.jupiter.api.Assertions.*;
 import org.junit.jupiter.api.*;
 
 import server.ChatroomManager;
+import server.MessageLog;
 import server.Server;
+import server.User;
 import shared.Chatroom;
 import shared.Message;
 import shared.MessageCreator;
 import shared.MessageType;
+import shared.RoomSummary;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ChatroomManagerTester {
     private ChatroomManager chatroomManager;
@@ -34,12 +47,159 @@ public class ChatroomManagerTester {
         assertNotNull(ids, "Chatroom IDs list should not be null");
     }
 
+    @Test
+    public void testUserChatroomsFollowMembership() throws IOException {
+        ObjectOutputStream out = new ObjectOutputStream(new ByteArrayOutputStream());
+        ConcurrentHashMap<Integer, ObjectOutputStream> clients = new ConcurrentHashMap<Integer, ObjectOutputStream>();
+        int creatorID = 4242;
+        int memberID = 4343;
+
+        MessageCreator create = new MessageCreator(MessageType.CC);
+        create.setFromUserID(creatorID);
+        chatroomManager.createChatroom(out, create.createMessage());
+        assertEquals(1, chatroomManager.getUserChatroomIDs(creatorID).size());
+        int chatroomID = chatroomManager.getUserChatroomIDs(creatorID).iterator().next();
+
+        MessageCreator join = new MessageCreator(MessageType.JC);
+        join.setFromUserID(memberID);
+        join.setToChatroom(chatroomID);
+        chatroomManager.joinChatroom(out, join.createMessage(), clients);
+        assertTrue(chatroomManager.getUserChatrooms(memberID).containsKey(chatroomID));
+
+        MessageCreator leave = new MessageCreator(MessageType.LC);
+        leave.setToUserID(memberID);
+        leave.setToChatroom(chatroomID);
+        chatroomManager.removeUserfromChatroom(out, leave.createMessage(), clients);
+        assertTrue(chatroomManager.getUserChatrooms(memberID).isEmpty());
+
+        MessageCreator delete = new MessageCreator(MessageType.UPDATECM);
+        delete.setToChatroom(chatroomID);
+        chatroomManager.deleteChatroom(out, delete.createMessage(), clients);
+        assertTrue(chatroomManager.getUserChatroomIDs(creatorID).isEmpty());
+    }
+
+    @Test
+    public void testDeletedMemberLeavesWithAMembershipUpdate() throws IOException, ClassNotFoundException {
+        ObjectOutputStream out = new ObjectOutputStream(new ByteArrayOutputStream());
+        ConcurrentHashMap<Integer, ObjectOutputStream> clients = new ConcurrentHashMap<Integer, ObjectOutputStream>();
+        int creatorID = 4646;
+        int memberID = 4747;
+
+        MessageCreator create = new MessageCreator(MessageType.CC);
+        create.setFromUserID(creatorID);
+        chatroomManager.createChatroom(out, create.createMessage());
+        int chatroomID = chatroomManager.getUserChatroomIDs(creatorID).iterator().next();
+        MessageCreator join = new MessageCreator(MessageType.JC);
+        join.setFromUserID(memberID);
+        join.setToChatroom(chatroomID);
+        chatroomManager.joinChatroom(out, join.createMessage(), clients);
+
+        // The creator is online and hears about the deletion
+        ByteArrayOutputStream creatorBytes = new ByteArrayOutputStream();
+        ObjectOutputStream creatorOut = new ObjectOutputStream(creatorBytes);
+        clients.put(creatorID, creatorOut);
+        chatroomManager.userOnline(creatorID);
+        chatroomManager.removeUserFromChatrooms(new User("gone", "pw", false, memberID), clients);
+        creatorOut.flush();
+
+        assertFalse(chatroomManager.getChatroom(chatroomID).getMembers().contains(memberID));
+        assertTrue(chatroomManager.getUserChatroomIDs(memberID).isEmpty());
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(creatorBytes.toByteArray()));
+        Message update = (Message) in.readObject();
+        assertEquals(MessageType.UPDATECM, update.getMessageType());
+        assertEquals("Members", update.getContents());
+        assertEquals(List.of(memberID), update.getMembership().getRemoved());
+
+        MessageCreator delete = new MessageCreator(MessageType.UPDATECM);
+        delete.setToChatroom(chatroomID);
+        chatroomManager.deleteChatroom(out, delete.createMessage(), new ConcurrentHashMap<Integer, ObjectOutputStream>());
+    }
+
+    @Test
+    public void testSummaryOfAColdRoomReadsTheLogTail() throws IOException {
+        Path logDir = Files.createTempDirectory("chatroom_manager_log_");
+        MessageLog log = new MessageLog(logDir.toFile());
+        chatroomManager.useMessageLog(log);
+        ObjectOutputStream out = new ObjectOutputStream(new ByteArrayOutputStream());
+        int creatorID = 4646;
+        MessageCreator create = new MessageCreator(MessageType.CC);
+        create.setFromUserID(creatorID);
+        chatroomManager.createChatroom(out, create.createMessage());
+        int chatroomID = chatroomManager.getUserChatroomIDs(creatorID).iterator().next();
+        Chatroom chatroom = chatroomManager.getChatroom(chatroomID);
+
+        int sent = RoomSummary.DEFAULT_RECENT_MESSAGES + 10;
+        for (int i = 0; i < sent; i++) {
+            MessageCreator message = new MessageCreator(MessageType.UTC);
+            message.setContents("message " + i);
+            message.setFromUserID(creatorID);
+            message.setToChatroom(chatroomID);
+            log.append(message.createMessage());
+        }
+        // As if the cache had evicted it
+        chatroomManager.getHistoryCache().remove(chatroom);
+        chatroom.unloadMessages();
+        long loads = chatroomManager.getHistoryCache().getLoadCount();
+
+        RoomSummary summary = chatroomManager.getUserRoomSummaries(creatorID).get(0);
+        assertEquals(sent, summary.getMessageCount());
+        assertEquals(RoomSummary.DEFAULT_RECENT_MESSAGES, summary.getRecentMessages().size());
+        assertEquals("message 10", summary.getRecentMessages().get(0).getContents());
+        assertEquals("message " + (sent - 1), summary.getRecentMessages().get(summary.getRecentMessages().size() - 1).getContents());
+        assertFalse(chatroom.isLoaded());
+        assertEquals(loads, chatroomManager.getHistoryCache().getLoadCount());
+
+        MessageCreator delete = new MessageCreator(MessageType.UPDATECM);
+        delete.setToChatroom(chatroomID);
+        chatroomManager.deleteChatroom(out, delete.createMessage(), new ConcurrentHashMap<Integer, ObjectOutputStream>());
+        log.close();
+        Files.walk(logDir)
+            .sorted(Comparator.reverseOrder())
+            .map(Path::toFile)
+            .forEach(File::delete);
+    }
+
+    @Test
+    public void testSummaryCopiesOnlyTheNewestMessages() throws IOException {
+        ObjectOutputStream out = new ObjectOutputStream(new ByteArrayOutputStream());
+        int creatorID = 4444;
+        MessageCreator create = new MessageCreator(MessageType.CC);
+        create.setFromUserID(creatorID);
+        chatroomManager.createChatroom(out, create.createMessage());
+        int chatroomID = chatroomManager.getUserChatroomIDs(creatorID).iterator().next();
+        Chatroom chatroom = chatroomManager.getChatroom(chatroomID);
+
+        int sent = RoomSummary.DEFAULT_RECENT_MESSAGES + 10;
+        for (int i = 0; i < sent; i++) {
+            MessageCreator message = new MessageCreator(MessageType.UTC);
+            message.setContents("message " + i);
+            message.setFromUserID(creatorID);
+            message.setToChatroom(chatroomID);
+            chatroom.addMessage(message.createMessage());
+        }
+
+        RoomSummary summary = chatroomManager.summarize(chatroom);
+        assertEquals(List.of(creatorID), summary.getMembers());
+        assertEquals(sent, summary.getMessageCount());
+        assertEquals(RoomSummary.DEFAULT_RECENT_MESSAGES, summary.getRecentMessages().size());
+        assertEquals("message " + (sent - 1), summary.getRecentMessages().get(summary.getRecentMessages().size() - 1).getContents());
+
+        // A copy: the room changing afterwards leaves it as it was
+        chatroom.addMember(4545);
+        assertEquals(List.of(creatorID), summary.getMembers());
+
+        MessageCreator delete = new MessageCreator(MessageType.UPDATECM);
+        delete.setToChatroom(chatroomID);
+        chatroomManager.deleteChatroom(out, delete.createMessage(), new ConcurrentHashMap<Integer, ObjectOutputStream>());
+    }
+
  
 
     @AfterEach
     public void tearDown() {
         //cleanup
         chatroomManager = null;
+        server.stop(); // Releases the store for the next test's server
         server = null;
     }
 
@@ -0,0 +1,65 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import server.DirectoryHistory;
+import shared.DirectoryDelta;
+import shared.IdGenerator;
+
+public class DirectoryHistoryTester {
+
+    @Test
+    public void testChangesSinceAVersionAreNet() {
+        DirectoryHistory history = new DirectoryHistory(16);
+        long start = history.getVersion();
+        history.record(1, "alice");
+        long afterAlice = history.record(2, "bob");
+        history.record(2, null);
+        history.record(3, "carol");
+        assertTrue(history.getVersion() > afterAlice);
+
+        // bob came and went, so he's only a removal that the client may not even have
+        DirectoryDelta delta = history.since(start);
+        assertEquals(start, delta.getFromVersion());
+        assertEquals(history.getVersion(), delta.getToVersion());
+        assertEquals(Map.of(1, "alice", 3, "carol"), delta.getAdded());
+        assertEquals(List.of(2), delta.getRemoved());
+
+        // A client that already had alice and bob catches up the same way
+        Map<Integer, String> cached = new TreeMap<>(Map.of(1, "alice", 2, "bob"));
+        history.since(afterAlice).applyTo(cached);
+        assertEquals(Map.of(1, "alice", 3, "carol"), cached);
+
+        assertTrue(history.since(history.getVersion()).isEmpty());
+    }
+
+    @Test
+    public void testTooFarBehindOrUnknownGetsNothing() {
+        AtomicLong clock = new AtomicLong(IdGenerator.EPOCH + 1000000);
+        DirectoryHistory earlierRun = new DirectoryHistory(4, new IdGenerator(0, clock::get));
+        earlierRun.record(1, "alice");
+        long fromEarlierRun = earlierRun.getVersion();
+
+        clock.addAndGet(60000); // Restarted a minute later
+        DirectoryHistory history = new DirectoryHistory(4, new IdGenerator(0, clock::get));
+        long start = history.getVersion();
+        assertTrue(start > fromEarlierRun);
+        assertNull(history.since(fromEarlierRun));
+        assertNull(history.since(start + 1000000));
+
+        long kept = start;
+        for (int i = 0; i < 4; i++) {
+            kept = history.record(i, "user" + i);
+        }
+        assertNotNull(history.since(start));
+        history.record(4, "user4"); // The first change after start is no longer kept
+        assertNull(history.since(start));
+        assertEquals(Map.of(4, "user4"), history.since(kept).getAdded());
+    }
+}
@@ -0,0 +1,137 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import shared.FileStorage;
+import shared.Storage;
+
+public class FileStorageTester {
+    private Path tempDir;
+    private FileStorage storage;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("file_storage_test_");
+        storage = new FileStorage(tempDir.toFile());
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        Files.walk(tempDir)
+            .sorted(Comparator.reverseOrder())
+            .map(Path::toFile)
+            .forEach(File::delete);
+    }
+
+    @Test
+    public void testMembershipChangesAreAppendedAndReplayed() throws IOException {
+        storage.writeMembers(7, List.of(1, 2, 3));
+        storage.addMember(7, 4);
+        storage.removeMember(7, 2);
+        storage.addMember(7, 2);
+        storage.removeMember(7, 3);
+
+        // The snapshot stays as written, the changes follow it
+        assertEquals(List.of("1", "2", "3", "4", "-2", "2", "-3"), Files.readAllLines(tempDir.resolve("7Members.txt")));
+        assertEquals(List.of(1, 4, 2), storage.readMembers(7));
+
+        // Another instance, as after a restart, replays the same
+        assertEquals(List.of(1, 4, 2), new FileStorage(tempDir.toFile()).readMembers(7));
+
+        storage.addUserChatroom(5, 7);
+        storage.addUserChatroom(5, 8);
+        storage.removeUserChatroom(5, 7);
+        assertEquals(List.of(8), storage.readUserChatrooms(5));
+    }
+
+    @Test
+    public void testJournalIsCompactedIntoASnapshot() throws IOException {
+        List<Integer> expected = new ArrayList<Integer>();
+        for(int i = 1; i <= 300; i++) {
+            storage.addMember(9, i);
+            expected.add(i);
+            if(i % 2 == 0) {
+                storage.removeMember(9, i - 1);
+                expected.remove((Integer) (i - 1));
+            }
+        }
+
+        // 450 changes, compacted once 256 were in, so the file holds a snapshot and a short tail
+        List<String> lines = Files.readAllLines(tempDir.resolve("9Members.txt"));
+        assertTrue(lines.size() < 450);
+        assertEquals(expected, storage.readMembers(9));
+        assertEquals(expected, new FileStorage(tempDir.toFile()).readMembers(9));
+        assertFalse(tempDir.resolve("9Members.txt.tmp").toFile().exists());
+    }
+
+    private static List<String> names(List<Storage.Account> accounts) {
+        List<String> names = new ArrayList<String>();
+        for(Storage.Account account : accounts) {
+            names.add(account.getUserID() + ":" + account.getUsername() + ":" + account.getPassword() + ":" + account.isAdmin());
+        }
+        return names;
+    }
+
+    @Test
+    public void testAccountChangesAreJournaledAndCheckpointed() throws IOException {
+        storage.writeAccounts(List.of(new Storage.Account("admin", "123", true, 1), new Storage.Account("bob", "pw", false, 2)));
+        storage.putAccount(new Storage.Account("carol", "pw3", false, 3));
+        storage.putAccount(new Storage.Account("admin", "456", true, 1));
+        storage.deleteAccount(2);
+
+        // Nothing rewritten, the changes are in the journal
+        assertEquals(2, Files.readAllLines(tempDir.resolve("UserFile.txt")).size());
+        List<String> expected = List.of("1:admin:456:true", "3:carol:pw3:false");
+        assertEquals(expected, names(new FileStorage(tempDir.toFile()).readAccounts()));
+
+        storage.checkpointAccounts();
+        assertFalse(tempDir.resolve("UserJournal.txt").toFile().exists());
+        assertFalse(tempDir.resolve("UserJournal.old").toFile().exists());
+        assertEquals(List.of("admin 456 true 1", "carol pw3 false 3"), Files.readAllLines(tempDir.resolve("UserFile.txt")));
+        assertEquals(expected, names(new FileStorage(tempDir.toFile()).readAccounts()));
+    }
+
+    @Test
+    public void testCheckpointCutShortIsReplayed() throws IOException {
+        storage.writeAccounts(List.of(new Storage.Account("admin", "123", true, 1)));
+        storage.putAccount(new Storage.Account("bob", "pw", false, 2));
+        // As if a checkpoint had moved the journal aside and crashed before deleting it
+        Files.move(tempDir.resolve("UserJournal.txt"), tempDir.resolve("UserJournal.old"));
+        storage.putAccount(new Storage.Account("bob", "pw2", false, 2));
+        storage.putAccount(new Storage.Account("carol", "pw3", false, 3));
+
+        List<String> expected = List.of("1:admin:123:true", "2:bob:pw2:false", "3:carol:pw3:false");
+        FileStorage restarted = new FileStorage(tempDir.toFile());
+        assertEquals(expected, names(restarted.readAccounts()));
+        restarted.checkpointAccounts(); // The old journal first
+        restarted.checkpointAccounts(); // Then the newer one
+        assertFalse(tempDir.resolve("UserJournal.old").toFile().exists());
+        assertFalse(tempDir.resolve("UserJournal.txt").toFile().exists());
+        assertEquals(expected, names(new FileStorage(tempDir.toFile()).readAccounts()));
+    }
+
+    @Test
+    public void testEnoughAccountChangesStartACheckpoint() throws Exception {
+        for(int i = 1; i <= 300; i++) {
+            storage.putAccount(new Storage.Account("user" + i, "pw", false, i));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while(tempDir.resolve("UserJournal.old").toFile().exists() || !tempDir.resolve("UserFile.txt").toFile().exists()) {
+            assertTrue(System.currentTimeMillis() < deadline, "No checkpoint");
+            Thread.sleep(10);
+        }
+        assertTrue(Files.readAllLines(tempDir.resolve("UserFile.txt")).size() >= 256);
+        assertEquals(300, new FileStorage(tempDir.toFile()).readAccounts().size());
+    }
+}
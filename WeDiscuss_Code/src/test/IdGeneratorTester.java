@@ -0,0 +1,84 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import shared.IdGenerator;
+
+public class IdGeneratorTester {
+
+    @Test
+    public void testIdsRiseAndCarryTheirTimeAndNode() {
+        long start = System.currentTimeMillis();
+        IdGenerator ids = new IdGenerator(37);
+        long previous = ids.nextId();
+        for(int i = 0; i < 100000; i++) {
+            long id = ids.nextId();
+            assertTrue(id > previous);
+            assertEquals(37, IdGenerator.nodeOf(id));
+            previous = id;
+        }
+        long time = IdGenerator.timeOf(previous);
+        assertTrue(time >= start && time <= System.currentTimeMillis() + 100, "Ran ahead of the clock by " + (time - System.currentTimeMillis()));
+    }
+
+    @Test
+    public void testClockGoingBackOrStandingStill() {
+        AtomicLong clock = new AtomicLong(IdGenerator.EPOCH + 1000000);
+        IdGenerator ids = new IdGenerator(5, clock::get);
+
+        // More ids in one millisecond than the sequence holds carry into the next millisecond
+        List<Long> made = new ArrayList<Long>();
+        for(int i = 0; i < 5000; i++) {
+            made.add(ids.nextId());
+        }
+        assertEquals(IdGenerator.EPOCH + 1000001, IdGenerator.timeOf(made.get(made.size() - 1)));
+
+        clock.addAndGet(-60000); // Set back a minute
+        long after = ids.nextId();
+        assertTrue(after > made.get(made.size() - 1));
+        assertEquals(5, IdGenerator.nodeOf(after));
+
+        // Another node at the same time makes different ids
+        IdGenerator other = new IdGenerator(6, () -> IdGenerator.EPOCH + 1000000);
+        assertFalse(made.contains(other.nextId()));
+        assertThrows(IllegalArgumentException.class, () -> new IdGenerator(IdGenerator.MAX_NODE + 1));
+    }
+
+    @Test
+    public void testNoDuplicatesAcrossThreads() throws InterruptedException {
+        IdGenerator ids = new IdGenerator(1);
+        int threads = 16;
+        int perThread = 20000;
+        long[][] made = new long[threads][perThread];
+        List<Thread> running = new ArrayList<Thread>();
+        for(int t = 0; t < threads; t++) {
+            long[] mine = made[t];
+            Thread thread = new Thread(() -> {
+                for(int i = 0; i < perThread; i++) {
+                    mine[i] = ids.nextId();
+                }
+            });
+            running.add(thread);
+            thread.start();
+        }
+        for(Thread thread : running) {
+            thread.join();
+        }
+
+        Set<Long> unique = new HashSet<Long>();
+        for(long[] mine : made) {
+            for(int i = 0; i < perThread; i++) {
+                assertTrue(unique.add(mine[i]), "Duplicate id " + mine[i]);
+                if(i > 0) assertTrue(mine[i] > mine[i - 1]); // Rising as each thread saw them
+            }
+        }
+        assertEquals(threads * perThread, unique.size());
+    }
+}
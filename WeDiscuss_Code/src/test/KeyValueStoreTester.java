@@ -0,0 +1,276 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import server.DurabilityMode;
+import server.KeyValueStorage;
+import server.KeyValueStore;
+import server.StorageImporter;
+import shared.FileStorage;
+import shared.Message;
+import shared.MessageCreator;
+import shared.MessageType;
+import shared.Storage;
+
+public class KeyValueStoreTester {
+    private Path tempDir;
+    private KeyValueStore store;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("kv_store_test_");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        if(store != null) store.close();
+        Files.walk(tempDir)
+            .sorted(Comparator.reverseOrder())
+            .map(Path::toFile)
+            .forEach(File::delete);
+    }
+
+    private KeyValueStore open(long flushBytes) throws IOException {
+        return new KeyValueStore(tempDir.resolve("store").toFile(), flushBytes, DurabilityMode.NONE, KeyValueStore.DEFAULT_SYNC_INTERVAL_MS);
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] value) {
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    private List<String> scan(String prefix) {
+        List<String> found = new ArrayList<String>();
+        store.scan(prefix, (key, value) -> found.add(key + "=" + string(value)));
+        return found;
+    }
+
+    @Test
+    public void testNewestValueWinsAcrossMemtableAndSegments() throws IOException {
+        store = open(KeyValueStore.DEFAULT_FLUSH_BYTES);
+        assertTrue(store.isEmpty());
+        store.put("room/1", bytes("old"));
+        store.put("room/2", bytes("two"));
+        store.put("room/3", bytes("three"));
+        store.flush();
+        store.put("room/1", bytes("new"));
+        store.delete("room/2");
+        store.put("user/1", bytes("alice"));
+
+        assertEquals(1, store.getSegmentCount());
+        assertEquals("new", string(store.get("room/1")));
+        assertNull(store.get("room/2"));
+        assertEquals("three", string(store.get("room/3")));
+        assertNull(store.get("room/4"));
+        assertEquals(List.of("room/1=new", "room/3=three"), scan("room/"));
+        assertEquals(List.of("user/1=alice"), scan("user/"));
+        assertFalse(store.isEmpty());
+    }
+
+    @Test
+    public void testReopenReplaysTheLogAndCutsOffATornRecord() throws IOException {
+        store = open(KeyValueStore.DEFAULT_FLUSH_BYTES);
+        store.put("a", bytes("1"));
+        store.write(new KeyValueStore.Batch().put("b", bytes("2")).put("c", bytes("3")).delete("a"));
+        store.close();
+
+        // A batch cut short by a crash mid-write is left out as a whole
+        File[] logs = tempDir.resolve("store").toFile().listFiles((dir, name) -> name.endsWith(".wal"));
+        assertEquals(1, logs.length);
+        try(FileOutputStream torn = new FileOutputStream(logs[0], true)) {
+            torn.write(new byte[] {0, 0, 0, 40, 1, 2, 3, 4, 0, 0, 0, 1, 0});
+        }
+
+        store = open(KeyValueStore.DEFAULT_FLUSH_BYTES);
+        assertNull(store.get("a"));
+        assertEquals(List.of("b=2", "c=3"), scan(""));
+        store.put("d", bytes("4"));
+        store.close();
+
+        store = open(KeyValueStore.DEFAULT_FLUSH_BYTES);
+        assertEquals(List.of("b=2", "c=3", "d=4"), scan(""));
+    }
+
+    @Test
+    public void testCompactionMergesSegmentsAndDropsDeletions() throws Exception {
+        store = open(1024); // A segment every few dozen writes
+        for(int i = 0; i < 2000; i++) {
+            store.put(String.format("key/%05d", i % 500), bytes("value " + i));
+            if(i % 3 == 0) store.delete(String.format("key/%05d", (i + 7) % 500));
+        }
+        store.flush();
+        store.compact();
+
+        assertTrue(store.getFlushCount() > 8);
+        assertTrue(store.getMergeCount() > 0);
+        assertTrue(store.getSegmentCount() <= 8);
+        List<String> expected = new ArrayList<String>();
+        for(int key = 0; key < 500; key++) {
+            String value = null;
+            for(int i = 0; i < 2000; i++) {
+                if(i % 500 == key) value = "value " + i;
+                if(i % 3 == 0 && (i + 7) % 500 == key) value = null;
+            }
+            if(value != null) expected.add(String.format("key/%05d", key) + "=" + value);
+        }
+        assertEquals(expected, scan("key/"));
+
+        // The same after opening it again, segments and all
+        store.close();
+        store = open(1024);
+        assertEquals(expected, scan("key/"));
+    }
+
+    @Test
+    public void testSecondOpenOfTheSameStoreFails() throws IOException {
+        store = open(KeyValueStore.DEFAULT_FLUSH_BYTES);
+        assertThrows(IOException.class, () -> open(KeyValueStore.DEFAULT_FLUSH_BYTES));
+    }
+
+    @Test
+    public void testMembershipIsAKeyPerMemberInJoinOrder() throws IOException {
+        store = open(KeyValueStore.DEFAULT_FLUSH_BYTES);
+        KeyValueStorage storage = new KeyValueStorage(store);
+        storage.writeMembers(3, List.of(9, 2));
+        storage.addMember(3, 5);
+        storage.addMember(3, 1);
+        storage.removeMember(3, 2);
+        assertEquals(List.of(9, 5, 1), storage.readMembers(3));
+        assertEquals(3, store.values("members/0000000003/").size());
+
+        // A list still kept whole in one key is split up when read
+        store.put("chats/0000000004", new byte[] {0, 0, 0, 8, 0, 0, 0, 6});
+        assertEquals(List.of(8, 6), storage.readUserChatrooms(4));
+        assertNull(store.get("chats/0000000004"));
+        storage.addUserChatroom(4, 7);
+        store.close();
+
+        store = open(KeyValueStore.DEFAULT_FLUSH_BYTES);
+        storage = new KeyValueStorage(store);
+        assertEquals(List.of(9, 5, 1), storage.readMembers(3));
+        assertEquals(List.of(8, 6, 7), storage.readUserChatrooms(4));
+    }
+
+    @Test
+    public void testImporterCopiesTheLegacyFiles() throws IOException {
+        File legacy = tempDir.resolve("legacy").toFile();
+        legacy.mkdirs();
+        FileStorage files = new FileStorage(legacy);
+        files.writeAccounts(List.of(new Storage.Account("alice", "pw1", true, 1), new Storage.Account("bob", "pw2", false, 2)));
+        files.writeChatroomIDs(List.of(7));
+        files.writeMembers(7, List.of(1, 2));
+        files.writeUserChatrooms(2, List.of(7));
+        MessageCreator create = new MessageCreator(MessageType.UTU);
+        create.setContents("hi | bob");
+        create.setDate(1234567890L);
+        create.setToUserName("bob");
+        create.setToUserID(2);
+        create.setFromUserName("alice");
+        create.setFromUserID(1);
+        Message direct = create.createMessage();
+        files.appendInbox(2, direct);
+        files.appendInbox(2, direct);
+        create = new MessageCreator(MessageType.UTC);
+        create.setContents("hello room");
+        create.setDate(1234567891L);
+        create.setToChatroom(7);
+        create.setFromUserName("bob");
+        create.setFromUserID(2);
+        files.appendRoomMessage(7, create.createMessage());
+        files.appendLogs(List.of(create.createMessage()));
+
+        store = open(KeyValueStore.DEFAULT_FLUSH_BYTES);
+        KeyValueStorage storage = new KeyValueStorage(store);
+        assertTrue(StorageImporter.isNeeded(files, storage));
+        new StorageImporter(files, storage).importAll();
+        new StorageImporter(files, storage).importAll(); // Again overwrites, nothing doubles
+        assertFalse(StorageImporter.isNeeded(files, storage));
+
+        List<Storage.Account> accounts = storage.readAccounts();
+        assertEquals(2, accounts.size());
+        assertEquals("alice", accounts.get(0).getUsername());
+        assertTrue(accounts.get(0).isAdmin());
+        assertEquals(2, accounts.get(1).getUserID());
+        assertEquals(List.of(7), storage.readChatroomIDs());
+        assertEquals(List.of(1, 2), storage.readMembers(7));
+        assertEquals(List.of(7), storage.readUserChatrooms(2));
+        assertTrue(storage.readUserChatrooms(1).isEmpty());
+        assertEquals(2, storage.readInbox(2).size());
+        assertEquals("hi | bob", storage.readInbox(2).get(0).getContents());
+        assertEquals("hello room", storage.readRoomMessages(7).get(0).getContents());
+        assertEquals(1, storage.readChatLog(7).size());
+
+        // Appended messages come after the imported ones
+        storage.appendMessage(direct);
+        assertEquals(3, storage.readInbox(2).size());
+        assertEquals(1, storage.readInbox(1).size());
+    }
+
+    private static Message message(MessageType type, String contents, int from, int to) {
+        MessageCreator create = new MessageCreator(type);
+        create.setContents(contents);
+        create.setFromUserID(from);
+        if(type == MessageType.UTU) create.setToUserID(to);
+        else create.setToChatroom(to);
+        return create.createMessage();
+    }
+
+    private static List<String> contents(List<Message> messages) {
+        List<String> contents = new ArrayList<String>();
+        for(Message message : messages) {
+            contents.add(message.getContents());
+        }
+        return contents;
+    }
+
+    @Test
+    public void testEachMessageIsStoredOnce() throws IOException {
+        store = open(KeyValueStore.DEFAULT_FLUSH_BYTES);
+        KeyValueStorage storage = new KeyValueStorage(store);
+        storage.appendMessage(message(MessageType.UTU, "hi bob", 1, 2));
+        storage.appendMessage(message(MessageType.UTU, "hi carol", 1, 3));
+        storage.appendMessage(message(MessageType.UTU, "hi alice", 2, 1));
+        storage.appendMessage(message(MessageType.UTC, "hello room", 2, 7));
+        store.flush();
+
+        // One value per message, every other key is an empty reference
+        assertEquals(4, store.values("message/").size());
+        List<byte[]> references = new ArrayList<byte[]>(store.values("inbox/"));
+        references.addAll(store.values("conversation/"));
+        references.addAll(store.values("sent/"));
+        references.addAll(store.values("roommsg/"));
+        assertEquals(13, references.size());
+        for(byte[] reference : references) {
+            assertEquals(0, reference.length);
+        }
+
+        assertEquals(List.of("hi bob", "hi carol", "hi alice"), contents(storage.readInbox(1)));
+        assertEquals(List.of("hi bob", "hi alice"), contents(storage.readInbox(2)));
+        assertEquals(List.of("hi bob", "hi alice"), contents(storage.readConversation(2, 1)));
+        assertEquals(List.of("hi carol"), contents(storage.readConversation(1, 3)));
+        assertEquals(List.of("hi bob", "hi carol"), contents(storage.readUserLog(1)));
+        assertEquals(List.of("hello room"), contents(storage.readRoomMessages(7)));
+        assertEquals(List.of("hello room"), contents(storage.readChatLog(7)));
+
+        // Replacing a room's messages takes the ones it referred to with it
+        storage.writeRoomMessages(7, List.of(message(MessageType.UTC, "edited", 2, 7)));
+        assertEquals(List.of("edited"), contents(storage.readChatLog(7)));
+        assertEquals(4, store.values("message/").size());
+    }
+}
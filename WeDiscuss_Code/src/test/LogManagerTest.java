@@ -6,6 +6,8 @@ import org.junit.jupiter.api.*;
 import static org.junit.jupiter.api.Assertions.*;
 
 import server.LogManager;
+import shared.LogPage;
+import shared.LogQuery;
 import shared.Message;
 import shared.MessageCreator;
 import shared.MessageType;
@@ -17,6 +19,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 public class LogManagerTest {
 
@@ -146,4 +149,81 @@ public class LogManagerTest {
         // Clean up the test files
         new File("100chatlog.txt").delete();
     }
+
+    @Test
+    public void testQueuedMessagesAreBatchedAndDrained() throws Exception {
+        LogManager logManager = new LogManager(new ArrayList<>(), new ArrayList<>());
+
+        for (int i = 0; i < 50; i++) {
+            MessageCreator creator = new MessageCreator(MessageType.UTC);
+            creator.setFromUserID(1);
+            creator.setToChatroom(200);
+            creator.setContents("Queued " + i);
+            creator.setDate(System.currentTimeMillis());
+            logManager.addToLogQueue(creator.createMessage());
+        }
+
+        // Everything queued is written once drain returns
+        assertTrue(logManager.drain(5, TimeUnit.SECONDS));
+        assertTrue(logManager.isLogQueueEmpty());
+        assertEquals(50, LogManager.getChatroomMessageLogs().get(200).size());
+        assertEquals(50, logManager.getWrittenCount());
+        assertTrue(logManager.getBatchCount() >= 1 && logManager.getBatchCount() <= 50);
+
+        // The chatlog file is written when the room stores the message (Storage.appendMessage), not again here
+        assertFalse(new File("200chatlog.txt").exists());
+
+        logManager.close();
+        new File("200chatlog.txt").delete();
+    }
+
+    @Test
+    public void testCloseWritesWhatWasQueuedBeforeIt() {
+        LogManager logManager = new LogManager(new ArrayList<>(), new ArrayList<>());
+        for (int i = 0; i < 10; i++) {
+            MessageCreator creator = new MessageCreator(MessageType.UTC);
+            creator.setFromUserID(1);
+            creator.setToChatroom(400);
+            creator.setContents("Before close " + i);
+            creator.setDate(System.currentTimeMillis());
+            logManager.addToLogQueue(creator.createMessage());
+        }
+
+        // The writer stops at the entry close() queues, after the ones ahead of it
+        logManager.close();
+        assertEquals(10, logManager.getWrittenCount());
+        assertTrue(logManager.isLogQueueEmpty());
+        logManager.close(); // Already stopped, returns at once
+    }
+
+    @Test
+    public void testChatroomLogIsPaged() {
+        LogManager logManager = new LogManager(new ArrayList<>(), new ArrayList<>());
+        for (int i = 0; i < 25; i++) {
+            MessageCreator creator = new MessageCreator(MessageType.UTC);
+            creator.setFromUserID(1);
+            creator.setToChatroom(300);
+            creator.setContents("Entry " + i);
+            creator.setDate(1000L + i);
+            logManager.storeMessage(creator.createMessage());
+        }
+        List<Message> log = LogManager.getChatroomMessageLogs().get(300);
+
+        LogPage first = LogManager.page(log, new LogQuery(0, 10));
+        assertEquals(10, first.getRecords().size());
+        assertEquals(10, first.getNextCursor());
+
+        LogPage last = LogManager.page(log, new LogQuery(20, 10));
+        assertEquals(5, last.getRecords().size());
+        assertEquals("Entry 24", last.getRecords().get(4).getContents());
+        assertFalse(last.hasMore());
+
+        // Only entries 5..8 are in the window
+        LogPage window = LogManager.page(log, LogQuery.parse("0|10|1005|1008"));
+        assertEquals(4, window.getRecords().size());
+        assertEquals("Entry 5", window.getRecords().get(0).getContents());
+
+        assertTrue(LogManager.page(null, new LogQuery(0, 10)).getRecords().isEmpty());
+        logManager.close();
+    }
 }
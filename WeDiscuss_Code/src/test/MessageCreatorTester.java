@@ -63,15 +63,18 @@ public class MessageCreatorTester {
     }
 
     @Test
-    public void testSetAndGetUser() {
-        this.messageCreator.setUser(this.user);
-        assertEquals(this.user, this.messageCreator.getUser());
+    public void testSetAndGetProfile() {
+        UserProfile profile = this.user.getProfile();
+        this.messageCreator.setProfile(profile);
+        assertEquals(profile, this.messageCreator.getProfile());
+        assertEquals(this.user.getUsername(), profile.getUsername());
     }
 
     @Test
-    public void testSetAndGetChatroom() {
-        this.messageCreator.setChatroom(this.chatroom);
-        assertEquals(this.chatroom, this.messageCreator.getChatroom());
+    public void testSetAndGetRoom() {
+        RoomSummary room = new RoomSummary(this.chatroom.getChatroomID(), this.chatroom.getMembers(), this.chatroom.getMessages(), 0);
+        this.messageCreator.setRoom(room);
+        assertEquals(room, this.messageCreator.getRoom());
     }
 
     @Test
@@ -82,8 +85,10 @@ public class MessageCreatorTester {
         this.messageCreator.setFromUserID(this.user.getID());
         this.messageCreator.setToUserID(2);
         this.messageCreator.setToChatroom(3);
-        this.messageCreator.setUser(this.user);
-        this.messageCreator.setChatroom(this.chatroom);
+        UserProfile profile = this.user.getProfile();
+        RoomSummary room = new RoomSummary(this.chatroom.getChatroomID(), this.chatroom.getMembers(), this.chatroom.getMessages(), 0);
+        this.messageCreator.setProfile(profile);
+        this.messageCreator.setRoom(room);
 
         Message message = messageCreator.createMessage();
 
@@ -93,7 +98,7 @@ public class MessageCreatorTester {
         assertEquals(this.user.getID(), message.getFromUserID());
         assertEquals(2, message.getToUserID());
         assertEquals(3, message.getToChatroomID());
-        assertEquals(this.user, message.getUser());
-        assertEquals(this.chatroom, message.getChatroom());
+        assertEquals(profile, message.getProfile());
+        assertEquals(room, message.getRoom());
     }
 }
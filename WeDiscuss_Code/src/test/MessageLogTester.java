@@ -0,0 +1,258 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import server.DurabilityMode;
+import server.MessageLog;
+import shared.IdGenerator;
+import shared.Message;
+import shared.MessageCreator;
+import shared.MessageType;
+
+public class MessageLogTester {
+    private Path tempDir;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("message_log_test_");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        Files.walk(tempDir)
+            .sorted(Comparator.reverseOrder())
+            .map(Path::toFile)
+            .forEach(File::delete);
+    }
+
+    private Message roomMessage(int chatroomID, String contents) {
+        MessageCreator creator = new MessageCreator(MessageType.UTC);
+        creator.setFromUserID(1);
+        creator.setFromUserName("User1");
+        creator.setToChatroom(chatroomID);
+        creator.setContents(contents);
+        return creator.createMessage();
+    }
+
+    private Message directMessage(int fromUserID, int toUserID, String contents) {
+        MessageCreator creator = new MessageCreator(MessageType.UTU);
+        creator.setFromUserID(fromUserID);
+        creator.setToUserID(toUserID);
+        creator.setContents(contents);
+        return creator.createMessage();
+    }
+
+    @Test
+    public void testAppendAndReadByRoomAndUser() throws IOException {
+        MessageLog log = new MessageLog(tempDir.toFile());
+        long first = log.append(roomMessage(7, "first"));
+        log.append(directMessage(1, 2, "hi two"));
+        log.append(roomMessage(7, "second"));
+
+        assertEquals("first", log.read(first).getContents());
+        List<Message> room = log.readRoom(7);
+        assertEquals(2, room.size());
+        assertEquals("second", room.get(1).getContents());
+        assertEquals(1, log.readUser(1).size());
+        assertEquals("hi two", log.readUser(2).get(0).getContents());
+        assertTrue(log.readRoom(8).isEmpty());
+        log.close();
+    }
+
+    @Test
+    public void testRollsSegmentsAndReopens() throws IOException {
+        MessageLog log = new MessageLog(tempDir.toFile(), 256);
+        for(int i = 0; i < 20; i++) {
+            log.append(roomMessage(3, "message number " + i));
+        }
+        assertTrue(log.getSegmentCount() > 1);
+        log.close();
+
+        MessageLog reopened = new MessageLog(tempDir.toFile(), 256);
+        List<Message> room = reopened.readRoom(3);
+        assertEquals(20, room.size());
+        assertEquals("message number 19", room.get(19).getContents());
+        reopened.close();
+    }
+
+    @Test
+    public void testSecondOpenIsRefusedWhileTheLogIsOpen() throws IOException {
+        MessageLog log = new MessageLog(tempDir.toFile());
+        log.append(roomMessage(3, "kept"));
+
+        IOException e = assertThrows(IOException.class, () -> new MessageLog(tempDir.toFile()));
+        assertTrue(e.getMessage().contains("in use"));
+        log.close();
+
+        MessageLog reopened = new MessageLog(tempDir.toFile());
+        assertEquals("kept", reopened.readRoom(3).get(0).getContents());
+        reopened.close();
+    }
+
+    @Test
+    public void testReopenReadsSealedSegmentsFromTheirIndexFiles() throws IOException {
+        MessageLog log = new MessageLog(tempDir.toFile(), 256);
+        for(int i = 0; i < 30; i++) {
+            log.append(i % 3 == 0 ? directMessage(4, 5, "direct " + i) : roomMessage(3, "message number " + i));
+        }
+        int segments = log.getSegmentCount();
+        assertTrue(segments > 2);
+        assertEquals(0, log.getScannedSegmentCount()); // A new log has nothing to scan
+        log.close();
+        File[] indexFiles = tempDir.toFile().listFiles((dir, name) -> name.endsWith(".idx"));
+        assertEquals(segments - 1, indexFiles.length); // Every one but the active segment
+
+        MessageLog reopened = new MessageLog(tempDir.toFile(), 256);
+        assertEquals(1, reopened.getScannedSegmentCount());
+        assertEquals(20, reopened.getRoomMessageCount(3));
+        assertEquals("message number 29", reopened.readRoom(3).get(19).getContents());
+        assertEquals(10, reopened.getUserMessageCount(5));
+        assertEquals("direct 27", reopened.readUser(4).get(9).getContents());
+        List<Message> page = new ArrayList<Message>();
+        assertEquals(7, reopened.readRoom(3, 0, 0, Long.MAX_VALUE, 7, page));
+        assertEquals("message number 10", page.get(6).getContents());
+        reopened.close();
+    }
+
+    @Test
+    public void testBadIndexFileFallsBackToScanning() throws IOException {
+        MessageLog log = new MessageLog(tempDir.toFile(), 256);
+        for(int i = 0; i < 30; i++) {
+            log.append(roomMessage(3, "message number " + i));
+        }
+        log.close();
+        File[] indexFiles = tempDir.toFile().listFiles((dir, name) -> name.endsWith(".idx"));
+        Arrays.sort(indexFiles);
+        byte[] bytes = Files.readAllBytes(indexFiles[0].toPath());
+        bytes[20] ^= 1;
+        Files.write(indexFiles[0].toPath(), bytes);
+        assertTrue(indexFiles[1].delete());
+
+        MessageLog reopened = new MessageLog(tempDir.toFile(), 256);
+        assertEquals(3, reopened.getScannedSegmentCount());
+        assertEquals(30, reopened.getRoomMessageCount(3));
+        assertEquals("message number 0", reopened.readRoom(3).get(0).getContents());
+        reopened.close();
+
+        // Scanning wrote them again
+        MessageLog again = new MessageLog(tempDir.toFile(), 256);
+        assertEquals(1, again.getScannedSegmentCount());
+        assertEquals(30, again.getRoomMessageCount(3));
+        again.close();
+    }
+
+    @Test
+    public void testTornRecordIsCutOff() throws IOException {
+        MessageLog log = new MessageLog(tempDir.toFile());
+        log.append(roomMessage(5, "kept"));
+        log.close();
+
+        // Half written record at the end of the segment
+        File segment = tempDir.toFile().listFiles()[0];
+        try(FileOutputStream out = new FileOutputStream(segment, true)) {
+            out.write(new byte[] {0, 0, 0, 40, 1, 2, 3});
+        }
+
+        MessageLog reopened = new MessageLog(tempDir.toFile());
+        assertEquals(1, reopened.getRoomMessageCount(5));
+        reopened.append(roomMessage(5, "after crash"));
+        assertEquals("after crash", reopened.readRoom(5).get(1).getContents());
+        reopened.close();
+    }
+
+    @Test
+    public void testSyncModeGroupsConcurrentAppends() throws Exception {
+        MessageLog log = new MessageLog(tempDir.toFile(), MessageLog.DEFAULT_SEGMENT_BYTES, DurabilityMode.SYNC, MessageLog.DEFAULT_SYNC_INTERVAL_MS);
+        Thread[] senders = new Thread[4];
+        for(int t = 0; t < senders.length; t++) {
+            int room = t;
+            senders[t] = new Thread(() -> {
+                try {
+                    for(int i = 0; i < 25; i++) {
+                        log.append(roomMessage(room, "message " + i));
+                    }
+                }
+                catch(IOException e) {
+                    fail(e.getMessage());
+                }
+            });
+            senders[t].start();
+        }
+        for(Thread sender : senders) {
+            sender.join();
+        }
+
+        for(int room = 0; room < senders.length; room++) {
+            assertEquals(25, log.getRoomMessageCount(room));
+        }
+        assertTrue(log.getSyncCount() > 0);
+        assertTrue(log.getSyncCount() <= 100);
+        log.close();
+    }
+
+    @Test
+    public void testTimeRangeReadStartsAtRange() throws IOException {
+        MessageLog log = new MessageLog(tempDir.toFile());
+        for(int i = 0; i < 500; i++) {
+            MessageCreator dated = new MessageCreator(MessageType.UTC);
+            dated.setToChatroom(1);
+            dated.setContents("at " + (1000 + i * 10));
+            dated.setDate(1000L + i * 10);
+            log.append(dated.createMessage());
+        }
+
+        List<Message> range = new ArrayList<>();
+        assertEquals(-1, log.readRoom(1, 0, 3000, 3100, 100, range));
+        assertEquals(11, range.size());
+        assertEquals("at 3000", range.get(0).getContents());
+        assertEquals("at 3100", range.get(10).getContents());
+
+        // A full page hands back where to continue
+        List<Message> page = new ArrayList<>();
+        long next = log.readRoom(1, 0, 3000, 3100, 4, page);
+        assertEquals(4, page.size());
+        page.clear();
+        assertEquals(-1, log.readRoom(1, next, 3000, 3100, 100, page));
+        assertEquals(7, page.size());
+        log.close();
+    }
+
+    @Test
+    public void testClientClockDoesNotCutRangesShort() throws IOException {
+        MessageLog log = new MessageLog(tempDir.toFile());
+        long start = System.currentTimeMillis();
+        MessageCreator fast = new MessageCreator(MessageType.UTC);
+        fast.setToChatroom(1);
+        fast.setContents("from a clock in 2100");
+        fast.setDate(4102444800000L);
+        Message stamped = fast.createMessage().withServerStamp();
+        assertEquals(IdGenerator.timeOf(stamped.getMessageID()), stamped.getDateSent().getTime());
+        log.append(stamped);
+        for(int i = 0; i < 200; i++) {
+            log.append(roomMessage(1, "later " + i).withServerStamp());
+        }
+
+        // The messages after it are still found, and nothing is dated past now
+        List<Message> range = new ArrayList<>();
+        assertEquals(-1, log.readRoom(1, 0, start, System.currentTimeMillis(), 1000, range));
+        assertEquals(201, range.size());
+        assertEquals("later 199", range.get(200).getContents());
+        range.clear();
+        assertEquals(-1, log.readRoom(1, 0, System.currentTimeMillis() + 1, Long.MAX_VALUE, 1000, range));
+        assertTrue(range.isEmpty());
+        log.close();
+    }
+}
@@ -6,17 +6,18 @@ import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.util.Date;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import shared.*;
 
 public class MessageTester {
     private MessageCreator creator;
     private Message message;
-    private Chatroom testChatroom;
-    private ConcurrentMap<Integer, Chatroom> chatroomMap;
-    private ConcurrentMap<Integer, String> userMap;
+    private RoomSummary testRoom;
+    private List<RoomSummary> rooms;
+    private Map<Integer, String> userMap;
 
     @BeforeEach
     public void setUp() {
@@ -28,20 +29,19 @@ public class MessageTester {
         creator.setToUserID(2);
 
         //Initialize maps
-        chatroomMap = new ConcurrentHashMap<>();
-        userMap = new ConcurrentHashMap<>();
+        userMap = new TreeMap<>();
 
-        //create test chatroom
-        testChatroom = new Chatroom(1, 1);
-        chatroomMap.put(1, testChatroom);
+        //create test chatroom summary
+        testRoom = new RoomSummary(1, List.of(1), List.of(), 0);
+        rooms = List.of(testRoom);
 
         //Add test data to maps
         userMap.put(1, "sender");
         userMap.put(2, "receiver");
 
-        //Set maps in creator
-        creator.setChatroomMap(chatroomMap);
-        creator.setUserMap(userMap);
+        //Set directory and rooms in creator
+        creator.setRooms(rooms);
+        creator.setDirectory(new DirectoryPage(userMap, DirectoryPage.NO_MORE));
 
         //Create message
         message = creator.createMessage();
@@ -104,8 +104,8 @@ public class MessageTester {
         creator.setFromUserName("Jane");
         creator.setFromUserID(1);
         creator.setContents("Hello chatroom");
-        utcCreator.setUserMap(userMap);
-        utcCreator.setChatroomMap(chatroomMap);
+        utcCreator.setDirectory(new DirectoryPage(userMap, DirectoryPage.NO_MORE));
+        utcCreator.setRooms(rooms);
         Message chatroomMessage = creator.createMessage();
 
         String stored = chatroomMessage.storeChatroomMessage();
@@ -127,8 +127,8 @@ public class MessageTester {
         creator.setToUserID(2);
         creator.setFromUserName("Jane");
         creator.setFromUserID(1);
-        utuCreator.setUserMap(userMap);
-        utuCreator.setChatroomMap(chatroomMap);
+        utuCreator.setDirectory(new DirectoryPage(userMap, DirectoryPage.NO_MORE));
+        utuCreator.setRooms(rooms);
         Message message = creator.createMessage();
 
         String stored = message.storeInboxMessage();
@@ -150,11 +150,12 @@ public class MessageTester {
         assertEquals("LOGIN", message.typeToString(MessageType.LOGIN));
         assertEquals("LOGOUT", message.typeToString(MessageType.LOGOUT));
         assertEquals("CC", message.typeToString(MessageType.CC));
+        assertEquals("FINDUSER", message.typeToString(MessageType.FINDUSER));
     }
 
     @Test
-    public void testGetUserMap() {
-        ConcurrentMap<Integer, String> retrievedMap = message.getUserMap();
+    public void testGetDirectory() {
+        Map<Integer, String> retrievedMap = message.getDirectory().getUsers();
         assertNotNull(retrievedMap, "User map should not be null");
         assertEquals(userMap, retrievedMap);
         assertEquals("sender", retrievedMap.get(1));
@@ -162,17 +163,17 @@ public class MessageTester {
     }
 
     @Test
-    public void testGetChatroomMap() {
-        ConcurrentMap<Integer, Chatroom> retrievedMap = message.getChatroomMap();
-        assertNotNull(retrievedMap, "Chatroom map should not be null");
-        assertEquals(chatroomMap, retrievedMap);
-        assertTrue(retrievedMap.containsKey(1));
+    public void testGetRooms() {
+        List<RoomSummary> retrievedRooms = message.getRooms();
+        assertNotNull(retrievedRooms, "Rooms should not be null");
+        assertEquals(rooms, retrievedRooms);
+        assertEquals(1, retrievedRooms.get(0).getChatroomID());
     }
 
     @Test
-    public void testGetChatroom() {
-        creator.setChatroom(testChatroom);
+    public void testGetRoom() {
+        creator.setRoom(testRoom);
         Message chatroomMessage = creator.createMessage();
-        assertNotNull(chatroomMessage.getChatroom(), "Chatroom should not be null");
+        assertNotNull(chatroomMessage.getRoom(), "Room should not be null");
     }
 }
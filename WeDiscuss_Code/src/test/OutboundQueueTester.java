@@ -0,0 +1,128 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import server.OutboundQueue;
+import server.SlowConsumerPolicy;
+import shared.DirectoryDelta;
+import shared.EncodedMessage;
+import shared.Message;
+import shared.MessageCreator;
+import shared.MessageType;
+import shared.WireCodec;
+
+public class OutboundQueueTester {
+
+    private Message chat(String contents) {
+        MessageCreator creator = new MessageCreator(MessageType.UTC);
+        creator.setContents(contents);
+        return creator.createMessage();
+    }
+
+    private Message userMapUpdate(int userID, String change) {
+        MessageCreator creator = new MessageCreator(MessageType.UPDATEUM);
+        creator.setFromUserID(userID);
+        creator.setContents(change);
+        return creator.createMessage();
+    }
+
+    @Test
+    public void testKeepsOrderBelowCapacity() {
+        OutboundQueue queue = new OutboundQueue(4, SlowConsumerPolicy.DISCONNECT, null);
+        Message first = chat("one");
+        Message second = chat("two");
+        assertTrue(queue.offer(first));
+        assertTrue(queue.offer(second));
+        assertEquals(2, queue.size());
+        assertEquals(first, queue.poll().getMessage());
+        assertEquals(second, queue.poll().getMessage());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testDisconnectPolicy() {
+        OutboundQueue queue = new OutboundQueue(1, SlowConsumerPolicy.DISCONNECT, null);
+        assertTrue(queue.offer(chat("one")));
+        assertFalse(queue.offer(userMapUpdate(1, "Add")));
+    }
+
+    @Test
+    public void testDropEphemeralPolicy() {
+        OutboundQueue queue = new OutboundQueue(1, SlowConsumerPolicy.DROP_EPHEMERAL, null);
+        assertTrue(queue.offer(chat("one")));
+        assertTrue(queue.offer(userMapUpdate(1, "Add")));
+        assertEquals(1, queue.getDroppedCount());
+        assertFalse(queue.offer(chat("two")));
+    }
+
+    @Test
+    public void testCoalesceDirectoryPolicy() {
+        OutboundQueue queue = new OutboundQueue(2, SlowConsumerPolicy.COALESCE_DIRECTORY, null);
+        assertTrue(queue.offer(chat("one")));
+        assertTrue(queue.offer(userMapUpdate(5, "Add")));
+        Message removal = userMapUpdate(5, "Remove");
+        assertTrue(queue.offer(removal));
+        assertEquals(2, queue.size());
+        assertEquals(1, queue.getCoalescedCount());
+        queue.poll();
+        assertEquals(removal, queue.poll().getMessage());
+        // Nothing to merge with, so the client has to go
+        queue.offer(chat("two"));
+        queue.offer(userMapUpdate(6, "Add"));
+        assertFalse(queue.offer(userMapUpdate(7, "Add")));
+    }
+
+    @Test
+    public void testCoalesceKeepsTheQueuedPosition() {
+        OutboundQueue queue = new OutboundQueue(3, SlowConsumerPolicy.COALESCE_DIRECTORY, null);
+        assertTrue(queue.offer(userMapUpdate(5, "Add")));
+        Message fromNewUser = chat("hello from 5");
+        assertTrue(queue.offer(fromNewUser));
+        assertTrue(queue.offer(chat("two")));
+        Message rename = userMapUpdate(5, "Rename");
+        assertTrue(queue.offer(rename));
+        assertEquals(3, queue.size());
+        // The update still goes out ahead of the message queued after it
+        assertEquals(rename, queue.poll().getMessage());
+        assertEquals(fromNewUser, queue.poll().getMessage());
+        assertEquals("two", queue.poll().getMessage().getContents());
+    }
+
+    private Message directoryDelta(long from, long to, Map<Integer, String> added, List<Integer> removed) {
+        MessageCreator creator = new MessageCreator(MessageType.UPDATEUM);
+        creator.setContents("Delta");
+        creator.setDirectoryDelta(new DirectoryDelta(from, to, added, removed));
+        return creator.createMessage();
+    }
+
+    @Test
+    public void testCoalesceMergesDirectoryDeltas() {
+        OutboundQueue queue = new OutboundQueue(2, SlowConsumerPolicy.COALESCE_DIRECTORY, null);
+        assertTrue(queue.offer(chat("one")));
+        assertTrue(queue.offer(directoryDelta(10, 20, Map.of(1, "first", 2, "second"), List.of())));
+        assertTrue(queue.offer(directoryDelta(20, 30, Map.of(3, "third"), List.of(2))));
+        assertEquals(2, queue.size());
+        queue.poll();
+        DirectoryDelta merged = queue.poll().getMessage().getDirectoryDelta();
+        assertEquals(10, merged.getFromVersion());
+        assertEquals(30, merged.getToVersion());
+        assertEquals(Map.of(1, "first", 3, "third"), merged.getAdded());
+        assertEquals(List.of(2), merged.getRemoved());
+    }
+
+    @Test
+    public void testBroadcastIsEncodedOnce() throws Exception {
+        OutboundQueue first = new OutboundQueue(4, SlowConsumerPolicy.DISCONNECT, null);
+        OutboundQueue second = new OutboundQueue(4, SlowConsumerPolicy.DISCONNECT, null);
+        EncodedMessage broadcast = new EncodedMessage(chat("hello room"));
+        first.offer(broadcast);
+        second.offer(broadcast);
+        byte[] frame = first.poll().getFrame(WireCodec.BINARY);
+        assertSame(frame, second.poll().getFrame(WireCodec.BINARY));
+        assertEquals("hello room", WireCodec.BINARY.fromPayload(frame, 4, frame.length - 4).getContents());
+    }
+}
@@ -0,0 +1,126 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+
+import shared.Chatroom;
+import shared.Message;
+import shared.MessageCreator;
+import shared.MessageType;
+import shared.RecordParser;
+
+public class RecordParserTester {
+
+    private static RecordParser parser(String text, RecordParser.Separator separator) {
+        return new RecordParser(new ByteArrayInputStream(text.getBytes()), separator);
+    }
+
+    @Test
+    public void testPipeFieldsKeepEmptyOnes() throws IOException {
+        RecordParser parser = parser("a||c|\n\n|x\r\nlast", RecordParser.Separator.PIPE);
+        assertTrue(parser.next());
+        assertEquals(4, parser.fieldCount());
+        assertEquals("a", parser.field(0));
+        assertEquals("", parser.field(1));
+        assertEquals("c", parser.field(2));
+        assertEquals("", parser.field(3));
+        assertTrue(parser.next());
+        assertEquals(0, parser.fieldCount()); // Blank line
+        assertTrue(parser.next());
+        assertEquals(2, parser.fieldCount());
+        assertEquals("x", parser.field(1)); // No \r
+        assertTrue(parser.next());
+        assertEquals("last", parser.field(0));
+        assertFalse(parser.next());
+    }
+
+    @Test
+    public void testWhitespaceFieldsSkipRuns() throws IOException {
+        RecordParser parser = parser("  alice \t pw  true 12  \n7\n", RecordParser.Separator.WHITESPACE);
+        assertTrue(parser.next());
+        assertEquals(4, parser.fieldCount());
+        assertEquals("alice", parser.field(0));
+        assertEquals("pw", parser.field(1));
+        assertEquals(12, parser.intField(3));
+        assertTrue(parser.next());
+        assertEquals(7, parser.intField(0));
+        assertFalse(parser.next());
+    }
+
+    @Test
+    public void testNumbersDecodeLikeParseLong() throws IOException {
+        RecordParser parser = parser("-9223372036854775808|9223372036854775807|+42|-7|9223372036854775808|2147483648|12a|",
+            RecordParser.Separator.PIPE);
+        assertTrue(parser.next());
+        assertEquals(Long.MIN_VALUE, parser.longField(0));
+        assertEquals(Long.MAX_VALUE, parser.longField(1));
+        assertEquals(42, parser.intField(2));
+        assertEquals(-7, parser.intField(3));
+        assertThrows(NumberFormatException.class, () -> parser.longField(4));
+        assertThrows(NumberFormatException.class, () -> parser.intField(5));
+        assertThrows(NumberFormatException.class, () -> parser.intField(6));
+        assertThrows(NumberFormatException.class, () -> parser.intField(7));
+    }
+
+    @Test
+    public void testEscapedFieldsReadBack() throws IOException {
+        String contents = "a|b\\c\nsecond line\r\n";
+        String line = RecordParser.escape(contents) + "|" + RecordParser.escape("plain") + "\n";
+        assertEquals(1, line.split("\n").length, "Escaped record should stay on one line");
+
+        RecordParser parser = parser(line, RecordParser.Separator.PIPE);
+        assertTrue(parser.next());
+        assertEquals(2, parser.fieldCount());
+        assertEquals(contents, parser.field(0));
+        assertEquals("plain", parser.field(1));
+        assertFalse(parser.next());
+    }
+
+    @Test
+    public void testLinesLongerThanAChunk() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < 3; i++) {
+            text.append(String.valueOf((char) ('a' + i)).repeat(100000)).append('|').append(i).append('\n');
+        }
+        RecordParser parser = parser(text.toString(), RecordParser.Separator.PIPE);
+        for(int i = 0; i < 3; i++) {
+            assertTrue(parser.next());
+            assertEquals(100000, parser.field(0).length());
+            assertEquals(i, parser.intField(1));
+        }
+        assertFalse(parser.next());
+    }
+
+    @Test
+    public void testChatroomMessageWithSeparatorsSurvivesItsFile() throws IOException {
+        int chatroomID = 930001;
+        File file = new File(chatroomID + "Messages.txt");
+        try {
+            MessageCreator creator = new MessageCreator(MessageType.UTC);
+            creator.setContents("pipes | and\nnewlines");
+            creator.setToChatroom(chatroomID);
+            creator.setFromUserName("jane");
+            creator.setFromUserID(3);
+            Message message = creator.createMessage();
+            try(FileWriter writer = new FileWriter(file)) {
+                writer.write(message.storeChatroomMessage() + "\n");
+            }
+
+            List<Message> loaded = Chatroom.readMessageFile(chatroomID);
+            assertEquals(1, loaded.size());
+            assertEquals("pipes | and\nnewlines", loaded.get(0).getContents());
+            assertEquals(message.getDateSent(), loaded.get(0).getDateSent());
+            assertEquals(chatroomID, loaded.get(0).getToChatroomID());
+            assertEquals(3, loaded.get(0).getFromUserID());
+        }
+        finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import server.RoomHistoryCache;
+import shared.Chatroom;
+import shared.Message;
+import shared.MessageCreator;
+import shared.MessageType;
+
+public class RoomHistoryCacheTester {
+    private static final int FIRST_ROOM = 910001;
+    private final List<Chatroom> rooms = new ArrayList<Chatroom>();
+
+    @AfterEach
+    public void tearDown() {
+        for(Chatroom room : rooms) {
+            new File(room.getChatroomID() + "Messages.txt").delete();
+            new File(room.getChatroomID() + "Members.txt").delete();
+        }
+    }
+
+    private Chatroom coldRoom(int offset) {
+        Chatroom room = new Chatroom(FIRST_ROOM + offset, false);
+        rooms.add(room);
+        return room;
+    }
+
+    // Every room's history is as many messages as its offset from FIRST_ROOM, plus one
+    private static List<Message> history(int chatroomID) {
+        List<Message> messages = new ArrayList<Message>();
+        for(int i = FIRST_ROOM; i <= chatroomID; i++) {
+            MessageCreator create = new MessageCreator(MessageType.UTC);
+            create.setToChatroom(chatroomID);
+            create.setContents("message " + i);
+            messages.add(create.createMessage());
+        }
+        return messages;
+    }
+
+    @Test
+    public void testRoomsLoadOnFirstUse() throws IOException {
+        RoomHistoryCache cache = new RoomHistoryCache(RoomHistoryCacheTester::history, 100);
+        Chatroom room = coldRoom(2);
+        assertFalse(room.isLoaded());
+        assertTrue(room.getMessages().isEmpty());
+
+        assertEquals(3, cache.get(room).size());
+        assertTrue(room.isLoaded());
+        cache.get(room);
+        assertEquals(1, cache.getLoadCount());
+        assertEquals(3, cache.getResidentMessages());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedRoomsAreDropped() throws IOException {
+        RoomHistoryCache cache = new RoomHistoryCache(RoomHistoryCacheTester::history, 6);
+        Chatroom a = coldRoom(2);
+        Chatroom b = coldRoom(1);
+        Chatroom c = coldRoom(2);
+        cache.get(a);
+        cache.get(b);
+        cache.get(a); // b is now the least recently used
+        cache.get(c);
+
+        assertTrue(a.isLoaded());
+        assertFalse(b.isLoaded());
+        assertTrue(c.isLoaded());
+        assertEquals(6, cache.getResidentMessages());
+        assertEquals(1, cache.getEvictionCount());
+
+        assertEquals(2, cache.get(b).size()); // Loads again
+    }
+
+    @Test
+    public void testMessagesSentWhileColdAreOnlyStored() throws IOException {
+        RoomHistoryCache cache = new RoomHistoryCache(RoomHistoryCacheTester::history, 100);
+        Chatroom room = coldRoom(0);
+        List<Message> stored = new ArrayList<Message>();
+        room.addMessage(new MessageCreator(MessageType.UTC).createMessage(), stored::add);
+        assertEquals(1, stored.size());
+        assertFalse(room.isLoaded());
+
+        cache.get(room);
+        room.addMessage(new MessageCreator(MessageType.UTC).createMessage(), stored::add);
+        assertEquals(2, room.getMessages().size());
+    }
+}
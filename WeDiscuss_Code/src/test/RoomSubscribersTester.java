@@ -0,0 +1,41 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import server.RoomSubscribers;
+
+public class RoomSubscribersTester {
+
+    @Test
+    public void testOnlineAndOffline() {
+        RoomSubscribers subscribers = new RoomSubscribers();
+        subscribers.online(1, Arrays.asList(10, 20));
+        subscribers.online(2, Arrays.asList(10));
+        assertEquals(2, subscribers.get(10).size());
+        assertTrue(subscribers.get(20).contains(1));
+
+        subscribers.offline(1);
+        assertFalse(subscribers.get(10).contains(1));
+        assertTrue(subscribers.get(20).isEmpty());
+        assertTrue(subscribers.get(10).contains(2));
+    }
+
+    @Test
+    public void testLeaveAndDeleteRoom() {
+        RoomSubscribers subscribers = new RoomSubscribers();
+        subscribers.subscribe(10, 1);
+        subscribers.subscribe(10, 2);
+        subscribers.unsubscribe(10, 1);
+        assertFalse(subscribers.get(10).contains(1));
+
+        subscribers.removeRoom(10);
+        assertTrue(subscribers.get(10).isEmpty());
+        // Nothing left behind for a user once the room is gone
+        subscribers.subscribe(30, 2);
+        subscribers.offline(2);
+        assertTrue(subscribers.get(30).isEmpty());
+    }
+}
@@ -0,0 +1,181 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import server.LogManager;
+import server.MessageLog;
+import server.SearchIndex;
+import shared.LogPage;
+import shared.Message;
+import shared.MessageCreator;
+import shared.MessageType;
+import shared.SearchQuery;
+
+public class SearchIndexTester {
+    private Path tempDir;
+    private MessageLog log;
+    private SearchIndex index;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("search_index_test_");
+        log = new MessageLog(tempDir.resolve("log").toFile());
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        if(index != null) index.close();
+        log.close();
+        Files.walk(tempDir)
+            .sorted(Comparator.reverseOrder())
+            .map(Path::toFile)
+            .forEach(File::delete);
+    }
+
+    private SearchIndex openIndex(int flushDocs) throws IOException {
+        return new SearchIndex(tempDir.resolve("index").toFile(), log, flushDocs);
+    }
+
+    private void append(int chatroomID, String contents) throws IOException {
+        MessageCreator creator = new MessageCreator(MessageType.UTC);
+        creator.setFromUserID(1);
+        creator.setToChatroom(chatroomID);
+        creator.setContents(contents);
+        Message message = creator.createMessage();
+        index.add(log.append(message), message);
+    }
+
+    private List<String> search(SearchQuery query) throws IOException {
+        List<Message> found = new ArrayList<Message>();
+        index.search(query, found);
+        List<String> contents = new ArrayList<String>();
+        for(Message message : found) {
+            contents.add(message.getContents());
+        }
+        return contents;
+    }
+
+    @Test
+    public void testAllWordsMustMatchNewestFirst() throws IOException {
+        index = openIndex(SearchIndex.DEFAULT_FLUSH_DOCS);
+        append(1, "Lunch at noon?");
+        append(1, "the deploy failed again");
+        append(2, "Deploy is fixed, lunch?");
+
+        assertEquals(List.of("Deploy is fixed, lunch?", "the deploy failed again"), search(new SearchQuery("DEPLOY")));
+        assertEquals(List.of("Deploy is fixed, lunch?"), search(new SearchQuery("lunch deploy")));
+        assertTrue(search(new SearchQuery("dinner")).isEmpty());
+        assertTrue(search(new SearchQuery("")).isEmpty());
+    }
+
+    @Test
+    public void testPhraseAndChatroomFilter() throws IOException {
+        index = openIndex(SearchIndex.DEFAULT_FLUSH_DOCS);
+        append(1, "the build is red");
+        append(1, "is the build red?");
+        append(2, "the build is red here too");
+
+        assertEquals(List.of("the build is red"), search(new SearchQuery("\"build is red\"", -1, 1, Long.MIN_VALUE,
+                Long.MAX_VALUE, SearchQuery.NEWEST, SearchQuery.DEFAULT_PAGE_SIZE)));
+        assertEquals(2, search(new SearchQuery("\"build is red\"")).size());
+    }
+
+    @Test
+    public void testPagesAcrossSegmentsAndMerges() throws IOException {
+        index = openIndex(5);
+        for(int i = 0; i < 100; i++) {
+            append(1, "status update " + i);
+        }
+        index.merge();
+        assertTrue(index.getSegmentCount() <= 8);
+
+        List<String> all = new ArrayList<String>();
+        SearchQuery query = new SearchQuery("status update", -1, -1, Long.MIN_VALUE, Long.MAX_VALUE, SearchQuery.NEWEST, 30);
+        long cursor = SearchQuery.NEWEST;
+        do {
+            List<Message> page = new ArrayList<Message>();
+            cursor = index.search(query.withCursor(cursor), page);
+            for(Message message : page) {
+                all.add(message.getContents());
+            }
+        } while(cursor != LogPage.NO_MORE);
+        assertEquals(100, all.size());
+        assertEquals("status update 99", all.get(0));
+        assertEquals("status update 0", all.get(99));
+    }
+
+    @Test
+    public void testReopenCatchesUpFromLog() throws IOException {
+        index = openIndex(10);
+        for(int i = 0; i < 25; i++) {
+            append(1, "ticket " + i);
+        }
+        index.close(); // Flushes the last 5
+        index = null;
+
+        MessageCreator creator = new MessageCreator(MessageType.UTC);
+        creator.setFromUserID(1);
+        creator.setToChatroom(1);
+        creator.setContents("ticket written while the index was down");
+        log.append(creator.createMessage());
+
+        index = openIndex(10);
+        assertEquals(26, search(new SearchQuery("ticket")).size());
+        assertEquals(List.of("ticket written while the index was down"), search(new SearchQuery("down")));
+    }
+
+    @Test
+    public void testIndexAttachedWhileMessagesArriveMissesNone() throws Exception {
+        LogManager logManager = new LogManager(new ArrayList<Integer>(), new ArrayList<Integer>(), log);
+        log.append(roomMessage("zebra before the index opened"));
+        index = openIndex(10);
+        log.append(roomMessage("zebra while the index was opening")); // Not replayed, no listener yet
+        logManager.useSearchIndex(index);
+        log.append(roomMessage("zebra after it was attached"));
+
+        assertTrue(logManager.drain(5, TimeUnit.SECONDS));
+        assertEquals(List.of("zebra after it was attached", "zebra while the index was opening", "zebra before the index opened"),
+            search(new SearchQuery("zebra")));
+        logManager.close(); // Closes the index too
+        index = null;
+    }
+
+    @Test
+    public void testFullQueueNeverBlocksAppendsAndMissesNone() throws Exception {
+        // Room for one queued message: most appends find the queue full and are caught up from the log
+        LogManager logManager = new LogManager(new ArrayList<Integer>(), new ArrayList<Integer>(), log, 1);
+        index = openIndex(50);
+        logManager.useSearchIndex(index);
+        int sent = 300;
+        for (int i = 0; i < sent; i++) {
+            log.append(roomMessage("yak number" + i));
+        }
+
+        assertTrue(logManager.drain(5, TimeUnit.SECONDS));
+        for (int i = 0; i < sent; i++) {
+            assertEquals(List.of("yak number" + i), search(new SearchQuery("number" + i)), "Message " + i);
+        }
+        logManager.close();
+        index = null;
+    }
+
+    private static Message roomMessage(String contents) {
+        MessageCreator creator = new MessageCreator(MessageType.UTC);
+        creator.setFromUserID(1);
+        creator.setToChatroom(1);
+        creator.setContents(contents);
+        return creator.createMessage();
+    }
+}
@@ -0,0 +1,87 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import server.StartupLoader;
+
+public class StartupLoaderTester {
+    private StartupLoader startup;
+
+    @BeforeEach
+    public void setUp() {
+        startup = new StartupLoader(4);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        startup.shutdown();
+    }
+
+    @Test
+    public void testLoadKeepsItemOrder() {
+        List<Integer> ids = new ArrayList<Integer>();
+        for(int i = 0; i < 200; i++) {
+            ids.add(i);
+        }
+        List<String> loaded = startup.load(StartupLoader.USERS, ids, id -> "user" + id);
+
+        assertEquals(200, loaded.size());
+        for(int i = 0; i < 200; i++) {
+            assertEquals("user" + i, loaded.get(i));
+        }
+        StartupLoader.Phase phase = startup.phase(StartupLoader.USERS);
+        assertEquals(200, phase.getItems());
+        assertTrue(phase.isDone());
+    }
+
+    @Test
+    public void testLoaderFailureFailsTheLoad() {
+        assertThrows(IllegalArgumentException.class, () -> startup.load(StartupLoader.ROOMS, List.of(1, 2, 3), id -> {
+            if(id == 2) throw new IllegalArgumentException("bad room " + id);
+            return id;
+        }));
+    }
+
+    @Test
+    public void testCountsFilesAndBytes() throws IOException {
+        File file = File.createTempFile("startup_loader_test_", ".txt");
+        try(FileWriter writer = new FileWriter(file)) {
+            writer.write("0123456789");
+        }
+        startup.countFile(StartupLoader.LOGS, file);
+        startup.countFile(StartupLoader.LOGS, new File(file.getPath() + ".missing"));
+        file.delete();
+
+        assertEquals(1, startup.phase(StartupLoader.LOGS).getFiles());
+        assertEquals(10, startup.phase(StartupLoader.LOGS).getBytes());
+    }
+
+    @Test
+    public void testBackgroundPhaseRunsWhileCallerGoesOn() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> opening = startup.background(StartupLoader.SEARCH_INDEX, () -> {
+            release.await();
+            return "ready";
+        });
+        StartupLoader.Phase phase = startup.phase(StartupLoader.SEARCH_INDEX);
+        assertTrue(phase.isBackground());
+        assertFalse(opening.isDone());
+        assertTrue(startup.report().contains("still running"));
+
+        release.countDown();
+        assertEquals("ready", opening.get(5, TimeUnit.SECONDS));
+        assertTrue(phase.isDone());
+    }
+}
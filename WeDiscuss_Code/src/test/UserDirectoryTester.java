@@ -0,0 +1,133 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import server.DirectoryHistory;
+import server.User;
+import server.UserDirectory;
+import shared.DirectoryDelta;
+import shared.DirectoryPage;
+import shared.FileStorage;
+import shared.Storage;
+import shared.UserQuery;
+
+public class UserDirectoryTester {
+    private Path tempDir;
+    private FileStorage storage;
+    private UserDirectory directory;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("user_directory_test_");
+        storage = new FileStorage(tempDir.toFile());
+        List<User> users = new ArrayList<>();
+        users.add(new User("Alice", "pw", true, 1, storage));
+        users.add(new User("bob", "pw", false, 2, storage));
+        directory = new UserDirectory(users, storage, new DirectoryHistory(DirectoryHistory.DEFAULT_CAPACITY));
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        Files.walk(tempDir)
+            .sorted(Comparator.reverseOrder())
+            .map(Path::toFile)
+            .forEach(File::delete);
+    }
+
+    @Test
+    public void testChangesReachEveryView() throws IOException {
+        long start = directory.getVersion();
+        User alan = new User("alan", "pw", false, storage);
+        assertTrue(directory.add(alan));
+        assertFalse(directory.add(new User("alan", "other", false, storage)), "Name is taken");
+        assertSame(alan, directory.get(alan.getID()));
+        assertSame(alan, directory.get("alan"));
+        assertEquals("alan", directory.getDirectory().getUsers().get(alan.getID()));
+
+        assertTrue(directory.rename(alan.getID(), "Zed"));
+        assertFalse(directory.rename(alan.getID(), "bob"), "Name is taken");
+        assertNull(directory.get("alan"));
+        assertSame(alan, directory.get("Zed"));
+        assertEquals("Zed", alan.getUsername());
+        assertEquals(Map.of(alan.getID(), "Zed"), directory.find(new UserQuery("z", "", 10)).getUsers());
+        assertTrue(directory.find(new UserQuery("ala", "", 10)).getUsers().isEmpty());
+        assertEquals(List.of("Zed"), storage.readAccounts().stream().map(Storage.Account::getUsername).toList());
+
+        assertSame(alan, directory.remove("Zed"));
+        assertNull(directory.get(alan.getID()));
+        assertEquals(2, directory.size());
+
+        // Saved as it changed, and clients get the net change
+        assertTrue(storage.readAccounts().isEmpty());
+        DirectoryDelta delta = directory.getChanges(start);
+        assertEquals(directory.getVersion(), delta.getToVersion());
+        assertEquals(List.of(alan.getID()), delta.getRemoved());
+        assertTrue(delta.getAdded().isEmpty());
+    }
+
+    @Test
+    public void testFindPagesByPrefixIgnoringCase() throws IOException {
+        for (String name : List.of("albert", "ALFRED", "alma", "carol")) {
+            directory.add(new User(name, "pw", false, storage));
+        }
+
+        UserQuery query = new UserQuery("al", "", 3);
+        DirectoryPage first = directory.find(query);
+        assertEquals(List.of("albert", "ALFRED", "Alice"), new ArrayList<>(first.getUsers().values()));
+        assertTrue(first.hasMore());
+        UserQuery next = UserQuery.parse("al", query.next(first).toContents());
+        assertEquals("Alice", next.getAfter());
+        assertEquals(3, next.getPageSize());
+        // A name sorting before the cursor, added between pages, doesn't shift the next page
+        directory.add(new User("alb", "pw", false, storage));
+        DirectoryPage second = directory.find(next);
+        assertEquals(List.of("alma"), new ArrayList<>(second.getUsers().values()));
+        assertFalse(second.hasMore());
+
+        assertEquals(7, directory.find(new UserQuery("", "", 100)).getUsers().size());
+        assertTrue(directory.find(new UserQuery("x", "", 10)).getUsers().isEmpty());
+        assertFalse(directory.find(new UserQuery("carol", "", 1)).hasMore());
+    }
+
+    @Test
+    public void testConcurrentAddsKeepViewsInStep() throws InterruptedException {
+        int threads = 8;
+        int perThread = 100;
+        List<Thread> running = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            running.add(new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    try {
+                        directory.add(new User("user" + thread + "_" + i, "pw", false, storage));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    // Whatever a lookup by name finds, the lookup by id finds too
+                    User found = directory.get("user" + thread + "_" + (i / 2));
+                    assertSame(found, directory.get(found.getID()));
+                }
+            }));
+        }
+        running.forEach(Thread::start);
+        for (Thread thread : running) {
+            thread.join();
+        }
+
+        assertEquals(2 + threads * perThread, directory.size());
+        assertEquals(directory.size(), directory.getDirectory().getUsers().size());
+        assertEquals(directory.size(), directory.find(new UserQuery("", "", 10000)).getUsers().size());
+    }
+}
@@ -13,12 +13,15 @@ import java.nio.file.*;
 import java.util.*;
 import java.lang.reflect.Field;
 
+import server.MessageLog;
 import server.User;
+import shared.FileStorage;
 import shared.Message;
 import shared.MessageCreator;
 import shared.MessageType;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class UserTester {
 	private static final String TEMP_DIR_PREFIX = "user_test_";
@@ -34,7 +37,7 @@ public class UserTester {
         // Reset the IDCounter in User class
         Field idCounterField = User.class.getDeclaredField("IDCounter");
         idCounterField.setAccessible(true);
-        idCounterField.setInt(null, 0);
+        ((AtomicInteger) idCounterField.get(null)).set(0);
         
     }
     
@@ -144,6 +147,7 @@ public class UserTester {
     @Test
     public void testAddToInbox() throws Exception {
         User user = new User("testuser", "password123", false, 1001);
+        user.loadMessageInbox(); // Existing accounts only keep messages in memory once their inbox is loaded
         assertNotNull(user.getMessagesFromUsers());
 
         // Create a message
@@ -187,4 +191,112 @@ public class UserTester {
         assertTrue(chatrooms.contains(2003));
     }
     
+    @Test
+    public void testInboxKeepsNewestWindowAndPagesOlderFromLog() throws Exception {
+        int userID = 1201;
+        MessageLog log = new MessageLog(tempDir.resolve("log").toFile());
+        for(int i = 0; i < 30; i++) {
+            MessageCreator creator = new MessageCreator(MessageType.UTU);
+            creator.setFromUserID(i % 2 == 0 ? userID : 1202);
+            creator.setToUserID(i % 2 == 0 ? 1202 : userID);
+            creator.setContents("dm " + i);
+            log.append(creator.createMessage());
+        }
+        User user = new User("inboxuser", "password", false, userID);
+        assertFalse(user.isInboxLoaded());
+        assertTrue(user.getMessageInbox().isEmpty());
+
+        user.loadMessageInbox(log, 10);
+        assertEquals(10, user.getMessageInbox().size());
+        assertEquals("dm 20", user.getMessageInbox().get(0).getContents());
+        assertEquals(10, user.getMessagesFromUsers().get(1202).size());
+        assertEquals(20, user.getInboxStart());
+
+        MessageCreator creator = new MessageCreator(MessageType.UTU);
+        creator.setFromUserID(1202);
+        creator.setToUserID(userID);
+        creator.setContents("dm 30");
+        Message newest = creator.createMessage();
+        user.addLoggedMessage(newest, log.append(newest));
+        assertEquals(10, user.getMessageInbox().size());
+        assertEquals("dm 21", user.getMessageInbox().get(0).getContents());
+        assertEquals(21, user.getInboxStart());
+
+        List<Message> older = new ArrayList<Message>();
+        long next = user.readOlderMessages(log, user.getInboxStart(), 15, message -> true, older);
+        assertEquals(15, older.size());
+        assertEquals("dm 20", older.get(0).getContents());
+        assertEquals(6, next);
+        assertEquals(-1, user.readOlderMessages(log, next, 15, message -> true, older));
+        assertEquals("dm 0", older.get(older.size() - 1).getContents());
+
+        user.unloadMessageInbox();
+        assertTrue(user.getMessagesFromUsers().isEmpty());
+        log.close();
+        new File(userID + "Inbox.txt").delete();
+        new File(userID + "Chats.txt").delete();
+    }
+    
+    @Test
+    public void testOlderPagesFromTheLogDoNotReReadTheStoredInbox() throws Exception {
+        int userID = 1301;
+        AtomicInteger inboxReads = new AtomicInteger();
+        FileStorage storage = new FileStorage(tempDir.toFile()) {
+            @Override
+            public List<Message> readInbox(int userID) throws IOException {
+                inboxReads.incrementAndGet();
+                return super.readInbox(userID);
+            }
+        };
+        User user = new User("pageuser", "password", false, userID, storage);
+        for(int i = 0; i < 3; i++) {
+            MessageCreator creator = new MessageCreator(MessageType.UTU);
+            creator.setFromUserID(1302);
+            creator.setToUserID(userID);
+            creator.setContents("filed " + i);
+            creator.setDate(System.currentTimeMillis());
+            storage.appendInbox(userID, creator.createMessage());
+        }
+        MessageLog log = new MessageLog(tempDir.resolve("log").toFile());
+        for(int i = 0; i < 40; i++) {
+            MessageCreator creator = new MessageCreator(MessageType.UTU);
+            creator.setFromUserID(1302);
+            creator.setToUserID(userID);
+            creator.setContents("dm " + i);
+            log.append(creator.createMessage());
+        }
+
+        user.loadMessageInbox(log, 10);
+        assertEquals(33, user.getInboxStart());
+        assertEquals(1, inboxReads.get());
+
+        List<Message> older = new ArrayList<Message>();
+        long next = user.readOlderMessages(log, user.getInboxStart(), 10, message -> true, older);
+        assertEquals(23, next);
+        next = user.readOlderMessages(log, next, 10, message -> true, older);
+        assertEquals(13, next);
+        next = user.readOlderMessages(log, next, 10, message -> true, older);
+        assertEquals(3, next);
+        assertEquals("dm 0", older.get(older.size() - 1).getContents());
+        assertEquals(1, inboxReads.get()); // Only the size was needed, kept from the load
+
+        assertEquals(-1, user.readOlderMessages(log, next, 10, message -> true, older));
+        assertEquals("filed 0", older.get(older.size() - 1).getContents());
+        assertEquals(2, inboxReads.get());
+        log.close();
+    }
+    
+    @Test
+    public void testIdleInboxUnloads() throws Exception {
+        User user = new User("idleuser", "password", false, 1401);
+        user.loadMessageInbox();
+        long loadedBy = System.currentTimeMillis();
+        assertFalse(user.unloadIdleInbox(loadedBy - 60000)); // Used since
+        assertTrue(user.isInboxLoaded());
+        assertTrue(user.unloadIdleInbox(loadedBy + 1));
+        assertFalse(user.isInboxLoaded());
+        assertFalse(user.unloadIdleInbox(loadedBy + 1)); // Nothing left to unload
+        new File(user.getID() + "Inbox.txt").delete();
+        new File(user.getID() + "Chats.txt").delete();
+    }
 }